@@ -0,0 +1,190 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothManager;
+import tinyb.BluetoothType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A placement strategy which spreads connections across all adapters. When a device is visible to more than one
+ * adapter, it gets placed to the adapter with the best score, which is based on the current number of
+ * connections of the adapter, the device RSSI seen by the adapter and the adapter connect success rate.
+ * Placements are remembered so that all subsequent requests for the device (and its characteristics) are served
+ * by the same adapter, while URLs given to consumers stay intact. A placement is re-evaluated only when
+ * a connect attempt fails or the device disappears from the placement adapter.
+ */
+class AdapterBalancer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdapterBalancer.class);
+
+    // a typical number of LE connections that a controller can hold, used when connections are not capped
+    private static final int NOMINAL_CAPACITY = 7;
+    private static final double LOAD_WEIGHT = 0.4;
+    private static final double RSSI_WEIGHT = 0.3;
+    private static final double SUCCESS_WEIGHT = 0.3;
+    // smoothing factor of the exponentially weighted connect success rate
+    private static final double SUCCESS_ALPHA = 0.2;
+
+    private final ConnectionManager connectionManager;
+    private final Map<String, URL> placements = new ConcurrentHashMap<>();
+    private final Map<URL, Double> successRates = new ConcurrentHashMap<>();
+    private final AtomicLong rebalanced = new AtomicLong();
+    private volatile boolean enabled;
+
+    AdapterBalancer(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            placements.clear();
+        }
+    }
+
+    /**
+     * Translates a URL given to consumers into the URL of the adapter where the device is actually placed.
+     * @param url any URL of a device or its descendants
+     * @return URL pointing to the placement adapter
+     */
+    URL resolve(URL url) {
+        if (!enabled || url.getDeviceAddress() == null) {
+            return url;
+        }
+        URL adapter = placements.get(url.getDeviceAddress());
+        if (adapter == null || adapter.getAdapterAddress().equals(url.getAdapterAddress())) {
+            return url;
+        }
+        return new URL(url.getProtocol(), adapter.getAdapterAddress(), url.getDeviceAddress(),
+                url.getServiceUUID(), url.getCharacteristicUUID(), url.getFieldName());
+    }
+
+    /**
+     * Returns a native device bound to the placement adapter. The device gets placed if it has not been placed yet
+     * or it is not visible to the placement adapter any longer.
+     * @param url device URL
+     * @return native device bound to the placement adapter or null if no adapters can see the device
+     */
+    BluetoothDevice getDevice(URL url) {
+        URL placement = placements.get(url.getDeviceAddress());
+        if (placement != null) {
+            BluetoothManager manager = BluetoothManager.getBluetoothManager();
+            BluetoothAdapter adapter = (BluetoothAdapter) manager.getObject(
+                    BluetoothType.ADAPTER, null, placement.getAdapterAddress(), null);
+            BluetoothDevice device = adapter != null ? (BluetoothDevice) manager.getObject(
+                    BluetoothType.DEVICE, null, url.getDeviceAddress(), adapter) : null;
+            if (device != null) {
+                return device;
+            }
+        }
+        return place(url);
+    }
+
+    /**
+     * Finds the best adapter for a device among adapters which can see the device.
+     * A device that is already connected stays where it is.
+     * @param url device URL
+     * @return native device bound to the best adapter or null if no adapters can see the device
+     */
+    BluetoothDevice place(URL url) {
+        BluetoothManager manager = BluetoothManager.getBluetoothManager();
+        BluetoothDevice best = null;
+        URL bestAdapter = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (BluetoothAdapter adapter : manager.getAdapters()) {
+            BluetoothDevice device = (BluetoothDevice) manager.getObject(
+                    BluetoothType.DEVICE, null, url.getDeviceAddress(), adapter);
+            if (device == null) {
+                continue;
+            }
+            URL adapterURL = new URL(url.getProtocol(), adapter.getAddress(), null);
+            if (device.getConnected()) {
+                best = device;
+                bestAdapter = adapterURL;
+                break;
+            }
+            double score = score(adapterURL, device.getRSSI());
+            if (score > bestScore) {
+                best = device;
+                bestAdapter = adapterURL;
+                bestScore = score;
+            }
+        }
+        if (bestAdapter != null) {
+            URL previous = placements.put(url.getDeviceAddress(), bestAdapter);
+            if (!bestAdapter.equals(previous)) {
+                LOGGER.debug("Device placed: {} -> {}", url, bestAdapter);
+                if (!bestAdapter.getAdapterAddress().equals(url.getAdapterAddress())) {
+                    rebalanced.incrementAndGet();
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Records a connect attempt outcome. The device placement is dropped if the attempt has failed,
+     * so that the device gets re-placed next time it is requested.
+     * @param url device URL (placement adapter)
+     * @param success true if the device has been connected
+     */
+    void connected(URL url, boolean success) {
+        // the rate is seeded from 1.0 so that a single failure does not starve the adapter
+        successRates.compute(url.getAdapterURL(), (adapter, rate) ->
+                (rate != null ? rate : 1.0) * (1 - SUCCESS_ALPHA) + (success ? SUCCESS_ALPHA : 0));
+        if (!success && url.getDeviceAddress() != null) {
+            placements.remove(url.getDeviceAddress());
+        }
+    }
+
+    double getSuccessRate(URL adapter) {
+        return successRates.getOrDefault(adapter.getAdapterURL(), 1.0);
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("balancer.placements", placements.size());
+        metrics.put("balancer.rebalanced", rebalanced.get());
+        successRates.forEach((adapter, rate) ->
+                metrics.put("balancer." + adapter.getAdapterAddress() + ".successRate", rate));
+    }
+
+    double score(URL adapter, short rssi) {
+        int capacity = connectionManager.getCapacity(adapter);
+        double load = (double) connectionManager.getConnections(adapter) / (capacity > 0 ? capacity : NOMINAL_CAPACITY);
+        // RSSI of 0 means that the adapter has not seen the device recently
+        double signal = rssi == 0 ? 0 : Math.max(0, Math.min(1, (rssi + 100) / 70.0));
+        return LOAD_WEIGHT * (1 - Math.min(1, load)) + RSSI_WEIGHT * signal + SUCCESS_WEIGHT * getSuccessRate(adapter);
+    }
+
+}
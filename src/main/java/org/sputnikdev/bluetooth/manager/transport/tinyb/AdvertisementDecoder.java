@@ -0,0 +1,480 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A decoding stage for well known advertisement formats: iBeacon (manufacturer data), Eddystone UID/URL/TLM and
+ * common SIG service data (battery level and environmental sensing values). Payloads are parsed in place and
+ * delivered to listeners as typed event objects which are reused per callback thread, so that decoding does not
+ * allocate. Events are only valid during a listener call and must be copied if retained.
+ */
+public final class AdvertisementDecoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdvertisementDecoder.class);
+
+    private static final int APPLE = 0x004c;
+    private static final int EDDYSTONE = 0xfeaa;
+    private static final int BATTERY_SERVICE = 0x180f;
+    private static final int BATTERY_LEVEL = 0x2a19;
+    private static final int PRESSURE = 0x2a6d;
+    private static final int TEMPERATURE = 0x2a6e;
+    private static final int HUMIDITY = 0x2a6f;
+    private static final String[] URL_SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+    private static final String[] URL_EXPANSIONS = {".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+        ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
+
+    // an array rather than a concurrent collection so that iterating it does not allocate
+    private volatile Listener[] listeners = new Listener[0];
+    private final ThreadLocal<Events> events = ThreadLocal.withInitial(Events::new);
+
+    AdvertisementDecoder() { }
+
+    synchronized void addListener(Listener listener) {
+        List<Listener> updated = new ArrayList<>(Arrays.asList(listeners));
+        updated.add(listener);
+        listeners = updated.toArray(new Listener[updated.size()]);
+    }
+
+    synchronized void removeListener(Listener listener) {
+        List<Listener> updated = new ArrayList<>(Arrays.asList(listeners));
+        updated.remove(listener);
+        listeners = updated.toArray(new Listener[updated.size()]);
+    }
+
+    boolean isEnabled() {
+        return listeners.length > 0;
+    }
+
+    /**
+     * Decodes manufacturer data of a device and delivers recognised events to listeners.
+     * @param url device URL
+     * @param manufacturerData manufacturer data
+     */
+    void decodeManufacturerData(URL url, Map<Short, byte[]> manufacturerData) {
+        if (listeners.length == 0 || manufacturerData == null) {
+            return;
+        }
+        for (Map.Entry<Short, byte[]> entry : manufacturerData.entrySet()) {
+            byte[] data = entry.getValue();
+            if (data != null) {
+                decodeManufacturerData(url, entry.getKey(), data, 0, data.length);
+            }
+        }
+    }
+
+    /**
+     * Decodes manufacturer data of a single manufacturer and delivers recognised events to listeners.
+     * @param url device URL
+     * @param companyId manufacturer (company) ID
+     * @param data buffer
+     * @param offset payload offset
+     * @param length payload length
+     */
+    void decodeManufacturerData(URL url, short companyId, byte[] data, int offset, int length) {
+        if (listeners.length == 0) {
+            return;
+        }
+        IBeacon beacon = events.get().beacon;
+        if ((companyId & 0xffff) == APPLE && beacon.parse(data, offset, length)) {
+            deliver(url, beacon);
+        }
+    }
+
+    /**
+     * Decodes service data of a device and delivers recognised events to listeners.
+     * @param url device URL
+     * @param serviceData service data
+     */
+    void decodeServiceData(URL url, Map<String, byte[]> serviceData) {
+        if (listeners.length == 0 || serviceData == null) {
+            return;
+        }
+        for (Map.Entry<String, byte[]> entry : serviceData.entrySet()) {
+            int uuid = UUIDs.toShort(entry.getKey());
+            byte[] data = entry.getValue();
+            if (uuid >= 0 && data != null) {
+                decodeServiceData(url, uuid, data, 0, data.length);
+            }
+        }
+    }
+
+    /**
+     * Decodes service data of a single service and delivers recognised events to listeners.
+     * @param url device URL
+     * @param uuid 16 bit service UUID
+     * @param data buffer
+     * @param offset payload offset
+     * @param length payload length
+     */
+    void decodeServiceData(URL url, int uuid, byte[] data, int offset, int length) {
+        if (listeners.length == 0) {
+            return;
+        }
+        Events reusable = events.get();
+        if (uuid == EDDYSTONE) {
+            if (reusable.uid.parse(data, offset, length)) {
+                deliver(url, reusable.uid);
+            } else if (reusable.url.parse(data, offset, length)) {
+                deliver(url, reusable.url);
+            } else if (reusable.tlm.parse(data, offset, length)) {
+                deliver(url, reusable.tlm);
+            }
+        } else if (reusable.reading.parse(uuid, data, offset, length)) {
+            deliver(url, reusable.reading);
+        }
+    }
+
+    private void deliver(URL url, Object event) {
+        for (Listener listener : listeners) {
+            try {
+                if (event instanceof IBeacon) {
+                    listener.onIBeacon(url, (IBeacon) event);
+                } else if (event instanceof EddystoneUID) {
+                    listener.onEddystoneUID(url, (EddystoneUID) event);
+                } else if (event instanceof EddystoneURL) {
+                    listener.onEddystoneURL(url, (EddystoneURL) event);
+                } else if (event instanceof EddystoneTLM) {
+                    listener.onEddystoneTLM(url, (EddystoneTLM) event);
+                } else if (event instanceof SensorReading) {
+                    listener.onSensorReading(url, (SensorReading) event);
+                }
+            } catch (Exception ex) {
+                LOGGER.error("Advertisement listener error: " + url, ex);
+            }
+        }
+    }
+
+    private static int uint16be(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 8 | data[offset + 1] & 0xff;
+    }
+
+    private static int uint16le(byte[] data, int offset) {
+        return (data[offset + 1] & 0xff) << 8 | data[offset] & 0xff;
+    }
+
+    private static long uint32be(byte[] data, int offset) {
+        return (long) uint16be(data, offset) << 16 | uint16be(data, offset + 2);
+    }
+
+    private static long uint32le(byte[] data, int offset) {
+        return (long) uint16le(data, offset + 2) << 16 | uint16le(data, offset);
+    }
+
+    private static long int64be(byte[] data, int offset, int length) {
+        long result = 0;
+        for (int i = 0; i < length; i++) {
+            result = result << 8 | data[offset + i] & 0xff;
+        }
+        return result;
+    }
+
+    /**
+     * Advertisement listener. Listeners are called on native callback threads, hence must be fast.
+     */
+    public interface Listener {
+
+        default void onIBeacon(URL url, IBeacon beacon) { }
+
+        default void onEddystoneUID(URL url, EddystoneUID uid) { }
+
+        default void onEddystoneURL(URL url, EddystoneURL eddystoneURL) { }
+
+        default void onEddystoneTLM(URL url, EddystoneTLM tlm) { }
+
+        default void onSensorReading(URL url, SensorReading reading) { }
+
+    }
+
+    /**
+     * iBeacon advertisement.
+     */
+    public static final class IBeacon {
+
+        private long uuidMostSignificantBits;
+        private long uuidLeastSignificantBits;
+        private int major;
+        private int minor;
+        private byte txPower;
+
+        boolean parse(byte[] data, int offset, int length) {
+            if (length < 23 || data[offset] != 0x02 || data[offset + 1] != 0x15) {
+                return false;
+            }
+            uuidMostSignificantBits = int64be(data, offset + 2, 8);
+            uuidLeastSignificantBits = int64be(data, offset + 10, 8);
+            major = uint16be(data, offset + 18);
+            minor = uint16be(data, offset + 20);
+            txPower = data[offset + 22];
+            return true;
+        }
+
+        public long getUUIDMostSignificantBits() {
+            return uuidMostSignificantBits;
+        }
+
+        public long getUUIDLeastSignificantBits() {
+            return uuidLeastSignificantBits;
+        }
+
+        public UUID getProximityUUID() {
+            return new UUID(uuidMostSignificantBits, uuidLeastSignificantBits);
+        }
+
+        public int getMajor() {
+            return major;
+        }
+
+        public int getMinor() {
+            return minor;
+        }
+
+        /**
+         * Returns calibrated RSSI at 1 meter.
+         * @return tx power
+         */
+        public byte getTxPower() {
+            return txPower;
+        }
+    }
+
+    /**
+     * Eddystone UID frame.
+     */
+    public static final class EddystoneUID {
+
+        private byte[] data;
+        private int offset;
+        private long instance;
+        private byte txPower;
+
+        boolean parse(byte[] data, int offset, int length) {
+            if (length < 18 || data[offset] != 0x00) {
+                return false;
+            }
+            this.data = data;
+            this.offset = offset;
+            txPower = data[offset + 1];
+            instance = int64be(data, offset + 12, 6);
+            return true;
+        }
+
+        /**
+         * Returns calibrated RSSI at 0 meters.
+         * @return tx power
+         */
+        public byte getTxPower() {
+            return txPower;
+        }
+
+        /**
+         * Returns a copy of the 10 byte namespace ID.
+         * @return namespace ID
+         */
+        public byte[] getNamespace() {
+            byte[] namespace = new byte[10];
+            System.arraycopy(data, offset + 2, namespace, 0, namespace.length);
+            return namespace;
+        }
+
+        /**
+         * Returns the 6 byte instance ID.
+         * @return instance ID
+         */
+        public long getInstance() {
+            return instance;
+        }
+    }
+
+    /**
+     * Eddystone URL frame.
+     */
+    public static final class EddystoneURL {
+
+        private byte[] data;
+        private int offset;
+        private int length;
+        private byte txPower;
+
+        boolean parse(byte[] data, int offset, int length) {
+            if (length < 3 || data[offset] != 0x10 || (data[offset + 2] & 0xff) >= URL_SCHEMES.length) {
+                return false;
+            }
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            txPower = data[offset + 1];
+            return true;
+        }
+
+        /**
+         * Returns calibrated RSSI at 0 meters.
+         * @return tx power
+         */
+        public byte getTxPower() {
+            return txPower;
+        }
+
+        /**
+         * Decodes the URL (allocates).
+         * @return URL
+         */
+        public String getURL() {
+            StringBuilder url = new StringBuilder(URL_SCHEMES[data[offset + 2] & 0xff]);
+            for (int i = offset + 3; i < offset + length; i++) {
+                int code = data[i] & 0xff;
+                if (code < URL_EXPANSIONS.length) {
+                    url.append(URL_EXPANSIONS[code]);
+                } else {
+                    url.append((char) code);
+                }
+            }
+            return url.toString();
+        }
+    }
+
+    /**
+     * Eddystone TLM (unencrypted) frame.
+     */
+    public static final class EddystoneTLM {
+
+        private int batteryVoltage;
+        private double temperature;
+        private long advertisingCount;
+        private long uptime;
+
+        boolean parse(byte[] data, int offset, int length) {
+            if (length < 14 || data[offset] != 0x20 || data[offset + 1] != 0x00) {
+                return false;
+            }
+            batteryVoltage = uint16be(data, offset + 2);
+            temperature = ((short) uint16be(data, offset + 4)) / 256.0;
+            advertisingCount = uint32be(data, offset + 6);
+            uptime = uint32be(data, offset + 10) * 100;
+            return true;
+        }
+
+        /**
+         * Returns battery voltage in millivolts (zero if not supported).
+         * @return battery voltage
+         */
+        public int getBatteryVoltage() {
+            return batteryVoltage;
+        }
+
+        /**
+         * Returns beacon temperature in degrees Celsius (-128 if not supported).
+         * @return temperature
+         */
+        public double getTemperature() {
+            return temperature;
+        }
+
+        public long getAdvertisingCount() {
+            return advertisingCount;
+        }
+
+        /**
+         * Returns time since power on in milliseconds.
+         * @return uptime
+         */
+        public long getUptime() {
+            return uptime;
+        }
+    }
+
+    /**
+     * A sensor reading advertised in SIG service data.
+     */
+    public static final class SensorReading {
+
+        public enum Type { BATTERY_LEVEL, TEMPERATURE, HUMIDITY, PRESSURE }
+
+        private Type type;
+        private double value;
+
+        boolean parse(int uuid, byte[] data, int offset, int length) {
+            switch (uuid) {
+                case BATTERY_SERVICE:
+                case BATTERY_LEVEL:
+                    if (length < 1) {
+                        return false;
+                    }
+                    type = Type.BATTERY_LEVEL;
+                    value = data[offset] & 0xff;
+                    return true;
+                case TEMPERATURE:
+                    if (length < 2) {
+                        return false;
+                    }
+                    type = Type.TEMPERATURE;
+                    value = ((short) uint16le(data, offset)) / 100.0;
+                    return true;
+                case HUMIDITY:
+                    if (length < 2) {
+                        return false;
+                    }
+                    type = Type.HUMIDITY;
+                    value = uint16le(data, offset) / 100.0;
+                    return true;
+                case PRESSURE:
+                    if (length < 4) {
+                        return false;
+                    }
+                    type = Type.PRESSURE;
+                    value = uint32le(data, offset) / 10.0;
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Returns the value: battery level (%), temperature (Celsius), humidity (%) or pressure (Pa).
+         * @return value
+         */
+        public double getValue() {
+            return value;
+        }
+    }
+
+    private static final class Events {
+        private final IBeacon beacon = new IBeacon();
+        private final EddystoneUID uid = new EddystoneUID();
+        private final EddystoneURL url = new EddystoneURL();
+        private final EddystoneTLM tlm = new EddystoneTLM();
+        private final SensorReading reading = new SensorReading();
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An early filter of advertisement notifications (RSSI, manufacturer data and service data). The filter is
+ * evaluated on native callback threads before any notification task is created, so it must be cheap: device
+ * addresses and manufacturer IDs are encoded as primitive longs and looked up in compact Bloom filters backed
+ * by sorted arrays, so that the vast majority of uninteresting advertisements is dropped without allocation.
+ */
+class AdvertisementFilter {
+
+    // devices whose address cannot be packed are not filtered by address
+    static final long UNKNOWN_ADDRESS = -1;
+
+    private volatile KeySet allowedAddresses = KeySet.EMPTY;
+    private volatile KeySet deniedAddresses = KeySet.EMPTY;
+    private volatile KeySet allowedManufacturers = KeySet.EMPTY;
+    private volatile KeySet deniedManufacturers = KeySet.EMPTY;
+
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong droppedByAddress = new AtomicLong();
+    private final AtomicLong droppedByManufacturer = new AtomicLong();
+
+    /**
+     * Sets device addresses that are allowed, empty collection means all addresses are allowed.
+     * @param addresses device addresses
+     */
+    void setAllowedAddresses(Collection<String> addresses) {
+        allowedAddresses = KeySet.of(addresses.stream().mapToLong(DeviceKey::parseAddress).toArray());
+    }
+
+    /**
+     * Sets device addresses that are denied.
+     * @param addresses device addresses
+     */
+    void setDeniedAddresses(Collection<String> addresses) {
+        deniedAddresses = KeySet.of(addresses.stream().mapToLong(DeviceKey::parseAddress).toArray());
+    }
+
+    /**
+     * Sets manufacturer IDs that are allowed, empty collection means all manufacturers are allowed.
+     * @param manufacturers manufacturer IDs
+     */
+    void setAllowedManufacturers(Collection<Integer> manufacturers) {
+        allowedManufacturers = KeySet.of(manufacturers.stream().mapToLong(id -> id & 0xffff).toArray());
+    }
+
+    /**
+     * Sets manufacturer IDs that are denied.
+     * @param manufacturers manufacturer IDs
+     */
+    void setDeniedManufacturers(Collection<Integer> manufacturers) {
+        deniedManufacturers = KeySet.of(manufacturers.stream().mapToLong(id -> id & 0xffff).toArray());
+    }
+
+    boolean isEnabled() {
+        return !allowedAddresses.isEmpty() || !deniedAddresses.isEmpty()
+                || !allowedManufacturers.isEmpty() || !deniedManufacturers.isEmpty();
+    }
+
+    /**
+     * Checks whether advertisements of a device should be delivered.
+     * @param address device address encoded by {@link DeviceKey#parseAddress(String)} or {@link #UNKNOWN_ADDRESS}
+     * @return true if advertisements should be delivered
+     */
+    boolean accept(long address) {
+        if (!isEnabled()) {
+            // nothing is counted when there is nothing to filter, it is a hot path
+            return true;
+        }
+        if (!isAddressAccepted(address)) {
+            droppedByAddress.incrementAndGet();
+            return false;
+        }
+        passed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Checks whether manufacturer data of a device should be delivered. Manufacturer data is delivered if the
+     * device address is accepted and at least one of the manufacturer IDs is accepted.
+     * @param address device address encoded by {@link DeviceKey#parseAddress(String)} or {@link #UNKNOWN_ADDRESS}
+     * @param manufacturerData manufacturer data
+     * @return true if manufacturer data should be delivered
+     */
+    boolean accept(long address, Map<Short, byte[]> manufacturerData) {
+        if (!isEnabled()) {
+            // nothing is counted when there is nothing to filter, it is a hot path
+            return true;
+        }
+        if (!isAddressAccepted(address)) {
+            droppedByAddress.incrementAndGet();
+            return false;
+        }
+        KeySet allowed = allowedManufacturers;
+        KeySet denied = deniedManufacturers;
+        if ((!allowed.isEmpty() || !denied.isEmpty()) && manufacturerData != null) {
+            boolean accepted = false;
+            for (Short id : manufacturerData.keySet()) {
+                long key = id & 0xffff;
+                if ((allowed.isEmpty() || allowed.contains(key)) && !denied.contains(key)) {
+                    accepted = true;
+                    break;
+                }
+            }
+            if (!accepted) {
+                droppedByManufacturer.incrementAndGet();
+                return false;
+            }
+        }
+        passed.incrementAndGet();
+        return true;
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("advertisement.passed", passed.get());
+        metrics.put("advertisement.dropped.address", droppedByAddress.get());
+        metrics.put("advertisement.dropped.manufacturer", droppedByManufacturer.get());
+    }
+
+    private boolean isAddressAccepted(long address) {
+        if (address == UNKNOWN_ADDRESS) {
+            return true;
+        }
+        KeySet allowed = allowedAddresses;
+        return (allowed.isEmpty() || allowed.contains(address)) && !deniedAddresses.contains(address);
+    }
+
+    /**
+     * An immutable set of long keys. A Bloom filter (three probes into a bit array of ~16 bits per key)
+     * answers most negative lookups, positive ones are confirmed by a binary search in a sorted array.
+     */
+    static final class KeySet {
+
+        static final KeySet EMPTY = new KeySet(new long[0]);
+
+        private static final int PROBES = 3;
+
+        private final long[] keys;
+        private final long[] bits;
+        private final int mask;
+
+        private KeySet(long[] keys) {
+            this.keys = keys;
+            int size = Integer.highestOneBit(Math.max(64, keys.length * 16 - 1)) << 1;
+            bits = new long[size >>> 6];
+            mask = size - 1;
+            for (long key : keys) {
+                long hash = mix(key);
+                for (int probe = 0; probe < PROBES; probe++) {
+                    int bit = (int) (hash >>> (probe * 21)) & mask;
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+
+        static KeySet of(long[] keys) {
+            if (keys.length == 0) {
+                return EMPTY;
+            }
+            long[] sorted = Arrays.stream(keys).distinct().sorted().toArray();
+            return new KeySet(sorted);
+        }
+
+        boolean isEmpty() {
+            return keys.length == 0;
+        }
+
+        boolean contains(long key) {
+            if (keys.length == 0) {
+                return false;
+            }
+            long hash = mix(key);
+            for (int probe = 0; probe < PROBES; probe++) {
+                int bit = (int) (hash >>> (probe * 21)) & mask;
+                if ((bits[bit >>> 6] & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return Arrays.binarySearch(keys, key) >= 0;
+        }
+
+        private static long mix(long key) {
+            // murmur3 finalizer
+            long hash = key;
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+
+}
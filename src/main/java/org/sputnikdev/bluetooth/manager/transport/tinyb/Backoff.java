@@ -0,0 +1,67 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Jittered exponential backoff. Each attempt doubles the base delay up to the maximum delay, the actual delay
+ * is randomised between half and full of it ("equal" jitter) so that retries of many objects do not collide.
+ */
+class Backoff {
+
+    private volatile long baseDelay;
+    private volatile long maxDelay;
+
+    Backoff(long baseDelay, long maxDelay) {
+        setDelays(baseDelay, maxDelay);
+    }
+
+    /**
+     * Sets backoff delays.
+     * @param baseDelay delay (ms) before the first attempt, each following attempt doubles it
+     * @param maxDelay maximum delay (ms) between attempts
+     */
+    void setDelays(long baseDelay, long maxDelay) {
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+    }
+
+    long getBaseDelay() {
+        return baseDelay;
+    }
+
+    long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Calculates a delay for an attempt.
+     * @param attempt attempt number (zero based)
+     * @return delay in milliseconds
+     */
+    long getDelay(int attempt) {
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A result of a batch read operation: values that have been successfully read and errors that occurred.
+ */
+public class BatchReadResult {
+
+    private final Map<URL, byte[]> values;
+    private final Map<URL, Exception> errors;
+
+    BatchReadResult(Map<URL, byte[]> values, Map<URL, Exception> errors) {
+        this.values = Collections.unmodifiableMap(values);
+        this.errors = Collections.unmodifiableMap(errors);
+    }
+
+    /**
+     * Returns values that have been successfully read.
+     * @return values keyed by characteristic URL
+     */
+    public Map<URL, byte[]> getValues() {
+        return values;
+    }
+
+    /**
+     * Returns errors that occurred while reading values.
+     * @return errors keyed by characteristic URL
+     */
+    public Map<URL, Exception> getErrors() {
+        return errors;
+    }
+
+}
@@ -0,0 +1,199 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattService;
+import tinyb.BluetoothManager;
+import tinyb.BluetoothType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Reads characteristic values from many devices in one go. Characteristic URLs are grouped by adapter and device,
+ * native handles of adapters, devices and services are resolved only once per group. Devices are read in parallel,
+ * while characteristics of the same device are read serially. Devices placed by {@link AdapterBalancer} are read
+ * on the adapters they are placed on, values are reported against the requested URLs.
+ * A reader is owned by a factory, its threads are started lazily and shared by all batches.
+ */
+class BatchReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchReader.class);
+
+    private final AdapterBalancer balancer;
+    private int parallelism = 4;
+    private ThreadPoolExecutor executor;
+
+    BatchReader(AdapterBalancer balancer) {
+        this.balancer = balancer;
+    }
+
+    synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets how many devices are read in parallel (by all batches).
+     * @param parallelism number of devices read in parallel
+     */
+    synchronized void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        if (executor != null) {
+            if (this.parallelism > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(this.parallelism);
+                executor.setCorePoolSize(this.parallelism);
+            } else {
+                executor.setCorePoolSize(this.parallelism);
+                executor.setMaximumPoolSize(this.parallelism);
+            }
+        }
+    }
+
+    BatchReadResult read(Collection<URL> urls) {
+        // grouped by native device URLs
+        Map<URL, List<URL>> byDevice = urls.stream().map(URL::getCharacteristicURL).distinct()
+                .collect(Collectors.groupingBy(url -> balancer.resolve(url).getDeviceURL(), LinkedHashMap::new,
+                        Collectors.toList()));
+        Map<URL, List<URL>> byAdapter = byDevice.keySet().stream()
+                .collect(Collectors.groupingBy(URL::getAdapterURL, LinkedHashMap::new, Collectors.toList()));
+
+        Map<URL, byte[]> values = new ConcurrentHashMap<>();
+        Map<URL, Exception> errors = new ConcurrentHashMap<>();
+        if (byDevice.isEmpty()) {
+            return new BatchReadResult(values, errors);
+        }
+
+        LOGGER.debug("Batch read: {} characteristics, {} devices, {} adapters",
+                urls.size(), byDevice.size(), byAdapter.size());
+
+        ThreadPoolExecutor executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<>(byDevice.size());
+        try {
+            for (Map.Entry<URL, List<URL>> adapterEntry : byAdapter.entrySet()) {
+                BluetoothAdapter adapter = null;
+                try {
+                    adapter = (BluetoothAdapter) BluetoothManager.getBluetoothManager().getObject(
+                            BluetoothType.ADAPTER, null, adapterEntry.getKey().getAdapterAddress(), null);
+                } catch (Exception ex) {
+                    adapterEntry.getValue().forEach(device -> fail(byDevice.get(device), ex, errors));
+                    continue;
+                }
+                for (URL deviceURL : adapterEntry.getValue()) {
+                    if (adapter == null) {
+                        fail(byDevice.get(deviceURL), new TinyBException("Adapter not found: " + deviceURL), errors);
+                        continue;
+                    }
+                    BluetoothAdapter nativeAdapter = adapter;
+                    futures.add(executor.submit(
+                            () -> readDevice(nativeAdapter, deviceURL, byDevice.get(deviceURL), values, errors)));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new TinyBException("Interrupted while reading values", ex);
+        } catch (ExecutionException ex) {
+            futures.forEach(future -> future.cancel(true));
+            throw new TinyBException("Could not read values", ex.getCause());
+        }
+        return new BatchReadResult(values, errors);
+    }
+
+    synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), BatchReader::newThread);
+            // idle readers are stopped between batches
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private static Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "tinyb-batch-reader");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void readDevice(BluetoothAdapter adapter, URL deviceURL, List<URL> characteristics,
+                            Map<URL, byte[]> values, Map<URL, Exception> errors) {
+        try {
+            BluetoothDevice device = (BluetoothDevice) BluetoothManager.getBluetoothManager().getObject(
+                    BluetoothType.DEVICE, null, deviceURL.getDeviceAddress(), adapter);
+            if (device == null || !device.getConnected()) {
+                fail(characteristics, new TinyBException("Device is not connected: " + deviceURL), errors);
+                return;
+            }
+            Map<String, BluetoothGattService> services = new HashMap<>();
+            for (URL url : characteristics) {
+                try {
+                    BluetoothGattService service = services.computeIfAbsent(url.getServiceUUID(),
+                            uuid -> (BluetoothGattService) BluetoothManager.getBluetoothManager().getObject(
+                                    BluetoothType.GATT_SERVICE, null, uuid, device));
+                    BluetoothGattCharacteristic characteristic = service == null ? null
+                            : (BluetoothGattCharacteristic) BluetoothManager.getBluetoothManager().getObject(
+                                    BluetoothType.GATT_CHARACTERISTIC, null, url.getCharacteristicUUID(), service);
+                    if (characteristic == null) {
+                        errors.put(url, new TinyBException("Characteristic not found: " + url));
+                        continue;
+                    }
+                    values.put(url, TinyBCharacteristic.readValue(url, characteristic));
+                } catch (Exception ex) {
+                    errors.put(url, ex);
+                }
+            }
+        } catch (Exception ex) {
+            fail(characteristics, ex, errors);
+        }
+    }
+
+    private static void fail(List<URL> urls, Exception error, Map<URL, Exception> errors) {
+        urls.forEach(url -> errors.put(url, error));
+    }
+
+}
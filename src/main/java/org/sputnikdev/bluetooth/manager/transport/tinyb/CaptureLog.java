@@ -0,0 +1,458 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An append-only capture log of characteristic values, advertisements, discovery results and read/write results,
+ * which can be replayed with {@link ReplayFactory}. Records (timestamp, URL id, kind and
+ * payload) are written straight from notification callbacks into memory mapped segment files, a writer claims
+ * space in the current segment with a single atomic operation, so that concurrent callbacks do not contend on a
+ * lock. Segments are rotated when full and the oldest ones are deleted once their number exceeds the limit.
+ *
+ * <p>URLs are replaced with integer IDs, each segment defines IDs it uses, so that segments can be read
+ * independently.
+ */
+class CaptureLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CaptureLog.class);
+
+    // "CAPT"
+    private static final int MAGIC = 0x43415054;
+    private static final byte VERSION = 1;
+    private static final int SEGMENT_HEADER = 8;
+    // timestamp, URL id, kind, payload length
+    private static final int RECORD_HEADER = 8 + 4 + 1 + 4;
+    private static final String PREFIX = "capture-";
+    private static final String EXTENSION = ".seg";
+
+    enum Kind {
+        // defines a URL id, payload is the URL
+        URL_ID, VALUE, RSSI, SERVICE_DATA, MANUFACTURER_DATA, CONNECTED,
+        // payload is RSSI, bluetooth class, name and alias
+        DISCOVERED,
+        // payload is the value read
+        READ,
+        // payload is the result followed by the value written
+        WRITE;
+
+        private static final Kind[] VALUES = values();
+    }
+
+    private final Map<URL, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private volatile Segment current;
+    private volatile Path directory;
+    private volatile int segmentSize = 16 * 1024 * 1024;
+    private volatile int maxSegments = 8;
+    private long nextIndex;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rotations = new AtomicLong();
+
+    boolean isEnabled() {
+        return current != null;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets a directory where segments are written, null disables capturing.
+     * @param directory capture directory
+     */
+    synchronized void setDirectory(Path directory) {
+        if (directory != null && directory.equals(this.directory)) {
+            return;
+        }
+        close();
+        this.directory = directory;
+        if (directory == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            segments.addAll(list(directory));
+            Path last = segments.peekLast();
+            nextIndex = last != null ? index(last) + 1 : 0;
+            current = open();
+        } catch (IOException ex) {
+            LOGGER.warn("Could not open capture log, capturing is disabled: {} : {}", directory, ex.getMessage());
+            close();
+            this.directory = null;
+        }
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets size of segment files, takes effect from the next segment.
+     * @param segmentSize segment size (bytes)
+     */
+    void setSegmentSize(int segmentSize) {
+        this.segmentSize = Math.max(segmentSize, SEGMENT_HEADER + RECORD_HEADER);
+    }
+
+    int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Sets how many segments are retained, the oldest ones get deleted.
+     * @param maxSegments max number of segments
+     */
+    void setMaxSegments(int maxSegments) {
+        this.maxSegments = Math.max(maxSegments, 1);
+    }
+
+    void value(URL url, byte[] value) {
+        if (current != null && value != null) {
+            append(url, Kind.VALUE, value);
+        }
+    }
+
+    void rssi(URL url, short rssi) {
+        if (current != null) {
+            append(url, Kind.RSSI, new byte[] {(byte) (rssi >> 8), (byte) rssi});
+        }
+    }
+
+    void connected(URL url, boolean connected) {
+        if (current != null) {
+            append(url, Kind.CONNECTED, new byte[] {(byte) (connected ? 1 : 0)});
+        }
+    }
+
+    /**
+     * Captures a discovery result.
+     * @param device discovered device
+     */
+    void discovered(DiscoveredDevice device) {
+        if (current != null) {
+            byte[] name = device.getName() != null ? device.getName().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            byte[] alias = device.getAlias() != null ? device.getAlias().getBytes(StandardCharsets.UTF_8)
+                    : new byte[0];
+            append(device.getURL(), Kind.DISCOVERED, ByteBuffer.allocate(2 + 4 + 2 + name.length + 2 + alias.length)
+                    .putShort(device.getRSSI()).putInt(device.getBluetoothClass())
+                    .putShort((short) name.length).put(name).putShort((short) alias.length).put(alias).array());
+        }
+    }
+
+    void read(URL url, byte[] value) {
+        if (current != null && value != null) {
+            append(url, Kind.READ, value);
+        }
+    }
+
+    /**
+     * Reads records of a segment.
+     * @param segment segment file
+     * @return records in the order they were written
+     * @throws IOException if the segment cannot be read
+     */
+    static List<Record> read(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    void write(URL url, byte[] value, boolean result) {
+        if (current != null && value != null) {
+            byte[] payload = new byte[value.length + 1];
+            payload[0] = (byte) (result ? 1 : 0);
+            System.arraycopy(value, 0, payload, 1, value.length);
+            append(url, Kind.WRITE, payload);
+        }
+    }
+
+    /**
+     * Captures service data, one record per service (the record URL is the service URL).
+     * @param url device URL
+     * @param serviceData service data
+     */
+    void serviceData(URL url, Map<String, byte[]> serviceData) {
+        if (current != null && serviceData != null) {
+            serviceData.forEach((uuid, data) -> append(url.copyWithService(uuid), Kind.SERVICE_DATA, data));
+        }
+    }
+
+    /**
+     * Captures manufacturer data, one record per manufacturer (payload is prefixed with manufacturer ID).
+     * @param url device URL
+     * @param manufacturerData manufacturer data
+     */
+    void manufacturerData(URL url, Map<Short, byte[]> manufacturerData) {
+        if (current != null && manufacturerData != null) {
+            manufacturerData.forEach((id, data) -> {
+                byte[] payload = new byte[data.length + 2];
+                payload[0] = (byte) (id >> 8);
+                payload[1] = (byte) (short) id;
+                System.arraycopy(data, 0, payload, 2, data.length);
+                append(url, Kind.MANUFACTURER_DATA, payload);
+            });
+        }
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("capture.records", records.get());
+        metrics.put("capture.bytes", bytes.get());
+        metrics.put("capture.dropped", dropped.get());
+        metrics.put("capture.rotations", rotations.get());
+    }
+
+    synchronized void dispose() {
+        close();
+        directory = null;
+    }
+
+    /**
+     * Lists segments of a capture directory, oldest first.
+     * @param directory capture directory
+     * @return segment files
+     * @throws IOException if the directory cannot be listed
+     */
+    static List<Path> list(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(PREFIX)
+                    && file.getFileName().toString().endsWith(EXTENSION))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+
+    static List<Record> decode(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new IllegalArgumentException("Unsupported capture segment");
+        }
+        // a record may be written before the definition of its URL id, hence definitions are collected first
+        Map<Integer, URL> urls = new HashMap<>();
+        scan(buffer, (timestamp, id, kind, payload) -> {
+            if (kind == Kind.URL_ID) {
+                urls.put(id, new URL(new String(payload, StandardCharsets.UTF_8)));
+            }
+        });
+        List<Record> result = new ArrayList<>();
+        scan(buffer, (timestamp, id, kind, payload) -> {
+            URL url = urls.get(id);
+            if (kind != Kind.URL_ID && url != null) {
+                result.add(new Record(timestamp, url, kind, payload));
+            }
+        });
+        return result;
+    }
+
+    private static void scan(ByteBuffer buffer, RecordVisitor visitor) {
+        buffer.position(SEGMENT_HEADER);
+        while (buffer.remaining() >= RECORD_HEADER) {
+            long timestamp = buffer.getLong();
+            int id = buffer.getInt();
+            int kind = buffer.get();
+            int length = buffer.getInt();
+            // unwritten space (the end of the segment or a record which has not been completed)
+            if (timestamp == 0 || length < 0 || length > buffer.remaining() || kind < 0
+                    || kind >= Kind.VALUES.length) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            visitor.visit(timestamp, id, Kind.VALUES[kind], payload);
+        }
+    }
+
+    private void append(URL url, Kind kind, byte[] payload) {
+        long timestamp = System.currentTimeMillis();
+        Integer id = ids.get(url);
+        if (id == null) {
+            id = ids.computeIfAbsent(url, key -> nextId.getAndIncrement());
+        }
+        Segment segment = current;
+        if (segment != null && SEGMENT_HEADER + RECORD_HEADER + payload.length > segment.buffer.capacity()) {
+            // it would not fit even into an empty segment
+            dropped.incrementAndGet();
+            return;
+        }
+        // a segment is claimed at most twice: the full one and the rotated one
+        for (int attempt = 0; segment != null && attempt < 2; attempt++) {
+            if (segment.defined.add(id)) {
+                if (!segment.write(timestamp, id, Kind.URL_ID, url.toString().getBytes(StandardCharsets.UTF_8))) {
+                    segment.defined.remove(id);
+                    segment = rotate(segment);
+                    continue;
+                }
+            }
+            if (segment.write(timestamp, id, kind, payload)) {
+                records.incrementAndGet();
+                bytes.addAndGet(RECORD_HEADER + payload.length);
+                return;
+            }
+            segment = rotate(segment);
+        }
+        dropped.incrementAndGet();
+    }
+
+    private synchronized Segment rotate(Segment full) {
+        if (current != full) {
+            return current;
+        }
+        try {
+            full.close();
+            current = open();
+            rotations.incrementAndGet();
+            while (segments.size() > maxSegments) {
+                Files.deleteIfExists(segments.pollFirst());
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Could not rotate capture log, capturing is disabled: {} : {}", directory, ex.getMessage());
+            current = null;
+        }
+        return current;
+    }
+
+    private Segment open() throws IOException {
+        Path file = directory.resolve(String.format("%s%012d%s", PREFIX, nextIndex++, EXTENSION));
+        int size = segmentSize;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).put(VERSION);
+            segments.addLast(file);
+            return new Segment(buffer);
+        }
+    }
+
+    private synchronized void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        segments.clear();
+    }
+
+    private static long index(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - EXTENSION.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static final class Segment {
+
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger position = new AtomicInteger(SEGMENT_HEADER);
+        private final Set<Integer> defined = ConcurrentHashMap.newKeySet();
+
+        private Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private boolean write(long timestamp, int id, Kind kind, byte[] payload) {
+            int size = RECORD_HEADER + payload.length;
+            int offset = position.getAndAdd(size);
+            if (offset < 0 || offset + size > buffer.capacity()) {
+                // nobody can claim anything beyond this point
+                position.set(buffer.capacity());
+                return false;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + 8);
+            record.putInt(id).put((byte) kind.ordinal()).putInt(payload.length).put(payload);
+            // timestamp marks the record as complete
+            buffer.putLong(offset, timestamp);
+            return true;
+        }
+
+        private void close() {
+            buffer.force();
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(long timestamp, int id, Kind kind, byte[] payload);
+    }
+
+    /**
+     * A captured record.
+     */
+    static final class Record {
+
+        private final long timestamp;
+        private final URL url;
+        private final Kind kind;
+        private final byte[] payload;
+
+        Record(long timestamp, URL url, Kind kind, byte[] payload) {
+            this.timestamp = timestamp;
+            this.url = url;
+            this.kind = kind;
+            this.payload = payload;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        URL getURL() {
+            return url;
+        }
+
+        Kind getKind() {
+            return kind;
+        }
+
+        byte[] getPayload() {
+            return payload;
+        }
+    }
+
+}
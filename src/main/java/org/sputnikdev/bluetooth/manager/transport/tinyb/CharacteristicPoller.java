@@ -0,0 +1,255 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.BluetoothObjectFactory;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+import org.sputnikdev.bluetooth.manager.transport.Device;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A polling subsystem for characteristics that do not support notifications. Polls are scheduled
+ * by a {@link TimerWheel}, so that thousands of polled characteristics are served by a single scheduler thread.
+ * Polls of the same device are merged into one "connection window": when a device is due, all its characteristics
+ * that are due within the merge window are read together. Disconnected devices are skipped.
+ * Resolved devices and characteristics are cached between windows and resolved again only after
+ * the device gets disconnected or a read fails.
+ * Read values are delivered through the standard {@link Notification} contract.
+ */
+class CharacteristicPoller {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CharacteristicPoller.class);
+
+    private final BluetoothObjectFactory factory;
+    private final NotificationDispatcher dispatcher;
+    private final TimerWheel wheel;
+    private final ExecutorService executor;
+    private final long mergeWindow;
+    private final Map<URL, DevicePolls> devices = new HashMap<>();
+
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    CharacteristicPoller(BluetoothObjectFactory factory, NotificationDispatcher dispatcher, long mergeWindow,
+            int threads) {
+        this.factory = factory;
+        this.dispatcher = dispatcher;
+        this.mergeWindow = Math.max(0, mergeWindow);
+        wheel = new TimerWheel("tinyb-polling", 100, 512);
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "tinyb-polling-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Schedules polling of a characteristic. Any existing polling of the same characteristic is replaced.
+     * @param url characteristic URL
+     * @param interval polling interval in milliseconds
+     * @param notification notification to deliver read values to
+     */
+    synchronized void schedule(URL url, long interval, Notification<byte[]> notification) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Polling interval must be positive: " + interval);
+        }
+        URL characteristicURL = url.getCharacteristicURL();
+        DevicePolls device = devices.computeIfAbsent(characteristicURL.getDeviceURL(), DevicePolls::new);
+        device.polls.put(characteristicURL, new Poll(characteristicURL, interval, notification));
+        LOGGER.debug("Polling scheduled: {} : {}ms", characteristicURL, interval);
+        device.reschedule();
+    }
+
+    /**
+     * Cancels polling of a characteristic.
+     * @param url characteristic URL
+     */
+    synchronized void cancel(URL url) {
+        URL characteristicURL = url.getCharacteristicURL();
+        DevicePolls device = devices.get(characteristicURL.getDeviceURL());
+        if (device != null && device.polls.remove(characteristicURL) != null) {
+            LOGGER.debug("Polling cancelled: {}", characteristicURL);
+            device.reschedule();
+        }
+    }
+
+    synchronized int getPolledCharacteristics() {
+        return devices.values().stream().mapToInt(device -> device.polls.size()).sum();
+    }
+
+    synchronized void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("polling.characteristics", getPolledCharacteristics());
+        metrics.put("polling.devices", devices.size());
+        metrics.put("polling.windows", windows.get());
+        metrics.put("polling.reads", reads.get());
+        metrics.put("polling.skipped", skipped.get());
+        metrics.put("polling.errors", errors.get());
+    }
+
+    synchronized void dispose() {
+        devices.clear();
+        wheel.stop();
+        executor.shutdownNow();
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void window(DevicePolls device) {
+        windows.incrementAndGet();
+        long now = now();
+        List<Poll> due = new ArrayList<>();
+        synchronized (this) {
+            for (Poll poll : device.polls.values()) {
+                if (poll.due <= now + mergeWindow) {
+                    poll.due = now + poll.interval;
+                    due.add(poll);
+                }
+            }
+        }
+        try {
+            // windows of a device never overlap, so that cached objects need no extra locking
+            if (device.resolved == null) {
+                device.resolved = factory.getDevice(device.url);
+            }
+            if (device.resolved == null || !device.resolved.isConnected()) {
+                LOGGER.debug("Device is not connected, skipping polling: {}", device.url);
+                device.resolved = null;
+                due.forEach(poll -> poll.resolved = null);
+                skipped.addAndGet(due.size());
+                return;
+            }
+            for (Poll poll : due) {
+                read(poll);
+            }
+        } catch (Exception ex) {
+            device.resolved = null;
+            errors.incrementAndGet();
+            LOGGER.warn("Could not poll device: {} : {}", device.url, ex.getMessage());
+        }
+    }
+
+    private void read(Poll poll) {
+        try {
+            if (poll.resolved == null) {
+                poll.resolved = factory.getCharacteristic(poll.url);
+            }
+            if (poll.resolved == null) {
+                skipped.incrementAndGet();
+                return;
+            }
+            byte[] value = poll.resolved.readValue();
+            reads.incrementAndGet();
+            TinyBFactory.getCaptureLog().value(poll.url, value);
+            dispatcher.dispatch(() -> poll.notification.notify(value), LOGGER,
+                    "Polling notification execution error");
+        } catch (Exception ex) {
+            poll.resolved = null;
+            errors.incrementAndGet();
+            LOGGER.warn("Could not poll characteristic: {} : {}", poll.url, ex.getMessage());
+        }
+    }
+
+    private final class DevicePolls {
+
+        private final URL url;
+        private final Map<URL, Poll> polls = new HashMap<>();
+        private TimerWheel.Timeout timeout;
+        private boolean running;
+        private Device resolved;
+
+        private DevicePolls(URL url) {
+            this.url = url;
+        }
+
+        // must be called while holding the poller lock
+        private void reschedule() {
+            if (running) {
+                // will be rescheduled when the current window completes
+                return;
+            }
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            if (polls.isEmpty()) {
+                devices.remove(url);
+                return;
+            }
+            long earliest = polls.values().stream().mapToLong(poll -> poll.due).min().getAsLong();
+            timeout = wheel.schedule(this::fire, Math.max(0, earliest - now()));
+        }
+
+        private void fire() {
+            synchronized (CharacteristicPoller.this) {
+                if (devices.get(url) != this) {
+                    return;
+                }
+                timeout = null;
+                running = true;
+            }
+            executor.execute(() -> {
+                try {
+                    window(this);
+                } finally {
+                    synchronized (CharacteristicPoller.this) {
+                        running = false;
+                        if (devices.get(url) == this) {
+                            reschedule();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static final class Poll {
+
+        private final URL url;
+        private final long interval;
+        private final Notification<byte[]> notification;
+        private long due;
+        private Characteristic resolved;
+
+        private Poll(URL url, long interval, Notification<byte[]> notification) {
+            this.url = url;
+            this.interval = interval;
+            this.notification = notification;
+            due = now();
+        }
+    }
+
+}
@@ -0,0 +1,403 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A connection pool manager. Bluez controllers can hold only a limited number of LE connections, therefore
+ * the number of active connections is capped per adapter. When the cap is reached, the least recently used idle
+ * device (a device without any operation in flight) is disconnected to make room. If there are no idle devices,
+ * a connect request waits until a connection slot gets released or the wait timeout passes.
+ */
+class ConnectionManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionManager.class);
+
+    private final Map<URL, AdapterPool> pools = new ConcurrentHashMap<>();
+    private final Map<URL, Integer> capacities = new ConcurrentHashMap<>();
+    private volatile int defaultCapacity;
+    private volatile long waitTimeout = 60000;
+    private volatile long minIdleTime;
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Sets the default maximum number of connections per adapter.
+     * @param capacity maximum number of connections, zero means unlimited
+     */
+    void setDefaultCapacity(int capacity) {
+        defaultCapacity = Math.max(0, capacity);
+    }
+
+    int getDefaultCapacity() {
+        return defaultCapacity;
+    }
+
+    /**
+     * Sets the maximum number of connections for a particular adapter.
+     * @param adapter adapter URL
+     * @param capacity maximum number of connections, zero means unlimited
+     */
+    void setCapacity(URL adapter, int capacity) {
+        capacities.put(adapter.getAdapterURL(), Math.max(0, capacity));
+    }
+
+    int getCapacity(URL adapter) {
+        return capacities.getOrDefault(adapter.getAdapterURL(), defaultCapacity);
+    }
+
+    void setWaitTimeout(long waitTimeout) {
+        this.waitTimeout = waitTimeout;
+    }
+
+    long getWaitTimeout() {
+        return waitTimeout;
+    }
+
+    /**
+     * Sets how long a device must not be used to be considered idle (and therefore available for eviction).
+     * @param minIdleTime time in milliseconds
+     */
+    void setMinIdleTime(long minIdleTime) {
+        this.minIdleTime = minIdleTime;
+    }
+
+    long getMinIdleTime() {
+        return minIdleTime;
+    }
+
+    /**
+     * Returns number of active (or being established) connections of an adapter.
+     * @param adapter adapter URL
+     * @return number of connections
+     */
+    int getConnections(URL adapter) {
+        AdapterPool pool = pools.get(adapter.getAdapterURL());
+        return pool != null ? pool.size() : 0;
+    }
+
+    boolean isConnected(URL url) {
+        AdapterPool pool = pools.get(url.getAdapterURL());
+        return pool != null && pool.contains(url.getDeviceURL());
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        for (Map.Entry<URL, AdapterPool> entry : pools.entrySet()) {
+            String prefix = "pool." + entry.getKey().getAdapterAddress() + ".";
+            metrics.put(prefix + "active", entry.getValue().size());
+            metrics.put(prefix + "waiting", entry.getValue().waiting());
+            metrics.put(prefix + "capacity", getCapacity(entry.getKey()));
+        }
+        metrics.put("pool.waits", waits.get());
+        metrics.put("pool.waitTime", waitTime.get());
+        metrics.put("pool.maxWaitTime", maxWaitTime.get());
+        metrics.put("pool.evictions", evictions.get());
+        metrics.put("pool.rejections", rejections.get());
+    }
+
+    /**
+     * Connects a device making sure that the adapter connection cap is not exceeded.
+     * @param url device URL
+     * @param connected checks whether the device is still connected (used to clean up stale connections)
+     * @param disconnect disconnects the device (used to evict idle devices)
+     * @param connect actual (blocking) connect operation
+     * @return result of the connect operation
+     */
+    boolean connect(URL url, BooleanSupplier connected, Runnable disconnect, BooleanSupplier connect) {
+        URL deviceURL = url.getDeviceURL();
+        AdapterPool pool = pools.computeIfAbsent(deviceURL.getAdapterURL(), AdapterPool::new);
+        boolean created = pool.reserve(deviceURL, connected, disconnect);
+        boolean success = false;
+        try {
+            success = connect.getAsBoolean();
+            return success;
+        } finally {
+            if (success || !created) {
+                // a failed attempt to reconnect a pooled device does not release its connection
+                pool.done(deviceURL);
+            } else {
+                pool.release(deviceURL);
+            }
+        }
+    }
+
+    /**
+     * Executes an operation against a connected device. The device is not considered idle while the operation is
+     * in flight.
+     * @param url device URL (or any of its descendants)
+     * @param operation operation
+     * @param <T> result type
+     * @return result of the operation
+     */
+    <T> T use(URL url, Supplier<T> operation) {
+        AdapterPool pool = pools.get(url.getAdapterURL());
+        URL deviceURL = url.getDeviceURL();
+        if (pool == null || !pool.acquire(deviceURL)) {
+            return operation.get();
+        }
+        try {
+            return operation.get();
+        } finally {
+            pool.done(deviceURL);
+        }
+    }
+
+    /**
+     * Releases a connection slot of a device that has been disconnected.
+     * @param url device URL
+     */
+    void disconnected(URL url) {
+        AdapterPool pool = pools.get(url.getAdapterURL());
+        if (pool != null) {
+            pool.release(url.getDeviceURL());
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static final class Connection {
+
+        private final BooleanSupplier connected;
+        private final Runnable disconnect;
+        private long lastUsed = now();
+        private int inFlight = 1;
+
+        private Connection(BooleanSupplier connected, Runnable disconnect) {
+            this.connected = connected;
+            this.disconnect = disconnect;
+        }
+    }
+
+    private final class AdapterPool {
+
+        private final URL adapter;
+        // access ordered, the least recently used connection comes first
+        private final LinkedHashMap<URL, Connection> connections = new LinkedHashMap<>(16, 0.75f, true);
+        private int waiting;
+
+        private AdapterPool(URL adapter) {
+            this.adapter = adapter;
+        }
+
+        private synchronized int size() {
+            return connections.size();
+        }
+
+        private synchronized int waiting() {
+            return waiting;
+        }
+
+        private synchronized boolean contains(URL device) {
+            return connections.containsKey(device);
+        }
+
+        /**
+         * Reserves a connection slot for a device.
+         * @return true if a new slot has been reserved, false if the device has already got one
+         */
+        private boolean reserve(URL device, BooleanSupplier connected, Runnable disconnect) {
+            Connection evicted;
+            long started = -1;
+            try {
+                while (true) {
+                    Map<URL, Connection> idle;
+                    synchronized (this) {
+                        if (join(device)) {
+                            return false;
+                        }
+                        if (!isFull()) {
+                            connections.put(device, new Connection(connected, disconnect));
+                            return true;
+                        }
+                        idle = getIdle();
+                    }
+                    // checking connections involves native calls, the pool must not be locked meanwhile
+                    Map<URL, Connection> stale = getStale(idle);
+                    synchronized (this) {
+                        stale.forEach((url, connection) -> {
+                            if (connection.inFlight == 0) {
+                                connections.remove(url, connection);
+                            }
+                        });
+                        if (join(device)) {
+                            return false;
+                        }
+                        if (!isFull()) {
+                            connections.put(device, new Connection(connected, disconnect));
+                            return true;
+                        }
+                        evicted = evict();
+                        if (evicted != null) {
+                            connections.put(device, new Connection(connected, disconnect));
+                            break;
+                        }
+                        if (started < 0) {
+                            started = now();
+                            waits.incrementAndGet();
+                            waiting++;
+                            LOGGER.debug("Connection cap reached, waiting for a connection slot: {}", device);
+                        }
+                        await(device, started + waitTimeout);
+                    }
+                }
+            } finally {
+                if (started >= 0) {
+                    synchronized (this) {
+                        waiting--;
+                    }
+                    long waited = now() - started;
+                    waitTime.addAndGet(waited);
+                    maxWaitTime.accumulateAndGet(waited, Math::max);
+                }
+            }
+            TinyBFactory.runSilently(evicted.disconnect);
+            return true;
+        }
+
+        // must be called while holding the pool lock
+        private boolean join(URL device) {
+            Connection existing = connections.get(device);
+            if (existing != null) {
+                existing.inFlight++;
+                return true;
+            }
+            return false;
+        }
+
+        // must be called while holding the pool lock
+        private boolean isFull() {
+            int capacity = getCapacity(adapter);
+            return capacity > 0 && connections.size() >= capacity;
+        }
+
+        // must be called while holding the pool lock
+        private Map<URL, Connection> getIdle() {
+            Map<URL, Connection> idle = new HashMap<>();
+            for (Map.Entry<URL, Connection> entry : connections.entrySet()) {
+                if (entry.getValue().inFlight == 0) {
+                    idle.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return idle;
+        }
+
+        private Map<URL, Connection> getStale(Map<URL, Connection> idle) {
+            Map<URL, Connection> stale = new HashMap<>();
+            idle.forEach((url, connection) -> {
+                if (!isConnected(connection)) {
+                    stale.put(url, connection);
+                }
+            });
+            return stale;
+        }
+
+        // must be called while holding the pool lock
+        private Connection evict() {
+            long now = now();
+            for (Iterator<Map.Entry<URL, Connection>> iterator = connections.entrySet().iterator();
+                 iterator.hasNext();) {
+                Map.Entry<URL, Connection> entry = iterator.next();
+                Connection connection = entry.getValue();
+                if (connection.inFlight == 0 && now - connection.lastUsed >= minIdleTime) {
+                    iterator.remove();
+                    evictions.incrementAndGet();
+                    LOGGER.debug("Connection cap reached, evicting the least recently used device: {}",
+                            entry.getKey());
+                    return connection;
+                }
+            }
+            return null;
+        }
+
+        // must be called while holding the pool lock
+        private void await(URL device, long deadline) {
+            long remaining = deadline - now();
+            if (remaining <= 0) {
+                rejections.incrementAndGet();
+                throw new TinyBTimeoutException("Could not get a connection slot within "
+                        + waitTimeout + "ms: " + device);
+            }
+            try {
+                // re-check periodically as devices become idle over time
+                wait(Math.min(remaining, 1000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TinyBException("Interrupted while waiting for a connection slot: " + device, ex);
+            }
+        }
+
+        private synchronized void done(URL device) {
+            Connection connection = connections.get(device);
+            if (connection != null) {
+                connection.inFlight = Math.max(0, connection.inFlight - 1);
+                connection.lastUsed = now();
+                if (connection.inFlight == 0 && waiting > 0) {
+                    // the device might have become available for eviction
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized boolean acquire(URL device) {
+            Connection connection = connections.get(device);
+            if (connection != null) {
+                connection.inFlight++;
+                connection.lastUsed = now();
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void release(URL device) {
+            if (connections.remove(device) != null) {
+                notifyAll();
+            }
+        }
+
+        private boolean isConnected(Connection connection) {
+            try {
+                return connection.connected.getAsBoolean();
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+
+/**
+ * A compact device identity: adapter and device MAC addresses packed into longs. Used as a key in hot path maps
+ * of the transport instead of {@link URL}, which hashes and compares strings. URLs are only built at the API
+ * boundary.
+ */
+final class DeviceKey implements Comparable<DeviceKey> {
+
+    private final long adapter;
+    private final long device;
+    private final int hash;
+
+    DeviceKey(long adapter, long device) {
+        this.adapter = adapter;
+        this.device = device;
+        this.hash = 31 * Long.hashCode(adapter) + Long.hashCode(device);
+    }
+
+    /**
+     * Creates a key of a device (or any of its descendants) URL.
+     * @param url device, service or characteristic URL
+     * @return device key
+     */
+    static DeviceKey of(URL url) {
+        return new DeviceKey(parseAddress(url.getAdapterAddress()), parseAddress(url.getDeviceAddress()));
+    }
+
+    long getAdapter() {
+        return adapter;
+    }
+
+    long getDevice() {
+        return device;
+    }
+
+    URL toURL() {
+        return new URL(TinyBFactory.TINYB_PROTOCOL_NAME, formatAddress(adapter), formatAddress(device));
+    }
+
+    /**
+     * Packs a MAC address (e.g. "11:22:33:44:55:66") into a long.
+     * @param address MAC address
+     * @return packed address
+     */
+    static long parseAddress(String address) {
+        long result = 0;
+        int digits = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                result = result << 4 | digit;
+                digits++;
+            } else if (address.charAt(i) != ':' && address.charAt(i) != '-' && address.charAt(i) != ' ') {
+                throw new IllegalArgumentException("Invalid address: " + address);
+            }
+        }
+        if (digits != 12) {
+            throw new IllegalArgumentException("Invalid address: " + address);
+        }
+        return result;
+    }
+
+    /**
+     * Formats a packed MAC address, e.g. "11:22:33:44:55:66".
+     * @param address packed address
+     * @return MAC address
+     */
+    static String formatAddress(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (address >>> (40 - i * 8)) & 0xff;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0xf, 16));
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int compareTo(DeviceKey other) {
+        int result = Long.compare(adapter, other.adapter);
+        return result != 0 ? result : Long.compare(device, other.device);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof DeviceKey)) {
+            return false;
+        }
+        DeviceKey that = (DeviceKey) object;
+        return adapter == that.adapter && device == that.device;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return formatAddress(adapter) + "/" + formatAddress(device);
+    }
+
+}
@@ -0,0 +1,473 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothNotification;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory registry of discovered devices. The registry is maintained from RSSI, manufacturer data, service
+ * data and connected notifications, so that discovered devices can be listed and looked up by address, advertised
+ * service UUID, manufacturer ID and last seen time without querying each device over JNI.
+ *
+ * <p>As TinyB supports only one callback per property, the registry owns native notifications of registered
+ * devices and forwards them to callbacks subscribed by {@link TinyBDevice}.
+ */
+class DeviceRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceRegistry.class);
+
+    enum Property { RSSI, MANUFACTURER_DATA, SERVICE_DATA, CONNECTED }
+
+    private volatile boolean enabled;
+    private volatile long syncInterval = 10000;
+    private volatile long presenceTimeout = 30000;
+    private volatile Consumer<Entry> registrationListener;
+
+    // hot path indexes are keyed by compact keys rather than URLs
+    private final Map<DeviceKey, Entry> devices = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Entry>> byAdapter = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<Entry>> byService = new ConcurrentHashMap<>();
+    private final Map<Short, Set<Entry>> byManufacturer = new ConcurrentHashMap<>();
+    private final NavigableSet<Entry> bySeen = new ConcurrentSkipListSet<>(
+            Comparator.comparingLong((Entry entry) -> entry.lastSeen).thenComparing(entry -> entry.key));
+    private final Map<Long, Long> lastSync = new ConcurrentHashMap<>();
+
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        if (this.enabled && !enabled) {
+            clear();
+        }
+        this.enabled = enabled;
+    }
+
+    long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Sets how often the registry is reconciled with devices known to Bluez.
+     * @param syncInterval sync interval (ms)
+     */
+    void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    long getPresenceTimeout() {
+        return presenceTimeout;
+    }
+
+    /**
+     * Sets how long a device is considered present (in range) since it was last seen.
+     * @param presenceTimeout presence timeout (ms)
+     */
+    void setPresenceTimeout(long presenceTimeout) {
+        this.presenceTimeout = presenceTimeout;
+    }
+
+    /**
+     * Checks whether a device is currently present. The RSSI cached by the registry is never reset by Bluez
+     * when a device goes out of range, therefore a device must have been seen recently (or be connected).
+     * @param entry registered device
+     * @return true if the device is present
+     */
+    boolean isPresent(Entry entry) {
+        return entry.connected
+                || entry.rssi != 0 && System.currentTimeMillis() - entry.lastSeen <= presenceTimeout;
+    }
+
+    /**
+     * Sets a listener which is notified when new devices get registered.
+     * @param registrationListener listener
+     */
+    void setRegistrationListener(Consumer<Entry> registrationListener) {
+        this.registrationListener = registrationListener;
+    }
+
+    /**
+     * Reconciles the registry with devices known to an adapter, if the sync interval has elapsed. New devices
+     * get registered if they are accepted by the filter, devices removed from Bluez get unregistered.
+     * Bluez keeps all devices ever discovered, the filter makes sure that native notifications are enabled only
+     * for the devices that are handed out by the transport.
+     * @param url adapter URL
+     * @param adapter native adapter
+     * @param filter accepts new devices to register
+     */
+    void sync(URL url, BluetoothAdapter adapter, Predicate<BluetoothDevice> filter) {
+        URL adapterURL = url.getAdapterURL();
+        long adapterAddress = DeviceKey.parseAddress(adapterURL.getAdapterAddress());
+        long now = System.currentTimeMillis();
+        Long synced = lastSync.get(adapterAddress);
+        if (synced != null && now - synced < syncInterval) {
+            return;
+        }
+        lastSync.put(adapterAddress, now);
+        syncs.incrementAndGet();
+        Set<DeviceKey> present = new HashSet<>();
+        for (BluetoothDevice device : adapter.getDevices()) {
+            String address = device.getAddress();
+            DeviceKey key = new DeviceKey(adapterAddress, DeviceKey.parseAddress(address));
+            present.add(key);
+            if (!devices.containsKey(key) && filter.test(device)) {
+                register(key, adapterURL.copyWithDevice(address), device);
+            }
+        }
+        getEntries(adapterURL).stream().filter(entry -> !present.contains(entry.key))
+                .collect(Collectors.toList()).forEach(entry -> unregister(entry.key));
+    }
+
+    /**
+     * Registers a device (if it is not yet registered) and subscribes to its native notifications.
+     * @param url device URL
+     * @param device native device
+     * @return registry entry
+     */
+    Entry register(URL url, BluetoothDevice device) {
+        return register(DeviceKey.of(url), url.getDeviceURL(), device);
+    }
+
+    private Entry register(DeviceKey key, URL deviceURL, BluetoothDevice device) {
+        Entry existing = devices.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        Entry entry = new Entry(key, deviceURL, device);
+        // the entry is locked until native notifications are enabled, unregister takes the same lock,
+        // hence a concurrent unregistration cannot leave them enabled
+        synchronized (entry) {
+            existing = devices.putIfAbsent(key, entry);
+            if (existing != null) {
+                return existing;
+            }
+            LOGGER.debug("Registering device: {}", deviceURL);
+            byAdapter.computeIfAbsent(key.getAdapter(), adapter -> ConcurrentHashMap.newKeySet()).add(entry);
+            entry.rssi = device.getRSSI();
+            entry.connected = device.getConnected();
+            bySeen.add(entry);
+            String[] uuids = device.getUUIDs();
+            updateServices(entry, uuids != null ? Arrays.asList(uuids) : Collections.emptyList());
+            Map<Short, byte[]> manufacturerData = device.getManufacturerData();
+            if (manufacturerData != null) {
+                updateManufacturers(entry, manufacturerData.keySet());
+            }
+            device.enableRSSINotifications(value -> {
+                synchronized (entry) {
+                    entry.rssi = value;
+                }
+                seen(entry);
+                entry.deliver(Property.RSSI, value);
+            });
+            device.enableManufacturerDataNotifications(value -> {
+                updateManufacturers(entry, value.keySet());
+                seen(entry);
+                entry.deliver(Property.MANUFACTURER_DATA, value);
+            });
+            device.enableServiceDataNotifications(value -> {
+                updateServices(entry, value.keySet());
+                seen(entry);
+                entry.deliver(Property.SERVICE_DATA, value);
+            });
+            device.enableConnectedNotifications(value -> {
+                entry.connected = value;
+                entry.deliver(Property.CONNECTED, value);
+            });
+        }
+        Consumer<Entry> listener = registrationListener;
+        if (listener != null) {
+            listener.accept(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Unregisters a device and unsubscribes from its native notifications.
+     * @param url device URL
+     */
+    void unregister(URL url) {
+        if (devices.isEmpty()) {
+            return;
+        }
+        unregister(DeviceKey.of(url));
+    }
+
+    void unregister(DeviceKey key) {
+        Entry entry = devices.remove(key);
+        if (entry == null) {
+            return;
+        }
+        LOGGER.debug("Unregistering device: {}", entry.url);
+        // waits for the registration to complete
+        synchronized (entry) {
+            Set<Entry> adapterEntries = byAdapter.get(key.getAdapter());
+            if (adapterEntries != null) {
+                adapterEntries.remove(entry);
+            }
+            bySeen.remove(entry);
+            entry.services.forEach(uuid -> removeFromIndex(byService, uuid, entry));
+            entry.manufacturers.forEach(id -> removeFromIndex(byManufacturer, id, entry));
+            TinyBFactory.runSilently(entry.device::disableRSSINotifications);
+            TinyBFactory.runSilently(entry.device::disableManufacturerDataNotifications);
+            TinyBFactory.runSilently(entry.device::disableServiceDataNotifications);
+            TinyBFactory.runSilently(entry.device::disableConnectedNotifications);
+        }
+    }
+
+    /**
+     * Subscribes a callback to notifications of a property of a device. The device gets registered if needed.
+     * @param url device URL
+     * @param device native device
+     * @param property property
+     * @param callback callback
+     * @return false if the registry is disabled, hence the callback must be registered natively
+     */
+    boolean subscribe(URL url, BluetoothDevice device, Property property, BluetoothNotification<?> callback) {
+        if (!enabled) {
+            return false;
+        }
+        register(url, device).callbacks.put(property, callback);
+        return true;
+    }
+
+    /**
+     * Unsubscribes a callback from notifications of a property of a device.
+     * @param url device URL
+     * @param property property
+     * @return false if the registry is disabled, hence the callback must be unregistered natively
+     */
+    boolean unsubscribe(URL url, Property property) {
+        if (!enabled) {
+            return false;
+        }
+        Entry entry = devices.get(DeviceKey.of(url));
+        if (entry != null) {
+            entry.callbacks.remove(property);
+        }
+        return true;
+    }
+
+    Entry getEntry(URL url) {
+        return devices.get(DeviceKey.of(url));
+    }
+
+    Entry getEntry(DeviceKey key) {
+        return devices.get(key);
+    }
+
+    Collection<Entry> getEntries(URL adapter) {
+        Set<Entry> entries = byAdapter.get(DeviceKey.parseAddress(adapter.getAdapterAddress()));
+        return entries != null ? Collections.unmodifiableSet(entries) : Collections.emptySet();
+    }
+
+    /**
+     * Returns devices advertising a service.
+     * @param uuid service UUID (full or short form)
+     * @return device URLs
+     */
+    Set<URL> getDevicesByService(String uuid) {
+        UUID key = normalize(uuid);
+        return key != null ? urls(byService.get(key)) : Collections.emptySet();
+    }
+
+    /**
+     * Returns devices advertising manufacturer data of a manufacturer.
+     * @param manufacturerId manufacturer ID
+     * @return device URLs
+     */
+    Set<URL> getDevicesByManufacturer(int manufacturerId) {
+        return urls(byManufacturer.get((short) manufacturerId));
+    }
+
+    /**
+     * Returns devices seen (advertised) since a moment in time.
+     * @param timestamp timestamp (ms)
+     * @return device URLs
+     */
+    Set<URL> getDevicesSeenSince(long timestamp) {
+        Set<URL> result = new HashSet<>();
+        for (Entry entry : bySeen.descendingSet()) {
+            if (entry.lastSeen < timestamp) {
+                break;
+            }
+            result.add(entry.url);
+        }
+        return result;
+    }
+
+    /**
+     * Returns registered devices ordered by their last seen time, least recently seen first.
+     * @return registry entries
+     */
+    List<Entry> getLeastRecentlySeen() {
+        return bySeen.stream().collect(Collectors.toList());
+    }
+
+    int size() {
+        return devices.size();
+    }
+
+    void clear() {
+        devices.keySet().forEach(key -> unregister(key));
+        lastSync.clear();
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("registry.devices", devices.size());
+        metrics.put("registry.syncs", syncs.get());
+        metrics.put("registry.updates", updates.get());
+    }
+
+    private void seen(Entry entry) {
+        updates.incrementAndGet();
+        synchronized (entry) {
+            if (devices.get(entry.key) != entry) {
+                return;
+            }
+            bySeen.remove(entry);
+            entry.lastSeen = System.currentTimeMillis();
+            bySeen.add(entry);
+        }
+    }
+
+    private void updateServices(Entry entry, Collection<String> uuids) {
+        synchronized (entry) {
+            for (String uuid : uuids) {
+                UUID normalized = normalize(uuid);
+                if (normalized != null && entry.services.add(normalized)) {
+                    byService.computeIfAbsent(normalized, key -> ConcurrentHashMap.newKeySet()).add(entry);
+                }
+            }
+        }
+    }
+
+    private void updateManufacturers(Entry entry, Collection<Short> manufacturers) {
+        synchronized (entry) {
+            for (Short id : manufacturers) {
+                if (entry.manufacturers.add(id)) {
+                    byManufacturer.computeIfAbsent(id, key -> ConcurrentHashMap.newKeySet()).add(entry);
+                }
+            }
+        }
+    }
+
+    private static <K> void removeFromIndex(Map<K, Set<Entry>> index, K key, Entry entry) {
+        index.computeIfPresent(key, (existing, entries) -> {
+            entries.remove(entry);
+            return entries.isEmpty() ? null : entries;
+        });
+    }
+
+    private static Set<URL> urls(Set<Entry> entries) {
+        if (entries == null) {
+            return Collections.emptySet();
+        }
+        return entries.stream().map(entry -> entry.url).collect(Collectors.toSet());
+    }
+
+    private static UUID normalize(String uuid) {
+        try {
+            return UUIDs.parse(uuid);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * A registered device.
+     */
+    static final class Entry {
+
+        private final DeviceKey key;
+        private final URL url;
+        private final BluetoothDevice device;
+        private final Set<UUID> services = new HashSet<>();
+        private final Set<Short> manufacturers = new HashSet<>();
+        private final Map<Property, BluetoothNotification<?>> callbacks = new ConcurrentHashMap<>();
+        private volatile short rssi;
+        private volatile boolean connected;
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        private Entry(DeviceKey key, URL url, BluetoothDevice device) {
+            this.key = key;
+            this.url = url;
+            this.device = device;
+        }
+
+        DeviceKey getKey() {
+            return key;
+        }
+
+        URL getURL() {
+            return url;
+        }
+
+        BluetoothDevice getDevice() {
+            return device;
+        }
+
+        short getRSSI() {
+            return rssi;
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        long getLastSeen() {
+            return lastSeen;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> void deliver(Property property, T value) {
+            BluetoothNotification<T> callback = (BluetoothNotification<T>) callbacks.get(property);
+            if (callback != null) {
+                callback.run(value);
+            }
+        }
+    }
+
+}
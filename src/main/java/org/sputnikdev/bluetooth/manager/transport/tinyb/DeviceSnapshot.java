@@ -0,0 +1,373 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Periodically persists known devices (address, name, alias, bluetooth class, last RSSI and last seen time) to a
+ * compact local file, so that they can be reported as discovered straight after a restart, before Bluez has
+ * rediscovered them. Devices loaded from the file are provisional: they are reported until Bluez reports them
+ * again (or they expire), after which the live data takes over.
+ */
+class DeviceSnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceSnapshot.class);
+
+    // "SNAP"
+    private static final int MAGIC = 0x534e4150;
+    private static final byte VERSION = 1;
+
+    private final Map<DeviceKey, Record> records = new ConcurrentHashMap<>();
+    // records loaded from the file and not yet reported by Bluez
+    private final Map<DeviceKey, Record> provisional = new ConcurrentHashMap<>();
+    private volatile Path file;
+    private volatile long interval = 60000;
+    private volatile long maxAge = TimeUnit.DAYS.toMillis(1);
+    private volatile boolean dirty;
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    boolean isEnabled() {
+        return file != null;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Sets a file where known devices are persisted, null disables snapshots. Devices stored in the file are
+     * loaded as provisional ones.
+     * @param file snapshot file
+     */
+    synchronized void setFile(Path file) {
+        if (file != null && file.equals(this.file)) {
+            return;
+        }
+        this.file = file;
+        records.clear();
+        provisional.clear();
+        dirty = false;
+        if (file != null) {
+            load(file);
+        }
+        reschedule();
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Sets how often known devices are persisted.
+     * @param interval snapshot interval (ms)
+     */
+    synchronized void setInterval(long interval) {
+        if (this.interval != interval) {
+            this.interval = interval;
+            reschedule();
+        }
+    }
+
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets how long a device is kept in the snapshot since it was last seen.
+     * @param maxAge max age (ms)
+     */
+    void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Records devices reported by Bluez. Reported devices are no longer provisional. Last seen time is advanced
+     * only for devices which have a valid RSSI (i.e. are currently advertising).
+     * @param devices discovered devices
+     */
+    void update(Collection<DiscoveredDevice> devices) {
+        if (file == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (DiscoveredDevice device : devices) {
+            DeviceKey key = DeviceKey.of(device.getURL());
+            provisional.remove(key);
+            Record previous = records.get(key);
+            long lastSeen = device.getRSSI() != 0 || previous == null ? now : previous.lastSeen;
+            Record record = new Record(key, device.getName(), device.getAlias(), device.getRSSI(),
+                    device.getBluetoothClass(), lastSeen);
+            if (!record.equals(previous)) {
+                records.put(key, record);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Returns provisional devices which have not been reported by Bluez yet.
+     * @return provisional devices
+     */
+    Set<DiscoveredDevice> getProvisional() {
+        if (file == null || provisional.isEmpty()) {
+            return Collections.emptySet();
+        }
+        long oldest = System.currentTimeMillis() - maxAge;
+        Set<DiscoveredDevice> result = provisional.values().stream().filter(record -> record.lastSeen >= oldest)
+                .map(Record::toDiscoveredDevice).collect(Collectors.toSet());
+        served.addAndGet(result.size());
+        return result;
+    }
+
+    /**
+     * Persists known devices if they have changed since the last snapshot.
+     */
+    synchronized void save() {
+        Path target = file;
+        if (target == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        long oldest = System.currentTimeMillis() - maxAge;
+        records.values().removeIf(record -> record.lastSeen < oldest);
+        try {
+            store(target, new ArrayList<>(records.values()));
+            writes.incrementAndGet();
+        } catch (IOException ex) {
+            dirty = true;
+            LOGGER.warn("Could not write device snapshot: {} : {}", target, ex.getMessage());
+        }
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("snapshot.devices", records.size());
+        metrics.put("snapshot.provisional", provisional.size());
+        metrics.put("snapshot.loaded", loaded.get());
+        metrics.put("snapshot.served", served.get());
+        metrics.put("snapshot.writes", writes.get());
+    }
+
+    synchronized void dispose() {
+        save();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    static ByteBuffer encode(List<Record> records) {
+        List<byte[]> strings = new ArrayList<>();
+        int size = 4 + 1 + 4;
+        for (Record record : records) {
+            byte[] name = bytes(record.name);
+            byte[] alias = bytes(record.alias);
+            strings.add(name);
+            strings.add(alias);
+            size += 8 + 8 + 2 + 4 + 8 + 2 + length(name) + 2 + length(alias);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).put(VERSION).putInt(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            buffer.putLong(record.key.getAdapter()).putLong(record.key.getDevice())
+                    .putShort(record.rssi).putInt(record.bluetoothClass).putLong(record.lastSeen);
+            putString(buffer, strings.get(i * 2));
+            putString(buffer, strings.get(i * 2 + 1));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static List<Record> decode(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new IllegalArgumentException("Unsupported device snapshot");
+        }
+        int count = buffer.getInt();
+        List<Record> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            DeviceKey key = new DeviceKey(buffer.getLong(), buffer.getLong());
+            short rssi = buffer.getShort();
+            int bluetoothClass = buffer.getInt();
+            long lastSeen = buffer.getLong();
+            result.add(new Record(key, getString(buffer), getString(buffer), rssi, bluetoothClass, lastSeen));
+        }
+        return result;
+    }
+
+    private void load(Path file) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            long oldest = System.currentTimeMillis() - maxAge;
+            for (Record record : decode(ByteBuffer.wrap(Files.readAllBytes(file)))) {
+                if (record.lastSeen >= oldest) {
+                    records.put(record.key, record);
+                    provisional.put(record.key, record);
+                }
+            }
+            loaded.addAndGet(provisional.size());
+            LOGGER.debug("Loaded {} devices from snapshot: {}", provisional.size(), file);
+        } catch (Exception ex) {
+            LOGGER.warn("Could not load device snapshot: {} : {}", file, ex.getMessage());
+        }
+    }
+
+    private static void store(Path file, List<Record> records) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = encode(records);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void reschedule() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (file != null && interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::save, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int length(byte[] value) {
+        return value != null ? Math.min(value.length, Short.MAX_VALUE) : 0;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) length(value)).put(value, 0, length(value));
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A persisted device.
+     */
+    static final class Record {
+
+        private final DeviceKey key;
+        private final String name;
+        private final String alias;
+        private final short rssi;
+        private final int bluetoothClass;
+        private final long lastSeen;
+
+        Record(DeviceKey key, String name, String alias, short rssi, int bluetoothClass, long lastSeen) {
+            this.key = key;
+            this.name = name;
+            this.alias = alias;
+            this.rssi = rssi;
+            this.bluetoothClass = bluetoothClass;
+            this.lastSeen = lastSeen;
+        }
+
+        DeviceKey getKey() {
+            return key;
+        }
+
+        long getLastSeen() {
+            return lastSeen;
+        }
+
+        DiscoveredDevice toDiscoveredDevice() {
+            return new DiscoveredDevice(key.toURL(), name, alias, rssi, bluetoothClass, bluetoothClass == 0);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (object == null || getClass() != object.getClass()) {
+                return false;
+            }
+            Record that = (Record) object;
+            return key.equals(that.key) && rssi == that.rssi && bluetoothClass == that.bluetoothClass
+                    && lastSeen == that.lastSeen && Objects.equals(name, that.name)
+                    && Objects.equals(alias, that.alias);
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
+
+}
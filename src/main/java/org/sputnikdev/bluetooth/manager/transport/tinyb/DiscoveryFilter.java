@@ -0,0 +1,217 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.TransportType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Discovery filters. Filters are pushed down to Bluez (and subsequently to controllers) so that irrelevant
+ * advertisements are dropped before reaching the JVM. If an adapter rejects a filter, this is remembered
+ * and the filter is applied on the java side instead.
+ */
+class DiscoveryFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiscoveryFilter.class);
+    private static final String NOT_SUPPORTED_ERROR = "org.bluez.Error.NotSupported";
+
+    private volatile Filter defaultFilter = Filter.NONE;
+    private final Map<URL, Filter> filters = new ConcurrentHashMap<>();
+    private final Set<URL> unsupported = ConcurrentHashMap.newKeySet();
+    private final Set<URL> applied = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    void setDefaultFilter(Filter filter) {
+        defaultFilter = filter;
+    }
+
+    Filter getDefaultFilter() {
+        return defaultFilter;
+    }
+
+    void setFilter(URL adapter, Filter filter) {
+        filters.put(adapter.getAdapterURL(), filter);
+    }
+
+    Filter getFilter(URL adapter) {
+        return filters.getOrDefault(adapter.getAdapterURL(), defaultFilter);
+    }
+
+    /**
+     * Checks whether an adapter supports native discovery filtering.
+     * @param adapter adapter URL
+     * @return false if the adapter is known to reject discovery filters
+     */
+    boolean isSupported(URL adapter) {
+        return !unsupported.contains(adapter.getAdapterURL());
+    }
+
+    /**
+     * Sets up a discovery filter for an adapter. If the adapter does not support filtering, the filter will be
+     * applied on the java side by {@link #accept(URL, BluetoothDevice)}.
+     * @param url adapter URL
+     * @param adapter native adapter
+     */
+    void apply(URL url, BluetoothAdapter adapter) {
+        URL adapterURL = url.getAdapterURL();
+        Filter filter = getFilter(adapterURL);
+        if (unsupported.contains(adapterURL)) {
+            LOGGER.debug("Adapter does not support filtering, filtering on the java side: {}", adapterURL);
+            return;
+        }
+        try {
+            adapter.setDiscoveryFilter(filter.uuids, filter.rssi, 0, filter.transport);
+            if (filter.isEmpty()) {
+                applied.remove(adapterURL);
+            } else {
+                applied.add(adapterURL);
+            }
+        } catch (Exception ex) {
+            applied.remove(adapterURL);
+            if (!isNotSupported(ex)) {
+                // transient failure (e.g. adapter is being powered on), the filter will be applied again next time
+                LOGGER.warn("Could not set discovery filter: {}. Reason: {}.", adapterURL, ex.getMessage());
+                return;
+            }
+            // some adapters are reported not to support this, hence ignore and log it
+            LOGGER.warn("Adapter does not support filtering: {}. Reason: {}.", adapterURL, ex.getMessage());
+            unsupported.add(adapterURL);
+            if (!filter.isEmpty()) {
+                // make sure a previously set filter does not remain active
+                TinyBFactory.runSilently(
+                        () -> adapter.setDiscoveryFilter(Collections.emptyList(), 0, 0, TransportType.AUTO));
+            }
+        }
+    }
+
+    private static boolean isNotSupported(Exception ex) {
+        return ex.getMessage() != null && ex.getMessage().contains(NOT_SUPPORTED_ERROR);
+    }
+
+    /**
+     * Checks a discovered device against the java side filter of its adapter. Devices of adapters that
+     * support native filtering are always accepted. Transport type cannot be checked on the java side.
+     * @param adapter adapter URL
+     * @param device discovered device
+     * @return true if the device is accepted
+     */
+    boolean accept(URL adapter, BluetoothDevice device) {
+        if (unsupported.isEmpty() || !unsupported.contains(adapter.getAdapterURL())) {
+            return true;
+        }
+        Filter filter = getFilter(adapter);
+        if (filter.isEmpty()) {
+            return true;
+        }
+        boolean matches = filter.matches(device.getRSSI(), filter.uuids.isEmpty() ? null : device.getUUIDs());
+        (matches ? accepted : dropped).incrementAndGet();
+        return matches;
+    }
+
+    /**
+     * Same as {@link #accept(URL, BluetoothDevice)}, but the adapter is looked up from the device only when needed.
+     * @param device discovered device
+     * @return true if the device is accepted
+     */
+    boolean accept(BluetoothDevice device) {
+        if (unsupported.isEmpty()) {
+            return true;
+        }
+        return accept(new URL(TinyBFactory.TINYB_PROTOCOL_NAME, device.getAdapter().getAddress(), null), device);
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("discovery.filter.native", applied.size());
+        metrics.put("discovery.filter.fallback", unsupported.size());
+        metrics.put("discovery.filter.accepted", accepted.get());
+        metrics.put("discovery.filter.dropped", dropped.get());
+    }
+
+    /**
+     * An immutable discovery filter.
+     */
+    static final class Filter {
+
+        static final Filter NONE = new Filter(Collections.emptyList(), (short) 0, TransportType.AUTO);
+
+        private final List<UUID> uuids;
+        private final short rssi;
+        private final TransportType transport;
+
+        Filter(Collection<UUID> uuids, short rssi, TransportType transport) {
+            this.uuids = Collections.unmodifiableList(new ArrayList<>(uuids));
+            this.rssi = rssi;
+            this.transport = transport;
+        }
+
+        List<UUID> getUUIDs() {
+            return uuids;
+        }
+
+        short getRSSI() {
+            return rssi;
+        }
+
+        TransportType getTransport() {
+            return transport;
+        }
+
+        boolean isEmpty() {
+            return uuids.isEmpty() && rssi == 0 && transport == TransportType.AUTO;
+        }
+
+        boolean matches(short deviceRSSI, String[] deviceUUIDs) {
+            if (rssi != 0 && (deviceRSSI == 0 || deviceRSSI < rssi)) {
+                return false;
+            }
+            if (uuids.isEmpty()) {
+                return true;
+            }
+            if (deviceUUIDs != null) {
+                for (String uuid : deviceUUIDs) {
+                    try {
+                        if (uuids.contains(UUIDs.parse(uuid))) {
+                            return true;
+                        }
+                    } catch (IllegalArgumentException ignore) { /* do nothing */ }
+                }
+            }
+            return false;
+        }
+    }
+
+}
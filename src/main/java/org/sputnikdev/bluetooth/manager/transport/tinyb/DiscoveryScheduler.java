@@ -0,0 +1,326 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A discovery scheduler which controls when adapters actually scan. Discovery can be duty cycled (scanning
+ * for a configured window once per interval) and can be paused automatically while connections are being
+ * established or services are being resolved, as discovery badly affects connection setup in Bluez.
+ * Connect latencies with and without scanning active are measured.
+ */
+class DiscoveryScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiscoveryScheduler.class);
+    private static final long RESOLUTION_CHECK_PERIOD = 250;
+
+    private final Map<URL, AdapterState> states = new ConcurrentHashMap<>();
+    private volatile long window;
+    private volatile long interval;
+    private volatile boolean pauseOnConnect;
+    private volatile long maxResolutionHold = 10000;
+    private ScheduledExecutorService executor;
+
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong connectsScanning = new AtomicLong();
+    private final AtomicLong connectTimeScanning = new AtomicLong();
+    private final AtomicLong connectsIdle = new AtomicLong();
+    private final AtomicLong connectTimeIdle = new AtomicLong();
+
+    /**
+     * Sets discovery duty cycle.
+     * @param window scan window (ms)
+     * @param interval scan interval (ms), zero (or an interval not greater than the window) means continuous scanning
+     */
+    void setDutyCycle(long window, long interval) {
+        this.window = window;
+        this.interval = interval;
+    }
+
+    long getWindow() {
+        return window;
+    }
+
+    long getInterval() {
+        return interval;
+    }
+
+    boolean isPauseOnConnect() {
+        return pauseOnConnect;
+    }
+
+    void setPauseOnConnect(boolean pauseOnConnect) {
+        this.pauseOnConnect = pauseOnConnect;
+    }
+
+    long getMaxResolutionHold() {
+        return maxResolutionHold;
+    }
+
+    void setMaxResolutionHold(long maxResolutionHold) {
+        this.maxResolutionHold = maxResolutionHold;
+    }
+
+    /**
+     * Starts (managed) discovery.
+     * @param url adapter URL
+     * @param nativeStart starts native discovery
+     * @param nativeStop stops native discovery
+     * @return result of starting native discovery, or true if discovery is currently paused
+     */
+    boolean start(URL url, BooleanSupplier nativeStart, BooleanSupplier nativeStop) {
+        AdapterState state = states.computeIfAbsent(url.getAdapterURL(), AdapterState::new);
+        synchronized (state) {
+            state.nativeStart = nativeStart;
+            state.nativeStop = nativeStop;
+            state.requested = true;
+            state.inWindow = true;
+            if (state.phase != null) {
+                state.phase.cancel(false);
+                state.phase = null;
+            }
+            if (isDutyCycled()) {
+                state.phase = schedule(() -> togglePhase(state), window);
+            }
+            if (state.paused > 0) {
+                return true;
+            }
+            state.scanning = nativeStart.getAsBoolean();
+            return state.scanning;
+        }
+    }
+
+    /**
+     * Stops (managed) discovery.
+     * @param url adapter URL
+     * @return false if native discovery has been suspended by the scheduler, hence it does not need to be stopped
+     */
+    boolean stop(URL url) {
+        AdapterState state = states.get(url.getAdapterURL());
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            final boolean suspended = state.requested && !state.scanning && (state.paused > 0 || !state.inWindow);
+            state.requested = false;
+            state.scanning = false;
+            state.inWindow = true;
+            if (state.phase != null) {
+                state.phase.cancel(false);
+                state.phase = null;
+            }
+            return !suspended;
+        }
+    }
+
+    boolean isScanning(URL url) {
+        AdapterState state = states.get(url.getAdapterURL());
+        if (state == null) {
+            return false;
+        }
+        synchronized (state) {
+            return state.scanning;
+        }
+    }
+
+    /**
+     * Pauses discovery of an adapter (if pausing is enabled) until {@link #resume(URL)} is called.
+     * @param url adapter URL (or any of its descendants)
+     * @return true if discovery has been paused and therefore must be resumed
+     */
+    boolean pause(URL url) {
+        if (!pauseOnConnect) {
+            return false;
+        }
+        AdapterState state = states.computeIfAbsent(url.getAdapterURL(), AdapterState::new);
+        synchronized (state) {
+            if (state.paused++ == 0 && state.scanning) {
+                pauses.incrementAndGet();
+                LOGGER.debug("Pausing discovery: {}", state.url);
+            }
+            state.update();
+        }
+        return true;
+    }
+
+    /**
+     * Resumes discovery paused by {@link #pause(URL)}.
+     * @param url adapter URL (or any of its descendants)
+     */
+    void resume(URL url) {
+        AdapterState state = states.get(url.getAdapterURL());
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.paused > 0) {
+                state.paused--;
+                state.update();
+            }
+        }
+    }
+
+    /**
+     * Resumes discovery paused by {@link #pause(URL)} once a condition is met (e.g. services get resolved),
+     * but no later than the maximum resolution hold time.
+     * @param url adapter URL (or any of its descendants)
+     * @param condition condition
+     */
+    void resumeWhen(URL url, BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + maxResolutionHold;
+        Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                boolean met;
+                try {
+                    met = condition.getAsBoolean();
+                } catch (Exception ex) {
+                    met = true;
+                }
+                if (met || System.currentTimeMillis() >= deadline) {
+                    resume(url);
+                } else {
+                    schedule(this, RESOLUTION_CHECK_PERIOD);
+                }
+            }
+        };
+        schedule(check, 0);
+    }
+
+    /**
+     * Records a connect attempt duration.
+     * @param scanning true if discovery was active while connecting
+     * @param duration duration (ms)
+     */
+    void recordConnect(boolean scanning, long duration) {
+        if (scanning) {
+            connectsScanning.incrementAndGet();
+            connectTimeScanning.addAndGet(duration);
+        } else {
+            connectsIdle.incrementAndGet();
+            connectTimeIdle.addAndGet(duration);
+        }
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("discovery.pauses", pauses.get());
+        metrics.put("discovery.scanning", states.values().stream().filter(state -> isScanning(state.url)).count());
+        metrics.put("discovery.connects.scanning", connectsScanning.get());
+        metrics.put("discovery.connects.idle", connectsIdle.get());
+        metrics.put("discovery.connectLatency.scanning", average(connectTimeScanning, connectsScanning));
+        metrics.put("discovery.connectLatency.idle", average(connectTimeIdle, connectsIdle));
+    }
+
+    void dispose() {
+        // phases that are already running must not touch native objects any longer
+        states.values().forEach(state -> stop(state.url));
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+        states.clear();
+    }
+
+    private boolean isDutyCycled() {
+        return window > 0 && interval > window;
+    }
+
+    private void togglePhase(AdapterState state) {
+        synchronized (state) {
+            if (!state.requested) {
+                return;
+            }
+            state.inWindow = !state.inWindow;
+            state.update();
+            if (isDutyCycled()) {
+                state.phase = schedule(() -> togglePhase(state), state.inWindow ? window : interval - window);
+            } else {
+                state.inWindow = true;
+                state.phase = null;
+                state.update();
+            }
+        }
+    }
+
+    private synchronized ScheduledFuture<?> schedule(Runnable task, long delay) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-discovery-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static double average(AtomicLong total, AtomicLong count) {
+        long number = count.get();
+        return number > 0 ? (double) total.get() / number : 0;
+    }
+
+    private static final class AdapterState {
+
+        private final URL url;
+        private BooleanSupplier nativeStart;
+        private BooleanSupplier nativeStop;
+        private ScheduledFuture<?> phase;
+        private boolean requested;
+        private boolean scanning;
+        private boolean inWindow = true;
+        private int paused;
+
+        private AdapterState(URL url) {
+            this.url = url;
+        }
+
+        // must be called while holding the state lock
+        private void update() {
+            boolean shouldScan = requested && inWindow && paused == 0;
+            try {
+                if (shouldScan && !scanning) {
+                    LOGGER.debug("Resuming discovery: {}", url);
+                    scanning = nativeStart.getAsBoolean();
+                } else if (!shouldScan && scanning) {
+                    LOGGER.debug("Suspending discovery: {}", url);
+                    scanning = false;
+                    nativeStop.getAsBoolean();
+                }
+            } catch (Exception ex) {
+                LOGGER.warn("Could not change discovery state: {} : {}", url, ex.getMessage());
+            }
+        }
+    }
+
+}
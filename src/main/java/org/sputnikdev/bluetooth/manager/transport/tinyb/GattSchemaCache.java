@@ -0,0 +1,414 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattDescriptor;
+import tinyb.BluetoothGattService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent cache of GATT layouts (service, characteristic and descriptor UUIDs and characteristic flags)
+ * keyed by device address. Layouts are stored one file per device in a compact binary format which is memory
+ * mapped when loaded. Cached layouts are verified against the live tree in background once services are resolved
+ * and served from then on until the device reconnects, e.g. characteristic flags and descriptors do not have to be
+ * fetched through JNI over and over. Layouts that have not been verified yet are never served as the device
+ * might have changed them.
+ */
+class GattSchemaCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GattSchemaCache.class);
+
+    // "GATT"
+    private static final int MAGIC = 0x47415454;
+    private static final byte VERSION = 1;
+    private static final String EXTENSION = ".gatt";
+    // characteristic flags as reported by Bluez, stored as a bit mask
+    private static final List<String> FLAGS = Arrays.asList("broadcast", "read", "write-without-response", "write",
+            "notify", "indicate", "authenticated-signed-writes", "reliable-write", "writable-auxiliaries",
+            "encrypt-read", "encrypt-write", "encrypt-authenticated-read", "encrypt-authenticated-write",
+            "secure-read", "secure-write");
+
+    private final Map<Long, Schema> schemas = new ConcurrentHashMap<>();
+    // devices whose cached schema has been verified against the live tree since they connected
+    private final Set<Long> verified = ConcurrentHashMap.newKeySet();
+    // devices whose verification is in progress
+    private final Set<Long> verifying = ConcurrentHashMap.newKeySet();
+    private volatile Path directory;
+    private ExecutorService executor;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong verifications = new AtomicLong();
+    private final AtomicLong updates = new AtomicLong();
+
+    boolean isEnabled() {
+        return directory != null;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets a directory where layouts are stored, null disables caching.
+     * @param directory cache directory
+     */
+    void setDirectory(Path directory) {
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException ex) {
+                LOGGER.warn("Could not create GATT cache directory, caching is disabled: {} : {}",
+                        directory, ex.getMessage());
+                directory = null;
+            }
+        }
+        this.directory = directory;
+        schemas.clear();
+        verified.clear();
+        verifying.clear();
+    }
+
+    /**
+     * Returns cached layout of a characteristic if the layout of its device has been verified since it connected.
+     * @param url characteristic URL
+     * @return cached characteristic layout or null if it is not cached or not verified yet
+     */
+    CharacteristicSchema getCharacteristic(URL url) {
+        if (directory == null) {
+            return null;
+        }
+        Schema schema = isVerified(url) ? getSchema(url) : null;
+        CharacteristicSchema characteristic = null;
+        if (schema != null) {
+            Map<UUID, CharacteristicSchema> characteristics = schema.services.get(UUIDs.parse(url.getServiceUUID()));
+            if (characteristics != null) {
+                characteristic = characteristics.get(UUIDs.parse(url.getCharacteristicUUID()));
+            }
+        }
+        (characteristic != null ? hits : misses).incrementAndGet();
+        return characteristic;
+    }
+
+    /**
+     * Returns cached layout of a device.
+     * @param url device URL
+     * @return cached layout or null if the device is not cached
+     */
+    Schema getSchema(URL url) {
+        if (directory == null) {
+            return null;
+        }
+        Schema schema = schemas.computeIfAbsent(DeviceKey.parseAddress(url.getDeviceAddress()), this::load);
+        return schema != Schema.NONE ? schema : null;
+    }
+
+    boolean isVerified(URL url) {
+        return verified.contains(DeviceKey.parseAddress(url.getDeviceAddress()));
+    }
+
+    /**
+     * Marks the cached layout of a device as not verified, it will be checked against the live tree again.
+     * @param url device URL
+     */
+    void connected(URL url) {
+        verified.remove(DeviceKey.parseAddress(url.getDeviceAddress()));
+    }
+
+    /**
+     * Checks the cached layout of a device against the live tree in background, at most once per connection.
+     * The cached layout is replaced if it does not match.
+     * @param url device URL
+     * @param services resolved services
+     */
+    void verify(URL url, List<BluetoothGattService> services) {
+        long address = DeviceKey.parseAddress(url.getDeviceAddress());
+        if (directory == null || services.isEmpty() || verified.contains(address) || !verifying.add(address)) {
+            return;
+        }
+        getExecutor().execute(() -> {
+            try {
+                Schema live = read(services);
+                verifications.incrementAndGet();
+                if (!live.equals(getSchema(url))) {
+                    LOGGER.debug("GATT layout has changed or not cached: {}", url);
+                    schemas.put(address, live);
+                    store(address, live);
+                    updates.incrementAndGet();
+                }
+                verified.add(address);
+            } catch (Exception ex) {
+                LOGGER.debug("Could not verify GATT layout: {} : {}", url, ex.getMessage());
+            } finally {
+                verifying.remove(address);
+            }
+        });
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("gattCache.devices", schemas.values().stream().filter(schema -> schema != Schema.NONE).count());
+        metrics.put("gattCache.hits", hits.get());
+        metrics.put("gattCache.misses", misses.get());
+        metrics.put("gattCache.verifications", verifications.get());
+        metrics.put("gattCache.updates", updates.get());
+    }
+
+    synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        schemas.clear();
+        verified.clear();
+        verifying.clear();
+    }
+
+    static Schema read(List<BluetoothGattService> services) {
+        Map<UUID, Map<UUID, CharacteristicSchema>> result = new LinkedHashMap<>();
+        for (BluetoothGattService service : services) {
+            Map<UUID, CharacteristicSchema> characteristics = new LinkedHashMap<>();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                List<UUID> descriptors = new ArrayList<>();
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    descriptors.add(UUIDs.parse(descriptor.getUUID()));
+                }
+                characteristics.put(UUIDs.parse(characteristic.getUUID()),
+                        new CharacteristicSchema(encodeFlags(characteristic.getFlags()), descriptors));
+            }
+            result.put(UUIDs.parse(service.getUUID()), characteristics);
+        }
+        return new Schema(result);
+    }
+
+    static ByteBuffer encode(long address, Schema schema) {
+        int size = 4 + 1 + 8 + 2;
+        for (Map<UUID, CharacteristicSchema> characteristics : schema.services.values()) {
+            size += 16 + 2;
+            for (CharacteristicSchema characteristic : characteristics.values()) {
+                size += 16 + 2 + 1 + 16 * characteristic.descriptors.size();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).put(VERSION).putLong(address).putShort((short) schema.services.size());
+        for (Map.Entry<UUID, Map<UUID, CharacteristicSchema>> service : schema.services.entrySet()) {
+            putUUID(buffer, service.getKey());
+            buffer.putShort((short) service.getValue().size());
+            for (Map.Entry<UUID, CharacteristicSchema> characteristic : service.getValue().entrySet()) {
+                putUUID(buffer, characteristic.getKey());
+                buffer.putShort((short) characteristic.getValue().flags);
+                buffer.put((byte) characteristic.getValue().descriptors.size());
+                characteristic.getValue().descriptors.forEach(descriptor -> putUUID(buffer, descriptor));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static Schema decode(long address, ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.get() != VERSION || buffer.getLong() != address) {
+            throw new IllegalArgumentException("Unsupported GATT cache entry");
+        }
+        Map<UUID, Map<UUID, CharacteristicSchema>> services = new LinkedHashMap<>();
+        int serviceCount = buffer.getShort() & 0xffff;
+        for (int i = 0; i < serviceCount; i++) {
+            UUID service = getUUID(buffer);
+            Map<UUID, CharacteristicSchema> characteristics = new LinkedHashMap<>();
+            int characteristicCount = buffer.getShort() & 0xffff;
+            for (int j = 0; j < characteristicCount; j++) {
+                UUID characteristic = getUUID(buffer);
+                int flags = buffer.getShort() & 0xffff;
+                int descriptorCount = buffer.get() & 0xff;
+                List<UUID> descriptors = new ArrayList<>(descriptorCount);
+                for (int k = 0; k < descriptorCount; k++) {
+                    descriptors.add(getUUID(buffer));
+                }
+                characteristics.put(characteristic, new CharacteristicSchema(flags, descriptors));
+            }
+            services.put(service, characteristics);
+        }
+        return new Schema(services);
+    }
+
+    private Schema load(long address) {
+        Path file = getFile(address);
+        if (file == null || !Files.exists(file)) {
+            return Schema.NONE;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(address, buffer);
+        } catch (Exception ex) {
+            LOGGER.warn("Could not load GATT cache entry: {} : {}", file, ex.getMessage());
+            return Schema.NONE;
+        }
+    }
+
+    private void store(long address, Schema schema) throws IOException {
+        Path file = getFile(address);
+        if (file == null) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = encode(address, schema);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path getFile(long address) {
+        Path dir = directory;
+        return dir != null ? dir.resolve(String.format("%012x", address) + EXTENSION) : null;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-gatt-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    private static int encodeFlags(String[] flags) {
+        int result = 0;
+        for (String flag : flags) {
+            int index = flag != null ? FLAGS.indexOf(flag.toLowerCase()) : -1;
+            if (index >= 0) {
+                result |= 1 << index;
+            }
+        }
+        return result;
+    }
+
+    private static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID getUUID(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * GATT layout of a device.
+     */
+    static final class Schema {
+
+        // marks devices which are not cached
+        private static final Schema NONE = new Schema(Collections.emptyMap());
+
+        private final Map<UUID, Map<UUID, CharacteristicSchema>> services;
+
+        Schema(Map<UUID, Map<UUID, CharacteristicSchema>> services) {
+            this.services = services;
+        }
+
+        Map<UUID, Map<UUID, CharacteristicSchema>> getServices() {
+            return Collections.unmodifiableMap(services);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return this == object || object instanceof Schema && services.equals(((Schema) object).services);
+        }
+
+        @Override
+        public int hashCode() {
+            return services.hashCode();
+        }
+    }
+
+    /**
+     * GATT layout of a characteristic.
+     */
+    static final class CharacteristicSchema {
+
+        private final int flags;
+        private final List<UUID> descriptors;
+
+        CharacteristicSchema(int flags, List<UUID> descriptors) {
+            this.flags = flags;
+            this.descriptors = descriptors;
+        }
+
+        String[] getFlags() {
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < FLAGS.size(); i++) {
+                if ((flags & 1 << i) != 0) {
+                    result.add(FLAGS.get(i));
+                }
+            }
+            return result.toArray(new String[result.size()]);
+        }
+
+        boolean hasDescriptor(UUID uuid) {
+            return descriptors.contains(uuid);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof CharacteristicSchema)) {
+                return false;
+            }
+            CharacteristicSchema other = (CharacteristicSchema) object;
+            return flags == other.flags && descriptors.equals(other.descriptors);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * flags + descriptors.hashCode();
+        }
+    }
+
+}
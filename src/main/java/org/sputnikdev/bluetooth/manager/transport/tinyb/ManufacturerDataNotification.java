@@ -0,0 +1,53 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+
+import java.util.Map;
+
+/**
+ * A primitive specialisation of manufacturer data notifications. If a notification passed to
+ * {@link TinyBDevice#enableManufacturerDataNotifications(Notification)} implements this interface, manufacturer
+ * data is delivered entry by entry through {@link #notifyManufacturerData(short, byte[], int, int)}, so that
+ * consumers do not have to deal with boxed company IDs and map lookups.
+ */
+@FunctionalInterface
+public interface ManufacturerDataNotification extends Notification<Map<Short, byte[]>> {
+
+    /**
+     * Notifies about manufacturer data of a manufacturer.
+     * @param companyId manufacturer (company) ID
+     * @param payload buffer, must not be modified
+     * @param offset payload offset
+     * @param length payload length
+     */
+    void notifyManufacturerData(short companyId, byte[] payload, int offset, int length);
+
+    @Override
+    default void notify(Map<Short, byte[]> manufacturerData) {
+        for (Map.Entry<Short, byte[]> entry : manufacturerData.entrySet()) {
+            byte[] payload = entry.getValue();
+            notifyManufacturerData(entry.getKey(), payload, 0, payload.length);
+        }
+    }
+
+}
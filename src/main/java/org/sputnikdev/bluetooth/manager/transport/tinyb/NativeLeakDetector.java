@@ -0,0 +1,227 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothObject;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Tracks native TinyB objects wrapped by transport objects. Each TinyB object owns a native handle which is
+ * released only when the object is closed or finalized, hence handles of wrappers which are created all the time
+ * (but never closed) pile up until garbage collection catches up. The detector counts live handles per kind,
+ * handles closed by the transport (see {@link #closed(BluetoothObject)}), handles reclaimed by garbage collection
+ * without being closed, and reports URLs holding handles for longer than a configured age, which usually means
+ * that wrappers are retained somewhere. Adapters are held for as long as the factory is used, so they are counted
+ * but never reported.
+ */
+class NativeLeakDetector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NativeLeakDetector.class);
+
+    enum Kind { ADAPTER, DEVICE, SERVICE, CHARACTERISTIC }
+
+    private final ReferenceQueue<BluetoothObject> queue = new ReferenceQueue<>();
+    // keeps handles reachable until their objects get reclaimed
+    private final Set<Handle> handles = ConcurrentHashMap.newKeySet();
+    private final Map<Kind, AtomicLong> live = new ConcurrentHashMap<>();
+    private final Map<Kind, AtomicLong> reclaimed = new ConcurrentHashMap<>();
+    private final Map<Kind, AtomicLong> closed = new ConcurrentHashMap<>();
+    private volatile boolean enabled;
+    private volatile long maxAge = TimeUnit.HOURS.toMillis(1);
+    private final AtomicLong tracked = new AtomicLong();
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets how long a native object can be alive before it is reported.
+     * @param maxAge max age (ms)
+     */
+    void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Starts tracking a native object wrapped by a transport object.
+     * @param object native object
+     * @param url URL of the wrapper
+     */
+    void track(BluetoothObject object, URL url) {
+        if (!enabled || object == null) {
+            return;
+        }
+        expunge();
+        Kind kind = getKind(url);
+        handles.add(new Handle(object, url, kind, queue));
+        live.computeIfAbsent(kind, key -> new AtomicLong()).incrementAndGet();
+        tracked.incrementAndGet();
+    }
+
+    /**
+     * Stops tracking a native object which has been closed by the transport, i.e. its handle has been released.
+     * @param object closed native object
+     */
+    void closed(BluetoothObject object) {
+        if (!enabled || object == null) {
+            return;
+        }
+        expunge();
+        for (Handle handle : handles) {
+            if (handle.get() == object && handles.remove(handle)) {
+                handle.clear();
+                live.computeIfAbsent(handle.kind, key -> new AtomicLong()).decrementAndGet();
+                closed.computeIfAbsent(handle.kind, key -> new AtomicLong()).incrementAndGet();
+            }
+        }
+    }
+
+    long getLive(Kind kind) {
+        expunge();
+        AtomicLong count = live.get(kind);
+        return count != null ? count.get() : 0;
+    }
+
+    long getReclaimed(Kind kind) {
+        expunge();
+        AtomicLong count = reclaimed.get(kind);
+        return count != null ? count.get() : 0;
+    }
+
+    long getClosed(Kind kind) {
+        AtomicLong count = closed.get(kind);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Reports URLs holding native objects (other than adapters) for longer than the max age, most offending first.
+     * @return report lines
+     */
+    List<String> report() {
+        expunge();
+        long oldest = System.currentTimeMillis() - maxAge;
+        Map<URL, List<Handle>> aged = handles.stream()
+                .filter(handle -> handle.kind != Kind.ADAPTER && handle.created <= oldest)
+                .collect(Collectors.groupingBy(handle -> handle.url));
+        long now = System.currentTimeMillis();
+        return aged.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<URL, List<Handle>> entry) -> entry.getValue().size())
+                        .reversed())
+                .map(entry -> String.format("%s %s: %d live native object(s), oldest %d s",
+                        entry.getValue().get(0).kind.name().toLowerCase(), entry.getKey(), entry.getValue().size(),
+                        TimeUnit.MILLISECONDS.toSeconds(now - entry.getValue().stream()
+                                .mapToLong(handle -> handle.created).min().getAsLong())))
+                .collect(Collectors.toList());
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        expunge();
+        metrics.put("natives.tracked", tracked.get());
+        for (Kind kind : Kind.values()) {
+            String name = kind.name().toLowerCase();
+            metrics.put("natives.live." + name, getLive(kind));
+            metrics.put("natives.reclaimed." + name, getReclaimed(kind));
+            metrics.put("natives.closed." + name, getClosed(kind));
+        }
+    }
+
+    void dispose() {
+        if (enabled) {
+            List<String> report = report();
+            if (!report.isEmpty()) {
+                LOGGER.warn("Native objects held for longer than {} ms:\n{}", maxAge, String.join("\n", report));
+            }
+        }
+        clear();
+    }
+
+    private void clear() {
+        handles.forEach(Reference::clear);
+        handles.clear();
+        live.clear();
+        while (queue.poll() != null) {
+            // drop stale references
+        }
+    }
+
+    private void expunge() {
+        Reference<? extends BluetoothObject> reference;
+        while ((reference = queue.poll()) != null) {
+            Handle handle = (Handle) reference;
+            // reclaimed by garbage collection, i.e. the native object has never been closed
+            if (handles.remove(handle)) {
+                live.computeIfAbsent(handle.kind, key -> new AtomicLong()).decrementAndGet();
+                reclaimed.computeIfAbsent(handle.kind, key -> new AtomicLong()).incrementAndGet();
+                LOGGER.trace("Native object has not been closed: {}", handle.url);
+            }
+        }
+    }
+
+    private static Kind getKind(URL url) {
+        if (url.isCharacteristic()) {
+            return Kind.CHARACTERISTIC;
+        } else if (url.isService()) {
+            return Kind.SERVICE;
+        } else if (url.isDevice()) {
+            return Kind.DEVICE;
+        }
+        return Kind.ADAPTER;
+    }
+
+    private static final class Handle extends WeakReference<BluetoothObject> {
+
+        private final URL url;
+        private final Kind kind;
+        private final long created = System.currentTimeMillis();
+
+        private Handle(BluetoothObject object, URL url, Kind kind, ReferenceQueue<BluetoothObject> queue) {
+            super(object, queue);
+            this.url = url;
+            this.kind = kind;
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the executor that delivers notifications to the Bluetooth Manager. The executor is started lazily when
+ * the first notification is dispatched and drained on shutdown, notifications that could not be delivered within
+ * the timeout are abandoned and counted. A dispatcher can be restarted by dispatching a notification after shutdown.
+ */
+class NotificationDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private volatile ThreadPoolExecutor executor;
+    private long delivered;
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /**
+     * Returns the executor, starts it if it is not started yet.
+     * @return notification executor
+     */
+    ExecutorService getExecutor() {
+        ThreadPoolExecutor current = executor;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (executor == null) {
+                LOGGER.debug("Starting notification executor");
+                executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                        new SynchronousQueue<>(), NotificationDispatcher::newThread);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Delivers a notification in the notification executor. Errors thrown by the notification are logged,
+     * notifications dispatched while the dispatcher is being shut down are abandoned.
+     * @param notification notification to deliver
+     * @param logger logger to report errors to
+     * @param errorMessage message to log when the notification fails
+     */
+    void dispatch(Runnable notification, Logger logger, String errorMessage) {
+        try {
+            getExecutor().submit(() -> {
+                try {
+                    notification.run();
+                } catch (Exception ex) {
+                    logger.error(errorMessage, ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            abandoned.incrementAndGet();
+            logger.warn("Notification has been abandoned as the factory is being disposed: {}", errorMessage);
+        }
+    }
+
+    boolean isStarted() {
+        return executor != null;
+    }
+
+    /**
+     * Stops accepting notifications and waits for in-flight notifications to be delivered.
+     * @param timeout how long (ms) to wait for in-flight notifications
+     * @return true if all notifications have been delivered, false if some of them have been abandoned
+     */
+    synchronized boolean shutdown(long timeout) {
+        if (executor == null) {
+            return true;
+        }
+        executor.shutdown();
+        boolean terminated = false;
+        try {
+            terminated = executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // counted before interrupting in-flight notifications
+        long deliveredNow = executor.getCompletedTaskCount();
+        long notDelivered = executor.getTaskCount() - deliveredNow;
+        if (!terminated) {
+            executor.shutdownNow();
+        }
+        delivered += deliveredNow;
+        abandoned.addAndGet(notDelivered);
+        executor = null;
+        if (notDelivered > 0) {
+            LOGGER.warn("Notification executor has been shut down: {} notifications delivered, {} abandoned",
+                    deliveredNow, notDelivered);
+        } else {
+            LOGGER.info("Notification executor has been shut down: {} notifications delivered", deliveredNow);
+        }
+        return terminated;
+    }
+
+    synchronized void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("notification.delivered", delivered + (executor != null ? executor.getCompletedTaskCount() : 0));
+        metrics.put("notification.pending", executor != null ? executor.getActiveCount() : 0);
+        metrics.put("notification.abandoned", abandoned.get());
+    }
+
+    private static Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "tinyb-notification");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
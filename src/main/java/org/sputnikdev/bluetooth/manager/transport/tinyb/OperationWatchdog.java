@@ -0,0 +1,243 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A watchdog that enforces deadlines for potentially long running (blocking) native operations.
+ * Native TinyB calls cannot be interrupted, therefore a guarded call is executed in a separate thread
+ * while the caller waits for its completion no longer than the configured deadline. If the deadline passes,
+ * the caller gets {@link TinyBTimeoutException} and the device is marked as unhealthy until the stuck call returns.
+ * Any subsequent calls to an unhealthy device are rejected straight away so that threads do not pile up.
+ */
+class OperationWatchdog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OperationWatchdog.class);
+
+    enum Operation {
+        CONNECT, READ, WRITE
+    }
+
+    private enum State {
+        RUNNING, STUCK, DONE
+    }
+
+    private final Map<Operation, Long> deadlines = new ConcurrentHashMap<>();
+    private final Map<URL, AtomicInteger> stuckDevices = new ConcurrentHashMap<>();
+    private final Map<Operation, AtomicLong> stuckCounts = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> stuckDurations = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> maxStuckDurations = new EnumMap<>(Operation.class);
+    private ExecutorService executor;
+
+    OperationWatchdog() {
+        for (Operation operation : Operation.values()) {
+            stuckCounts.put(operation, new AtomicLong());
+            stuckDurations.put(operation, new AtomicLong());
+            maxStuckDurations.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     * Sets a deadline for a given operation type.
+     * @param operation operation type
+     * @param deadline deadline in milliseconds, zero or negative value disables the deadline
+     */
+    void setDeadline(Operation operation, long deadline) {
+        deadlines.put(operation, deadline);
+    }
+
+    long getDeadline(Operation operation) {
+        return deadlines.getOrDefault(operation, 0L);
+    }
+
+    /**
+     * Checks whether a device does not have any stuck calls.
+     * @param url device URL (or any of its descendants)
+     * @return true if device does not have stuck calls
+     */
+    boolean isHealthy(URL url) {
+        return !stuckDevices.containsKey(url.getDeviceURL());
+    }
+
+    int getStuckCalls() {
+        return stuckDevices.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    long getStuckCount(Operation operation) {
+        return stuckCounts.get(operation).get();
+    }
+
+    long getStuckDuration(Operation operation) {
+        return stuckDurations.get(operation).get();
+    }
+
+    long getMaxStuckDuration(Operation operation) {
+        return maxStuckDurations.get(operation).get();
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        for (Operation operation : Operation.values()) {
+            String prefix = "watchdog." + operation.name().toLowerCase() + ".";
+            metrics.put(prefix + "deadline", getDeadline(operation));
+            metrics.put(prefix + "stuck", getStuckCount(operation));
+            metrics.put(prefix + "stuckDuration", getStuckDuration(operation));
+            metrics.put(prefix + "maxStuckDuration", getMaxStuckDuration(operation));
+        }
+        metrics.put("watchdog.stuckCalls", getStuckCalls());
+        metrics.put("watchdog.unhealthyDevices", stuckDevices.size());
+    }
+
+    /**
+     * Executes a native call, waits for its completion no longer than the deadline configured for the operation type.
+     * @param operation operation type
+     * @param url URL of the object the call is made against
+     * @param call native call
+     * @param <T> result type
+     * @return result of the call
+     * @throws TinyBTimeoutException if the deadline passes or the device has already got a stuck call
+     */
+    <T> T call(Operation operation, URL url, Callable<T> call) {
+        long deadline = getDeadline(operation);
+        if (deadline <= 0) {
+            return callDirectly(call);
+        }
+        URL deviceURL = url.getDeviceURL();
+        if (!isHealthy(deviceURL)) {
+            throw new TinyBTimeoutException("Device is unhealthy, it has got a stuck call: " + deviceURL);
+        }
+        AtomicReference<State> state = new AtomicReference<>(State.RUNNING);
+        long started = System.currentTimeMillis();
+        Future<T> future = getExecutor().submit(() -> {
+            try {
+                return call.call();
+            } finally {
+                synchronized (state) {
+                    if (!state.compareAndSet(State.RUNNING, State.DONE)) {
+                        recovered(operation, deviceURL, System.currentTimeMillis() - started);
+                    }
+                }
+            }
+        });
+        try {
+            return future.get(deadline, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            synchronized (state) {
+                if (state.compareAndSet(State.RUNNING, State.STUCK)) {
+                    stuck(operation, deviceURL);
+                    throw new TinyBTimeoutException("Operation " + operation + " did not complete within "
+                            + deadline + "ms: " + url);
+                }
+            }
+            // the call has just completed
+            return getSilently(future);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TinyBException("Interrupted while waiting for " + operation + ": " + url, ex);
+        } catch (ExecutionException ex) {
+            throw unwrap(ex);
+        }
+    }
+
+    /**
+     * Shuts down the watchdog. Stuck calls are left to complete on their own.
+     * The watchdog can still be used afterwards, a new executor is created on demand.
+     */
+    synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    private void stuck(Operation operation, URL deviceURL) {
+        stuckCounts.get(operation).incrementAndGet();
+        stuckDevices.computeIfAbsent(deviceURL, key -> new AtomicInteger()).incrementAndGet();
+        LOGGER.warn("Operation {} is stuck, marking device as unhealthy: {}", operation, deviceURL);
+    }
+
+    private void recovered(Operation operation, URL deviceURL, long duration) {
+        stuckDurations.get(operation).addAndGet(duration);
+        maxStuckDurations.get(operation).accumulateAndGet(duration, Math::max);
+        stuckDevices.computeIfPresent(deviceURL, (key, counter) -> counter.decrementAndGet() > 0 ? counter : null);
+        LOGGER.warn("Stuck operation {} returned after {}ms: {}", operation, duration, deviceURL);
+    }
+
+    private static <T> T callDirectly(Callable<T> call) {
+        try {
+            return call.call();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new TinyBException(ex.getMessage(), ex);
+        }
+    }
+
+    private static <T> T getSilently(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TinyBException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw unwrap(ex);
+        }
+    }
+
+    private static RuntimeException unwrap(ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new TinyBException(cause.getMessage(), cause);
+    }
+
+}
@@ -0,0 +1,179 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Disposes native objects in parallel. Disposing a device makes a number of blocking native calls
+ * (disconnect, remove etc), so with many devices sequential disposal takes minutes. Objects are disposed
+ * by a bounded number of threads, objects that have not been disposed by the deadline are abandoned.
+ */
+class ParallelDisposer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelDisposer.class);
+
+    private volatile int parallelism = 8;
+    private volatile long deadline = 30000;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong disposed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private volatile long lastDuration;
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets how long (ms) a disposal can take, zero means no deadline.
+     * @param deadline deadline (ms)
+     */
+    void setDeadline(long deadline) {
+        this.deadline = Math.max(0, deadline);
+    }
+
+    /**
+     * Returns the absolute deadline (ms) of a disposal started now.
+     * @return absolute deadline or zero if there is no deadline
+     */
+    long deadlineFromNow() {
+        return deadline > 0 ? System.currentTimeMillis() + deadline : 0;
+    }
+
+    /**
+     * Disposes objects in parallel with the configured deadline.
+     * @param kind kind of objects, e.g. "device", for logging
+     * @param objects objects to dispose
+     * @param disposer disposer
+     * @param <T> type of objects
+     * @return true if all objects have been disposed before the deadline
+     */
+    <T> boolean dispose(String kind, Collection<T> objects, Consumer<T> disposer) {
+        return dispose(kind, objects, disposer, deadlineFromNow());
+    }
+
+    /**
+     * Disposes objects in parallel. Blocks until all objects are disposed or the deadline is reached.
+     * Native calls cannot be interrupted, so threads disposing abandoned objects are left to finish on their own.
+     * @param kind kind of objects, e.g. "device", for logging
+     * @param objects objects to dispose
+     * @param disposer disposer, errors are logged and ignored
+     * @param until absolute deadline (ms), zero means no deadline
+     * @param <T> type of objects
+     * @return true if all objects have been disposed before the deadline
+     */
+    <T> boolean dispose(String kind, Collection<T> objects, Consumer<T> disposer, long until) {
+        if (objects.isEmpty()) {
+            return true;
+        }
+        long started = System.currentTimeMillis();
+        int total = objects.size();
+        AtomicInteger completed = new AtomicInteger();
+        // a task is claimed either by a worker when it starts or by the caller when the deadline is reached
+        AtomicIntegerArray claimed = new AtomicIntegerArray(total);
+        List<Callable<Void>> tasks = new ArrayList<>(total);
+        for (T object : objects) {
+            int index = tasks.size();
+            tasks.add(() -> {
+                if (!claimed.compareAndSet(index, 0, 1)) {
+                    return null;
+                }
+                try {
+                    disposer.accept(object);
+                    disposed.incrementAndGet();
+                } catch (Exception ex) {
+                    failed.incrementAndGet();
+                    LOGGER.debug("Could not dispose {}: {} : {}", kind, object, ex.getMessage());
+                } finally {
+                    pending.decrementAndGet();
+                    LOGGER.trace("Disposed {} {} of {}", kind, completed.incrementAndGet(), total);
+                }
+                return null;
+            });
+        }
+        pending.addAndGet(total);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, total), runnable -> {
+            Thread thread = new Thread(runnable, "tinyb-disposal-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (until > 0) {
+                executor.invokeAll(tasks, Math.max(0, until - started), TimeUnit.MILLISECONDS);
+            } else {
+                executor.invokeAll(tasks);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < total; i++) {
+            if (claimed.compareAndSet(i, 0, 1)) {
+                pending.decrementAndGet();
+            }
+        }
+        int remaining = total - completed.get();
+        lastDuration = System.currentTimeMillis() - started;
+        if (remaining > 0) {
+            abandoned.addAndGet(remaining);
+            LOGGER.warn("Disposal deadline reached, {} of {} {}(s) have not been disposed in {} ms",
+                    remaining, total, kind, lastDuration);
+            return false;
+        }
+        LOGGER.debug("Disposed {} {}(s) in {} ms", total, kind, lastDuration);
+        return true;
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("disposal.pending", pending.get());
+        metrics.put("disposal.disposed", disposed.get());
+        metrics.put("disposal.failed", failed.get());
+        metrics.put("disposal.abandoned", abandoned.get());
+        metrics.put("disposal.lastDuration", lastDuration);
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+
+/**
+ * A primitive specialisation of RSSI notifications. If a notification passed to
+ * {@link TinyBDevice#enableRSSINotifications(Notification)} implements this interface, RSSI values are delivered
+ * through {@link #notifyRSSI(short)} without being boxed by the transport.
+ */
+@FunctionalInterface
+public interface RSSINotification extends Notification<Short> {
+
+    /**
+     * Notifies about a new RSSI value.
+     * @param rssi RSSI
+     */
+    void notifyRSSI(short rssi);
+
+    @Override
+    default void notify(Short rssi) {
+        notifyRSSI(rssi);
+    }
+
+}
@@ -0,0 +1,348 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Reconnects devices whose connections have dropped. Reconnect attempts are delayed with jittered exponential
+ * backoff and the number of concurrent reconnects is limited globally, so that reconnects of many devices
+ * do not collide. When more devices are due than allowed to reconnect, healthier devices go first. The health
+ * score of a device is based on its connect success rate and connect latency, devices with stuck calls
+ * (see {@link OperationWatchdog}) are not reconnected until the calls return.
+ * Devices that are disconnected on purpose are not reconnected.
+ */
+class ReconnectEngine {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReconnectEngine.class);
+
+    private static final double SUCCESS_WEIGHT = 0.7;
+    private static final double LATENCY_WEIGHT = 0.3;
+    // connect latency which is considered as bad as it gets
+    private static final double REFERENCE_LATENCY = 10000;
+    // smoothing factor of the exponentially weighted success rate and latency
+    private static final double ALPHA = 0.2;
+
+    private final OperationWatchdog watchdog;
+    private final Backoff backoff = new Backoff(1000, 60000);
+    private final Map<URL, DeviceState> devices = new ConcurrentHashMap<>();
+    // scores are taken when devices become due so that the queue order does not change underneath
+    private final PriorityQueue<Due> due = new PriorityQueue<>(Comparator.comparingDouble((Due entry) -> entry.score)
+            .reversed());
+    private volatile boolean enabled;
+    private volatile int maxConcurrent = 2;
+    private volatile int maxAttempts;
+    private int running;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService workers;
+
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    ReconnectEngine(OperationWatchdog watchdog) {
+        this.watchdog = watchdog;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            devices.values().forEach(state -> state.wanted = false);
+            synchronized (this) {
+                due.clear();
+            }
+        }
+    }
+
+    int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Sets how many devices can be reconnecting at the same time.
+     * @param maxConcurrent number of concurrent reconnects
+     */
+    void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        dispatch();
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets how many times a device is reconnected before giving up.
+     * @param maxAttempts number of attempts, zero means unlimited
+     */
+    void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(0, maxAttempts);
+    }
+
+    long getBaseDelay() {
+        return backoff.getBaseDelay();
+    }
+
+    long getMaxDelay() {
+        return backoff.getMaxDelay();
+    }
+
+    /**
+     * Sets backoff delays.
+     * @param baseDelay delay (ms) before the first reconnect attempt, each following attempt doubles it
+     * @param maxDelay maximum delay (ms) between attempts
+     */
+    void setDelays(long baseDelay, long maxDelay) {
+        backoff.setDelays(baseDelay, maxDelay);
+    }
+
+    /**
+     * Records a connect attempt outcome. Successfully connected devices are reconnected when their
+     * connections drop.
+     * @param url device URL
+     * @param connector connects the device
+     * @param success true if the device has been connected
+     * @param latency connect duration (ms)
+     */
+    void recordConnect(URL url, BooleanSupplier connector, boolean success, long latency) {
+        DeviceState state = devices.computeIfAbsent(url.getDeviceURL(), DeviceState::new);
+        state.record(success, latency);
+        if (success) {
+            state.connector = connector;
+            state.attempts = 0;
+            state.wanted = enabled;
+        }
+    }
+
+    /**
+     * Stops reconnecting a device, e.g. when it gets disconnected on purpose.
+     * @param url device URL
+     */
+    void cancel(URL url) {
+        DeviceState state = devices.get(url.getDeviceURL());
+        if (state != null) {
+            state.wanted = false;
+        }
+    }
+
+    /**
+     * Schedules reconnecting a device whose connection has dropped.
+     * @param url device URL
+     */
+    void dropped(URL url) {
+        DeviceState state = devices.get(url.getDeviceURL());
+        if (!enabled || state == null || !state.wanted || state.pending) {
+            return;
+        }
+        drops.incrementAndGet();
+        LOGGER.debug("Connection dropped, reconnecting: {}", state.url);
+        state.pending = true;
+        schedule(state);
+    }
+
+    /**
+     * Forgets a device.
+     * @param url device URL
+     */
+    void remove(URL url) {
+        if (devices.isEmpty()) {
+            return;
+        }
+        DeviceState state = devices.remove(url.getDeviceURL());
+        if (state != null) {
+            state.wanted = false;
+        }
+    }
+
+    /**
+     * Returns health score of a device.
+     * @param url device URL
+     * @return health score between 0 (worst) and 1 (best)
+     */
+    double getScore(URL url) {
+        DeviceState state = devices.get(url.getDeviceURL());
+        return state != null ? state.getScore() : 1.0;
+    }
+
+    synchronized void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("reconnect.devices", devices.size());
+        metrics.put("reconnect.drops", drops.get());
+        metrics.put("reconnect.attempts", attempts.get());
+        metrics.put("reconnect.reconnected", reconnects.get());
+        metrics.put("reconnect.abandoned", abandoned.get());
+        metrics.put("reconnect.due", due.size());
+        metrics.put("reconnect.running", running);
+    }
+
+    synchronized void dispose() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            workers.shutdownNow();
+            scheduler = null;
+            workers = null;
+        }
+        due.clear();
+        devices.clear();
+        running = 0;
+    }
+
+    private void schedule(DeviceState state) {
+        long delay = backoff.getDelay(state.attempts);
+        LOGGER.debug("Reconnect attempt {} in {} ms: {}", state.attempts + 1, delay, state.url);
+        getScheduler().schedule(() -> {
+            synchronized (this) {
+                due.add(new Due(state, state.getScore()));
+            }
+            dispatch();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch() {
+        synchronized (this) {
+            while (running < maxConcurrent && !due.isEmpty()) {
+                DeviceState state = due.poll().state;
+                running++;
+                getWorkers().execute(() -> {
+                    try {
+                        reconnect(state);
+                    } finally {
+                        synchronized (this) {
+                            running--;
+                        }
+                        dispatch();
+                    }
+                });
+            }
+        }
+    }
+
+    private void reconnect(DeviceState state) {
+        if (!enabled || !state.wanted) {
+            state.pending = false;
+            return;
+        }
+        boolean connected = false;
+        if (watchdog.isHealthy(state.url)) {
+            attempts.incrementAndGet();
+            try {
+                connected = state.connector.getAsBoolean();
+            } catch (Exception ex) {
+                LOGGER.debug("Reconnect attempt failed: {} : {}", state.url, ex.getMessage());
+            }
+        } else {
+            LOGGER.debug("Device has got a stuck call, postponing reconnect: {}", state.url);
+        }
+        if (connected) {
+            LOGGER.info("Device reconnected after {} attempt(s): {}", state.attempts + 1, state.url);
+            reconnects.incrementAndGet();
+            state.attempts = 0;
+            state.pending = false;
+        } else if (maxAttempts > 0 && ++state.attempts >= maxAttempts) {
+            LOGGER.warn("Giving up reconnecting device after {} attempt(s): {}", state.attempts, state.url);
+            abandoned.incrementAndGet();
+            state.pending = false;
+            state.wanted = false;
+        } else {
+            if (maxAttempts == 0) {
+                state.attempts++;
+            }
+            schedule(state);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-reconnect");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // the number of concurrent reconnects is limited by dispatching
+            workers = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-reconnect-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private synchronized ExecutorService getWorkers() {
+        getScheduler();
+        return workers;
+    }
+
+    private static final class Due {
+
+        private final DeviceState state;
+        private final double score;
+
+        private Due(DeviceState state, double score) {
+            this.state = state;
+            this.score = score;
+        }
+    }
+
+    private static final class DeviceState {
+
+        private final URL url;
+        private volatile BooleanSupplier connector;
+        private volatile boolean wanted;
+        private volatile boolean pending;
+        private volatile int attempts;
+        private double successRate = 1.0;
+        private double latency;
+
+        private DeviceState(URL url) {
+            this.url = url;
+        }
+
+        private synchronized void record(boolean success, long duration) {
+            successRate = successRate * (1 - ALPHA) + (success ? ALPHA : 0);
+            if (success) {
+                latency = latency == 0 ? duration : latency * (1 - ALPHA) + duration * ALPHA;
+            }
+        }
+
+        private synchronized double getScore() {
+            return SUCCESS_WEIGHT * successRate + LATENCY_WEIGHT * (1 - Math.min(latency / REFERENCE_LATENCY, 1));
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.Adapter;
+import org.sputnikdev.bluetooth.manager.transport.Device;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A replayed adapter. Adapters are always powered and discovering while the replay is running.
+ */
+class ReplayAdapter implements Adapter {
+
+    private final URL url;
+    private final ReplaySession session;
+    private volatile String alias;
+
+    ReplayAdapter(URL url, ReplaySession session) {
+        this.url = url;
+        this.session = session;
+    }
+
+    @Override
+    public URL getURL() {
+        return url;
+    }
+
+    @Override
+    public String getAlias() {
+        return alias;
+    }
+
+    @Override
+    public String getName() {
+        return url.getAdapterAddress();
+    }
+
+    @Override
+    public void setAlias(String alias) {
+        this.alias = alias;
+    }
+
+    @Override
+    public boolean isPowered() {
+        return true;
+    }
+
+    @Override
+    public void enablePoweredNotifications(Notification<Boolean> notification) {
+        // adapter is always powered
+    }
+
+    @Override
+    public void disablePoweredNotifications() {
+        // adapter is always powered
+    }
+
+    @Override
+    public void setPowered(boolean powered) {
+        // adapter is always powered
+    }
+
+    @Override
+    public boolean isDiscovering() {
+        return session.isRunning();
+    }
+
+    @Override
+    public void enableDiscoveringNotifications(Notification<Boolean> notification) {
+        // discovery follows the replay
+    }
+
+    @Override
+    public void disableDiscoveringNotifications() {
+        // discovery follows the replay
+    }
+
+    @Override
+    public boolean startDiscovery() {
+        return true;
+    }
+
+    @Override
+    public boolean stopDiscovery() {
+        return true;
+    }
+
+    @Override
+    public List<Device> getDevices() {
+        return session.getDevices(url).stream().map(device -> new ReplayDevice(device.getURL(), session))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,80 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+import org.sputnikdev.bluetooth.manager.transport.CharacteristicAccessType;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+
+import java.util.Set;
+
+/**
+ * A replayed characteristic. Flags are derived from recorded operations, reads and writes return recorded results.
+ */
+class ReplayCharacteristic implements Characteristic {
+
+    private final ReplaySession.CharacteristicState state;
+
+    ReplayCharacteristic(ReplaySession.CharacteristicState state) {
+        this.state = state;
+    }
+
+    @Override
+    public URL getURL() {
+        return state.getURL();
+    }
+
+    @Override
+    public Set<CharacteristicAccessType> getFlags() {
+        return state.getFlags();
+    }
+
+    @Override
+    public boolean isNotifying() {
+        return state.isNotifying();
+    }
+
+    @Override
+    public byte[] readValue() {
+        return state.read();
+    }
+
+    @Override
+    public void enableValueNotifications(Notification<byte[]> notification) {
+        state.setNotification(notification);
+    }
+
+    @Override
+    public void disableValueNotifications() {
+        state.setNotification(null);
+    }
+
+    @Override
+    public boolean writeValue(byte[] bytes) {
+        return state.write();
+    }
+
+    @Override
+    public boolean isNotificationConfigurable() {
+        return state.getFlags().contains(CharacteristicAccessType.NOTIFY);
+    }
+}
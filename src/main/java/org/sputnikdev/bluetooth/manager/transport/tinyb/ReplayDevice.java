@@ -0,0 +1,203 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.BluetoothAddressType;
+import org.sputnikdev.bluetooth.manager.transport.Device;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+import org.sputnikdev.bluetooth.manager.transport.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * A replayed device. Its state and notifications follow the replayed timeline, connection requests of consumers
+ * are accepted for devices which have been discovered.
+ */
+class ReplayDevice implements Device {
+
+    private final URL url;
+    private final ReplaySession session;
+    private final ReplaySession.DeviceState state;
+
+    ReplayDevice(URL url, ReplaySession session) {
+        this.url = url;
+        this.session = session;
+        this.state = session.getDevice(url);
+    }
+
+    @Override
+    public URL getURL() {
+        return url;
+    }
+
+    @Override
+    public int getBluetoothClass() {
+        return state.getBluetoothClass();
+    }
+
+    @Override
+    public boolean disconnect() {
+        return state.setConnected(false);
+    }
+
+    @Override
+    public boolean connect() {
+        return state.setConnected(true);
+    }
+
+    @Override
+    public String getName() {
+        return state.getName();
+    }
+
+    @Override
+    public String getAlias() {
+        return state.getAlias();
+    }
+
+    @Override
+    public void setAlias(String alias) {
+        state.setAlias(alias);
+    }
+
+    @Override
+    public boolean isBlocked() {
+        return state.isBlocked();
+    }
+
+    @Override
+    public boolean isBleEnabled() {
+        return state.getBluetoothClass() == 0;
+    }
+
+    @Override
+    public void enableBlockedNotifications(Notification<Boolean> notification) {
+        state.setBlockedNotification(notification);
+    }
+
+    @Override
+    public void disableBlockedNotifications() {
+        state.setBlockedNotification(null);
+    }
+
+    @Override
+    public void setBlocked(boolean blocked) {
+        state.setBlocked(blocked);
+    }
+
+    @Override
+    public short getRSSI() {
+        return state.getRSSI();
+    }
+
+    @Override
+    public short getTxPower() {
+        return 0;
+    }
+
+    @Override
+    public void enableRSSINotifications(Notification<Short> notification) {
+        state.setRSSINotification(notification);
+    }
+
+    @Override
+    public void disableRSSINotifications() {
+        state.setRSSINotification(null);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return state.isConnected();
+    }
+
+    @Override
+    public void enableConnectedNotifications(Notification<Boolean> notification) {
+        state.setConnectedNotification(notification);
+    }
+
+    @Override
+    public void disableConnectedNotifications() {
+        state.setConnectedNotification(null);
+    }
+
+    @Override
+    public boolean isServicesResolved() {
+        return state.isConnected();
+    }
+
+    @Override
+    public void enableServicesResolvedNotifications(Notification<Boolean> notification) {
+        state.setServicesResolvedNotification(notification);
+    }
+
+    @Override
+    public void disableServicesResolvedNotifications() {
+        state.setServicesResolvedNotification(null);
+    }
+
+    @Override
+    public List<Service> getServices() {
+        if (!state.isConnected()) {
+            return Collections.emptyList();
+        }
+        return session.getServices(url).keySet().stream().map(service -> new ReplayService(service, session))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, byte[]> getServiceData() {
+        return state.getServiceData();
+    }
+
+    @Override
+    public Map<Short, byte[]> getManufacturerData() {
+        return state.getManufacturerData();
+    }
+
+    @Override
+    public BluetoothAddressType getAddressType() {
+        return BluetoothAddressType.UNKNOWN;
+    }
+
+    @Override
+    public void enableServiceDataNotifications(Notification<Map<String, byte[]>> notification) {
+        state.setServiceDataNotification(notification);
+    }
+
+    @Override
+    public void disableServiceDataNotifications() {
+        state.setServiceDataNotification(null);
+    }
+
+    @Override
+    public void enableManufacturerDataNotifications(Notification<Map<Short, byte[]>> notification) {
+        state.setManufacturerDataNotification(notification);
+    }
+
+    @Override
+    public void disableManufacturerDataNotifications() {
+        state.setManufacturerDataNotification(null);
+    }
+}
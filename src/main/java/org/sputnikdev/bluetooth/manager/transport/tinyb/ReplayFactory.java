@@ -0,0 +1,183 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.DiscoveredAdapter;
+import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
+import org.sputnikdev.bluetooth.manager.transport.Adapter;
+import org.sputnikdev.bluetooth.manager.transport.BluetoothObjectFactory;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+import org.sputnikdev.bluetooth.manager.transport.Device;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A Bluetooth Manager Transport implementation which replays a session recorded by {@link TinyBFactory} (see
+ * {@link TinyBFactory#CAPTURE_DIRECTORY}) without any Bluetooth hardware. Discovery results, notifications and
+ * read/write results are replayed in real time, at a multiple of real time or as fast as possible. The factory
+ * serves the same protocol and URLs as {@link TinyBFactory}, so that it can be used in its place, e.g. to
+ * benchmark consumers against real traffic patterns.
+ */
+public class ReplayFactory implements BluetoothObjectFactory {
+
+    public static final String REPLAY_DIRECTORY = "replayDirectory";
+    public static final String REPLAY_SPEED = "replaySpeed";
+    public static final String REPLAY_LOOP = "replayLoop";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayFactory.class);
+
+    private volatile ReplaySession session = new ReplaySession(Collections.emptyList());
+
+    public ReplayFactory() { }
+
+    /**
+     * Creates a factory replaying a capture directory.
+     * @param directory capture directory
+     * @throws IOException if the recorded session cannot be read
+     */
+    public ReplayFactory(Path directory) throws IOException {
+        load(directory);
+    }
+
+    /**
+     * Loads a recorded session, the current replay (if any) gets stopped.
+     * @param directory capture directory
+     * @throws IOException if the recorded session cannot be read
+     */
+    public synchronized void load(Path directory) throws IOException {
+        ReplaySession loaded = ReplaySession.load(directory);
+        loaded.setSpeed(session.getSpeed());
+        loaded.setLoop(session.isLoop());
+        session.stop();
+        session = loaded;
+    }
+
+    /**
+     * Starts replaying the recorded session.
+     */
+    public void start() {
+        session.start();
+    }
+
+    /**
+     * Stops replaying the recorded session.
+     */
+    public void stop() {
+        session.stop();
+    }
+
+    /**
+     * Waits until the recorded session is replayed.
+     * @param timeout timeout (ms)
+     * @return true if the session has been replayed (or stopped), false if the timeout has elapsed
+     * @throws InterruptedException if interrupted
+     */
+    public boolean awaitCompletion(long timeout) throws InterruptedException {
+        return session.await(timeout);
+    }
+
+    @Override
+    public Adapter getAdapter(URL url) {
+        ReplaySession current = session;
+        return current.getAdapters().contains(url.getAdapterURL())
+                ? new ReplayAdapter(url.getAdapterURL(), current) : null;
+    }
+
+    @Override
+    public Device getDevice(URL url) {
+        ReplaySession current = session;
+        return current.getDevice(url) != null ? new ReplayDevice(url.getDeviceURL(), current) : null;
+    }
+
+    @Override
+    public Characteristic getCharacteristic(URL url) {
+        ReplaySession.CharacteristicState state = session.getCharacteristic(url.getCharacteristicURL());
+        return state != null ? new ReplayCharacteristic(state) : null;
+    }
+
+    @Override
+    public Set<DiscoveredAdapter> getDiscoveredAdapters() {
+        return session.getDiscoveredAdapters();
+    }
+
+    @Override
+    public Set<DiscoveredDevice> getDiscoveredDevices() {
+        return session.getDiscoveredDevices();
+    }
+
+    @Override
+    public String getProtocolName() {
+        return TinyBFactory.TINYB_PROTOCOL_NAME;
+    }
+
+    /**
+     * Configures the replay. Supported properties:
+     * <ul>
+     *     <li>{@link #REPLAY_DIRECTORY} - a capture directory to replay</li>
+     *     <li>{@link #REPLAY_SPEED} - replay speed: 1 - real time, 2 - twice as fast etc., 0 - as fast as
+     *     possible</li>
+     *     <li>{@link #REPLAY_LOOP} - whether the session is replayed again once it is finished</li>
+     * </ul>
+     * @param config configuration
+     */
+    @Override
+    public void configure(Map<String, Object> config) {
+        if (config.containsKey(REPLAY_DIRECTORY)) {
+            Path directory = Paths.get(config.get(REPLAY_DIRECTORY).toString().trim());
+            try {
+                load(directory);
+            } catch (IOException ex) {
+                LOGGER.warn("Could not load recorded session: {} : {}", directory, ex.getMessage());
+            }
+        }
+        Object speed = config.get(REPLAY_SPEED);
+        if (speed != null) {
+            session.setSpeed(speed instanceof Number
+                    ? ((Number) speed).doubleValue() : Double.parseDouble(speed.toString().trim()));
+        }
+        session.setLoop(TinyBFactory.getBoolean(config, REPLAY_LOOP, session.isLoop()));
+    }
+
+    @Override
+    public void dispose(URL url) {
+        session.dispose(url);
+    }
+
+    /**
+     * Returns a snapshot of replay metrics.
+     * @return metrics
+     */
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new TreeMap<>();
+        session.reportMetrics(metrics);
+        return metrics;
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+import org.sputnikdev.bluetooth.manager.transport.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A replayed service, it contains characteristics which have been recorded.
+ */
+class ReplayService implements Service {
+
+    private final URL url;
+    private final ReplaySession session;
+
+    ReplayService(URL url, ReplaySession session) {
+        this.url = url;
+        this.session = session;
+    }
+
+    @Override
+    public URL getURL() {
+        return url;
+    }
+
+    @Override
+    public List<Characteristic> getCharacteristics() {
+        return session.getServices(url).getOrDefault(url, Collections.emptyList()).stream()
+                .map(characteristic -> new ReplayCharacteristic(session.getCharacteristic(characteristic)))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,526 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.DiscoveredAdapter;
+import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
+import org.sputnikdev.bluetooth.manager.transport.CharacteristicAccessType;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Replays records of a capture log (see {@link CaptureLog}) in timestamp order. The session maintains the state
+ * of recorded devices and characteristics (discovery results, RSSI, advertisement data, connection status, values
+ * and read/write results) as the timeline progresses and delivers notifications to subscribers on the replay
+ * thread, so that the order of delivered notifications is the same for every run.
+ *
+ * <p>The timeline is replayed in real time, faster/slower with a speed factor, or as fast as possible if the speed
+ * is not positive.
+ */
+class ReplaySession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplaySession.class);
+
+    private final List<CaptureLog.Record> records;
+    private final Map<URL, DeviceState> devices = new ConcurrentHashMap<>();
+    private final Map<URL, CharacteristicState> characteristics = new ConcurrentHashMap<>();
+    private final CountDownLatch completion = new CountDownLatch(1);
+    private volatile double speed = 1;
+    private volatile boolean loop;
+    private Thread thread;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+
+    ReplaySession(List<CaptureLog.Record> records) {
+        List<CaptureLog.Record> sorted = new ArrayList<>(records);
+        // stable sort, records of the same millisecond keep the capture order
+        sorted.sort(Comparator.comparingLong(CaptureLog.Record::getTimestamp));
+        this.records = Collections.unmodifiableList(sorted);
+        for (CaptureLog.Record record : this.records) {
+            URL url = record.getURL();
+            if (url.getDeviceAddress() == null) {
+                continue;
+            }
+            devices.computeIfAbsent(url.getDeviceURL(), DeviceState::new);
+            CaptureLog.Kind kind = record.getKind();
+            if (kind == CaptureLog.Kind.VALUE || kind == CaptureLog.Kind.READ || kind == CaptureLog.Kind.WRITE) {
+                CharacteristicState characteristic = characteristics.computeIfAbsent(url, CharacteristicState::new);
+                characteristic.flags.add(getAccessType(kind));
+                if (kind == CaptureLog.Kind.READ && characteristic.read == null) {
+                    // reads issued before the first recorded one get its result
+                    characteristic.read = record.getPayload();
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads all segments of a capture directory.
+     * @param directory capture directory
+     * @return replay session
+     * @throws IOException if segments cannot be read
+     */
+    static ReplaySession load(Path directory) throws IOException {
+        List<CaptureLog.Record> records = new ArrayList<>();
+        for (Path segment : CaptureLog.list(directory)) {
+            records.addAll(CaptureLog.read(segment));
+        }
+        LOGGER.debug("Loaded {} records for replay: {}", records.size(), directory);
+        return new ReplaySession(records);
+    }
+
+    double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Sets replay speed: 1 - real time, 2 - twice as fast etc., not positive - as fast as possible.
+     * @param speed speed factor
+     */
+    void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    boolean isLoop() {
+        return loop;
+    }
+
+    void setLoop(boolean loop) {
+        this.loop = loop;
+    }
+
+    int size() {
+        return records.size();
+    }
+
+    synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "tinyb-replay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    boolean isRunning() {
+        return thread != null && completion.getCount() > 0;
+    }
+
+    /**
+     * Waits until the timeline is replayed.
+     * @param timeout timeout (ms)
+     * @return true if the timeline has been replayed
+     * @throws InterruptedException if interrupted
+     */
+    boolean await(long timeout) throws InterruptedException {
+        return completion.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        } else {
+            completion.countDown();
+        }
+    }
+
+    Set<DiscoveredAdapter> getDiscoveredAdapters() {
+        return getAdapters().stream().map(url -> new DiscoveredAdapter(url, url.getAdapterAddress(), null))
+                .collect(Collectors.toSet());
+    }
+
+    Set<DiscoveredDevice> getDiscoveredDevices() {
+        return devices.values().stream().filter(device -> device.discovered)
+                .map(DeviceState::toDiscoveredDevice).collect(Collectors.toSet());
+    }
+
+    Set<URL> getAdapters() {
+        return devices.keySet().stream().map(URL::getAdapterURL).collect(Collectors.toSet());
+    }
+
+    DeviceState getDevice(URL url) {
+        return devices.get(url.getDeviceURL());
+    }
+
+    List<DeviceState> getDevices(URL adapter) {
+        return devices.values().stream().filter(device -> device.discovered
+                && device.url.getAdapterURL().equals(adapter.getAdapterURL())).collect(Collectors.toList());
+    }
+
+    CharacteristicState getCharacteristic(URL url) {
+        return characteristics.get(url);
+    }
+
+    /**
+     * Returns recorded characteristics of a device grouped by service URLs.
+     * @param device device URL
+     * @return characteristic URLs grouped by service URLs
+     */
+    Map<URL, List<URL>> getServices(URL device) {
+        URL deviceURL = device.getDeviceURL();
+        return characteristics.keySet().stream().filter(url -> url.getDeviceURL().equals(deviceURL))
+                .collect(Collectors.groupingBy(URL::getServiceURL));
+    }
+
+    /**
+     * Unsubscribes all notifications of objects under a URL.
+     * @param url adapter, device or characteristic URL
+     */
+    void dispose(URL url) {
+        devices.values().stream().filter(device -> isDescendant(url, device.url)).forEach(DeviceState::clear);
+        characteristics.values().stream().filter(characteristic -> isDescendant(url, characteristic.url))
+                .forEach(characteristic -> characteristic.notification = null);
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("replay.records", records.size());
+        metrics.put("replay.dispatched", dispatched.get());
+        metrics.put("replay.errors", errors.get());
+        metrics.put("replay.maxLag", maxLag.get());
+    }
+
+    private void run() {
+        try {
+            do {
+                replay();
+            } while (loop && !records.isEmpty() && !Thread.currentThread().isInterrupted());
+        } catch (InterruptedException ex) {
+            LOGGER.debug("Replay has been stopped");
+        } finally {
+            completion.countDown();
+        }
+    }
+
+    private void replay() throws InterruptedException {
+        if (records.isEmpty()) {
+            return;
+        }
+        long origin = records.get(0).getTimestamp();
+        long started = System.nanoTime();
+        for (CaptureLog.Record record : records) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            double factor = speed;
+            if (factor > 0) {
+                long due = started + (long) ((record.getTimestamp() - origin) * 1000000 / factor);
+                long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } else {
+                    long lag = TimeUnit.NANOSECONDS.toMillis(-delay);
+                    maxLag.accumulateAndGet(lag, Math::max);
+                }
+            }
+            dispatch(record);
+            dispatched.incrementAndGet();
+        }
+    }
+
+    private void dispatch(CaptureLog.Record record) {
+        URL url = record.getURL();
+        DeviceState device = url.getDeviceAddress() != null ? devices.get(url.getDeviceURL()) : null;
+        if (device == null) {
+            return;
+        }
+        device.discovered = true;
+        byte[] payload = record.getPayload();
+        switch (record.getKind()) {
+            case VALUE:
+                CharacteristicState characteristic = characteristics.get(url);
+                characteristic.value = payload;
+                notify(characteristic.notification, payload);
+                break;
+            case READ:
+                characteristics.get(url).read = payload;
+                break;
+            case WRITE:
+                characteristics.get(url).written = payload[0] != 0;
+                break;
+            case RSSI:
+                short rssi = ByteBuffer.wrap(payload).getShort();
+                device.rssi = rssi;
+                notify(device.rssiNotification, rssi);
+                break;
+            case CONNECTED:
+                boolean connected = payload[0] != 0;
+                device.connected = connected;
+                notify(device.connectedNotification, connected);
+                notify(device.servicesResolvedNotification, connected);
+                break;
+            case SERVICE_DATA:
+                String service = url.getServiceUUID();
+                device.serviceData.put(service, payload);
+                notify(device.serviceDataNotification, Collections.singletonMap(service, payload));
+                break;
+            case MANUFACTURER_DATA:
+                short manufacturer = ByteBuffer.wrap(payload).getShort();
+                byte[] data = Arrays.copyOfRange(payload, 2, payload.length);
+                device.manufacturerData.put(manufacturer, data);
+                notify(device.manufacturerDataNotification, Collections.singletonMap(manufacturer, data));
+                break;
+            case DISCOVERED:
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                device.rssi = buffer.getShort();
+                device.bluetoothClass = buffer.getInt();
+                device.name = getString(buffer);
+                device.alias = getString(buffer);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private <T> void notify(Notification<T> notification, T value) {
+        if (notification != null) {
+            try {
+                notification.notify(value);
+            } catch (Exception ex) {
+                errors.incrementAndGet();
+                LOGGER.warn("Replay notification execution error", ex);
+            }
+        }
+    }
+
+    private static CharacteristicAccessType getAccessType(CaptureLog.Kind kind) {
+        switch (kind) {
+            case VALUE:
+                return CharacteristicAccessType.NOTIFY;
+            case READ:
+                return CharacteristicAccessType.READ;
+            default:
+                return CharacteristicAccessType.WRITE;
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getShort()];
+        buffer.get(value);
+        return value.length > 0 ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    private static boolean isDescendant(URL parent, URL url) {
+        return url.toString().startsWith(parent.toString());
+    }
+
+    /**
+     * Replayed state of a device.
+     */
+    static final class DeviceState {
+
+        private final URL url;
+        private volatile boolean discovered;
+        private volatile String name;
+        private volatile String alias;
+        private volatile short rssi;
+        private volatile int bluetoothClass;
+        private volatile boolean connected;
+        private volatile boolean blocked;
+        private final Map<String, byte[]> serviceData = new ConcurrentHashMap<>();
+        private final Map<Short, byte[]> manufacturerData = new ConcurrentHashMap<>();
+
+        private volatile Notification<Short> rssiNotification;
+        private volatile Notification<Boolean> connectedNotification;
+        private volatile Notification<Boolean> servicesResolvedNotification;
+        private volatile Notification<Boolean> blockedNotification;
+        private volatile Notification<Map<String, byte[]>> serviceDataNotification;
+        private volatile Notification<Map<Short, byte[]>> manufacturerDataNotification;
+
+        private DeviceState(URL url) {
+            this.url = url;
+        }
+
+        URL getURL() {
+            return url;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getAlias() {
+            return alias;
+        }
+
+        void setAlias(String alias) {
+            this.alias = alias;
+        }
+
+        short getRSSI() {
+            return rssi;
+        }
+
+        int getBluetoothClass() {
+            return bluetoothClass;
+        }
+
+        boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * Changes connection status as requested by a consumer, the change is delivered to subscribers.
+         * @param connected connection status
+         * @return true if the device has been discovered by the replay
+         */
+        boolean setConnected(boolean connected) {
+            if (!discovered) {
+                return false;
+            }
+            this.connected = connected;
+            Notification<Boolean> notification = connectedNotification;
+            if (notification != null) {
+                notification.notify(connected);
+            }
+            return true;
+        }
+
+        boolean isBlocked() {
+            return blocked;
+        }
+
+        void setBlocked(boolean blocked) {
+            this.blocked = blocked;
+            Notification<Boolean> notification = blockedNotification;
+            if (notification != null) {
+                notification.notify(blocked);
+            }
+        }
+
+        Map<String, byte[]> getServiceData() {
+            return Collections.unmodifiableMap(serviceData);
+        }
+
+        Map<Short, byte[]> getManufacturerData() {
+            return Collections.unmodifiableMap(manufacturerData);
+        }
+
+        void setRSSINotification(Notification<Short> notification) {
+            rssiNotification = notification;
+        }
+
+        void setConnectedNotification(Notification<Boolean> notification) {
+            connectedNotification = notification;
+        }
+
+        void setServicesResolvedNotification(Notification<Boolean> notification) {
+            servicesResolvedNotification = notification;
+        }
+
+        void setBlockedNotification(Notification<Boolean> notification) {
+            blockedNotification = notification;
+        }
+
+        void setServiceDataNotification(Notification<Map<String, byte[]>> notification) {
+            serviceDataNotification = notification;
+        }
+
+        void setManufacturerDataNotification(Notification<Map<Short, byte[]>> notification) {
+            manufacturerDataNotification = notification;
+        }
+
+        private void clear() {
+            rssiNotification = null;
+            connectedNotification = null;
+            servicesResolvedNotification = null;
+            blockedNotification = null;
+            serviceDataNotification = null;
+            manufacturerDataNotification = null;
+        }
+
+        private DiscoveredDevice toDiscoveredDevice() {
+            return new DiscoveredDevice(url, name, alias, rssi, bluetoothClass, bluetoothClass == 0);
+        }
+    }
+
+    /**
+     * Replayed state of a characteristic.
+     */
+    static final class CharacteristicState {
+
+        private final URL url;
+        private final Set<CharacteristicAccessType> flags = EnumSet.noneOf(CharacteristicAccessType.class);
+        private volatile byte[] value;
+        private volatile byte[] read;
+        private volatile boolean written = true;
+        private volatile Notification<byte[]> notification;
+
+        private CharacteristicState(URL url) {
+            this.url = url;
+        }
+
+        URL getURL() {
+            return url;
+        }
+
+        Set<CharacteristicAccessType> getFlags() {
+            return Collections.unmodifiableSet(flags);
+        }
+
+        /**
+         * Returns the most recent read result reached by the replay (or the first recorded one if none has been
+         * reached yet), or the most recent notified value if no reads have been recorded.
+         * @return value
+         */
+        byte[] read() {
+            byte[] result = read != null ? read : value;
+            return result != null ? result : new byte[0];
+        }
+
+        /**
+         * Returns the most recent write result reached by the replay.
+         * @return write result
+         */
+        boolean write() {
+            return written;
+        }
+
+        boolean isNotifying() {
+            return notification != null;
+        }
+
+        void setNotification(Notification<byte[]> notification) {
+            this.notification = notification;
+        }
+    }
+
+}
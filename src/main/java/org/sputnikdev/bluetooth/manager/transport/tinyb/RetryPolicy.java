@@ -0,0 +1,226 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A retry policy engine for transient Bluez errors. Errors are classified by their messages,
+ * each classification has its own number of retry attempts. Attempts are separated by an exponential backoff
+ * delay with jitter. Writes are not retried unless write retries are explicitly enabled, because a write
+ * that has reached the device before failing would apply a non-idempotent command twice.
+ */
+class RetryPolicy {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /**
+     * Error classification.
+     */
+    enum ErrorType {
+        IO_ERROR(true, "Input/output error"),
+        IN_PROGRESS(true, "Operation already in progress", "org.bluez.Error.InProgress"),
+        CONNECTION_ABORTED(true, "Software caused connection abort"),
+        NOT_READY(true, "org.bluez.Error.NotReady", "Resource Not Ready"),
+        TIMEOUT(false),
+        UNKNOWN(false);
+
+        private final boolean transientError;
+        private final String[] patterns;
+
+        ErrorType(boolean transientError, String... patterns) {
+            this.transientError = transientError;
+            this.patterns = patterns;
+        }
+
+        boolean isTransient() {
+            return transientError;
+        }
+
+        static ErrorType classify(Throwable error) {
+            if (error instanceof TinyBTimeoutException) {
+                return TIMEOUT;
+            }
+            String message = error.getMessage();
+            if (message != null) {
+                for (ErrorType type : values()) {
+                    for (String pattern : type.patterns) {
+                        if (message.contains(pattern)) {
+                            return type;
+                        }
+                    }
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    private final Map<ErrorType, Integer> attempts = new EnumMap<>(ErrorType.class);
+    private final Map<ErrorType, AtomicLong> retries = new EnumMap<>(ErrorType.class);
+    private final Map<ErrorType, AtomicLong> recovered = new EnumMap<>(ErrorType.class);
+    private final Map<ErrorType, AtomicLong> exhausted = new EnumMap<>(ErrorType.class);
+    private final Backoff backoff = new Backoff(100, 2000);
+    private volatile boolean retryWrites;
+
+    RetryPolicy() {
+        for (ErrorType type : ErrorType.values()) {
+            attempts.put(type, 0);
+            retries.put(type, new AtomicLong());
+            recovered.put(type, new AtomicLong());
+            exhausted.put(type, new AtomicLong());
+        }
+    }
+
+    /**
+     * Sets number of retry attempts for all transient error types.
+     * @param retryAttempts number of retry attempts, zero disables retrying
+     */
+    void setAttempts(int retryAttempts) {
+        for (ErrorType type : ErrorType.values()) {
+            if (type.isTransient()) {
+                setAttempts(type, retryAttempts);
+            }
+        }
+    }
+
+    synchronized void setAttempts(ErrorType type, int retryAttempts) {
+        attempts.put(type, Math.max(0, retryAttempts));
+    }
+
+    synchronized int getAttempts(ErrorType type) {
+        return attempts.get(type);
+    }
+
+    /**
+     * Sets backoff delays.
+     * @param baseDelay delay (ms) before the first retry, each following retry doubles it
+     * @param maxDelay maximum delay (ms) between retries
+     */
+    void setDelays(long baseDelay, long maxDelay) {
+        backoff.setDelays(baseDelay, maxDelay);
+    }
+
+    long getBaseDelay() {
+        return backoff.getBaseDelay();
+    }
+
+    long getMaxDelay() {
+        return backoff.getMaxDelay();
+    }
+
+    boolean isRetryWrites() {
+        return retryWrites;
+    }
+
+    void setRetryWrites(boolean retryWrites) {
+        this.retryWrites = retryWrites;
+    }
+
+    long getRetries(ErrorType type) {
+        return retries.get(type).get();
+    }
+
+    long getRecovered(ErrorType type) {
+        return recovered.get(type).get();
+    }
+
+    long getExhausted(ErrorType type) {
+        return exhausted.get(type).get();
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        for (ErrorType type : ErrorType.values()) {
+            String prefix = "retry." + type.name().toLowerCase() + ".";
+            metrics.put(prefix + "retries", getRetries(type));
+            metrics.put(prefix + "recovered", getRecovered(type));
+            metrics.put(prefix + "exhausted", getExhausted(type));
+        }
+    }
+
+    /**
+     * Executes a write call, it is retried only if write retries are enabled.
+     * @param url URL of the object the call is made against
+     * @param call call to be executed
+     * @param <T> result type
+     * @return result of the call
+     */
+    <T> T executeWrite(URL url, Callable<T> call) {
+        return execute("write", url, retryWrites, call);
+    }
+
+    /**
+     * Executes a call, retries it if it fails with an error which is allowed to be retried.
+     * @param operation operation name (for logging purposes)
+     * @param url URL of the object the call is made against
+     * @param call call to be executed
+     * @param <T> result type
+     * @return result of the call
+     */
+    <T> T execute(String operation, URL url, Callable<T> call) {
+        return execute(operation, url, true, call);
+    }
+
+    private <T> T execute(String operation, URL url, boolean retry, Callable<T> call) {
+        ErrorType lastError = null;
+        int attempt = 0;
+        while (true) {
+            try {
+                T result = call.call();
+                if (lastError != null) {
+                    recovered.get(lastError).incrementAndGet();
+                    LOGGER.debug("Operation {} succeeded after {} retries: {}", operation, attempt, url);
+                }
+                return result;
+            } catch (Exception ex) {
+                ErrorType type = ErrorType.classify(ex);
+                if (!retry || attempt >= getAttempts(type)) {
+                    if (attempt > 0) {
+                        exhausted.get(type).incrementAndGet();
+                    }
+                    throw ex instanceof RuntimeException
+                            ? (RuntimeException) ex : new TinyBException(ex.getMessage(), ex);
+                }
+                retries.get(type).incrementAndGet();
+                lastError = type;
+                long delay = backoff.getDelay(attempt++);
+                LOGGER.debug("Operation {} failed ({}), retrying in {}ms: {}", operation, type, delay, url);
+                sleep(delay);
+            }
+        }
+    }
+
+    private static void sleep(long delay) {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TinyBException("Interrupted while waiting for a retry", ex);
+        }
+    }
+
+}
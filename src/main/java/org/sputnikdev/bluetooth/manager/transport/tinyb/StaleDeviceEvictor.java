@@ -0,0 +1,169 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothDevice;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Evicts devices that have not been seen (advertised) for a configured amount of time, so that devices which are
+ * no longer in range do not pile up in Bluez and in the {@link DeviceRegistry}. Each registered device has a
+ * timeout in a {@link TimerWheel} set to its last seen time plus the stale timeout. Timeouts are not moved on
+ * every advertisement, instead an expired timeout checks the last seen time and reschedules itself if the device
+ * has been seen since. Connected devices are never evicted.
+ */
+class StaleDeviceEvictor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StaleDeviceEvictor.class);
+
+    private final DeviceRegistry registry;
+    private final BiConsumer<URL, BluetoothDevice> disposer;
+    private final Map<DeviceKey, TimerWheel.Timeout> timeouts = new ConcurrentHashMap<>();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long staleTimeout;
+    private TimerWheel wheel;
+    private ExecutorService executor;
+
+    /**
+     * Creates an evictor.
+     * @param registry device registry
+     * @param disposer disposes (removes) native devices, takes device URL and native device
+     */
+    StaleDeviceEvictor(DeviceRegistry registry, BiConsumer<URL, BluetoothDevice> disposer) {
+        this.registry = registry;
+        this.disposer = disposer;
+        registry.setRegistrationListener(this::track);
+    }
+
+    long getStaleTimeout() {
+        return staleTimeout;
+    }
+
+    /**
+     * Sets the stale timeout.
+     * @param staleTimeout time (ms) after which devices that have not been seen get evicted, zero disables eviction
+     */
+    void setStaleTimeout(long staleTimeout) {
+        long previous = this.staleTimeout;
+        this.staleTimeout = staleTimeout;
+        if (staleTimeout > 0 && previous <= 0) {
+            registry.getLeastRecentlySeen().forEach(this::track);
+        } else if (staleTimeout <= 0 && previous > 0) {
+            timeouts.values().forEach(TimerWheel.Timeout::cancel);
+            timeouts.clear();
+        }
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("eviction.evicted", evictions.get());
+        metrics.put("eviction.tracked", timeouts.size());
+        metrics.put("eviction.live", registry.size());
+    }
+
+    synchronized void dispose() {
+        if (wheel != null) {
+            wheel.stop();
+            wheel = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        timeouts.clear();
+    }
+
+    private void track(DeviceRegistry.Entry entry) {
+        long timeout = staleTimeout;
+        if (timeout > 0) {
+            schedule(entry, timeout - (System.currentTimeMillis() - entry.getLastSeen()));
+        }
+    }
+
+    private synchronized void schedule(DeviceRegistry.Entry entry, long delay) {
+        if (wheel == null) {
+            wheel = new TimerWheel("tinyb-eviction", 1000, 512);
+        }
+        TimerWheel.Timeout previous = timeouts.put(entry.getKey(), wheel.schedule(() -> check(entry),
+                Math.max(0, delay)));
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+
+    // runs on the wheel thread
+    private void check(DeviceRegistry.Entry entry) {
+        long timeout = staleTimeout;
+        if (timeout <= 0 || registry.getEntry(entry.getKey()) != entry) {
+            timeouts.remove(entry.getKey());
+            return;
+        }
+        long idle = System.currentTimeMillis() - entry.getLastSeen();
+        if (entry.isConnected()) {
+            schedule(entry, timeout);
+        } else if (idle < timeout) {
+            schedule(entry, timeout - idle);
+        } else {
+            timeouts.remove(entry.getKey());
+            submit(() -> evict(entry));
+        }
+    }
+
+    private void evict(DeviceRegistry.Entry entry) {
+        long timeout = staleTimeout;
+        if (registry.getEntry(entry.getKey()) != entry) {
+            return;
+        }
+        if (timeout <= 0 || entry.isConnected() || System.currentTimeMillis() - entry.getLastSeen() < timeout) {
+            // the device has been seen or connected in the meantime
+            track(entry);
+            return;
+        }
+        LOGGER.debug("Evicting stale device: {}", entry.getURL());
+        registry.unregister(entry.getKey());
+        try {
+            disposer.accept(entry.getURL(), entry.getDevice());
+        } catch (Exception ex) {
+            LOGGER.warn("Could not dispose stale device: {} : {}", entry.getURL(), ex.getMessage());
+        }
+        evictions.incrementAndGet();
+    }
+
+    private synchronized void submit(Runnable task) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-eviction-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        executor.submit(task);
+    }
+
+}
@@ -0,0 +1,306 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattService;
+import tinyb.BluetoothNotification;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers value notification subscriptions of devices and restores them in one go when a device reconnects and
+ * its services get resolved, characteristics are subscribed in parallel. Native notifications are enabled with
+ * a callback owned by this class that delegates to the most recent subscriber, so that when the upper layer
+ * re-enables a notification that has already been restored, no native call is made.
+ */
+class SubscriptionRestorer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionRestorer.class);
+    private static final long RESOLUTION_CHECK_PERIOD = 250;
+
+    private final Map<DeviceKey, DeviceSubscriptions> devices = new ConcurrentHashMap<>();
+    private volatile boolean enabled;
+    private volatile int parallelism = 4;
+    private volatile long resolutionTimeout = 10000;
+    private ScheduledExecutorService executor;
+
+    private final AtomicLong restores = new AtomicLong();
+    private final AtomicLong restoreTime = new AtomicLong();
+    private final AtomicLong restored = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            devices.clear();
+        }
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets how many characteristics are subscribed at the same time. Changes take effect once the restorer
+     * is idle (disposed).
+     * @param parallelism number of threads
+     */
+    void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    long getResolutionTimeout() {
+        return resolutionTimeout;
+    }
+
+    /**
+     * Sets how long (ms) to wait for services to get resolved after a device reconnects.
+     * @param resolutionTimeout timeout (ms)
+     */
+    void setResolutionTimeout(long resolutionTimeout) {
+        this.resolutionTimeout = resolutionTimeout;
+    }
+
+    /**
+     * Subscribes to value notifications of a characteristic and remembers the subscription.
+     * @param url characteristic URL
+     * @param characteristic native characteristic
+     * @param callback callback
+     * @return true if the subscription is managed by the restorer, false if the restorer is disabled
+     */
+    boolean subscribe(URL url, BluetoothGattCharacteristic characteristic, BluetoothNotification<byte[]> callback) {
+        if (!enabled) {
+            return false;
+        }
+        DeviceSubscriptions state = devices.computeIfAbsent(DeviceKey.of(url), key -> new DeviceSubscriptions());
+        Subscription subscription = state.subscriptions.computeIfAbsent(getKey(url.getServiceUUID(),
+                url.getCharacteristicUUID()), key -> new Subscription(url.getCharacteristicURL()));
+        subscription.callback = callback;
+        synchronized (subscription) {
+            int generation = state.generation.get();
+            if (subscription.generation == generation) {
+                // already restored within the current connection
+                skipped.incrementAndGet();
+                return true;
+            }
+            characteristic.enableValueNotifications(subscription);
+            subscription.generation = generation;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets a subscription.
+     * @param url characteristic URL
+     */
+    void unsubscribe(URL url) {
+        DeviceSubscriptions state = devices.get(DeviceKey.of(url));
+        if (state != null) {
+            state.subscriptions.remove(getKey(url.getServiceUUID(), url.getCharacteristicUUID()));
+        }
+    }
+
+    /**
+     * Marks native subscriptions of a device as lost.
+     * @param url device URL
+     */
+    void disconnected(URL url) {
+        DeviceSubscriptions state = devices.get(DeviceKey.of(url));
+        if (state != null) {
+            state.generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Restores subscriptions of a device once its services get resolved.
+     * @param url device URL
+     * @param device native device
+     */
+    void connected(URL url, BluetoothDevice device) {
+        DeviceSubscriptions state = devices.get(DeviceKey.of(url));
+        if (!enabled || state == null || state.subscriptions.isEmpty()) {
+            return;
+        }
+        int generation = state.generation.incrementAndGet();
+        long connected = System.currentTimeMillis();
+        Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                if (state.generation.get() != generation) {
+                    return;
+                }
+                boolean resolved;
+                try {
+                    resolved = device.getServicesResolved();
+                } catch (Exception ex) {
+                    LOGGER.debug("Could not check if services resolved: {} : {}", url, ex.getMessage());
+                    return;
+                }
+                if (resolved) {
+                    restore(url, device, state, generation, connected);
+                } else if (System.currentTimeMillis() - connected < resolutionTimeout) {
+                    schedule(this, RESOLUTION_CHECK_PERIOD);
+                } else {
+                    LOGGER.warn("Services have not been resolved, subscriptions are not restored: {}", url);
+                    failures.addAndGet(state.subscriptions.size());
+                }
+            }
+        };
+        schedule(check, 0);
+    }
+
+    /**
+     * Forgets all subscriptions of a device.
+     * @param url device URL
+     */
+    void remove(URL url) {
+        if (!enabled || devices.isEmpty()) {
+            return;
+        }
+        devices.remove(DeviceKey.of(url));
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("subscriptions.devices", devices.size());
+        metrics.put("subscriptions.characteristics",
+                devices.values().stream().mapToInt(state -> state.subscriptions.size()).sum());
+        metrics.put("subscriptions.restores", restores.get());
+        metrics.put("subscriptions.restored", restored.get());
+        metrics.put("subscriptions.skipped", skipped.get());
+        metrics.put("subscriptions.failures", failures.get());
+        long count = restores.get();
+        metrics.put("subscriptions.restoreLatency", count > 0 ? (double) restoreTime.get() / count : 0);
+    }
+
+    synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        devices.clear();
+    }
+
+    private void restore(URL url, BluetoothDevice device, DeviceSubscriptions state, int generation,
+            long connected) {
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicInteger remaining = new AtomicInteger();
+        for (BluetoothGattService service : device.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                Subscription subscription =
+                        state.subscriptions.get(getKey(service.getUUID(), characteristic.getUUID()));
+                if (subscription == null) {
+                    continue;
+                }
+                remaining.incrementAndGet();
+                tasks.add(() -> {
+                    try {
+                        restore(subscription, characteristic, state, generation);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            long duration = System.currentTimeMillis() - connected;
+                            restores.incrementAndGet();
+                            restoreTime.addAndGet(duration);
+                            LOGGER.debug("Subscriptions restored: {} : {} in {} ms", url, tasks.size(), duration);
+                        }
+                    }
+                });
+            }
+        }
+        if (tasks.size() < state.subscriptions.size()) {
+            LOGGER.debug("Some characteristics have not been found, their subscriptions are not restored: {}", url);
+        }
+        tasks.forEach(task -> schedule(task, 0));
+    }
+
+    private void restore(Subscription subscription, BluetoothGattCharacteristic characteristic,
+            DeviceSubscriptions state, int generation) {
+        synchronized (subscription) {
+            if (state.generation.get() != generation || subscription.generation == generation) {
+                // either reconnected/disconnected meanwhile or already re-enabled by the upper layer
+                return;
+            }
+            try {
+                characteristic.enableValueNotifications(subscription);
+                subscription.generation = generation;
+                restored.incrementAndGet();
+            } catch (Exception ex) {
+                failures.incrementAndGet();
+                LOGGER.warn("Could not restore subscription: {} : {}", subscription.url, ex.getMessage());
+            }
+        }
+    }
+
+    private synchronized void schedule(Runnable task, long delay) {
+        if (executor == null) {
+            executor = Executors.newScheduledThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "tinyb-subscription-restore");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static String getKey(String service, String characteristic) {
+        return UUIDs.parse(service) + "/" + UUIDs.parse(characteristic);
+    }
+
+    private static final class DeviceSubscriptions {
+        private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+        private final AtomicInteger generation = new AtomicInteger();
+    }
+
+    private static final class Subscription implements BluetoothNotification<byte[]> {
+
+        private final URL url;
+        private volatile BluetoothNotification<byte[]> callback;
+        // connection generation the native notifications have been enabled in
+        private int generation = -1;
+
+        private Subscription(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public void run(byte[] value) {
+            callback.run(value);
+        }
+    }
+
+}
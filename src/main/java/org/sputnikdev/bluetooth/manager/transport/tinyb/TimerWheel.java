@@ -0,0 +1,216 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timer wheel. Scheduled tasks are placed into buckets of a circular wheel that is advanced by a single
+ * thread once per tick, which makes scheduling and cancellation O(1) and allows thousands of timers to be served
+ * by one thread. Tasks are executed by the wheel thread, hence they must be short and must not block.
+ */
+class TimerWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimerWheel.class);
+
+    /**
+     * A handle of a scheduled task.
+     */
+    interface Timeout {
+        /**
+         * Cancels the task.
+         * @return true if the task has been cancelled, false if it has already been executed or cancelled
+         */
+        boolean cancel();
+    }
+
+    private final String name;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Object lock = new Object();
+    private Thread worker;
+    private volatile boolean stopped;
+    private long startTime;
+
+    /**
+     * Creates a timer wheel.
+     * @param name name of the wheel thread
+     * @param tickDuration tick duration in milliseconds
+     * @param ticksPerWheel number of buckets (rounded up to a power of two)
+     */
+    TimerWheel(String name, long tickDuration, int ticksPerWheel) {
+        this.name = name;
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickDuration));
+        int buckets = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = buckets - 1;
+    }
+
+    /**
+     * Schedules a task for a one-time execution.
+     * @param task task to be executed
+     * @param delay delay in milliseconds
+     * @return handle of the task
+     */
+    Timeout schedule(Runnable task, long delay) {
+        synchronized (lock) {
+            if (stopped) {
+                throw new IllegalStateException("Timer wheel is stopped: " + name);
+            }
+            if (worker == null) {
+                startTime = System.nanoTime();
+                worker = new Thread(this::run, name);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+        Entry entry = new Entry(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay));
+        size.incrementAndGet();
+        pending.add(entry);
+        return entry;
+    }
+
+    /**
+     * Returns number of scheduled (not yet executed or cancelled) tasks.
+     * @return number of tasks
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Stops the wheel, all scheduled tasks are discarded.
+     */
+    void stop() {
+        synchronized (lock) {
+            stopped = true;
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        long tick = 0;
+        while (!stopped) {
+            long deadline = (tick + 1) * tickDuration;
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    if (stopped) {
+                        break;
+                    }
+                }
+                continue;
+            }
+            transferPending(tick);
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+        LOGGER.debug("Timer wheel stopped: {}", name);
+    }
+
+    private void transferPending(long tick) {
+        Entry entry;
+        while ((entry = pending.poll()) != null) {
+            if (entry.cancelled) {
+                continue;
+            }
+            long ticks = Math.max(entry.deadline / tickDuration, tick);
+            entry.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].entries.add(entry);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        for (Iterator<Entry> iterator = bucket.entries.iterator(); iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (entry.cancelled) {
+                iterator.remove();
+            } else if (entry.rounds <= 0) {
+                iterator.remove();
+                if (entry.expire()) {
+                    try {
+                        entry.task.run();
+                    } catch (Exception ex) {
+                        LOGGER.error("Timer task execution error: " + name, ex);
+                    }
+                }
+            } else {
+                entry.rounds--;
+            }
+        }
+    }
+
+    private final class Bucket {
+        private final Queue<Entry> entries = new ArrayDeque<>();
+    }
+
+    private final class Entry implements Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+        private boolean done;
+
+        private Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            if (done || cancelled) {
+                return false;
+            }
+            cancelled = true;
+            size.decrementAndGet();
+            return true;
+        }
+
+        private synchronized boolean expire() {
+            if (cancelled) {
+                return false;
+            }
+            done = true;
+            size.decrementAndGet();
+            return true;
+        }
+    }
+
+}
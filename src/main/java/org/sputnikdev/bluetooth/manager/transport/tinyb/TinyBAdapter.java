@@ -29,7 +29,6 @@ import org.sputnikdev.bluetooth.manager.transport.Notification;
 import tinyb.BluetoothAdapter;
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothException;
-import tinyb.TransportType;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -45,10 +44,13 @@ class TinyBAdapter implements Adapter {
 
     private final URL url;
     private final BluetoothAdapter adapter;
+    private final NotificationDispatcher dispatcher;
 
-    TinyBAdapter(URL url, BluetoothAdapter adapter) {
+    TinyBAdapter(URL url, BluetoothAdapter adapter, NotificationDispatcher dispatcher) {
         this.url = url;
         this.adapter = adapter;
+        this.dispatcher = dispatcher;
+        TinyBFactory.getLeakDetector().track(adapter, url);
     }
 
     @Override
@@ -81,7 +83,7 @@ class TinyBAdapter implements Adapter {
     public void enablePoweredNotifications(Notification<Boolean> notification) {
         LOGGER.debug("Enable powered notifications: {}", url);
         adapter.enablePoweredNotifications(powered -> {
-            TinyBFactory.notifySafely(() -> {
+            dispatcher.dispatch(() -> {
                 notification.notify(powered);
             }, LOGGER, "Powered notification execution error");
         });
@@ -108,7 +110,7 @@ class TinyBAdapter implements Adapter {
     public void enableDiscoveringNotifications(Notification<Boolean> notification) {
         LOGGER.debug("Enable discovering notifications: {}", url);
         adapter.enableDiscoveringNotifications(value -> {
-            TinyBFactory.notifySafely(() -> {
+            dispatcher.dispatch(() -> {
                 notification.notify(value);
             }, LOGGER, "Discovering notification execution error");
         });
@@ -133,21 +135,21 @@ class TinyBAdapter implements Adapter {
         // however, if filter is not set (or reset), then not all devices are getting discovered
         // so it is a trade off between having all devices discovered and stable connection establishing
         //adapter.setRssiDiscoveryFilter(-100);
-        try {
-            adapter.setDiscoveryFilter(Collections.emptyList(), 0, 0, TransportType.AUTO);
-        } catch (Exception ex) {
-            // some adapters are reported not to support this, hence ignore and log it
-            // GDBus.Error:org.bluez.Error.NotSupported
-            LOGGER.warn("Adapter does not support filtering: {}. Reason: {}.", url, ex.getMessage());
-        }
-        return adapter.startDiscovery();
+        TinyBFactory.getDiscoveryFilter().apply(url, adapter);
+        return TinyBFactory.getDiscoveryScheduler().start(url,
+                () -> TinyBFactory.getRetryPolicy().execute("startDiscovery", url, adapter::startDiscovery),
+                adapter::stopDiscovery);
     }
 
     @Override
     public boolean stopDiscovery() {
         LOGGER.debug("Stopping discovery: {}", url);
+        if (!TinyBFactory.getDiscoveryScheduler().stop(url)) {
+            // discovery has been suspended by the scheduler, hence there is nothing to stop
+            return true;
+        }
         try {
-            return adapter.stopDiscovery();
+            return TinyBFactory.getRetryPolicy().execute("stopDiscovery", url, adapter::stopDiscovery);
         } catch (BluetoothException ex) {
             if (adapter.getDiscovering()
                     && "GDBus.Error:org.bluez.Error.Failed: No discovery started".equals(ex.getMessage())) {
@@ -160,20 +162,35 @@ class TinyBAdapter implements Adapter {
 
     @Override
     public List<Device> getDevices() {
+        DeviceRegistry registry = TinyBFactory.getDeviceRegistry();
+        if (registry.isEnabled()) {
+            registry.sync(url, adapter,
+                device -> device.getRSSI() != 0 && TinyBFactory.getDiscoveryFilter().accept(url, device));
+            List<Device> result = new ArrayList<>();
+            for (DeviceRegistry.Entry entry : registry.getEntries(url)) {
+                if (registry.isPresent(entry) && TinyBFactory.getDiscoveryFilter().accept(url, entry.getDevice())) {
+                    result.add(new TinyBDevice(entry.getURL(), entry.getDevice(), dispatcher));
+                }
+            }
+            return Collections.unmodifiableList(result);
+        }
         List<BluetoothDevice> devices = adapter.getDevices();
         List<Device> result = new ArrayList<>(devices.size());
         for (BluetoothDevice device : devices) {
-            if (device.getRSSI() != 0) {
-                result.add(new TinyBDevice(url.copyWithDevice(device.getAddress()), device));
+            if (device.getRSSI() != 0 && TinyBFactory.getDiscoveryFilter().accept(url, device)) {
+                result.add(new TinyBDevice(url.copyWithDevice(device.getAddress()), device, dispatcher));
             }
         }
         return Collections.unmodifiableList(result);
     }
 
     protected static void dispose(BluetoothAdapter adapter) {
-        LOGGER.debug("Disposing adapter: {}", adapter.getAddress());
+        URL url = new URL(TinyBFactory.TINYB_PROTOCOL_NAME, adapter.getAddress(), null);
+        LOGGER.debug("Disposing adapter: {}", url);
+        TinyBFactory.getDiscoveryScheduler().stop(url);
         TinyBFactory.runSilently(adapter::stopDiscovery);
-        adapter.getDevices().forEach(TinyBDevice::dispose);
+        TinyBFactory.getDisposer().dispose("device", adapter.getDevices(),
+                device -> TinyBDevice.dispose(url.copyWithDevice(device.getAddress()), device));
         TinyBFactory.runSilently(adapter::disableDiscoveringNotifications);
         TinyBFactory.runSilently(adapter::disablePoweredNotifications);
         TinyBFactory.runSilently(adapter::disableDiscoverableNotifications);
@@ -28,9 +28,11 @@ import org.sputnikdev.bluetooth.manager.transport.Characteristic;
 import org.sputnikdev.bluetooth.manager.transport.CharacteristicAccessType;
 import org.sputnikdev.bluetooth.manager.transport.Notification;
 import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothNotification;
 
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -41,6 +43,7 @@ import java.util.stream.Stream;
 class TinyBCharacteristic implements Characteristic {
 
     private static final String CONFIGURATION_UUID = "00002902-0000-1000-8000-00805f9b34fb";
+    private static final UUID CONFIGURATION = UUIDs.parse(CONFIGURATION_UUID);
     private static final Logger LOGGER = LoggerFactory.getLogger(TinyBCharacteristic.class);
 
     private enum AccessTypeMapping {
@@ -74,10 +77,13 @@ class TinyBCharacteristic implements Characteristic {
 
     private final URL url;
     private final BluetoothGattCharacteristic characteristic;
+    private final NotificationDispatcher dispatcher;
 
-    TinyBCharacteristic(URL url, BluetoothGattCharacteristic characteristic) {
+    TinyBCharacteristic(URL url, BluetoothGattCharacteristic characteristic, NotificationDispatcher dispatcher) {
         this.url = url;
         this.characteristic = characteristic;
+        this.dispatcher = dispatcher;
+        TinyBFactory.getLeakDetector().track(characteristic, url);
     }
 
     @Override
@@ -109,7 +115,11 @@ class TinyBCharacteristic implements Characteristic {
         "secure-read" (Server only)
         "secure-write" (Server only)
          */
-        String[] flags = characteristic.getFlags();
+        GattSchemaCache.CharacteristicSchema cached = TinyBFactory.getGattSchemaCache().getCharacteristic(url);
+        return convert(cached != null ? cached.getFlags() : characteristic.getFlags());
+    }
+
+    static Set<CharacteristicAccessType> convert(String[] flags) {
         return Stream.of(flags)
                 .filter(Objects::nonNull)
                 .map(flag -> AccessTypeMapping.valueOf(flag.toLowerCase().replaceAll("-", "_")).getAccessType())
@@ -124,9 +134,21 @@ class TinyBCharacteristic implements Characteristic {
 
     @Override
     public byte[] readValue() {
+        return readValue(url, characteristic);
+    }
+
+    /**
+     * Reads value of a native characteristic, so that values can be read without creating transport objects.
+     * @param url characteristic URL
+     * @param characteristic native characteristic
+     * @return characteristic value
+     */
+    static byte[] readValue(URL url, BluetoothGattCharacteristic characteristic) {
         LOGGER.debug("Reading value: {}", url);
         try {
-            byte[] value = characteristic.readValue();
+            byte[] value = TinyBFactory.getConnectionManager().use(TinyBFactory.getAdapterBalancer().resolve(url),
+                    () -> read(url, characteristic));
+            TinyBFactory.getCaptureLog().read(url, value);
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace("Value read: {} : {}", url, DataConversionUtils.convert(value, 16));
             }
@@ -143,31 +165,61 @@ class TinyBCharacteristic implements Characteristic {
     @Override
     public void enableValueNotifications(Notification<byte[]> notification) {
         LOGGER.debug("Enable value notifications: {}", url);
-        characteristic.enableValueNotifications(bytes -> {
-            TinyBFactory.notifySafely(() -> {
+        CaptureLog capture = TinyBFactory.getCaptureLog();
+        BluetoothNotification<byte[]> callback = bytes -> {
+            capture.value(url, bytes);
+            dispatcher.dispatch(() -> {
                 if (LOGGER.isTraceEnabled()) {
                     LOGGER.trace("Notification received: {} : {}", url, DataConversionUtils.convert(bytes, 16));
                 }
                 notification.notify(bytes);
             }, LOGGER, "Value notification execution error");
-        });
+        };
+        if (!TinyBFactory.getSubscriptionRestorer().subscribe(TinyBFactory.getAdapterBalancer().resolve(url),
+                characteristic, callback)) {
+            characteristic.enableValueNotifications(callback);
+        }
     }
 
     @Override
     public void disableValueNotifications() {
         LOGGER.debug("Disable value notifications: {}", url);
+        TinyBFactory.getSubscriptionRestorer().unsubscribe(TinyBFactory.getAdapterBalancer().resolve(url));
         characteristic.disableValueNotifications();
     }
 
     @Override
     public boolean writeValue(byte[] bytes) {
         LOGGER.debug("Writing value: {}", url);
-        return characteristic.writeValue(bytes);
+        WriteCoalescer coalescer = TinyBFactory.getWriteCoalescer();
+        if (coalescer.isEnabled()) {
+            return coalescer.write(url, bytes, this::write);
+        }
+        return write(bytes);
     }
 
     @Override
     public boolean isNotificationConfigurable() {
+        GattSchemaCache.CharacteristicSchema cached = TinyBFactory.getGattSchemaCache().getCharacteristic(url);
+        if (cached != null) {
+            return cached.hasDescriptor(CONFIGURATION);
+        }
         return characteristic.getDescriptors().stream()
                 .filter(descriptor -> CONFIGURATION_UUID.equalsIgnoreCase(descriptor.getUUID())).count() > 0;
     }
+
+    private static byte[] read(URL url, BluetoothGattCharacteristic characteristic) {
+        return TinyBFactory.getRetryPolicy().execute("read", url,
+                () -> TinyBFactory.getWatchdog().call(OperationWatchdog.Operation.READ, url,
+                        characteristic::readValue));
+    }
+
+    private boolean write(byte[] bytes) {
+        boolean result = TinyBFactory.getConnectionManager().use(TinyBFactory.getAdapterBalancer().resolve(url),
+                () -> TinyBFactory.getRetryPolicy().executeWrite(url,
+                        () -> TinyBFactory.getWatchdog().call(OperationWatchdog.Operation.WRITE, url,
+                                () -> characteristic.writeValue(bytes))));
+        TinyBFactory.getCaptureLog().write(url, bytes, result);
+        return result;
+    }
 }
@@ -32,11 +32,13 @@ import org.sputnikdev.bluetooth.manager.transport.Service;
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothException;
 import tinyb.BluetoothGattService;
+import tinyb.BluetoothNotification;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -49,10 +51,16 @@ class TinyBDevice implements Device {
 
     private final URL url;
     private final BluetoothDevice device;
+    private final NotificationDispatcher dispatcher;
+    // packed device address used by the advertisement filter
+    private final long address;
 
-    TinyBDevice(URL url, BluetoothDevice device) {
+    TinyBDevice(URL url, BluetoothDevice device, NotificationDispatcher dispatcher) {
         this.url = url;
         this.device = device;
+        this.dispatcher = dispatcher;
+        address = parseAddress(url);
+        TinyBFactory.getLeakDetector().track(device, url);
     }
 
     @Override
@@ -69,19 +77,52 @@ class TinyBDevice implements Device {
     @Override
     public boolean disconnect() {
         LOGGER.debug("Disconnecting: {}", url);
-        return device.disconnect();
+        URL nativeURL = TinyBFactory.getAdapterBalancer().resolve(url);
+        TinyBFactory.getReconnectEngine().cancel(nativeURL);
+        try {
+            return device.disconnect();
+        } finally {
+            TinyBFactory.getConnectionManager().disconnected(nativeURL);
+            TinyBFactory.getSubscriptionRestorer().disconnected(nativeURL);
+        }
     }
 
     @Override
     public boolean connect() {
         LOGGER.debug("Connecting: {}", url);
+        URL nativeURL = TinyBFactory.getAdapterBalancer().resolve(url);
+        DiscoveryScheduler discovery = TinyBFactory.getDiscoveryScheduler();
+        boolean paused = discovery.pause(nativeURL);
+        boolean scanning = discovery.isScanning(nativeURL);
+        long started = System.currentTimeMillis();
+        boolean connected = false;
         try {
-            return device.connect();
+            connected = TinyBFactory.getConnectionManager().connect(nativeURL, device::getConnected, () -> {
+                // disconnected to make room for another device, must not be reconnected
+                TinyBFactory.getReconnectEngine().cancel(nativeURL);
+                device.disconnect();
+            }, this::connectNative);
+            return connected;
         } catch (BluetoothException ex) {
             if ("GDBus.Error:org.bluez.Error.Failed: Input/output error".equals(ex.getMessage())) {
                 throw new BluetoothFatalException("Could not connect", ex);
             }
             throw ex;
+        } finally {
+            long duration = System.currentTimeMillis() - started;
+            TinyBFactory.getAdapterBalancer().connected(nativeURL, connected);
+            TinyBFactory.getReconnectEngine().recordConnect(nativeURL, this::connect, connected, duration);
+            if (connected) {
+                TinyBFactory.getSubscriptionRestorer().connected(nativeURL, device);
+                TinyBFactory.getGattSchemaCache().connected(nativeURL);
+            }
+            discovery.recordConnect(scanning, duration);
+            if (paused && connected) {
+                // keep discovery paused while services are being resolved
+                discovery.resumeWhen(nativeURL, device::getServicesResolved);
+            } else if (paused) {
+                discovery.resume(nativeURL);
+            }
         }
     }
 
@@ -120,7 +161,7 @@ class TinyBDevice implements Device {
     public void enableBlockedNotifications(Notification<Boolean> notification) {
         LOGGER.debug("Enable blocked notifications: {}", url);
         device.enableBlockedNotifications(value -> {
-            TinyBFactory.notifySafely(() -> {
+            dispatcher.dispatch(() -> {
                 notification.notify(value);
             }, LOGGER, "Blocked notification execution error");
         });
@@ -153,18 +194,32 @@ class TinyBDevice implements Device {
     @Override
     public void enableRSSINotifications(Notification<Short> notification) {
         LOGGER.debug("Enable RSSI notifications: {}", url);
-        device.enableRSSINotifications(value -> {
+        AdvertisementFilter filter = TinyBFactory.getAdvertisementFilter();
+        CaptureLog capture = TinyBFactory.getCaptureLog();
+        RSSINotification rssiNotification =
+                notification instanceof RSSINotification ? (RSSINotification) notification : null;
+        BluetoothNotification<Short> callback = value -> {
+            if (!filter.accept(address)) {
+                return;
+            }
+            short rssi = value;
             LOGGER.trace("RSSI {} : {}", url, value);
-            TinyBFactory.notifySafely(() -> {
-                notification.notify(value);
+            capture.rssi(url, rssi);
+            dispatcher.dispatch(() -> {
+                if (rssiNotification != null) {
+                    rssiNotification.notifyRSSI(rssi);
+                } else {
+                    notification.notify(rssi);
+                }
             }, LOGGER, "RSSI notification execution error");
-        });
+        };
+        subscribe(DeviceRegistry.Property.RSSI, callback, device::enableRSSINotifications);
     }
 
     @Override
     public void disableRSSINotifications() {
         LOGGER.debug("Disable RSSI notifications: {}", url);
-        device.disableRSSINotifications();
+        unsubscribe(DeviceRegistry.Property.RSSI, device::disableRSSINotifications);
     }
 
     @Override
@@ -176,17 +231,26 @@ class TinyBDevice implements Device {
     @Override
     public void enableConnectedNotifications(Notification<Boolean> notification) {
         LOGGER.debug("Enable connected notifications: {}", url);
-        device.enableConnectedNotifications(value -> {
-            TinyBFactory.notifySafely(() -> {
+        CaptureLog capture = TinyBFactory.getCaptureLog();
+        BluetoothNotification<Boolean> callback = value -> {
+            capture.connected(url, value);
+            if (!value) {
+                URL nativeURL = TinyBFactory.getAdapterBalancer().resolve(url);
+                TinyBFactory.getConnectionManager().disconnected(nativeURL);
+                TinyBFactory.getSubscriptionRestorer().disconnected(nativeURL);
+                TinyBFactory.getReconnectEngine().dropped(nativeURL);
+            }
+            dispatcher.dispatch(() -> {
                 notification.notify(value);
             }, LOGGER, "Connected notification execution error");
-        });
+        };
+        subscribe(DeviceRegistry.Property.CONNECTED, callback, device::enableConnectedNotifications);
     }
 
     @Override
     public void disableConnectedNotifications() {
         LOGGER.debug("Disable connected notifications: {}", url);
-        device.disableConnectedNotifications();
+        unsubscribe(DeviceRegistry.Property.CONNECTED, device::disableConnectedNotifications);
     }
 
     @Override
@@ -199,7 +263,7 @@ class TinyBDevice implements Device {
     public void enableServicesResolvedNotifications(Notification<Boolean> notification) {
         LOGGER.debug("Enable service resolved notifications: {}", url);
         device.enableServicesResolvedNotifications(value -> {
-            TinyBFactory.notifySafely(() -> {
+            dispatcher.dispatch(() -> {
                 notification.notify(value);
             }, LOGGER, "Services resolved notification execution error");
         });
@@ -218,9 +282,10 @@ class TinyBDevice implements Device {
             return Collections.emptyList();
         }
         List<BluetoothGattService> services = device.getServices();
+        TinyBFactory.getGattSchemaCache().verify(url, services);
         List<Service> result = new ArrayList<>(services.size());
         for (BluetoothGattService nativeService : services) {
-            result.add(new TinyBService(url.copyWithService(nativeService.getUUID()), nativeService));
+            result.add(new TinyBService(url.copyWithService(nativeService.getUUID()), nativeService, dispatcher));
         }
         return Collections.unmodifiableList(result);
     }
@@ -246,8 +311,16 @@ class TinyBDevice implements Device {
     @Override
     public void enableServiceDataNotifications(Notification<Map<String, byte[]>> notification) {
         LOGGER.debug("Enable service data notifications: {}", url);
-        device.enableServiceDataNotifications(value -> {
-            TinyBFactory.notifySafely(() -> {
+        AdvertisementFilter filter = TinyBFactory.getAdvertisementFilter();
+        AdvertisementDecoder decoder = TinyBFactory.getAdvertisementDecoder();
+        CaptureLog capture = TinyBFactory.getCaptureLog();
+        BluetoothNotification<Map<String, byte[]>> callback = value -> {
+            if (!filter.accept(address)) {
+                return;
+            }
+            capture.serviceData(url, value);
+            decoder.decodeServiceData(url, value);
+            dispatcher.dispatch(() -> {
                 if (LOGGER.isTraceEnabled()) {
                     LOGGER.trace("Service data changed: {} : {}", url, value.entrySet().stream()
                             .collect(Collectors.toMap(Map.Entry::getKey,
@@ -255,38 +328,83 @@ class TinyBDevice implements Device {
                 }
                 notification.notify(value);
             }, LOGGER, "Service data notification execution error");
-        });
+        };
+        subscribe(DeviceRegistry.Property.SERVICE_DATA, callback, device::enableServiceDataNotifications);
     }
 
     @Override
     public void disableServiceDataNotifications() {
         LOGGER.debug("Disable service data notifications: {}", url);
-        device.disableServiceDataNotifications();
+        unsubscribe(DeviceRegistry.Property.SERVICE_DATA, device::disableServiceDataNotifications);
     }
 
     @Override
     public void enableManufacturerDataNotifications(Notification<Map<Short, byte[]>> notification) {
         LOGGER.debug("Enable manufacturer data notifications: {}", url);
-        device.enableManufacturerDataNotifications(value -> {
-            TinyBFactory.notifySafely(() -> {
+        AdvertisementFilter filter = TinyBFactory.getAdvertisementFilter();
+        AdvertisementDecoder decoder = TinyBFactory.getAdvertisementDecoder();
+        CaptureLog capture = TinyBFactory.getCaptureLog();
+        BluetoothNotification<Map<Short, byte[]>> callback = value -> {
+            if (!filter.accept(address, value)) {
+                return;
+            }
+            capture.manufacturerData(url, value);
+            decoder.decodeManufacturerData(url, value);
+            dispatcher.dispatch(() -> {
                 if (LOGGER.isTraceEnabled()) {
                     LOGGER.trace("Manufacturer data changed: {} : {}", url, value.entrySet().stream()
                             .collect(Collectors.toMap(Map.Entry::getKey,
                                     entry -> DataConversionUtils.convert(entry.getValue(), 16))));
                 }
+                // ManufacturerDataNotification implementations get entries delivered one by one
                 notification.notify(value);
             }, LOGGER, "Manufacturer data notification execution error");
-        });
+        };
+        subscribe(DeviceRegistry.Property.MANUFACTURER_DATA, callback, device::enableManufacturerDataNotifications);
     }
 
     @Override
     public void disableManufacturerDataNotifications() {
         LOGGER.debug("Disable manufacturer data notifications: {}", url);
-        device.disableManufacturerDataNotifications();
+        unsubscribe(DeviceRegistry.Property.MANUFACTURER_DATA, device::disableManufacturerDataNotifications);
+    }
+
+    private <T> void subscribe(DeviceRegistry.Property property, BluetoothNotification<T> callback,
+            Consumer<BluetoothNotification<T>> nativeSubscriber) {
+        URL nativeURL = TinyBFactory.getAdapterBalancer().resolve(url);
+        if (!TinyBFactory.getDeviceRegistry().subscribe(nativeURL, device, property, callback)) {
+            nativeSubscriber.accept(callback);
+        }
+    }
+
+    private void unsubscribe(DeviceRegistry.Property property, Runnable nativeUnsubscriber) {
+        URL nativeURL = TinyBFactory.getAdapterBalancer().resolve(url);
+        if (!TinyBFactory.getDeviceRegistry().unsubscribe(nativeURL, property)) {
+            nativeUnsubscriber.run();
+        }
+    }
+
+    private boolean connectNative() {
+        return TinyBFactory.getRetryPolicy().execute("connect", url,
+                () -> TinyBFactory.getWatchdog().call(OperationWatchdog.Operation.CONNECT, url, device::connect));
+    }
+
+    private static long parseAddress(URL url) {
+        String address = url.getDeviceAddress();
+        try {
+            return address != null ? DeviceKey.parseAddress(address) : AdvertisementFilter.UNKNOWN_ADDRESS;
+        } catch (IllegalArgumentException ex) {
+            LOGGER.debug("Advertisements are not filtered by address: {}", url);
+            return AdvertisementFilter.UNKNOWN_ADDRESS;
+        }
     }
 
-    protected static void dispose(BluetoothDevice device) {
-        LOGGER.debug("Disposing device: {}", device.getAddress());
+    protected static void dispose(URL url, BluetoothDevice device) {
+        LOGGER.debug("Disposing device: {}", url);
+        // transport state is looked up by the URL, so a failing native device does not prevent it from being disposed
+        TinyBFactory.runSilently(() -> TinyBFactory.getDeviceRegistry().unregister(url));
+        TinyBFactory.runSilently(() -> TinyBFactory.getSubscriptionRestorer().remove(url));
+        TinyBFactory.runSilently(() -> TinyBFactory.getReconnectEngine().remove(url));
         TinyBFactory.runSilently(device::disconnect);
         TinyBFactory.runSilently(device::disableBlockedNotifications);
         TinyBFactory.runSilently(device::disableConnectedNotifications);
@@ -28,20 +28,29 @@ import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
 import org.sputnikdev.bluetooth.manager.transport.Adapter;
 import org.sputnikdev.bluetooth.manager.transport.BluetoothObjectFactory;
 import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+import org.sputnikdev.bluetooth.manager.transport.CharacteristicAccessType;
 import org.sputnikdev.bluetooth.manager.transport.Device;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
 import tinyb.BluetoothAdapter;
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothGattCharacteristic;
 import tinyb.BluetoothGattService;
 import tinyb.BluetoothManager;
+import tinyb.BluetoothObject;
 import tinyb.BluetoothType;
+import tinyb.TransportType;
 
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.TreeMap;
+import java.util.UUID;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * A Bluetooth Manager Transport abstraction layer implementation based on TinyB library.
@@ -50,10 +59,98 @@ import java.util.stream.Collectors;
 public class TinyBFactory implements BluetoothObjectFactory {
 
     public static final String TINYB_PROTOCOL_NAME = "tinyb";
+    public static final String CONNECT_DEADLINE = "connectDeadline";
+    public static final String READ_DEADLINE = "readDeadline";
+    public static final String WRITE_DEADLINE = "writeDeadline";
+    public static final String RETRY_ATTEMPTS = "retryAttempts";
+    public static final String RETRY_BASE_DELAY = "retryBaseDelay";
+    public static final String RETRY_MAX_DELAY = "retryMaxDelay";
+    public static final String RETRY_WRITES = "retryWrites";
+    public static final String BATCH_READ_PARALLELISM = "batchReadParallelism";
+    public static final String POLLING_MERGE_WINDOW = "pollingMergeWindow";
+    public static final String POLLING_THREADS = "pollingThreads";
+    public static final String COALESCE_WRITES = "coalesceWrites";
+    public static final String MAX_CONNECTIONS = "maxConnections";
+    public static final String CONNECTION_WAIT_TIMEOUT = "connectionWaitTimeout";
+    public static final String CONNECTION_MIN_IDLE_TIME = "connectionMinIdleTime";
+    public static final String LOAD_BALANCING = "loadBalancing";
+    public static final String DISCOVERY_WINDOW = "discoveryWindow";
+    public static final String DISCOVERY_INTERVAL = "discoveryInterval";
+    public static final String DISCOVERY_PAUSE_ON_CONNECT = "discoveryPauseOnConnect";
+    public static final String DISCOVERY_MAX_RESOLUTION_HOLD = "discoveryMaxResolutionHold";
+    public static final String DISCOVERY_FILTER_UUIDS = "discoveryFilter.uuids";
+    public static final String DISCOVERY_FILTER_RSSI = "discoveryFilter.rssi";
+    public static final String DISCOVERY_FILTER_TRANSPORT = "discoveryFilter.transport";
+    public static final String ALLOWED_ADDRESSES = "allowedAddresses";
+    public static final String DENIED_ADDRESSES = "deniedAddresses";
+    public static final String ALLOWED_MANUFACTURERS = "allowedManufacturers";
+    public static final String DENIED_MANUFACTURERS = "deniedManufacturers";
+    public static final String DEVICE_REGISTRY = "deviceRegistry";
+    public static final String DEVICE_REGISTRY_SYNC_INTERVAL = "deviceRegistrySyncInterval";
+    public static final String DEVICE_PRESENCE_TIMEOUT = "devicePresenceTimeout";
+    public static final String DEVICE_STALE_TIMEOUT = "deviceStaleTimeout";
+    public static final String DISPOSAL_PARALLELISM = "disposalParallelism";
+    public static final String DISPOSAL_DEADLINE = "disposalDeadline";
+    public static final String NOTIFICATION_DRAIN_TIMEOUT = "notificationDrainTimeout";
+    public static final String RESTORE_SUBSCRIPTIONS = "restoreSubscriptions";
+    public static final String RESTORE_PARALLELISM = "restoreParallelism";
+    public static final String RESTORE_RESOLUTION_TIMEOUT = "restoreResolutionTimeout";
+    public static final String AUTO_RECONNECT = "autoReconnect";
+    public static final String RECONNECT_MAX_CONCURRENT = "reconnectMaxConcurrent";
+    public static final String RECONNECT_MAX_ATTEMPTS = "reconnectMaxAttempts";
+    public static final String RECONNECT_BASE_DELAY = "reconnectBaseDelay";
+    public static final String RECONNECT_MAX_DELAY = "reconnectMaxDelay";
+    public static final String GATT_CACHE_DIRECTORY = "gattCacheDirectory";
+    public static final String DEVICE_SNAPSHOT_FILE = "deviceSnapshotFile";
+    public static final String DEVICE_SNAPSHOT_INTERVAL = "deviceSnapshotInterval";
+    public static final String DEVICE_SNAPSHOT_MAX_AGE = "deviceSnapshotMaxAge";
+    public static final String CAPTURE_DIRECTORY = "captureDirectory";
+    public static final String CAPTURE_SEGMENT_SIZE = "captureSegmentSize";
+    public static final String CAPTURE_MAX_SEGMENTS = "captureMaxSegments";
+    public static final String LEAK_DETECTION = "leakDetection";
+    public static final String LEAK_DETECTION_MAX_AGE = "leakDetectionMaxAge";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TinyBFactory.class);
 
-    private static final ExecutorService NOTIFICATION_SERVICE = Executors.newCachedThreadPool();
+    private static final OperationWatchdog WATCHDOG = new OperationWatchdog();
+    private static final RetryPolicy RETRY_POLICY = new RetryPolicy();
+    private static final WriteCoalescer WRITE_COALESCER = new WriteCoalescer();
+    private static final ConnectionManager CONNECTION_MANAGER = new ConnectionManager();
+    private static final AdapterBalancer ADAPTER_BALANCER = new AdapterBalancer(CONNECTION_MANAGER);
+    private static final DiscoveryScheduler DISCOVERY_SCHEDULER = new DiscoveryScheduler();
+    private static final DiscoveryFilter DISCOVERY_FILTER = new DiscoveryFilter();
+    private static final AdvertisementFilter ADVERTISEMENT_FILTER = new AdvertisementFilter();
+    private static final AdvertisementDecoder ADVERTISEMENT_DECODER = new AdvertisementDecoder();
+    private static final DeviceRegistry REGISTRY = new DeviceRegistry();
+    private static final StaleDeviceEvictor EVICTOR = new StaleDeviceEvictor(REGISTRY, TinyBDevice::dispose);
+    private static final ParallelDisposer DISPOSER = new ParallelDisposer();
+    private static final SubscriptionRestorer SUBSCRIPTION_RESTORER = new SubscriptionRestorer();
+    private static final ReconnectEngine RECONNECT_ENGINE = new ReconnectEngine(WATCHDOG);
+    private static final GattSchemaCache GATT_SCHEMA_CACHE = new GattSchemaCache();
+    private static final DeviceSnapshot DEVICE_SNAPSHOT = new DeviceSnapshot();
+    private static final CaptureLog CAPTURE_LOG = new CaptureLog();
+    private static final NativeLeakDetector LEAK_DETECTOR = new NativeLeakDetector();
+    // the components above are shared, only the last live factory disposes them
+    private static int liveFactories;
+
+    private final BatchReader batchReader = new BatchReader(getAdapterBalancer());
+    private long pollingMergeWindow = 1000;
+    private int pollingThreads = 4;
+    private CharacteristicPoller poller;
+    private long notificationDrainTimeout = 5000;
+    private final NotificationDispatcher dispatcher;
+    private boolean disposed;
+
+    public TinyBFactory() {
+        this(new NotificationDispatcher());
+    }
+
+    TinyBFactory(NotificationDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        synchronized (TinyBFactory.class) {
+            liveFactories++;
+        }
+    }
 
     /**
      * Loads TinyB bundled native libraries from classpath by copying them to a temp folder.
@@ -118,11 +215,15 @@ public class TinyBFactory implements BluetoothObjectFactory {
     public Adapter getAdapter(URL url) {
         BluetoothAdapter adapter = (BluetoothAdapter) BluetoothManager.getBluetoothManager().getObject(
                 BluetoothType.ADAPTER, null, url.getAdapterAddress(), null);
-        return adapter != null ? new TinyBAdapter(url.getAdapterURL(), adapter) : null;
+        return adapter != null ? new TinyBAdapter(url.getAdapterURL(), adapter, dispatcher) : null;
     }
 
     @Override
     public Device getDevice(URL url) {
+        if (getAdapterBalancer().isEnabled()) {
+            BluetoothDevice device = getAdapterBalancer().getDevice(url);
+            return device != null ? new TinyBDevice(url.getDeviceURL(), device, dispatcher) : null;
+        }
         BluetoothAdapter adapter = (BluetoothAdapter) BluetoothManager.getBluetoothManager().getObject(
                 BluetoothType.ADAPTER, null, url.getAdapterAddress(), null);
         if (adapter == null) {
@@ -130,13 +231,13 @@ public class TinyBFactory implements BluetoothObjectFactory {
         }
         BluetoothDevice device = (BluetoothDevice) BluetoothManager.getBluetoothManager().getObject(
                 BluetoothType.DEVICE, null, url.getDeviceAddress(), adapter);
-        return device != null ? new TinyBDevice(url.getDeviceURL(), device) : null;
+        return device != null ? new TinyBDevice(url.getDeviceURL(), device, dispatcher) : null;
     }
 
     @Override
     public Characteristic getCharacteristic(URL url) {
         BluetoothAdapter adapter = (BluetoothAdapter) BluetoothManager.getBluetoothManager().getObject(
-                BluetoothType.ADAPTER, null, url.getAdapterAddress(), null);
+                BluetoothType.ADAPTER, null, getAdapterBalancer().resolve(url).getAdapterAddress(), null);
         if (adapter == null) {
             return null;
         }
@@ -153,7 +254,8 @@ public class TinyBFactory implements BluetoothObjectFactory {
         BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic)
                 BluetoothManager.getBluetoothManager().getObject(
                         BluetoothType.GATT_CHARACTERISTIC, null, url.getCharacteristicUUID(), service);
-        return characteristic != null ? new TinyBCharacteristic(url.getCharacteristicURL(), characteristic) : null;
+        return characteristic != null
+                ? new TinyBCharacteristic(url.getCharacteristicURL(), characteristic, dispatcher) : null;
     }
 
     @Override
@@ -172,8 +274,17 @@ public class TinyBFactory implements BluetoothObjectFactory {
     @Override
     public Set<DiscoveredDevice> getDiscoveredDevices() {
         try {
-            return BluetoothManager.getBluetoothManager().getDevices().stream().map(
-                    TinyBFactory::convert).collect(Collectors.toSet());
+            Set<DiscoveredDevice> devices = BluetoothManager.getBluetoothManager().getDevices().stream()
+                    .filter(device -> getDiscoveryFilter().accept(device))
+                    .map(TinyBFactory::convert).collect(Collectors.toSet());
+            CaptureLog capture = getCaptureLog();
+            if (capture.isEnabled()) {
+                devices.forEach(capture::discovered);
+            }
+            // devices known before restart are reported until Bluez rediscovers them
+            getDeviceSnapshot().update(devices);
+            devices.addAll(getDeviceSnapshot().getProvisional());
+            return devices;
         } catch (tinyb.BluetoothException ex) {
             if ("No adapter installed or not recognized by system".equals(ex.getMessage())) {
                 return Collections.emptySet();
@@ -187,29 +298,383 @@ public class TinyBFactory implements BluetoothObjectFactory {
         return TINYB_PROTOCOL_NAME;
     }
 
+    /**
+     * Configures the transport. Apart from {@link #BATCH_READ_PARALLELISM}, {@link #POLLING_MERGE_WINDOW},
+     * {@link #POLLING_THREADS} and {@link #NOTIFICATION_DRAIN_TIMEOUT}, which are set per factory, properties
+     * configure components shared by all factories, as Bluez objects are shared too. Supported properties:
+     * <ul>
+     *     <li>{@link #CONNECT_DEADLINE}, {@link #READ_DEADLINE}, {@link #WRITE_DEADLINE} - deadlines (ms) for
+     *     connect, read and write operations accordingly, zero disables the deadline</li>
+     *     <li>{@link #RETRY_ATTEMPTS} - number of retry attempts for transient errors, zero disables retrying;
+     *     it can be also specified per error type, e.g. "retryAttempts.io_error"</li>
+     *     <li>{@link #RETRY_BASE_DELAY}, {@link #RETRY_MAX_DELAY} - exponential backoff delays (ms)</li>
+     *     <li>{@link #RETRY_WRITES} - if true, writes are retried too; disabled by default as retrying
+     *     a non-idempotent write might apply it twice</li>
+     *     <li>{@link #BATCH_READ_PARALLELISM} - number of devices read in parallel by {@link #readValues}</li>
+     *     <li>{@link #POLLING_MERGE_WINDOW} - characteristics of the same device that are due for polling within
+     *     this window (ms) are polled together</li>
+     *     <li>{@link #POLLING_THREADS} - number of threads reading polled characteristics</li>
+     *     <li>{@link #COALESCE_WRITES} - if true, a write that is issued while another write to the same
+     *     characteristic is in flight replaces any pending value instead of queuing behind it</li>
+     *     <li>{@link #MAX_CONNECTIONS} - maximum number of connections per adapter, zero means unlimited;
+     *     it can be also specified per adapter, e.g. "maxConnections.11:22:33:44:55:66"</li>
+     *     <li>{@link #CONNECTION_WAIT_TIMEOUT} - how long (ms) a connect request waits for a connection slot</li>
+     *     <li>{@link #CONNECTION_MIN_IDLE_TIME} - how long (ms) a device must not be used before it can be
+     *     disconnected to make room for another device</li>
+     *     <li>{@link #LOAD_BALANCING} - if true, devices which are visible to more than one adapter are placed
+     *     to the adapter with the least load, the best RSSI and connect success rate</li>
+     *     <li>{@link #DISCOVERY_WINDOW}, {@link #DISCOVERY_INTERVAL} - discovery duty cycle (ms), adapters scan
+     *     for the window once per interval; zero interval means continuous scanning</li>
+     *     <li>{@link #DISCOVERY_PAUSE_ON_CONNECT} - if true, discovery is paused while devices are being connected
+     *     and until their services get resolved, but no longer than {@link #DISCOVERY_MAX_RESOLUTION_HOLD} (ms)</li>
+     *     <li>{@link #DISCOVERY_FILTER_UUIDS} (a collection or comma separated list of service UUIDs),
+     *     {@link #DISCOVERY_FILTER_RSSI} (RSSI threshold), {@link #DISCOVERY_FILTER_TRANSPORT} (AUTO, BREDR or LE) -
+     *     discovery filter; it can be also specified per adapter, e.g. "discoveryFilter.rssi.11:22:33:44:55:66";
+     *     if an adapter rejects the filter, it is applied on the java side</li>
+     *     <li>{@link #ALLOWED_ADDRESSES}, {@link #DENIED_ADDRESSES} - device addresses (a collection or comma
+     *     separated list) whose RSSI, manufacturer and service data notifications are delivered or dropped</li>
+     *     <li>{@link #ALLOWED_MANUFACTURERS}, {@link #DENIED_MANUFACTURERS} - manufacturer IDs (e.g. 76 or 0x004C)
+     *     whose manufacturer data notifications are delivered or dropped</li>
+     *     <li>{@link #DEVICE_REGISTRY} - if true, discovered devices are tracked in memory from their notifications,
+     *     the registry is reconciled with Bluez every {@link #DEVICE_REGISTRY_SYNC_INTERVAL} (ms); this enables
+     *     {@link #getDevicesByService}, {@link #getDevicesByManufacturer} and {@link #getDevicesSeenSince}</li>
+     *     <li>{@link #DEVICE_PRESENCE_TIMEOUT} - devices tracked by the registry that have not been seen for this
+     *     time (ms) are not reported as discovered by adapters, unless they are connected</li>
+     *     <li>{@link #DEVICE_STALE_TIMEOUT} - devices that have not been seen for this time (ms) are disposed and
+     *     removed from Bluez, zero disables eviction; requires {@link #DEVICE_REGISTRY}</li>
+     *     <li>{@link #DISPOSAL_PARALLELISM} - number of devices and adapters disposed in parallel</li>
+     *     <li>{@link #DISPOSAL_DEADLINE} - how long (ms) disposal of the factory or an adapter can take, objects that
+     *     have not been disposed by then are abandoned; zero means no deadline</li>
+     *     <li>{@link #NOTIFICATION_DRAIN_TIMEOUT} - how long (ms) {@link #dispose()} waits for in-flight
+     *     notifications to be delivered</li>
+     *     <li>{@link #RESTORE_SUBSCRIPTIONS} - if true, value notification subscriptions are remembered and restored
+     *     when devices reconnect and their services get resolved (but no later than
+     *     {@link #RESTORE_RESOLUTION_TIMEOUT} ms); {@link #RESTORE_PARALLELISM} characteristics are subscribed
+     *     in parallel</li>
+     *     <li>{@link #AUTO_RECONNECT} - if true, devices whose connections drop are reconnected by the transport,
+     *     at most {@link #RECONNECT_MAX_CONCURRENT} devices at a time (healthier devices first) with exponential
+     *     backoff between {@link #RECONNECT_BASE_DELAY} and {@link #RECONNECT_MAX_DELAY} (ms), giving up after
+     *     {@link #RECONNECT_MAX_ATTEMPTS} attempts (zero means never); requires connected notifications
+     *     to be enabled</li>
+     *     <li>{@link #GATT_CACHE_DIRECTORY} - a directory where GATT layouts of devices are persisted, cached
+     *     characteristic flags and descriptors are served straight away after devices reconnect and verified
+     *     once services are resolved, see also {@link #getCachedCharacteristics}; an empty value disables
+     *     caching</li>
+     *     <li>{@link #DEVICE_SNAPSHOT_FILE} - a file where known devices are periodically persisted, they are
+     *     reported as discovered straight after a restart until Bluez rediscovers them; an empty value disables
+     *     snapshots</li>
+     *     <li>{@link #DEVICE_SNAPSHOT_INTERVAL} - how often (ms) known devices are persisted</li>
+     *     <li>{@link #DEVICE_SNAPSHOT_MAX_AGE} - how long (ms) a device is kept in the snapshot since it was last
+     *     seen</li>
+     *     <li>{@link #CAPTURE_DIRECTORY} - a directory where characteristic values and advertisements are
+     *     captured into rotating memory mapped segments for later analysis; an empty value disables capturing</li>
+     *     <li>{@link #CAPTURE_SEGMENT_SIZE} - size (bytes) of capture segments</li>
+     *     <li>{@link #CAPTURE_MAX_SEGMENTS} - how many capture segments are retained</li>
+     *     <li>{@link #LEAK_DETECTION} - if true, native objects wrapped by transport objects are tracked so that
+     *     the ones reclaimed without being closed are counted and the ones held for too long get reported,
+     *     see {@link #getLeakReport()}</li>
+     *     <li>{@link #LEAK_DETECTION_MAX_AGE} - how long (ms) a native object can be held before it is reported</li>
+     * </ul>
+     * @param config configuration properties
+     */
     @Override
-    public void configure(Map<String, Object> config) { /* do nothing for now */ }
+    public void configure(Map<String, Object> config) {
+        WATCHDOG.setDeadline(OperationWatchdog.Operation.CONNECT,
+                getLong(config, CONNECT_DEADLINE, WATCHDOG.getDeadline(OperationWatchdog.Operation.CONNECT)));
+        WATCHDOG.setDeadline(OperationWatchdog.Operation.READ,
+                getLong(config, READ_DEADLINE, WATCHDOG.getDeadline(OperationWatchdog.Operation.READ)));
+        WATCHDOG.setDeadline(OperationWatchdog.Operation.WRITE,
+                getLong(config, WRITE_DEADLINE, WATCHDOG.getDeadline(OperationWatchdog.Operation.WRITE)));
+
+        if (config.containsKey(RETRY_ATTEMPTS)) {
+            RETRY_POLICY.setAttempts((int) getLong(config, RETRY_ATTEMPTS, 0));
+        }
+        for (RetryPolicy.ErrorType type : RetryPolicy.ErrorType.values()) {
+            String key = RETRY_ATTEMPTS + "." + type.name().toLowerCase();
+            RETRY_POLICY.setAttempts(type, (int) getLong(config, key, RETRY_POLICY.getAttempts(type)));
+        }
+        RETRY_POLICY.setDelays(getLong(config, RETRY_BASE_DELAY, RETRY_POLICY.getBaseDelay()),
+                getLong(config, RETRY_MAX_DELAY, RETRY_POLICY.getMaxDelay()));
+        RETRY_POLICY.setRetryWrites(getBoolean(config, RETRY_WRITES, RETRY_POLICY.isRetryWrites()));
+
+        batchReader.setParallelism((int) getLong(config, BATCH_READ_PARALLELISM, batchReader.getParallelism()));
+        pollingMergeWindow = getLong(config, POLLING_MERGE_WINDOW, pollingMergeWindow);
+        pollingThreads = (int) getLong(config, POLLING_THREADS, pollingThreads);
+
+        WRITE_COALESCER.setEnabled(getBoolean(config, COALESCE_WRITES, WRITE_COALESCER.isEnabled()));
+
+        CONNECTION_MANAGER.setDefaultCapacity(
+                (int) getLong(config, MAX_CONNECTIONS, CONNECTION_MANAGER.getDefaultCapacity()));
+        config.keySet().stream().filter(key -> key.startsWith(MAX_CONNECTIONS + ".")).forEach(key ->
+                CONNECTION_MANAGER.setCapacity(new URL(TINYB_PROTOCOL_NAME,
+                        key.substring(MAX_CONNECTIONS.length() + 1), null), (int) getLong(config, key, 0)));
+        CONNECTION_MANAGER.setWaitTimeout(
+                getLong(config, CONNECTION_WAIT_TIMEOUT, CONNECTION_MANAGER.getWaitTimeout()));
+        CONNECTION_MANAGER.setMinIdleTime(
+                getLong(config, CONNECTION_MIN_IDLE_TIME, CONNECTION_MANAGER.getMinIdleTime()));
+
+        ADAPTER_BALANCER.setEnabled(getBoolean(config, LOAD_BALANCING, ADAPTER_BALANCER.isEnabled()));
+
+        DISCOVERY_SCHEDULER.setDutyCycle(getLong(config, DISCOVERY_WINDOW, DISCOVERY_SCHEDULER.getWindow()),
+                getLong(config, DISCOVERY_INTERVAL, DISCOVERY_SCHEDULER.getInterval()));
+        DISCOVERY_SCHEDULER.setPauseOnConnect(
+                getBoolean(config, DISCOVERY_PAUSE_ON_CONNECT, DISCOVERY_SCHEDULER.isPauseOnConnect()));
+        DISCOVERY_SCHEDULER.setMaxResolutionHold(
+                getLong(config, DISCOVERY_MAX_RESOLUTION_HOLD, DISCOVERY_SCHEDULER.getMaxResolutionHold()));
+
+        DISCOVERY_FILTER.setDefaultFilter(getFilter(config, "", DISCOVERY_FILTER.getDefaultFilter()));
+        config.keySet().stream().flatMap(key -> Stream.of(DISCOVERY_FILTER_UUIDS, DISCOVERY_FILTER_RSSI,
+                DISCOVERY_FILTER_TRANSPORT).filter(prefix -> key.startsWith(prefix + "."))
+                .map(prefix -> key.substring(prefix.length() + 1))).distinct().forEach(address -> {
+                    URL adapter = new URL(TINYB_PROTOCOL_NAME, address, null);
+                    DISCOVERY_FILTER.setFilter(adapter,
+                            getFilter(config, "." + address, DISCOVERY_FILTER.getFilter(adapter)));
+                });
+
+        if (config.containsKey(ALLOWED_ADDRESSES)) {
+            ADVERTISEMENT_FILTER.setAllowedAddresses(getList(config, ALLOWED_ADDRESSES));
+        }
+        if (config.containsKey(DENIED_ADDRESSES)) {
+            ADVERTISEMENT_FILTER.setDeniedAddresses(getList(config, DENIED_ADDRESSES));
+        }
+        if (config.containsKey(ALLOWED_MANUFACTURERS)) {
+            ADVERTISEMENT_FILTER.setAllowedManufacturers(getList(config, ALLOWED_MANUFACTURERS).stream()
+                    .map(Integer::decode).collect(Collectors.toList()));
+        }
+        if (config.containsKey(DENIED_MANUFACTURERS)) {
+            ADVERTISEMENT_FILTER.setDeniedManufacturers(getList(config, DENIED_MANUFACTURERS).stream()
+                    .map(Integer::decode).collect(Collectors.toList()));
+        }
+
+        REGISTRY.setEnabled(getBoolean(config, DEVICE_REGISTRY, REGISTRY.isEnabled()));
+        REGISTRY.setSyncInterval(
+                getLong(config, DEVICE_REGISTRY_SYNC_INTERVAL, REGISTRY.getSyncInterval()));
+        REGISTRY.setPresenceTimeout(getLong(config, DEVICE_PRESENCE_TIMEOUT, REGISTRY.getPresenceTimeout()));
+        EVICTOR.setStaleTimeout(getLong(config, DEVICE_STALE_TIMEOUT, EVICTOR.getStaleTimeout()));
+        if (EVICTOR.getStaleTimeout() > 0 && !REGISTRY.isEnabled()) {
+            LOGGER.warn("Stale devices eviction requires the device registry to be enabled: {}", DEVICE_REGISTRY);
+        }
+
+        DISPOSER.setParallelism((int) getLong(config, DISPOSAL_PARALLELISM, DISPOSER.getParallelism()));
+        DISPOSER.setDeadline(getLong(config, DISPOSAL_DEADLINE, DISPOSER.getDeadline()));
+        notificationDrainTimeout = getLong(config, NOTIFICATION_DRAIN_TIMEOUT, notificationDrainTimeout);
+
+        SUBSCRIPTION_RESTORER.setEnabled(
+                getBoolean(config, RESTORE_SUBSCRIPTIONS, SUBSCRIPTION_RESTORER.isEnabled()));
+        SUBSCRIPTION_RESTORER.setParallelism(
+                (int) getLong(config, RESTORE_PARALLELISM, SUBSCRIPTION_RESTORER.getParallelism()));
+        SUBSCRIPTION_RESTORER.setResolutionTimeout(
+                getLong(config, RESTORE_RESOLUTION_TIMEOUT, SUBSCRIPTION_RESTORER.getResolutionTimeout()));
+
+        RECONNECT_ENGINE.setEnabled(getBoolean(config, AUTO_RECONNECT, RECONNECT_ENGINE.isEnabled()));
+        RECONNECT_ENGINE.setMaxConcurrent(
+                (int) getLong(config, RECONNECT_MAX_CONCURRENT, RECONNECT_ENGINE.getMaxConcurrent()));
+        RECONNECT_ENGINE.setMaxAttempts(
+                (int) getLong(config, RECONNECT_MAX_ATTEMPTS, RECONNECT_ENGINE.getMaxAttempts()));
+        RECONNECT_ENGINE.setDelays(getLong(config, RECONNECT_BASE_DELAY, RECONNECT_ENGINE.getBaseDelay()),
+                getLong(config, RECONNECT_MAX_DELAY, RECONNECT_ENGINE.getMaxDelay()));
+
+        if (config.containsKey(GATT_CACHE_DIRECTORY)) {
+            Object directory = config.get(GATT_CACHE_DIRECTORY);
+            GATT_SCHEMA_CACHE.setDirectory(directory != null && !directory.toString().trim().isEmpty()
+                    ? Paths.get(directory.toString().trim()) : null);
+        }
+        DEVICE_SNAPSHOT.setMaxAge(getLong(config, DEVICE_SNAPSHOT_MAX_AGE, DEVICE_SNAPSHOT.getMaxAge()));
+        DEVICE_SNAPSHOT.setInterval(getLong(config, DEVICE_SNAPSHOT_INTERVAL, DEVICE_SNAPSHOT.getInterval()));
+        if (config.containsKey(DEVICE_SNAPSHOT_FILE)) {
+            Object file = config.get(DEVICE_SNAPSHOT_FILE);
+            DEVICE_SNAPSHOT.setFile(file != null && !file.toString().trim().isEmpty()
+                    ? Paths.get(file.toString().trim()) : null);
+        }
+        CAPTURE_LOG.setSegmentSize((int) getLong(config, CAPTURE_SEGMENT_SIZE, CAPTURE_LOG.getSegmentSize()));
+        CAPTURE_LOG.setMaxSegments((int) getLong(config, CAPTURE_MAX_SEGMENTS, CAPTURE_LOG.getMaxSegments()));
+        if (config.containsKey(CAPTURE_DIRECTORY)) {
+            Object directory = config.get(CAPTURE_DIRECTORY);
+            CAPTURE_LOG.setDirectory(directory != null && !directory.toString().trim().isEmpty()
+                    ? Paths.get(directory.toString().trim()) : null);
+        }
+        LEAK_DETECTOR.setMaxAge(getLong(config, LEAK_DETECTION_MAX_AGE, LEAK_DETECTOR.getMaxAge()));
+        LEAK_DETECTOR.setEnabled(getBoolean(config, LEAK_DETECTION, LEAK_DETECTOR.isEnabled()));
+    }
+
+    /**
+     * Reads values of many characteristics in one go. Characteristics are grouped by devices, devices are read
+     * in parallel, but characteristics of the same device are read one after another.
+     * Devices must be connected.
+     * @param urls characteristic URLs
+     * @return values and errors keyed by characteristic URL
+     */
+    public BatchReadResult readValues(Collection<URL> urls) {
+        return batchReader.read(urls);
+    }
+
+    /**
+     * Schedules polling of a characteristic that does not support notifications. Read values are delivered
+     * to the notification. Disconnected devices are skipped, i.e. polling does not cause devices to connect.
+     * Any existing polling of the same characteristic is replaced.
+     * @param url characteristic URL
+     * @param interval polling interval in milliseconds
+     * @param notification notification to deliver read values to
+     */
+    public synchronized void schedulePolling(URL url, long interval, Notification<byte[]> notification) {
+        if (poller == null) {
+            poller = new CharacteristicPoller(this, dispatcher, pollingMergeWindow, pollingThreads);
+        }
+        poller.schedule(url, interval, notification);
+    }
+
+    /**
+     * Cancels polling of a characteristic.
+     * @param url characteristic URL
+     */
+    public synchronized void cancelPolling(URL url) {
+        if (poller != null) {
+            poller.cancel(url);
+        }
+    }
+
+    /**
+     * Returns discovered devices advertising a service. Requires the device registry to be enabled.
+     * @param uuid service UUID (full or short form)
+     * @return device URLs
+     */
+    public Set<URL> getDevicesByService(String uuid) {
+        return getDeviceRegistry().getDevicesByService(uuid);
+    }
+
+    /**
+     * Returns discovered devices advertising manufacturer data. Requires the device registry to be enabled.
+     * @param manufacturerId manufacturer ID
+     * @return device URLs
+     */
+    public Set<URL> getDevicesByManufacturer(int manufacturerId) {
+        return getDeviceRegistry().getDevicesByManufacturer(manufacturerId);
+    }
+
+    /**
+     * Returns discovered devices seen since a moment in time. Requires the device registry to be enabled.
+     * @param timestamp timestamp (ms)
+     * @return device URLs
+     */
+    public Set<URL> getDevicesSeenSince(long timestamp) {
+        return getDeviceRegistry().getDevicesSeenSince(timestamp);
+    }
+
+    /**
+     * Returns cached GATT layout of a device, which is available before services of the device get resolved.
+     * Requires {@link #GATT_CACHE_DIRECTORY} to be configured.
+     * @param url device URL
+     * @return characteristic URLs and their flags, an empty map if the device is not cached
+     */
+    public Map<URL, Set<CharacteristicAccessType>> getCachedCharacteristics(URL url) {
+        GattSchemaCache.Schema schema = getGattSchemaCache().getSchema(url);
+        if (schema == null) {
+            return Collections.emptyMap();
+        }
+        Map<URL, Set<CharacteristicAccessType>> result = new LinkedHashMap<>();
+        URL deviceURL = url.getDeviceURL();
+        schema.getServices().forEach((service, characteristics) -> characteristics.forEach((uuid, characteristic) ->
+                result.put(deviceURL.copyWithService(service.toString()).copyWithCharacteristic(uuid.toString()),
+                        TinyBCharacteristic.convert(characteristic.getFlags()))));
+        return result;
+    }
+
+    /**
+     * Adds a listener of decoded advertisements (iBeacon, Eddystone and SIG service data). Advertisements are
+     * decoded for devices whose manufacturer data or service data notifications are enabled.
+     * @param listener listener
+     */
+    public void addAdvertisementListener(AdvertisementDecoder.Listener listener) {
+        getAdvertisementDecoder().addListener(listener);
+    }
+
+    /**
+     * Removes a listener of decoded advertisements.
+     * @param listener listener
+     */
+    public void removeAdvertisementListener(AdvertisementDecoder.Listener listener) {
+        getAdvertisementDecoder().removeListener(listener);
+    }
+
+    /**
+     * Returns a snapshot of transport metrics.
+     * @return metrics
+     */
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new TreeMap<>();
+        getWatchdog().reportMetrics(metrics);
+        getRetryPolicy().reportMetrics(metrics);
+        getWriteCoalescer().reportMetrics(metrics);
+        getConnectionManager().reportMetrics(metrics);
+        getAdapterBalancer().reportMetrics(metrics);
+        getDiscoveryScheduler().reportMetrics(metrics);
+        getDiscoveryFilter().reportMetrics(metrics);
+        getAdvertisementFilter().reportMetrics(metrics);
+        getDeviceRegistry().reportMetrics(metrics);
+        getStaleDeviceEvictor().reportMetrics(metrics);
+        getDisposer().reportMetrics(metrics);
+        getSubscriptionRestorer().reportMetrics(metrics);
+        getReconnectEngine().reportMetrics(metrics);
+        getGattSchemaCache().reportMetrics(metrics);
+        getDeviceSnapshot().reportMetrics(metrics);
+        getCaptureLog().reportMetrics(metrics);
+        getLeakDetector().reportMetrics(metrics);
+        dispatcher.reportMetrics(metrics);
+        synchronized (this) {
+            if (poller != null) {
+                poller.reportMetrics(metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns native objects (other than adapters) held for longer than {@link #LEAK_DETECTION_MAX_AGE},
+     * grouped by URL.
+     * Leak detection must be enabled, see {@link #LEAK_DETECTION}.
+     * @return report lines, one per URL
+     */
+    public List<String> getLeakReport() {
+        return getLeakDetector().report();
+    }
 
     /**
      * Disposing TinyB factory by closing/disposing all adapters, devices and services.
+     * Objects are closed in parallel, see {@link #DISPOSAL_PARALLELISM} and {@link #DISPOSAL_DEADLINE}.
+     * The notification executor is drained, see {@link #NOTIFICATION_DRAIN_TIMEOUT}.
+     * Native objects and components shared by all factories are disposed only by the last live factory,
+     * so that disposing a factory (e.g. when the transport gets redeployed) does not break another one.
      */
     public void dispose() {
-        try {
-            BluetoothManager bluetoothManager = BluetoothManager.getBluetoothManager();
-            bluetoothManager.stopDiscovery();
-            bluetoothManager.getServices().forEach(TinyBFactory::closeSilently);
-            bluetoothManager.getDevices().forEach(TinyBFactory::closeSilently);
-            bluetoothManager.getAdapters().forEach(TinyBFactory::closeSilently);
-        } catch (Exception ex) {
-            LOGGER.debug("Error occurred while disposing TinyB manager: {}", ex.getMessage());
+        synchronized (this) {
+            if (poller != null) {
+                poller.dispose();
+                poller = null;
+            }
+        }
+        batchReader.dispose();
+        boolean last;
+        synchronized (TinyBFactory.class) {
+            if (!disposed) {
+                disposed = true;
+                liveFactories--;
+            }
+            last = liveFactories == 0;
+        }
+        if (last) {
+            disposeShared();
+        } else {
+            LOGGER.debug("Transport is used by other factories, shared components are not disposed");
         }
+        dispatcher.shutdown(notificationDrainTimeout);
     }
 
     @Override
     public void dispose(URL url) {
         LOGGER.debug("Bluetooth object disposal requested: {}", url);
+        URL nativeURL = url.isAdapter() ? url : getAdapterBalancer().resolve(url);
         BluetoothAdapter adapter = (BluetoothAdapter) BluetoothManager.getBluetoothManager().getObject(
-                BluetoothType.ADAPTER, null, url.getAdapterAddress(), null);
+                BluetoothType.ADAPTER, null, nativeURL.getAdapterAddress(), null);
         if (url.isAdapter()) {
             TinyBAdapter.dispose(adapter);
         } else if (url.isDevice() || url.isCharacteristic()) {
@@ -217,7 +682,7 @@ public class TinyBFactory implements BluetoothObjectFactory {
                     BluetoothType.DEVICE, null, url.getDeviceAddress(), adapter);
             if (device != null) {
                 if (url.isDevice()) {
-                    TinyBDevice.dispose(device);
+                    TinyBDevice.dispose(nativeURL, device);
                 } else {
                     runSilently(device::disconnect);
                 }
@@ -225,32 +690,161 @@ public class TinyBFactory implements BluetoothObjectFactory {
         }
     }
 
+    private static void disposeShared() {
+        getDeviceRegistry().clear();
+        getStaleDeviceEvictor().dispose();
+        getSubscriptionRestorer().dispose();
+        getReconnectEngine().dispose();
+        getDiscoveryScheduler().dispose();
+        getGattSchemaCache().dispose();
+        getDeviceSnapshot().dispose();
+        getCaptureLog().dispose();
+        try {
+            BluetoothManager bluetoothManager = BluetoothManager.getBluetoothManager();
+            bluetoothManager.stopDiscovery();
+            ParallelDisposer disposer = getDisposer();
+            long until = disposer.deadlineFromNow();
+            disposer.dispose("service", bluetoothManager.getServices(), TinyBFactory::closeSilently, until);
+            disposer.dispose("device", bluetoothManager.getDevices(), TinyBFactory::closeSilently, until);
+            disposer.dispose("adapter", bluetoothManager.getAdapters(), TinyBFactory::closeSilently, until);
+        } catch (Exception ex) {
+            LOGGER.debug("Error occurred while disposing TinyB manager: {}", ex.getMessage());
+        }
+        getWatchdog().dispose();
+        getLeakDetector().dispose();
+    }
+
     static void runSilently(Runnable func) {
         try {
             func.run();
         } catch (Exception ignore) { /* do nothing */ }
     }
 
-    static void notifySafely(Runnable noticator, Logger logger, String errorMessage) {
-        getNotificationService().submit(() -> {
-            try {
-                noticator.run();
-            } catch (Exception ex) {
-                logger.error(errorMessage, ex);
-            }
-        });
+
+    static OperationWatchdog getWatchdog() {
+        return WATCHDOG;
     }
 
-    private static ExecutorService getNotificationService() {
-        return NOTIFICATION_SERVICE;
+    static RetryPolicy getRetryPolicy() {
+        return RETRY_POLICY;
     }
 
-    private static void closeSilently(AutoCloseable autoCloseable) {
+    static WriteCoalescer getWriteCoalescer() {
+        return WRITE_COALESCER;
+    }
+
+    static ConnectionManager getConnectionManager() {
+        return CONNECTION_MANAGER;
+    }
+
+    static AdapterBalancer getAdapterBalancer() {
+        return ADAPTER_BALANCER;
+    }
+
+    static DiscoveryScheduler getDiscoveryScheduler() {
+        return DISCOVERY_SCHEDULER;
+    }
+
+    static DiscoveryFilter getDiscoveryFilter() {
+        return DISCOVERY_FILTER;
+    }
+
+    static AdvertisementFilter getAdvertisementFilter() {
+        return ADVERTISEMENT_FILTER;
+    }
+
+    static AdvertisementDecoder getAdvertisementDecoder() {
+        return ADVERTISEMENT_DECODER;
+    }
+
+    static DeviceRegistry getDeviceRegistry() {
+        return REGISTRY;
+    }
+
+    static StaleDeviceEvictor getStaleDeviceEvictor() {
+        return EVICTOR;
+    }
+
+    static ParallelDisposer getDisposer() {
+        return DISPOSER;
+    }
+
+    static SubscriptionRestorer getSubscriptionRestorer() {
+        return SUBSCRIPTION_RESTORER;
+    }
+
+    static ReconnectEngine getReconnectEngine() {
+        return RECONNECT_ENGINE;
+    }
+
+    static GattSchemaCache getGattSchemaCache() {
+        return GATT_SCHEMA_CACHE;
+    }
+
+    static DeviceSnapshot getDeviceSnapshot() {
+        return DEVICE_SNAPSHOT;
+    }
+
+    static CaptureLog getCaptureLog() {
+        return CAPTURE_LOG;
+    }
+
+    static NativeLeakDetector getLeakDetector() {
+        return LEAK_DETECTOR;
+    }
+
+    static long getLong(Map<String, Object> config, String key, long defaultValue) {
+        Object value = config.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value != null) {
+            return Long.parseLong(value.toString().trim());
+        }
+        return defaultValue;
+    }
+
+    static boolean getBoolean(Map<String, Object> config, String key, boolean defaultValue) {
+        Object value = config.get(key);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value != null) {
+            return Boolean.parseBoolean(value.toString().trim());
+        }
+        return defaultValue;
+    }
+
+    private static void closeSilently(BluetoothObject object) {
         try {
-            autoCloseable.close();
+            object.close();
+            getLeakDetector().closed(object);
         } catch (Exception ignore) { /* do nothing */ }
     }
 
+    static List<String> getList(Map<String, Object> config, String key) {
+        Object value = config.get(key);
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().map(item -> item.toString().trim()).collect(Collectors.toList());
+        } else if (value != null) {
+            return Stream.of(value.toString().split(",")).map(String::trim).filter(item -> !item.isEmpty())
+                    .collect(Collectors.toList());
+        }
+        return Collections.emptyList();
+    }
+
+    private static DiscoveryFilter.Filter getFilter(Map<String, Object> config, String suffix,
+            DiscoveryFilter.Filter defaults) {
+        Collection<UUID> filterUUIDs = defaults.getUUIDs();
+        if (config.containsKey(DISCOVERY_FILTER_UUIDS + suffix)) {
+            filterUUIDs = getList(config, DISCOVERY_FILTER_UUIDS + suffix).stream()
+                    .map(UUIDs::parse).collect(Collectors.toList());
+        }
+        short rssi = (short) getLong(config, DISCOVERY_FILTER_RSSI + suffix, defaults.getRSSI());
+        Object transport = config.get(DISCOVERY_FILTER_TRANSPORT + suffix);
+        TransportType transportType = transport != null
+                ? TransportType.valueOf(transport.toString().trim().toUpperCase()) : defaults.getTransport();
+        return new DiscoveryFilter.Filter(filterUUIDs, rssi, transportType);
+    }
+
     private static DiscoveredDevice convert(BluetoothDevice device) {
         return new DiscoveredDevice(new URL(TINYB_PROTOCOL_NAME,
                 device.getAdapter().getAddress(), device.getAddress()),
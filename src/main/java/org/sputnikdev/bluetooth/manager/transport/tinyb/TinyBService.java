@@ -40,10 +40,13 @@ class TinyBService implements Service {
 
     private final URL url;
     private final BluetoothGattService service;
+    private final NotificationDispatcher dispatcher;
 
-    TinyBService(URL url, BluetoothGattService service) {
+    TinyBService(URL url, BluetoothGattService service, NotificationDispatcher dispatcher) {
         this.url = url;
         this.service = service;
+        this.dispatcher = dispatcher;
+        TinyBFactory.getLeakDetector().track(service, url);
     }
 
     @Override
@@ -57,7 +60,7 @@ class TinyBService implements Service {
         List<Characteristic> result = new ArrayList<>(characteristics.size());
         for (BluetoothGattCharacteristic nativeCharacteristic : characteristics) {
             result.add(new TinyBCharacteristic(
-                    url.copyWithCharacteristic(nativeCharacteristic.getUUID()),nativeCharacteristic));
+                    url.copyWithCharacteristic(nativeCharacteristic.getUUID()),nativeCharacteristic, dispatcher));
         }
         return Collections.unmodifiableList(result);
     }
@@ -0,0 +1,114 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.UUID;
+
+/**
+ * UUID helpers. Bluetooth SIG UUIDs are based on the Bluetooth base UUID and can be represented in their 16 bit
+ * short form, others are kept as two longs ({@link UUID}). Parsing does not use regular expressions and does not
+ * allocate intermediate strings.
+ */
+final class UUIDs {
+
+    private static final long BASE_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private static final long BASE_LEAST_SIGNIFICANT_BITS = 0x800000805f9b34fbL;
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805f9b34fb";
+
+    private UUIDs() { }
+
+    /**
+     * Parses a UUID, short (16 or 32 bit) UUIDs are expanded with the Bluetooth base UUID.
+     * @param uuid UUID string, e.g. "180f", "0000180f" or "0000180f-0000-1000-8000-00805f9b34fb"
+     * @return UUID
+     */
+    static UUID parse(String uuid) {
+        String value = uuid.trim();
+        if (value.length() == 4 || value.length() == 8) {
+            return fromShort(parseHex(value, 0, value.length()));
+        }
+        if (value.length() != 36 || value.charAt(8) != '-' || value.charAt(13) != '-' || value.charAt(18) != '-'
+                || value.charAt(23) != '-') {
+            throw new IllegalArgumentException("Invalid UUID: " + uuid);
+        }
+        long most = parseHex(value, 0, 8) << 32 | parseHex(value, 9, 13) << 16 | parseHex(value, 14, 18);
+        long least = parseHex(value, 19, 23) << 48 | parseHex(value, 24, 36);
+        return new UUID(most, least);
+    }
+
+    /**
+     * Expands a short (16 or 32 bit) UUID with the Bluetooth base UUID.
+     * @param uuid short UUID
+     * @return UUID
+     */
+    static UUID fromShort(long uuid) {
+        return new UUID(uuid << 32 | BASE_MOST_SIGNIFICANT_BITS, BASE_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * Returns 16 bit short form of a UUID.
+     * @param uuid UUID
+     * @return 16 bit UUID or -1 if the UUID is not based on the Bluetooth base UUID
+     */
+    static int toShort(UUID uuid) {
+        long most = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_LEAST_SIGNIFICANT_BITS
+                || (most & 0xffffffffL) != BASE_MOST_SIGNIFICANT_BITS || most >>> 32 > 0xffff) {
+            return -1;
+        }
+        return (int) (most >>> 32);
+    }
+
+    /**
+     * Extracts a 16 bit UUID from a SIG based UUID string without allocating.
+     * @param uuid UUID string, e.g. "0000feaa-0000-1000-8000-00805f9b34fb"
+     * @return 16 bit UUID or -1 if the UUID is not based on the Bluetooth base UUID
+     */
+    static int toShort(String uuid) {
+        if (uuid == null || uuid.length() != 36 || uuid.charAt(0) != '0' || uuid.charAt(1) != '0'
+                || uuid.charAt(2) != '0' || uuid.charAt(3) != '0'
+                || !uuid.regionMatches(true, 8, BASE_UUID_SUFFIX, 0, BASE_UUID_SUFFIX.length())) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = 4; i < 8; i++) {
+            int digit = Character.digit(uuid.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            result = result << 4 | digit;
+        }
+        return result;
+    }
+
+    private static long parseHex(String value, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid UUID: " + value);
+            }
+            result = result << 4 | digit;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,211 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Coalesces characteristic writes with "last write wins" semantics. While a write to a characteristic is in flight,
+ * any following writes do not queue up behind it, instead they replace a single pending value, so that only
+ * the newest value is written next. Callers whose values have been superseded get the result of the write that
+ * has actually been made. Slots of characteristics are dropped as soon as nobody writes to them.
+ */
+class WriteCoalescer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    private final Map<URL, Slot> slots = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+    private volatile boolean enabled;
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    long getWrites() {
+        return writes.get();
+    }
+
+    long getSuperseded() {
+        return superseded.get();
+    }
+
+    void reportMetrics(Map<String, Number> metrics) {
+        metrics.put("coalescing.writes", getWrites());
+        metrics.put("coalescing.superseded", getSuperseded());
+        metrics.put("coalescing.slots", slots.size());
+    }
+
+    /**
+     * Writes a value or coalesces it with a pending write to the same characteristic.
+     * @param url characteristic URL
+     * @param value value to write
+     * @param writer actual (blocking) write operation
+     * @return result of the write operation that has carried the value (or a newer one)
+     */
+    boolean write(URL url, byte[] value, Function<byte[], Boolean> writer) {
+        Slot slot;
+        do {
+            slot = slots.computeIfAbsent(url.getCharacteristicURL(), Slot::new);
+        } while (!slot.acquire());
+        try {
+            return slot.write(url, value, writer);
+        } finally {
+            slot.release();
+        }
+    }
+
+    private final class Slot {
+
+        private final URL key;
+        private int users;
+        private boolean retired;
+        private boolean inFlight;
+        private Pending next;
+
+        private Slot(URL key) {
+            this.key = key;
+        }
+
+        private synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        private synchronized void release() {
+            if (--users == 0) {
+                // idle, nothing is in flight or pending
+                retired = true;
+                slots.remove(key, this);
+            }
+        }
+
+        private boolean write(URL url, byte[] value, Function<byte[], Boolean> writer) {
+            Pending pending;
+            boolean owner = false;
+            synchronized (this) {
+                if (!inFlight && next == null) {
+                    inFlight = true;
+                    pending = null;
+                } else if (next != null) {
+                    next.value = value;
+                    superseded.incrementAndGet();
+                    LOGGER.debug("Pending write superseded: {}", url);
+                    pending = next;
+                } else {
+                    next = new Pending(value);
+                    pending = next;
+                    owner = true;
+                }
+            }
+            if (pending == null) {
+                return doWrite(value, writer);
+            }
+            if (!owner) {
+                return await(pending);
+            }
+            // the owner of the pending write makes it as soon as the in-flight write completes
+            byte[] latest;
+            boolean interrupted = false;
+            synchronized (this) {
+                while (inFlight) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // the pending write must be made anyway as other callers may be waiting for it
+                        interrupted = true;
+                    }
+                }
+                inFlight = true;
+                next = null;
+                latest = pending.value;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                boolean result = doWrite(latest, writer);
+                pending.result.complete(result);
+                return result;
+            } catch (RuntimeException | Error ex) {
+                // other callers are waiting for the pending write, it must be completed whatever happens
+                pending.result.completeExceptionally(ex);
+                throw ex;
+            }
+        }
+
+        private boolean doWrite(byte[] value, Function<byte[], Boolean> writer) {
+            try {
+                writes.incrementAndGet();
+                return writer.apply(value);
+            } finally {
+                synchronized (this) {
+                    inFlight = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        private boolean await(Pending pending) {
+            try {
+                return pending.result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TinyBException("Interrupted while waiting for a coalesced write", ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw cause instanceof RuntimeException
+                        ? (RuntimeException) cause : new TinyBException(cause.getMessage(), cause);
+            }
+        }
+    }
+
+    private static final class Pending {
+
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private byte[] value;
+
+        private Pending(byte[] value) {
+            this.value = value;
+        }
+    }
+
+}
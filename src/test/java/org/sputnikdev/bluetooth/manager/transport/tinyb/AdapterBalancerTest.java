@@ -0,0 +1,143 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothManager;
+import tinyb.BluetoothType;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class)
+@SuppressStaticInitializationFor({"tinyb.BluetoothManager", "tinyb.BluetoothObject"})
+@PrepareForTest(BluetoothManager.class)
+public class AdapterBalancerTest {
+
+    private static final URL ADAPTER_1 = new URL("tinyb:/11:22:33:44:55:61");
+    private static final URL ADAPTER_2 = new URL("tinyb:/11:22:33:44:55:62");
+    private static final URL DEVICE = ADAPTER_1.copyWithDevice("10:20:30:40:50:60");
+    private static final URL CHARACTERISTIC = DEVICE.copyWithService("0180").copyWithCharacteristic("aa11");
+
+    private BluetoothManager bluetoothManager = mock(BluetoothManager.class);
+    private BluetoothAdapter adapter1 = mock(BluetoothAdapter.class);
+    private BluetoothAdapter adapter2 = mock(BluetoothAdapter.class);
+    private BluetoothDevice device1 = mock(BluetoothDevice.class);
+    private BluetoothDevice device2 = mock(BluetoothDevice.class);
+
+    private ConnectionManager connectionManager = new ConnectionManager();
+    private AdapterBalancer balancer = new AdapterBalancer(connectionManager);
+
+    @Before
+    public void setUp() {
+        PowerMockito.mockStatic(BluetoothManager.class);
+        when(BluetoothManager.getBluetoothManager()).thenReturn(bluetoothManager);
+        when(bluetoothManager.getAdapters()).thenReturn(Arrays.asList(adapter1, adapter2));
+        when(adapter1.getAddress()).thenReturn(ADAPTER_1.getAdapterAddress());
+        when(adapter2.getAddress()).thenReturn(ADAPTER_2.getAdapterAddress());
+        when(bluetoothManager.getObject(BluetoothType.DEVICE, null, DEVICE.getDeviceAddress(), adapter1))
+                .thenReturn(device1);
+        when(bluetoothManager.getObject(BluetoothType.DEVICE, null, DEVICE.getDeviceAddress(), adapter2))
+                .thenReturn(device2);
+        when(device1.getRSSI()).thenReturn((short) -70);
+        when(device2.getRSSI()).thenReturn((short) -70);
+        balancer.setEnabled(true);
+    }
+
+    @Test
+    public void testPlaceByLoad() {
+        connectionManager.connect(ADAPTER_1.copyWithDevice("10:20:30:40:50:01"), () -> true, () -> { }, () -> true);
+
+        assertSame(device2, balancer.place(DEVICE));
+        assertEquals(ADAPTER_2.getAdapterAddress(), balancer.resolve(CHARACTERISTIC).getAdapterAddress());
+        assertEquals(CHARACTERISTIC.getCharacteristicUUID(), balancer.resolve(CHARACTERISTIC).getCharacteristicUUID());
+    }
+
+    @Test
+    public void testPlaceByRSSI() {
+        when(device1.getRSSI()).thenReturn((short) -50);
+        when(device2.getRSSI()).thenReturn((short) -90);
+
+        assertSame(device1, balancer.place(DEVICE));
+        assertEquals(CHARACTERISTIC, balancer.resolve(CHARACTERISTIC));
+    }
+
+    @Test
+    public void testPlaceBySuccessRate() {
+        balancer.connected(ADAPTER_1, false);
+        balancer.connected(ADAPTER_1, false);
+        assertTrue(balancer.getSuccessRate(ADAPTER_1) < balancer.getSuccessRate(ADAPTER_2));
+
+        assertSame(device2, balancer.place(DEVICE));
+    }
+
+    @Test
+    public void testSuccessRateSeeded() {
+        balancer.connected(ADAPTER_1, false);
+
+        assertEquals(0.8, balancer.getSuccessRate(ADAPTER_1), 0.001);
+        balancer.connected(ADAPTER_1, true);
+        assertEquals(0.84, balancer.getSuccessRate(ADAPTER_1), 0.001);
+    }
+
+    @Test
+    public void testPlacementCached() {
+        when(bluetoothManager.getObject(BluetoothType.ADAPTER, null, ADAPTER_2.getAdapterAddress(), null))
+                .thenReturn(adapter2);
+        when(device1.getRSSI()).thenReturn((short) -90);
+        assertSame(device2, balancer.getDevice(DEVICE));
+
+        when(device2.getRSSI()).thenReturn((short) -90);
+        when(device1.getRSSI()).thenReturn((short) -40);
+        assertSame(device2, balancer.getDevice(DEVICE));
+        verify(bluetoothManager, times(1)).getAdapters();
+
+        balancer.connected(ADAPTER_2.copyWithDevice(DEVICE.getDeviceAddress()), false);
+        assertSame(device1, balancer.getDevice(DEVICE));
+        verify(bluetoothManager, times(2)).getAdapters();
+    }
+
+    @Test
+    public void testConnectedDeviceStays() {
+        when(device2.getRSSI()).thenReturn((short) -40);
+        when(device1.getConnected()).thenReturn(true);
+
+        assertSame(device1, balancer.place(DEVICE));
+    }
+
+    @Test
+    public void testNotVisible() {
+        when(bluetoothManager.getObject(BluetoothType.DEVICE, null, DEVICE.getDeviceAddress(), adapter1))
+                .thenReturn(null);
+        when(bluetoothManager.getObject(BluetoothType.DEVICE, null, DEVICE.getDeviceAddress(), adapter2))
+                .thenReturn(null);
+
+        assertNull(balancer.place(DEVICE));
+        assertEquals(DEVICE, balancer.resolve(DEVICE));
+    }
+
+    @Test
+    public void testDisabled() {
+        when(device1.getRSSI()).thenReturn((short) -90);
+        balancer.place(DEVICE);
+        balancer.setEnabled(false);
+
+        assertEquals(CHARACTERISTIC, balancer.resolve(CHARACTERISTIC));
+    }
+
+}
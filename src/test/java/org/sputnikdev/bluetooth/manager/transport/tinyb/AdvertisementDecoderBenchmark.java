@@ -0,0 +1,119 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+/*-
+ * #%L
+ * org.sputnikdev:bluetooth-manager-tinyb
+ * %%
+ * Copyright (C) 2017 Sputnik Dev
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.sputnikdev.bluetooth.URL;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A micro benchmark of {@link AdvertisementDecoder} reporting time and heap allocation per decoded advertisement.
+ * Allocation is reported only on JVMs that provide com.sun.management.ThreadMXBean.
+ * Not a unit test, run it manually:
+ * <pre>java -cp target/classes:target/test-classes:... AdvertisementDecoderBenchmark [iterations]</pre>
+ */
+public final class AdvertisementDecoderBenchmark {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+    private static final byte[] IBEACON = {0x02, 0x15,
+        (byte) 0xe2, (byte) 0xc5, 0x6d, (byte) 0xb5, (byte) 0xdf, (byte) 0xfb, 0x48, (byte) 0xd2,
+        (byte) 0xb0, 0x60, (byte) 0xd0, (byte) 0xf5, (byte) 0xa7, 0x10, (byte) 0x96, (byte) 0xe0,
+        0x00, 0x01, 0x01, 0x02, (byte) 0xc5};
+    private static final byte[] TLM = {0x20, 0x00, 0x0b, (byte) 0xb8, 0x15, (byte) 0x80, 0, 0, 0x01, 0, 0, 0, 0, 0x0a};
+
+    private static final Method ALLOCATED_BYTES = getAllocatedBytesMethod();
+
+    private static long sink;
+
+    private AdvertisementDecoderBenchmark() { }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        AdvertisementDecoder decoder = new AdvertisementDecoder();
+        decoder.addListener(new AdvertisementDecoder.Listener() {
+            @Override public void onIBeacon(URL url, AdvertisementDecoder.IBeacon beacon) {
+                sink += beacon.getMajor() + beacon.getMinor();
+            }
+
+            @Override public void onEddystoneTLM(URL url, AdvertisementDecoder.EddystoneTLM tlm) {
+                sink += tlm.getAdvertisingCount();
+            }
+        });
+        Map<Short, byte[]> manufacturerData = Collections.singletonMap((short) 0x004c, IBEACON);
+        Map<String, byte[]> serviceData = Collections.singletonMap("0000feaa-0000-1000-8000-00805f9b34fb", TLM);
+
+        run("iBeacon (raw)", iterations, () -> decoder.decodeManufacturerData(DEVICE, (short) 0x004c,
+                IBEACON, 0, IBEACON.length));
+        run("iBeacon (map)", iterations, () -> decoder.decodeManufacturerData(DEVICE, manufacturerData));
+        run("Eddystone TLM (raw)", iterations, () -> decoder.decodeServiceData(DEVICE, 0xfeaa, TLM, 0,
+                TLM.length));
+        run("Eddystone TLM (map)", iterations, () -> decoder.decodeServiceData(DEVICE, serviceData));
+        System.out.println("sink: " + sink);
+    }
+
+    private static void run(String name, int iterations, Runnable decode) {
+        // warm up
+        for (int i = 0; i < iterations / 10; i++) {
+            decode.run();
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = getAllocatedBytes(threads, thread);
+        long started = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            decode.run();
+        }
+        long elapsed = System.nanoTime() - started;
+        long allocatedAfter = getAllocatedBytes(threads, thread);
+        if (allocatedBefore < 0 || allocatedAfter < 0) {
+            System.out.printf("%-22s %8.1f ns/op %8s bytes/op%n", name, (double) elapsed / iterations, "n/a");
+        } else {
+            System.out.printf("%-22s %8.1f ns/op %8.3f bytes/op%n", name, (double) elapsed / iterations,
+                    (double) (allocatedAfter - allocatedBefore) / iterations);
+        }
+    }
+
+    private static Method getAllocatedBytesMethod() {
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return method.getDeclaringClass().isInstance(ManagementFactory.getThreadMXBean()) ? method : null;
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threads, long thread) {
+        if (ALLOCATED_BYTES == null) {
+            return -1;
+        }
+        try {
+            return (Long) ALLOCATED_BYTES.invoke(threads, thread);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return -1;
+        }
+    }
+
+}
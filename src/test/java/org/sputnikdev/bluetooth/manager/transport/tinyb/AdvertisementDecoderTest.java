@@ -0,0 +1,122 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementDecoderTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+    private static final String EDDYSTONE = "0000feaa-0000-1000-8000-00805f9b34fb";
+
+    private AdvertisementDecoder decoder;
+    private final List<Object> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        decoder = new AdvertisementDecoder();
+        decoder.addListener(new AdvertisementDecoder.Listener() {
+            @Override public void onIBeacon(URL url, AdvertisementDecoder.IBeacon beacon) {
+                events.add(beacon.getProximityUUID() + "/" + beacon.getMajor() + "/" + beacon.getMinor() + "/"
+                        + beacon.getTxPower());
+            }
+
+            @Override public void onEddystoneUID(URL url, AdvertisementDecoder.EddystoneUID uid) {
+                events.add(uid);
+            }
+
+            @Override public void onEddystoneURL(URL url, AdvertisementDecoder.EddystoneURL eddystoneURL) {
+                events.add(eddystoneURL.getURL());
+            }
+
+            @Override public void onEddystoneTLM(URL url, AdvertisementDecoder.EddystoneTLM tlm) {
+                events.add(tlm.getBatteryVoltage() + "/" + tlm.getTemperature() + "/" + tlm.getAdvertisingCount()
+                        + "/" + tlm.getUptime());
+            }
+
+            @Override public void onSensorReading(URL url, AdvertisementDecoder.SensorReading reading) {
+                events.add(reading.getType() + "=" + reading.getValue());
+            }
+        });
+    }
+
+    @Test
+    public void testIBeacon() {
+        byte[] data = {0x02, 0x15,
+            (byte) 0xe2, (byte) 0xc5, 0x6d, (byte) 0xb5, (byte) 0xdf, (byte) 0xfb, 0x48, (byte) 0xd2,
+            (byte) 0xb0, 0x60, (byte) 0xd0, (byte) 0xf5, (byte) 0xa7, 0x10, (byte) 0x96, (byte) 0xe0,
+            0x00, 0x01, 0x01, 0x02, (byte) 0xc5};
+        decoder.decodeManufacturerData(DEVICE, Collections.singletonMap((short) 0x004c, data));
+
+        assertEquals(Collections.singletonList(UUID.fromString("e2c56db5-dffb-48d2-b060-d0f5a71096e0")
+                + "/1/258/-59"), events);
+
+        // not an Apple beacon
+        decoder.decodeManufacturerData(DEVICE, Collections.singletonMap((short) 0x0059, data));
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void testEddystoneUID() {
+        byte[] data = {0x00, (byte) 0xee, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 0, 0, 0, 0, 0x01, 0x02, 0, 0};
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap(EDDYSTONE, data));
+
+        AdvertisementDecoder.EddystoneUID uid = (AdvertisementDecoder.EddystoneUID) events.get(0);
+        assertEquals(-18, uid.getTxPower());
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, uid.getNamespace());
+        assertEquals(0x0102, uid.getInstance());
+    }
+
+    @Test
+    public void testEddystoneURL() {
+        byte[] data = {0x10, (byte) 0xee, 0x03, 'g', 'i', 't', 'h', 'u', 'b', 0x00, 's', 'p'};
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap(EDDYSTONE, data));
+        assertEquals(Collections.singletonList("https://github.com/sp"), events);
+    }
+
+    @Test
+    public void testEddystoneTLM() {
+        byte[] data = {0x20, 0x00, 0x0b, (byte) 0xb8, 0x15, (byte) 0x80, 0, 0, 0x01, 0x00, 0, 0, 0, 0x0a};
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap(EDDYSTONE, data));
+        assertEquals(Collections.singletonList("3000/21.5/256/1000"), events);
+    }
+
+    @Test
+    public void testSensorReadings() {
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap("0000180f-0000-1000-8000-00805f9b34fb",
+                new byte[] {87}));
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap("00002A6E-0000-1000-8000-00805F9B34FB",
+                new byte[] {(byte) 0x0c, (byte) 0xfe}));
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap("00002a6f-0000-1000-8000-00805f9b34fb",
+                new byte[] {(byte) 0x88, 0x13}));
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap("00002a6d-0000-1000-8000-00805f9b34fb",
+                new byte[] {0x20, 0x71, 0x0f, 0x00}));
+        // unknown service
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap("0000180a-0000-1000-8000-00805f9b34fb",
+                new byte[] {1}));
+
+        assertEquals(4, events.size());
+        assertEquals("BATTERY_LEVEL=87.0", events.get(0));
+        assertEquals("TEMPERATURE=-5.0", events.get(1));
+        assertEquals("HUMIDITY=50.0", events.get(2));
+        assertEquals("PRESSURE=101200.0", events.get(3));
+    }
+
+    @Test
+    public void testTruncatedPayloads() {
+        decoder.decodeManufacturerData(DEVICE, Collections.singletonMap((short) 0x004c, new byte[] {0x02, 0x15}));
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap(EDDYSTONE, new byte[] {0x00, 0x01}));
+        decoder.decodeServiceData(DEVICE, Collections.singletonMap(EDDYSTONE, new byte[] {0x20}));
+        assertTrue(events.isEmpty());
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.LongStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementFilterTest {
+
+    private static final long DEVICE_1 = DeviceKey.parseAddress("10:20:30:40:50:61");
+    private static final long DEVICE_2 = DeviceKey.parseAddress("10:20:30:40:50:62");
+    private static final short APPLE = 0x004c;
+    private static final short NORDIC = 0x0059;
+
+    private AdvertisementFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new AdvertisementFilter();
+    }
+
+    @Test
+    public void testDisabled() {
+        assertFalse(filter.isEnabled());
+        assertTrue(filter.accept(DEVICE_1));
+        assertTrue(filter.accept(DEVICE_1, Collections.singletonMap(APPLE, new byte[0])));
+
+        Map<String, Number> metrics = new HashMap<>();
+        filter.reportMetrics(metrics);
+        assertEquals(0L, metrics.get("advertisement.passed"));
+    }
+
+    @Test
+    public void testAllowedAddresses() {
+        filter.setAllowedAddresses(Collections.singletonList("10:20:30:40:50:61"));
+        assertTrue(filter.isEnabled());
+        assertTrue(filter.accept(DEVICE_1));
+        assertFalse(filter.accept(DEVICE_2));
+        assertFalse(filter.accept(DEVICE_2, Collections.singletonMap(APPLE, new byte[0])));
+
+        Map<String, Number> metrics = new HashMap<>();
+        filter.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("advertisement.passed"));
+        assertEquals(2L, metrics.get("advertisement.dropped.address"));
+    }
+
+    @Test
+    public void testDeniedAddresses() {
+        filter.setAllowedAddresses(Arrays.asList("10:20:30:40:50:61", "10:20:30:40:50:62"));
+        filter.setDeniedAddresses(Collections.singletonList("10:20:30:40:50:62"));
+        assertTrue(filter.accept(DEVICE_1));
+        assertFalse(filter.accept(DEVICE_2));
+        assertTrue(filter.accept(AdvertisementFilter.UNKNOWN_ADDRESS));
+    }
+
+    @Test
+    public void testManufacturers() {
+        filter.setAllowedManufacturers(Collections.singletonList(0x004c));
+        Map<Short, byte[]> data = new HashMap<>();
+        data.put(NORDIC, new byte[0]);
+        assertFalse(filter.accept(DEVICE_1, data));
+        data.put(APPLE, new byte[0]);
+        assertTrue(filter.accept(DEVICE_1, data));
+        // manufacturer filter does not affect RSSI notifications
+        assertTrue(filter.accept(DEVICE_2));
+
+        filter.setAllowedManufacturers(Collections.emptyList());
+        filter.setDeniedManufacturers(Collections.singletonList(0x004c));
+        assertTrue(filter.accept(DEVICE_1, data));
+        data.remove(NORDIC);
+        assertFalse(filter.accept(DEVICE_1, data));
+
+        Map<String, Number> metrics = new HashMap<>();
+        filter.reportMetrics(metrics);
+        assertEquals(2L, metrics.get("advertisement.dropped.manufacturer"));
+    }
+
+    @Test
+    public void testKeySet() {
+        long[] keys = LongStream.range(0, 1000).map(key -> key * 7919).toArray();
+        AdvertisementFilter.KeySet keySet = AdvertisementFilter.KeySet.of(keys);
+        for (long key : keys) {
+            assertTrue(keySet.contains(key));
+        }
+        for (long key = 1; key < 7919; key++) {
+            assertFalse(keySet.contains(key));
+        }
+        assertFalse(AdvertisementFilter.KeySet.EMPTY.contains(0));
+    }
+
+}
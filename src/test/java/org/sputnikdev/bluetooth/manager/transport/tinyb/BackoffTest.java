@@ -0,0 +1,34 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackoffTest {
+
+    @Test
+    public void testGetDelay() {
+        Backoff backoff = new Backoff(100, 1000);
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.getDelay(0);
+            assertTrue(delay >= 50 && delay <= 100);
+            delay = backoff.getDelay(10);
+            assertTrue(delay >= 500 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void testSetDelays() {
+        Backoff backoff = new Backoff(100, 1000);
+        backoff.setDelays(-1, 500);
+        assertEquals(0, backoff.getBaseDelay());
+        assertEquals(500, backoff.getMaxDelay());
+        assertEquals(0, backoff.getDelay(5));
+
+        backoff.setDelays(2000, 1000);
+        assertEquals(2000, backoff.getBaseDelay());
+        assertEquals(2000, backoff.getMaxDelay());
+    }
+
+}
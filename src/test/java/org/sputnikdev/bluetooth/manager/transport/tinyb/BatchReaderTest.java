@@ -0,0 +1,85 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattService;
+import tinyb.BluetoothManager;
+import tinyb.BluetoothType;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(PowerMockRunner.class)
+@SuppressStaticInitializationFor({"tinyb.BluetoothManager", "tinyb.BluetoothObject"})
+@PrepareForTest(BluetoothManager.class)
+public class BatchReaderTest {
+
+    private static final URL ADAPTER_1 = new URL("tinyb:/11:22:33:44:55:61");
+    private static final URL ADAPTER_2 = new URL("tinyb:/11:22:33:44:55:62");
+    private static final URL CHARACTERISTIC = ADAPTER_1.copyWithDevice("10:20:30:40:50:60")
+            .copyWithService("0180").copyWithCharacteristic("aa11");
+    private static final URL PLACED = ADAPTER_2.copyWithDevice("10:20:30:40:50:60")
+            .copyWithService("0180").copyWithCharacteristic("aa11");
+
+    private BluetoothManager bluetoothManager = mock(BluetoothManager.class);
+    private BluetoothAdapter adapter2 = mock(BluetoothAdapter.class);
+    private BluetoothDevice device = mock(BluetoothDevice.class);
+    private BluetoothGattService service = mock(BluetoothGattService.class);
+    private BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+    private AdapterBalancer balancer = mock(AdapterBalancer.class);
+
+    @Before
+    public void setUp() {
+        PowerMockito.mockStatic(BluetoothManager.class);
+        when(BluetoothManager.getBluetoothManager()).thenReturn(bluetoothManager);
+        when(bluetoothManager.getObject(BluetoothType.ADAPTER, null, ADAPTER_2.getAdapterAddress(), null))
+                .thenReturn(adapter2);
+        when(bluetoothManager.getObject(BluetoothType.DEVICE, null, PLACED.getDeviceAddress(), adapter2))
+                .thenReturn(device);
+        when(bluetoothManager.getObject(BluetoothType.GATT_SERVICE, null, PLACED.getServiceUUID(), device))
+                .thenReturn(service);
+        when(bluetoothManager.getObject(BluetoothType.GATT_CHARACTERISTIC, null,
+                PLACED.getCharacteristicUUID(), service)).thenReturn(characteristic);
+        when(device.getConnected()).thenReturn(true);
+        when(characteristic.readValue()).thenReturn(new byte[] {1, 2});
+        when(balancer.resolve(any())).thenReturn(PLACED);
+    }
+
+    @Test
+    public void testReadPlacedDevice() {
+        BatchReader reader = new BatchReader(balancer);
+        reader.setParallelism(2);
+        BatchReadResult result;
+        try {
+            result = reader.read(Collections.singletonList(CHARACTERISTIC));
+        } finally {
+            reader.dispose();
+        }
+
+        assertTrue(result.getErrors().isEmpty());
+        assertEquals(1, result.getValues().size());
+        // values are reported against requested URLs
+        assertArrayEquals(new byte[] {1, 2}, result.getValues().get(CHARACTERISTIC));
+        verify(bluetoothManager, never()).getObject(eq(BluetoothType.ADAPTER), any(),
+                eq(ADAPTER_1.getAdapterAddress()), any());
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureLogTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+    private static final URL CHARACTERISTIC = DEVICE.copyWithService("0000180f-0000-1000-8000-00805f9b34fb")
+            .copyWithCharacteristic("00002a19-0000-1000-8000-00805f9b34fb");
+
+    private Path directory;
+    private CaptureLog capture;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("capture");
+        capture = new CaptureLog();
+        capture.setDirectory(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        capture.dispose();
+        for (Path segment : CaptureLog.list(directory)) {
+            Files.delete(segment);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testCapture() throws Exception {
+        capture.value(CHARACTERISTIC, new byte[] {1, 2, 3});
+        capture.rssi(DEVICE, (short) -70);
+        capture.connected(DEVICE, true);
+        capture.serviceData(DEVICE, Collections.singletonMap("180f", new byte[] {100}));
+        capture.manufacturerData(DEVICE, Collections.singletonMap((short) 0x004c, new byte[] {9}));
+
+        List<Path> segments = CaptureLog.list(directory);
+        assertEquals(1, segments.size());
+        List<CaptureLog.Record> records = CaptureLog.read(segments.get(0));
+        assertEquals(5, records.size());
+
+        assertEquals(CHARACTERISTIC, records.get(0).getURL());
+        assertEquals(CaptureLog.Kind.VALUE, records.get(0).getKind());
+        assertArrayEquals(new byte[] {1, 2, 3}, records.get(0).getPayload());
+        assertTrue(records.get(0).getTimestamp() > 0);
+
+        assertEquals(CaptureLog.Kind.RSSI, records.get(1).getKind());
+        assertArrayEquals(new byte[] {(byte) 0xff, (byte) 0xba}, records.get(1).getPayload());
+        assertArrayEquals(new byte[] {1}, records.get(2).getPayload());
+
+        assertEquals(DEVICE.copyWithService("180f"), records.get(3).getURL());
+        assertArrayEquals(new byte[] {100}, records.get(3).getPayload());
+
+        assertEquals(DEVICE, records.get(4).getURL());
+        assertArrayEquals(new byte[] {0x00, 0x4c, 9}, records.get(4).getPayload());
+    }
+
+    @Test
+    public void testCaptureOperations() throws Exception {
+        capture.discovered(new DiscoveredDevice(DEVICE, "Sensor", null, (short) -70, 0x1f00, false));
+        capture.read(CHARACTERISTIC, new byte[] {1});
+        capture.write(CHARACTERISTIC, new byte[] {2}, true);
+
+        List<CaptureLog.Record> records = CaptureLog.read(CaptureLog.list(directory).get(0));
+        assertEquals(3, records.size());
+        assertEquals(CaptureLog.Kind.DISCOVERED, records.get(0).getKind());
+        assertEquals(DEVICE, records.get(0).getURL());
+        // RSSI, class, name and an empty alias
+        assertArrayEquals(new byte[] {(byte) 0xff, (byte) 0xba, 0, 0, 0x1f, 0, 0, 6, 'S', 'e', 'n', 's', 'o', 'r',
+                0, 0}, records.get(0).getPayload());
+        assertEquals(CaptureLog.Kind.READ, records.get(1).getKind());
+        assertArrayEquals(new byte[] {1}, records.get(1).getPayload());
+        assertEquals(CaptureLog.Kind.WRITE, records.get(2).getKind());
+        assertArrayEquals(new byte[] {1, 2}, records.get(2).getPayload());
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        capture.dispose();
+        capture.setSegmentSize(256);
+        capture.setMaxSegments(3);
+        capture.setDirectory(directory);
+
+        for (int i = 0; i < 50; i++) {
+            capture.value(CHARACTERISTIC, new byte[] {(byte) i});
+        }
+        // payload does not fit into a segment
+        capture.value(CHARACTERISTIC, new byte[512]);
+
+        List<Path> segments = CaptureLog.list(directory);
+        assertEquals(3, segments.size());
+        // each segment is self-contained
+        List<CaptureLog.Record> records = new ArrayList<>();
+        for (Path segment : segments) {
+            records.addAll(CaptureLog.read(segment));
+        }
+        assertFalse(records.isEmpty());
+        assertEquals(49, records.get(records.size() - 1).getPayload()[0]);
+        for (CaptureLog.Record record : records) {
+            assertEquals(CHARACTERISTIC, record.getURL());
+        }
+
+        Map<String, Number> metrics = new HashMap<>();
+        capture.reportMetrics(metrics);
+        assertEquals(50L, metrics.get("capture.records"));
+        assertEquals(1L, metrics.get("capture.dropped"));
+        assertTrue(metrics.get("capture.rotations").longValue() >= 2);
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        int threads = 4;
+        int perThread = 1000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            URL url = DEVICE.copyWithService("180" + t).copyWithCharacteristic("2a19");
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    capture.value(url, new byte[] {(byte) i, (byte) (i >> 8)});
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        List<CaptureLog.Record> records = CaptureLog.read(CaptureLog.list(directory).get(0));
+        assertEquals(threads * perThread, records.size());
+        Map<URL, Integer> counts = new HashMap<>();
+        records.forEach(record -> counts.merge(record.getURL(), 1, Integer::sum));
+        assertEquals(threads, counts.size());
+        counts.values().forEach(count -> assertEquals(perThread, count.intValue()));
+    }
+
+    @Test
+    public void testContinueAfterRestart() throws Exception {
+        capture.value(CHARACTERISTIC, new byte[] {1});
+        capture.dispose();
+
+        capture.setDirectory(directory);
+        capture.value(CHARACTERISTIC, new byte[] {2});
+
+        List<Path> segments = CaptureLog.list(directory);
+        assertEquals(2, segments.size());
+        assertArrayEquals(new byte[] {2}, CaptureLog.read(segments.get(1)).get(0).getPayload());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        capture.setDirectory(null);
+        capture.value(CHARACTERISTIC, new byte[] {1});
+        assertFalse(capture.isEnabled());
+        assertEquals(1, CaptureLog.list(directory).size());
+        assertTrue(CaptureLog.read(CaptureLog.list(directory).get(0)).isEmpty());
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.BluetoothObjectFactory;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+import org.sputnikdev.bluetooth.manager.transport.Device;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CharacteristicPollerTest {
+
+    private static final URL CHARACTERISTIC_1 = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:60/0180/aa11");
+    private static final URL CHARACTERISTIC_2 = CHARACTERISTIC_1.copyWithCharacteristic("aa12");
+    private static final URL DEVICE = CHARACTERISTIC_1.getDeviceURL();
+    private static final byte[] VALUE = {1, 2, 3};
+
+    private BluetoothObjectFactory factory = mock(BluetoothObjectFactory.class);
+    private Device device = mock(Device.class);
+    private Characteristic characteristic1 = mock(Characteristic.class);
+    private Characteristic characteristic2 = mock(Characteristic.class);
+
+    private NotificationDispatcher dispatcher = new NotificationDispatcher();
+    private CharacteristicPoller poller;
+
+    @Before
+    public void setUp() {
+        when(factory.getDevice(DEVICE)).thenReturn(device);
+        when(factory.getCharacteristic(CHARACTERISTIC_1)).thenReturn(characteristic1);
+        when(factory.getCharacteristic(CHARACTERISTIC_2)).thenReturn(characteristic2);
+        when(device.isConnected()).thenReturn(true);
+        when(characteristic1.readValue()).thenReturn(VALUE);
+        when(characteristic2.readValue()).thenReturn(VALUE);
+        poller = new CharacteristicPoller(factory, dispatcher, 1000, 1);
+    }
+
+    @After
+    public void tearDown() {
+        poller.dispose();
+        dispatcher.shutdown(1000);
+    }
+
+    @Test
+    public void testPolling() throws Exception {
+        CountDownLatch latch = new CountDownLatch(3);
+        Notification<byte[]> notification = mock(Notification.class);
+        doAnswer(invocation -> {
+            latch.countDown();
+            return null;
+        }).when(notification).notify(VALUE);
+
+        poller.schedule(CHARACTERISTIC_1, 100, notification);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(1, poller.getPolledCharacteristics());
+
+        poller.cancel(CHARACTERISTIC_1);
+        assertEquals(0, poller.getPolledCharacteristics());
+    }
+
+    @Test
+    public void testMergePolls() throws Exception {
+        Notification<byte[]> notification = mock(Notification.class);
+        poller.schedule(CHARACTERISTIC_1, 10000, notification);
+        poller.schedule(CHARACTERISTIC_2, 10000, notification);
+
+        verify(characteristic1, timeout(1000)).readValue();
+        verify(characteristic2, timeout(1000)).readValue();
+        // both polls are served by one connection window
+        verify(device, timeout(1000).times(1)).isConnected();
+    }
+
+    @Test
+    public void testResolvedOnce() throws Exception {
+        CountDownLatch latch = new CountDownLatch(3);
+        Notification<byte[]> notification = mock(Notification.class);
+        doAnswer(invocation -> {
+            latch.countDown();
+            return null;
+        }).when(notification).notify(VALUE);
+
+        poller.schedule(CHARACTERISTIC_1, 100, notification);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        verify(factory, times(1)).getDevice(DEVICE);
+        verify(factory, times(1)).getCharacteristic(CHARACTERISTIC_1);
+    }
+
+    @Test
+    public void testSkipDisconnected() throws Exception {
+        when(device.isConnected()).thenReturn(false);
+        Notification<byte[]> notification = mock(Notification.class);
+        poller.schedule(CHARACTERISTIC_1, 10000, notification);
+
+        verify(device, timeout(1000)).isConnected();
+        verify(factory, never()).getCharacteristic(any());
+        verify(notification, never()).notify(any());
+    }
+
+}
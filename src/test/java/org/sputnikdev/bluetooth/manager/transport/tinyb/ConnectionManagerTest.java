@@ -0,0 +1,170 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionManagerTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final URL DEVICE_1 = ADAPTER.copyWithDevice("10:20:30:40:50:61");
+    private static final URL DEVICE_2 = ADAPTER.copyWithDevice("10:20:30:40:50:62");
+    private static final URL DEVICE_3 = ADAPTER.copyWithDevice("10:20:30:40:50:63");
+
+    private ConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        manager = new ConnectionManager();
+        manager.setCapacity(ADAPTER, 2);
+        manager.setWaitTimeout(200);
+    }
+
+    @Test
+    public void testUnlimited() {
+        manager.setCapacity(ADAPTER, 0);
+        assertTrue(connect(DEVICE_1, new AtomicBoolean(true)));
+        assertTrue(connect(DEVICE_2, new AtomicBoolean(true)));
+        assertTrue(connect(DEVICE_3, new AtomicBoolean(true)));
+        assertEquals(3, manager.getConnections(ADAPTER));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        AtomicBoolean connected1 = new AtomicBoolean(true);
+        AtomicBoolean connected2 = new AtomicBoolean(true);
+        connect(DEVICE_1, connected1);
+        connect(DEVICE_2, connected2);
+        // device 1 becomes the most recently used one
+        manager.use(DEVICE_1.copyWithService("180f"), () -> true);
+
+        connect(DEVICE_3, new AtomicBoolean(true));
+
+        assertTrue(connected1.get());
+        assertFalse(connected2.get());
+        assertEquals(2, manager.getConnections(ADAPTER));
+        assertTrue(manager.isConnected(DEVICE_1));
+        assertFalse(manager.isConnected(DEVICE_2));
+        assertTrue(manager.isConnected(DEVICE_3));
+
+        Map<String, Number> metrics = new HashMap<>();
+        manager.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("pool.evictions"));
+        assertEquals(2, metrics.get("pool.11:22:33:44:55:66.active"));
+    }
+
+    @Test
+    public void testPurgeStale() {
+        AtomicBoolean connected1 = new AtomicBoolean(true);
+        connect(DEVICE_1, connected1);
+        connect(DEVICE_2, new AtomicBoolean(true));
+        connected1.set(false);
+
+        connect(DEVICE_3, new AtomicBoolean(true));
+
+        assertFalse(manager.isConnected(DEVICE_1));
+        assertTrue(manager.isConnected(DEVICE_2));
+        assertTrue(manager.isConnected(DEVICE_3));
+    }
+
+    @Test
+    public void testWaitForSlot() throws Exception {
+        manager.setMinIdleTime(TimeUnit.HOURS.toMillis(1));
+        manager.setWaitTimeout(5000);
+        connect(DEVICE_1, new AtomicBoolean(true));
+        connect(DEVICE_2, new AtomicBoolean(true));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> result = executor.submit(() -> connect(DEVICE_3, new AtomicBoolean(true)));
+            Thread.sleep(100);
+            assertFalse(result.isDone());
+
+            manager.disconnected(DEVICE_1);
+            assertTrue(result.get(1, TimeUnit.SECONDS));
+            assertTrue(manager.isConnected(DEVICE_3));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaitTimeout() {
+        manager.setMinIdleTime(TimeUnit.HOURS.toMillis(1));
+        connect(DEVICE_1, new AtomicBoolean(true));
+        connect(DEVICE_2, new AtomicBoolean(true));
+        try {
+            connect(DEVICE_3, new AtomicBoolean(true));
+            fail();
+        } catch (TinyBTimeoutException ignore) { }
+        assertFalse(manager.isConnected(DEVICE_3));
+    }
+
+    @Test
+    public void testConnectFailed() {
+        assertFalse(manager.connect(DEVICE_1, () -> false, () -> { }, () -> false));
+        assertEquals(0, manager.getConnections(ADAPTER));
+    }
+
+    @Test
+    public void testReconnectFailed() {
+        connect(DEVICE_1, new AtomicBoolean(true));
+
+        assertFalse(manager.connect(DEVICE_1, () -> true, () -> { }, () -> false));
+        // the pooled connection is still there
+        assertTrue(manager.isConnected(DEVICE_1));
+        assertEquals(1, manager.getConnections(ADAPTER));
+    }
+
+    @Test
+    public void testPurgeStaleUnlocked() throws Exception {
+        manager.setMinIdleTime(TimeUnit.HOURS.toMillis(1));
+        CountDownLatch probing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        manager.connect(DEVICE_1, () -> {
+            probing.countDown();
+            try {
+                release.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }, () -> { }, () -> true);
+        connect(DEVICE_2, new AtomicBoolean(true));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> result = executor.submit(() -> connect(DEVICE_3, new AtomicBoolean(true)));
+            assertTrue(probing.await(1, TimeUnit.SECONDS));
+
+            // the pool is not blocked while a connection is being checked
+            assertTrue(manager.use(DEVICE_2, () -> true));
+            release.countDown();
+
+            assertTrue(result.get(1, TimeUnit.SECONDS));
+            assertFalse(manager.isConnected(DEVICE_1));
+            assertTrue(manager.isConnected(DEVICE_3));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean connect(URL device, AtomicBoolean connected) {
+        return manager.connect(device, connected::get, () -> connected.set(false), () -> true);
+    }
+
+}
@@ -0,0 +1,56 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceKeyTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+
+    @Test
+    public void testParseAddress() {
+        assertEquals(0x102030405061L, DeviceKey.parseAddress("10:20:30:40:50:61"));
+        assertEquals(0xaabbccddeeffL, DeviceKey.parseAddress("AA:bb:CC:dd:EE:ff"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidAddress() {
+        DeviceKey.parseAddress("10:20:30:40:50");
+    }
+
+    @Test
+    public void testFormatAddress() {
+        assertEquals("AA:BB:CC:DD:EE:FF", DeviceKey.formatAddress(0xaabbccddeeffL));
+        assertEquals("00:00:00:00:00:01", DeviceKey.formatAddress(1));
+    }
+
+    @Test
+    public void testOf() {
+        DeviceKey key = DeviceKey.of(DEVICE);
+        assertEquals(0x112233445566L, key.getAdapter());
+        assertEquals(0x102030405061L, key.getDevice());
+        assertEquals(DEVICE, key.toURL());
+
+        // characteristic URLs are reduced to their device
+        assertEquals(key, DeviceKey.of(DEVICE.copyWithService("0000180f-0000-1000-8000-00805f9b34fb")
+                .copyWithCharacteristic("00002a19-0000-1000-8000-00805f9b34fb")));
+        assertEquals(key, DeviceKey.of(new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61".toLowerCase())));
+        assertEquals(key.hashCode(), DeviceKey.of(DEVICE).hashCode());
+    }
+
+    @Test
+    public void testCompare() {
+        DeviceKey key1 = new DeviceKey(1, 2);
+        DeviceKey key2 = new DeviceKey(1, 3);
+        DeviceKey key3 = new DeviceKey(2, 1);
+        assertTrue(key1.compareTo(key2) < 0);
+        assertTrue(key2.compareTo(key3) < 0);
+        assertEquals(0, key1.compareTo(new DeviceKey(1, 2)));
+        assertFalse(key1.equals(key2));
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothNotification;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DeviceRegistryTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final String DEVICE_1_MAC = "10:20:30:40:50:61";
+    private static final String DEVICE_2_MAC = "10:20:30:40:50:62";
+    private static final URL DEVICE_1 = ADAPTER.copyWithDevice(DEVICE_1_MAC);
+    private static final URL DEVICE_2 = ADAPTER.copyWithDevice(DEVICE_2_MAC);
+    private static final String BATTERY_SERVICE = "0000180f-0000-1000-8000-00805f9b34fb";
+    private static final short APPLE = 0x004c;
+
+    private DeviceRegistry registry;
+    private BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+    private BluetoothDevice device1 = mock(BluetoothDevice.class);
+    private BluetoothDevice device2 = mock(BluetoothDevice.class);
+
+    @Before
+    public void setUp() {
+        registry = new DeviceRegistry();
+        registry.setEnabled(true);
+        when(device1.getAddress()).thenReturn(DEVICE_1_MAC);
+        when(device1.getRSSI()).thenReturn((short) -70);
+        when(device1.getUUIDs()).thenReturn(new String[] {BATTERY_SERVICE});
+        when(device2.getAddress()).thenReturn(DEVICE_2_MAC);
+        when(device2.getManufacturerData()).thenReturn(Collections.singletonMap(APPLE, new byte[] {1}));
+        when(adapter.getDevices()).thenReturn(Arrays.asList(device1, device2));
+    }
+
+    @Test
+    public void testSync() {
+        registry.sync(ADAPTER, adapter, device -> true);
+
+        assertEquals(2, registry.size());
+        assertEquals(-70, registry.getEntry(DEVICE_1).getRSSI());
+        assertEquals(0, registry.getEntry(DEVICE_2).getRSSI());
+        assertEquals(Collections.singleton(DEVICE_1), registry.getDevicesByService("180f"));
+        assertEquals(Collections.singleton(DEVICE_2), registry.getDevicesByManufacturer(APPLE));
+        verify(device1, times(1)).enableRSSINotifications(any());
+        verify(device1, times(1)).enableConnectedNotifications(any());
+
+        // sync interval has not elapsed
+        registry.sync(ADAPTER, adapter, device -> true);
+        verify(adapter, times(1)).getDevices();
+
+        // device 2 has been removed from Bluez
+        registry.setSyncInterval(0);
+        when(adapter.getDevices()).thenReturn(Collections.singletonList(device1));
+        registry.sync(ADAPTER, adapter, device -> true);
+        assertEquals(1, registry.size());
+        assertNull(registry.getEntry(DEVICE_2));
+        assertTrue(registry.getDevicesByManufacturer(APPLE).isEmpty());
+        verify(device2, times(1)).disableRSSINotifications();
+        verify(device1, never()).disableRSSINotifications();
+    }
+
+    @Test
+    public void testSyncFilter() {
+        // device 2 has not got RSSI, hence it is not handed out and its notifications are not enabled
+        registry.sync(ADAPTER, adapter, device -> device.getRSSI() != 0);
+
+        assertEquals(1, registry.size());
+        assertNull(registry.getEntry(DEVICE_2));
+        verify(device2, never()).enableRSSINotifications(any());
+        verify(device2, never()).enableConnectedNotifications(any());
+
+        // the device is registered once it is handed out
+        assertTrue(registry.subscribe(DEVICE_2, device2, DeviceRegistry.Property.RSSI, value -> { }));
+        verify(device2, times(1)).enableRSSINotifications(any());
+        registry.setSyncInterval(0);
+        registry.sync(ADAPTER, adapter, device -> device.getRSSI() != 0);
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void testUnregister() {
+        registry.unregister(DEVICE_1);
+        verify(device1, never()).disableRSSINotifications();
+
+        registry.sync(ADAPTER, adapter, device -> true);
+        registry.unregister(DEVICE_1);
+        registry.unregister(DEVICE_1);
+
+        assertNull(registry.getEntry(DEVICE_1));
+        assertTrue(registry.getDevicesByService(BATTERY_SERVICE).isEmpty());
+        verify(device1, times(1)).disableRSSINotifications();
+        verify(device1, times(1)).disableConnectedNotifications();
+    }
+
+    @Test
+    public void testNotifications() throws Exception {
+        registry.sync(ADAPTER, adapter, device -> true);
+        ArgumentCaptor<BluetoothNotification> rssiCaptor = ArgumentCaptor.forClass(BluetoothNotification.class);
+        verify(device2).enableRSSINotifications(rssiCaptor.capture());
+        ArgumentCaptor<BluetoothNotification> serviceDataCaptor =
+                ArgumentCaptor.forClass(BluetoothNotification.class);
+        verify(device2).enableServiceDataNotifications(serviceDataCaptor.capture());
+
+        BluetoothNotification<Short> callback = mock(BluetoothNotification.class);
+        assertTrue(registry.subscribe(DEVICE_2, device2, DeviceRegistry.Property.RSSI, callback));
+
+        Thread.sleep(5);
+        long before = System.currentTimeMillis();
+        rssiCaptor.getValue().run((short) -60);
+
+        assertEquals(-60, registry.getEntry(DEVICE_2).getRSSI());
+        verify(callback, times(1)).run((short) -60);
+        assertEquals(Collections.singleton(DEVICE_2), registry.getDevicesSeenSince(before));
+        assertEquals(DEVICE_1, registry.getLeastRecentlySeen().get(0).getURL());
+
+        Map<String, byte[]> serviceData = new HashMap<>();
+        serviceData.put(BATTERY_SERVICE, new byte[] {100});
+        serviceDataCaptor.getValue().run(serviceData);
+        assertEquals(2, registry.getDevicesByService(BATTERY_SERVICE).size());
+
+        assertTrue(registry.unsubscribe(DEVICE_2, DeviceRegistry.Property.RSSI));
+        rssiCaptor.getValue().run((short) -50);
+        verify(callback, never()).run((short) -50);
+        // native notifications are still owned by the registry
+        verify(device2, never()).disableRSSINotifications();
+    }
+
+    @Test
+    public void testPresence() throws Exception {
+        registry.setPresenceTimeout(100);
+        registry.sync(ADAPTER, adapter, device -> true);
+        ArgumentCaptor<BluetoothNotification> rssiCaptor = ArgumentCaptor.forClass(BluetoothNotification.class);
+        verify(device1).enableRSSINotifications(rssiCaptor.capture());
+
+        assertTrue(registry.isPresent(registry.getEntry(DEVICE_1)));
+        // device 2 has not got RSSI
+        assertFalse(registry.isPresent(registry.getEntry(DEVICE_2)));
+
+        // the cached RSSI is kept, but the device has gone out of range
+        Thread.sleep(150);
+        assertEquals(-70, registry.getEntry(DEVICE_1).getRSSI());
+        assertFalse(registry.isPresent(registry.getEntry(DEVICE_1)));
+
+        rssiCaptor.getValue().run((short) -75);
+        assertTrue(registry.isPresent(registry.getEntry(DEVICE_1)));
+    }
+
+    @Test
+    public void testDisabled() {
+        registry.setEnabled(false);
+        assertFalse(registry.subscribe(DEVICE_1, device1, DeviceRegistry.Property.RSSI, value -> { }));
+        assertFalse(registry.unsubscribe(DEVICE_1, DeviceRegistry.Property.RSSI));
+        verify(device1, never()).enableRSSINotifications(any());
+    }
+
+    @Test
+    public void testClear() {
+        registry.sync(ADAPTER, adapter, device -> true);
+        registry.setEnabled(false);
+
+        assertEquals(0, registry.size());
+        assertTrue(registry.getEntries(ADAPTER).isEmpty());
+        verify(device1, times(1)).disableServiceDataNotifications();
+        verify(device2, times(1)).disableManufacturerDataNotifications();
+    }
+
+}
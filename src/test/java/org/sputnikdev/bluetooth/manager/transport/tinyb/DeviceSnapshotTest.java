@@ -0,0 +1,140 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceSnapshotTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final URL DEVICE_1 = ADAPTER.copyWithDevice("10:20:30:40:50:61");
+    private static final URL DEVICE_2 = ADAPTER.copyWithDevice("10:20:30:40:50:62");
+
+    private Path directory;
+    private Path file;
+    private DeviceSnapshot snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("snapshot");
+        file = directory.resolve("devices.snapshot");
+        snapshot = new DeviceSnapshot();
+        snapshot.setInterval(0);
+        snapshot.setFile(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        snapshot.setFile(null);
+        Files.deleteIfExists(file);
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        List<DeviceSnapshot.Record> records = Arrays.asList(
+                new DeviceSnapshot.Record(DeviceKey.of(DEVICE_1), "Sensor", "Kitchen", (short) -70, 0x1f00, 1000),
+                new DeviceSnapshot.Record(DeviceKey.of(DEVICE_2), null, "\u0422\u0435\u0441\u0442", (short) 0, 0, 2));
+        assertEquals(records, DeviceSnapshot.decode(DeviceSnapshot.encode(records)));
+    }
+
+    @Test
+    public void testWarmStart() {
+        snapshot.update(Arrays.asList(device(DEVICE_1, "Sensor", (short) -70), device(DEVICE_2, null, (short) 0)));
+        // nothing is provisional as the devices are known to Bluez
+        assertTrue(snapshot.getProvisional().isEmpty());
+        snapshot.save();
+        assertTrue(Files.exists(file));
+
+        // restart
+        DeviceSnapshot restarted = new DeviceSnapshot();
+        restarted.setInterval(0);
+        restarted.setFile(file);
+        Set<DiscoveredDevice> provisional = restarted.getProvisional();
+        assertEquals(2, provisional.size());
+        DiscoveredDevice device = provisional.stream().filter(d -> DEVICE_1.equals(d.getURL())).findFirst().get();
+        assertEquals("Sensor", device.getName());
+        assertEquals(-70, device.getRSSI());
+
+        // device 1 has been rediscovered
+        restarted.update(Collections.singletonList(device(DEVICE_1, "Sensor", (short) -60)));
+        provisional = restarted.getProvisional();
+        assertEquals(1, provisional.size());
+        assertEquals(DEVICE_2, provisional.iterator().next().getURL());
+
+        Map<String, Number> metrics = new HashMap<>();
+        restarted.reportMetrics(metrics);
+        assertEquals(2L, metrics.get("snapshot.loaded"));
+        assertEquals(1, metrics.get("snapshot.provisional"));
+        assertEquals(3L, metrics.get("snapshot.served"));
+        restarted.dispose();
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        snapshot.update(Collections.singletonList(device(DEVICE_1, "Sensor", (short) -70)));
+        snapshot.save();
+        Thread.sleep(20);
+
+        DeviceSnapshot restarted = new DeviceSnapshot();
+        restarted.setInterval(0);
+        restarted.setMaxAge(10);
+        restarted.setFile(file);
+        assertTrue(restarted.getProvisional().isEmpty());
+    }
+
+    @Test
+    public void testSaveOnlyChanged() throws Exception {
+        snapshot.save();
+        assertFalse(Files.exists(file));
+
+        snapshot.update(Collections.singletonList(device(DEVICE_1, "Sensor", (short) 0)));
+        snapshot.save();
+        snapshot.save();
+        // device is not advertising, its last seen time is not advanced
+        snapshot.update(Collections.singletonList(device(DEVICE_1, "Sensor", (short) 0)));
+        snapshot.save();
+
+        Map<String, Number> metrics = new HashMap<>();
+        snapshot.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("snapshot.writes"));
+    }
+
+    @Test
+    public void testPeriodicSave() throws Exception {
+        snapshot.setInterval(100);
+        snapshot.update(Collections.singletonList(device(DEVICE_1, "Sensor", (short) -70)));
+        Thread.sleep(300);
+        assertTrue(Files.exists(file));
+    }
+
+    @Test
+    public void testDisabled() {
+        snapshot.setFile(null);
+        snapshot.update(Collections.singletonList(device(DEVICE_1, "Sensor", (short) -70)));
+        snapshot.save();
+        assertNull(snapshot.getFile());
+        assertFalse(Files.exists(file));
+    }
+
+    private static DiscoveredDevice device(URL url, String name, short rssi) {
+        return new DiscoveredDevice(url, name, null, rssi, 0, true);
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothException;
+import tinyb.TransportType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DiscoveryFilterTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final UUID BATTERY_SERVICE = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final List<UUID> UUIDS = Collections.singletonList(BATTERY_SERVICE);
+
+    private DiscoveryFilter discoveryFilter;
+    private BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+    private BluetoothDevice device = mock(BluetoothDevice.class);
+
+    @Before
+    public void setUp() {
+        discoveryFilter = new DiscoveryFilter();
+        discoveryFilter.setFilter(ADAPTER, new DiscoveryFilter.Filter(UUIDS, (short) -80, TransportType.LE));
+        when(device.getRSSI()).thenReturn((short) -70);
+        when(device.getUUIDs()).thenReturn(new String[] {"0000180f-0000-1000-8000-00805f9b34fb"});
+    }
+
+    @Test
+    public void testApplyNative() {
+        discoveryFilter.apply(ADAPTER, adapter);
+
+        verify(adapter, times(1)).setDiscoveryFilter(UUIDS, -80, 0, TransportType.LE);
+        assertTrue(discoveryFilter.isSupported(ADAPTER));
+        // native filtering is in place, nothing is checked on the java side
+        when(device.getRSSI()).thenReturn((short) -90);
+        assertTrue(discoveryFilter.accept(ADAPTER, device));
+    }
+
+    @Test
+    public void testFallback() {
+        BluetoothException notSupported = mock(BluetoothException.class);
+        when(notSupported.getMessage()).thenReturn("GDBus.Error:org.bluez.Error.NotSupported");
+        doThrow(notSupported).when(adapter).setDiscoveryFilter(UUIDS, -80, 0, TransportType.LE);
+
+        discoveryFilter.apply(ADAPTER, adapter);
+
+        assertFalse(discoveryFilter.isSupported(ADAPTER));
+        verify(adapter, times(1)).setDiscoveryFilter(Collections.emptyList(), 0, 0, TransportType.AUTO);
+
+        assertTrue(discoveryFilter.accept(ADAPTER, device));
+        when(device.getRSSI()).thenReturn((short) -90);
+        assertFalse(discoveryFilter.accept(ADAPTER, device));
+        when(device.getRSSI()).thenReturn((short) -70);
+        when(device.getUUIDs()).thenReturn(new String[] {"0000180a-0000-1000-8000-00805f9b34fb"});
+        assertFalse(discoveryFilter.accept(ADAPTER, device));
+
+        Map<String, Number> metrics = new HashMap<>();
+        discoveryFilter.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("discovery.filter.accepted"));
+        assertEquals(2L, metrics.get("discovery.filter.dropped"));
+        assertEquals(1, metrics.get("discovery.filter.fallback"));
+
+        // the adapter capability is remembered
+        discoveryFilter.apply(ADAPTER, adapter);
+        verify(adapter, times(2)).setDiscoveryFilter(anyListOf(UUID.class), anyInt(), anyInt(), any());
+    }
+
+    @Test
+    public void testTransientFailure() {
+        BluetoothException notReady = mock(BluetoothException.class);
+        when(notReady.getMessage()).thenReturn("GDBus.Error:org.bluez.Error.NotReady: Resource Not Ready");
+        doThrow(notReady).doNothing().when(adapter).setDiscoveryFilter(UUIDS, -80, 0, TransportType.LE);
+
+        discoveryFilter.apply(ADAPTER, adapter);
+
+        // the adapter is not marked as unsupported, the filter is applied again next time
+        assertTrue(discoveryFilter.isSupported(ADAPTER));
+        verify(adapter, never()).setDiscoveryFilter(Collections.emptyList(), 0, 0, TransportType.AUTO);
+
+        discoveryFilter.apply(ADAPTER, adapter);
+        verify(adapter, times(2)).setDiscoveryFilter(UUIDS, -80, 0, TransportType.LE);
+        Map<String, Number> metrics = new HashMap<>();
+        discoveryFilter.reportMetrics(metrics);
+        assertEquals(1, metrics.get("discovery.filter.native"));
+        assertEquals(0, metrics.get("discovery.filter.fallback"));
+    }
+
+    @Test
+    public void testDefaultFilter() {
+        URL anotherAdapter = new URL("tinyb:/11:22:33:44:55:67");
+        discoveryFilter.apply(anotherAdapter, adapter);
+        verify(adapter, times(1)).setDiscoveryFilter(Collections.emptyList(), 0, 0, TransportType.AUTO);
+        verify(adapter, never()).setDiscoveryFilter(UUIDS, -80, 0, TransportType.LE);
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoverySchedulerTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final URL DEVICE = ADAPTER.copyWithDevice("10:20:30:40:50:61");
+
+    private DiscoveryScheduler scheduler;
+    private final AtomicBoolean scanning = new AtomicBoolean();
+    private final AtomicInteger starts = new AtomicInteger();
+    private final AtomicInteger stops = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        scheduler = new DiscoveryScheduler();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.dispose();
+    }
+
+    @Test
+    public void testContinuous() {
+        assertTrue(start());
+        assertTrue(scanning.get());
+        assertTrue(scheduler.isScanning(ADAPTER));
+
+        assertTrue(scheduler.stop(ADAPTER));
+        assertFalse(scheduler.isScanning(ADAPTER));
+        assertEquals(1, starts.get());
+    }
+
+    @Test
+    public void testStopUnmanaged() {
+        assertTrue(scheduler.stop(ADAPTER));
+    }
+
+    @Test
+    public void testPauseDisabled() {
+        start();
+        assertFalse(scheduler.pause(DEVICE));
+        assertTrue(scanning.get());
+    }
+
+    @Test
+    public void testPauseResume() {
+        scheduler.setPauseOnConnect(true);
+        start();
+
+        assertTrue(scheduler.pause(DEVICE));
+        assertTrue(scheduler.pause(DEVICE));
+        assertFalse(scanning.get());
+        assertFalse(scheduler.isScanning(ADAPTER));
+
+        scheduler.resume(DEVICE);
+        assertFalse(scanning.get());
+        scheduler.resume(DEVICE);
+        assertTrue(scanning.get());
+        assertEquals(2, starts.get());
+        assertEquals(1, stops.get());
+
+        Map<String, Number> metrics = new HashMap<>();
+        scheduler.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("discovery.pauses"));
+    }
+
+    @Test
+    public void testStopWhilePaused() {
+        scheduler.setPauseOnConnect(true);
+        start();
+        scheduler.pause(DEVICE);
+
+        // native discovery has already been suspended
+        assertFalse(scheduler.stop(ADAPTER));
+
+        // discovery is not resumed as it is no longer requested
+        scheduler.resume(DEVICE);
+        assertFalse(scanning.get());
+    }
+
+    @Test
+    public void testStartWhilePaused() {
+        scheduler.setPauseOnConnect(true);
+        scheduler.pause(DEVICE);
+
+        assertTrue(start());
+        assertEquals(0, starts.get());
+
+        scheduler.resume(DEVICE);
+        assertTrue(scanning.get());
+    }
+
+    @Test
+    public void testResumeWhen() throws Exception {
+        scheduler.setPauseOnConnect(true);
+        start();
+        scheduler.pause(DEVICE);
+
+        AtomicBoolean resolved = new AtomicBoolean();
+        scheduler.resumeWhen(DEVICE, resolved::get);
+        Thread.sleep(400);
+        assertFalse(scanning.get());
+
+        resolved.set(true);
+        Thread.sleep(400);
+        assertTrue(scanning.get());
+    }
+
+    @Test
+    public void testResumeWhenDeadline() throws Exception {
+        scheduler.setPauseOnConnect(true);
+        scheduler.setMaxResolutionHold(300);
+        start();
+        scheduler.pause(DEVICE);
+
+        scheduler.resumeWhen(DEVICE, () -> false);
+        Thread.sleep(700);
+        assertTrue(scanning.get());
+    }
+
+    @Test
+    public void testDutyCycle() throws Exception {
+        scheduler.setDutyCycle(150, 300);
+        start();
+        assertTrue(scanning.get());
+
+        Thread.sleep(225);
+        assertFalse(scanning.get());
+
+        Thread.sleep(150);
+        assertTrue(scanning.get());
+        assertEquals(2, starts.get());
+
+        assertTrue(scheduler.stop(ADAPTER));
+        Thread.sleep(300);
+        assertEquals(2, starts.get());
+    }
+
+    @Test
+    public void testDisposeStopsDutyCycle() throws Exception {
+        scheduler.setDutyCycle(100, 200);
+        start();
+
+        scheduler.dispose();
+        Thread.sleep(500);
+        assertEquals(1, starts.get());
+        assertEquals(0, stops.get());
+        assertFalse(scheduler.isScanning(ADAPTER));
+    }
+
+    @Test
+    public void testConnectLatency() {
+        scheduler.recordConnect(true, 300);
+        scheduler.recordConnect(true, 500);
+        scheduler.recordConnect(false, 100);
+
+        Map<String, Number> metrics = new HashMap<>();
+        scheduler.reportMetrics(metrics);
+        assertEquals(2L, metrics.get("discovery.connects.scanning"));
+        assertEquals(1L, metrics.get("discovery.connects.idle"));
+        assertEquals(400.0, metrics.get("discovery.connectLatency.scanning").doubleValue(), 0.001);
+        assertEquals(100.0, metrics.get("discovery.connectLatency.idle").doubleValue(), 0.001);
+    }
+
+    private boolean start() {
+        return scheduler.start(ADAPTER, () -> {
+            starts.incrementAndGet();
+            scanning.set(true);
+            return true;
+        }, () -> {
+            stops.incrementAndGet();
+            scanning.set(false);
+            return true;
+        });
+    }
+
+}
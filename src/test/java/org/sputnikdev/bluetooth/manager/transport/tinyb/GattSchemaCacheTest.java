@@ -0,0 +1,151 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattDescriptor;
+import tinyb.BluetoothGattService;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class GattSchemaCacheTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+    private static final String BATTERY_SERVICE = "0000180f-0000-1000-8000-00805f9b34fb";
+    private static final String BATTERY_LEVEL = "00002a19-0000-1000-8000-00805f9b34fb";
+    private static final String CONFIGURATION = "00002902-0000-1000-8000-00805f9b34fb";
+    private static final URL BATTERY_LEVEL_URL = DEVICE.copyWithService(BATTERY_SERVICE)
+            .copyWithCharacteristic(BATTERY_LEVEL);
+
+    private Path directory;
+    private GattSchemaCache cache;
+    private BluetoothGattService service = mock(BluetoothGattService.class);
+    private BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+    private BluetoothGattDescriptor descriptor = mock(BluetoothGattDescriptor.class);
+    private List<BluetoothGattService> services = Collections.singletonList(service);
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("gatt-cache");
+        cache = new GattSchemaCache();
+        cache.setDirectory(directory);
+        when(service.getUUID()).thenReturn(BATTERY_SERVICE);
+        when(service.getCharacteristics()).thenReturn(Collections.singletonList(characteristic));
+        when(characteristic.getUUID()).thenReturn(BATTERY_LEVEL);
+        when(characteristic.getFlags()).thenReturn(new String[] {"read", "notify"});
+        when(characteristic.getDescriptors()).thenReturn(Collections.singletonList(descriptor));
+        when(descriptor.getUUID()).thenReturn(CONFIGURATION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.dispose();
+        Files.list(directory).forEach(file -> file.toFile().delete());
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testEncodeDecode() {
+        GattSchemaCache.Schema schema = GattSchemaCache.read(services);
+        ByteBuffer buffer = GattSchemaCache.encode(0x102030405061L, schema);
+        // header + service + characteristic with one descriptor
+        assertEquals(15 + 18 + 19 + 16, buffer.remaining());
+        assertEquals(schema, GattSchemaCache.decode(0x102030405061L, buffer));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeWrongDevice() {
+        GattSchemaCache.decode(1, GattSchemaCache.encode(2, GattSchemaCache.read(services)));
+    }
+
+    @Test
+    public void testVerifyAndLoad() throws Exception {
+        assertNull(cache.getCharacteristic(BATTERY_LEVEL_URL));
+
+        cache.verify(DEVICE, services);
+        awaitVerified(cache);
+        assertTrue(Files.exists(directory.resolve("102030405061.gatt")));
+
+        // a new cache (e.g. after restart) loads the layout from disk, but does not serve it until verified
+        GattSchemaCache restarted = new GattSchemaCache();
+        restarted.setDirectory(directory);
+        try {
+            assertEquals(GattSchemaCache.read(services), restarted.getSchema(DEVICE));
+            assertNull(restarted.getCharacteristic(BATTERY_LEVEL_URL));
+            restarted.verify(DEVICE, services);
+            awaitVerified(restarted);
+            GattSchemaCache.CharacteristicSchema cached = restarted.getCharacteristic(BATTERY_LEVEL_URL);
+            assertNotNull(cached);
+            assertArrayEquals(new String[] {"read", "notify"}, cached.getFlags());
+            assertTrue(cached.hasDescriptor(UUIDs.parse("2902")));
+            assertFalse(cached.hasDescriptor(UUIDs.parse("2901")));
+        } finally {
+            restarted.dispose();
+        }
+
+        Map<String, Number> metrics = new HashMap<>();
+        cache.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("gattCache.updates"));
+        assertEquals(1L, metrics.get("gattCache.misses"));
+    }
+
+    @Test
+    public void testVerifyOncePerConnection() throws Exception {
+        cache.verify(DEVICE, services);
+        cache.verify(DEVICE, services);
+        awaitVerified(cache);
+        verify(service, times(1)).getCharacteristics();
+
+        // the layout has changed
+        when(characteristic.getFlags()).thenReturn(new String[] {"read", "indicate"});
+        cache.connected(DEVICE);
+        assertFalse(cache.isVerified(DEVICE));
+        assertNull(cache.getCharacteristic(BATTERY_LEVEL_URL));
+        cache.verify(DEVICE, services);
+        awaitVerified(cache);
+        verify(service, times(2)).getCharacteristics();
+
+        assertArrayEquals(new String[] {"read", "indicate"}, cache.getCharacteristic(BATTERY_LEVEL_URL).getFlags());
+        Map<String, Number> metrics = new HashMap<>();
+        cache.reportMetrics(metrics);
+        assertEquals(2L, metrics.get("gattCache.verifications"));
+        assertEquals(2L, metrics.get("gattCache.updates"));
+    }
+
+    @Test
+    public void testDisabled() {
+        cache.setDirectory(null);
+        cache.verify(DEVICE, services);
+        assertNull(cache.getCharacteristic(BATTERY_LEVEL_URL));
+        verify(service, times(0)).getCharacteristics();
+    }
+
+    private static void awaitVerified(GattSchemaCache cache) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!cache.isVerified(DEVICE) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(cache.isVerified(DEVICE));
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ManufacturerDataNotificationTest {
+
+    @Test
+    public void testNotify() {
+        List<String> delivered = new ArrayList<>();
+        ManufacturerDataNotification notification = (companyId, payload, offset, length) ->
+                delivered.add(companyId + ":" + payload[offset] + ":" + length);
+
+        Map<Short, byte[]> data = new HashMap<>();
+        data.put((short) 0x004c, new byte[] {2, 21, 0});
+        data.put((short) 0x0059, new byte[] {7});
+        notification.notify(data);
+
+        assertEquals(2, delivered.size());
+        assertTrue(delivered.contains("76:2:3"));
+        assertTrue(delivered.contains("89:7:1"));
+    }
+
+}
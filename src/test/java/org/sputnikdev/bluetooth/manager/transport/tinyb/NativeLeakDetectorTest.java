@@ -0,0 +1,129 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class NativeLeakDetectorTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+    private static final URL CHARACTERISTIC = DEVICE.copyWithService("180f").copyWithCharacteristic("2a19");
+
+    private NativeLeakDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new NativeLeakDetector();
+        detector.setEnabled(true);
+    }
+
+    @Test
+    public void testTrack() {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+        detector.track(device, DEVICE);
+        detector.track(device, DEVICE);
+        detector.track(characteristic, CHARACTERISTIC);
+
+        assertEquals(2, detector.getLive(NativeLeakDetector.Kind.DEVICE));
+        assertEquals(1, detector.getLive(NativeLeakDetector.Kind.CHARACTERISTIC));
+        assertEquals(0, detector.getLive(NativeLeakDetector.Kind.ADAPTER));
+
+        Map<String, Number> metrics = new HashMap<>();
+        detector.reportMetrics(metrics);
+        assertEquals(3L, metrics.get("natives.tracked"));
+        assertEquals(2L, metrics.get("natives.live.device"));
+        assertEquals(0L, metrics.get("natives.reclaimed.device"));
+    }
+
+    @Test
+    public void testReclaimed() throws Exception {
+        int count = 10;
+        for (int i = 0; i < count; i++) {
+            detector.track(mock(BluetoothDevice.class), DEVICE);
+        }
+        for (int i = 0; i < 50 && detector.getReclaimed(NativeLeakDetector.Kind.DEVICE) < count - 1; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        // the most recent mock might still be referenced by the mocking framework
+        assertTrue(detector.getReclaimed(NativeLeakDetector.Kind.DEVICE) >= count - 1);
+        assertEquals(count, detector.getReclaimed(NativeLeakDetector.Kind.DEVICE)
+                + detector.getLive(NativeLeakDetector.Kind.DEVICE));
+    }
+
+    @Test
+    public void testClosed() {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        BluetoothDevice other = mock(BluetoothDevice.class);
+        detector.track(device, DEVICE);
+        detector.track(device, DEVICE);
+        detector.track(other, DEVICE);
+
+        detector.closed(device);
+        // closing an object twice or closing an untracked object does not change anything
+        detector.closed(device);
+        detector.closed(mock(BluetoothDevice.class));
+
+        assertEquals(1, detector.getLive(NativeLeakDetector.Kind.DEVICE));
+        assertEquals(2, detector.getClosed(NativeLeakDetector.Kind.DEVICE));
+        assertEquals(0, detector.getReclaimed(NativeLeakDetector.Kind.DEVICE));
+        detector.setMaxAge(0);
+        assertTrue(detector.report().get(0).startsWith("device " + DEVICE + ": 1 live"));
+
+        Map<String, Number> metrics = new HashMap<>();
+        detector.reportMetrics(metrics);
+        assertEquals(2L, metrics.get("natives.closed.device"));
+    }
+
+    @Test
+    public void testAdaptersNotReported() {
+        detector.track(mock(BluetoothAdapter.class), DEVICE.getAdapterURL());
+        detector.setMaxAge(0);
+
+        assertEquals(1, detector.getLive(NativeLeakDetector.Kind.ADAPTER));
+        assertTrue(detector.report().isEmpty());
+    }
+
+    @Test
+    public void testReport() {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+        detector.track(device, DEVICE);
+        detector.track(characteristic, CHARACTERISTIC);
+        detector.track(characteristic, CHARACTERISTIC);
+
+        assertTrue(detector.report().isEmpty());
+
+        detector.setMaxAge(0);
+        List<String> report = detector.report();
+        assertEquals(2, report.size());
+        assertTrue(report.get(0).startsWith("characteristic " + CHARACTERISTIC + ": 2 live"));
+        assertTrue(report.get(1).startsWith("device " + DEVICE + ": 1 live"));
+    }
+
+    @Test
+    public void testDisabled() {
+        detector.track(mock(BluetoothDevice.class), DEVICE);
+        detector.setEnabled(false);
+        assertEquals(0, detector.getLive(NativeLeakDetector.Kind.DEVICE));
+
+        detector.track(mock(BluetoothDevice.class), DEVICE);
+        assertEquals(0, detector.getLive(NativeLeakDetector.Kind.DEVICE));
+        detector.setMaxAge(0);
+        assertTrue(detector.report().isEmpty());
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class NotificationDispatcherTest {
+
+    private NotificationDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        dispatcher = new NotificationDispatcher();
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown(0);
+    }
+
+    @Test
+    public void testLazyStart() {
+        assertFalse(dispatcher.isStarted());
+        assertTrue(dispatcher.shutdown(1000));
+
+        ExecutorService executor = dispatcher.getExecutor();
+        assertTrue(dispatcher.isStarted());
+        assertSame(executor, dispatcher.getExecutor());
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        CountDownLatch latch = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.getExecutor().submit(() -> {
+                sleep(100);
+                latch.countDown();
+            });
+        }
+
+        assertTrue(dispatcher.shutdown(2000));
+        assertTrue(latch.await(0, TimeUnit.MILLISECONDS));
+        assertFalse(dispatcher.isStarted());
+
+        Map<String, Number> metrics = new HashMap<>();
+        dispatcher.reportMetrics(metrics);
+        assertEquals(3L, metrics.get("notification.delivered"));
+        assertEquals(0L, metrics.get("notification.abandoned"));
+    }
+
+    @Test
+    public void testAbandoned() {
+        dispatcher.getExecutor().submit(() -> { });
+        sleep(100);
+        dispatcher.getExecutor().submit(() -> sleep(2000));
+        dispatcher.getExecutor().submit(() -> sleep(2000));
+
+        assertFalse(dispatcher.shutdown(100));
+
+        Map<String, Number> metrics = new HashMap<>();
+        dispatcher.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("notification.delivered"));
+        assertEquals(2L, metrics.get("notification.abandoned"));
+        assertEquals(0, metrics.get("notification.pending"));
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        ExecutorService executor = dispatcher.getExecutor();
+        dispatcher.shutdown(1000);
+        assertTrue(executor.isShutdown());
+
+        ExecutorService restarted = dispatcher.getExecutor();
+        assertNotSame(executor, restarted);
+        assertTrue(restarted.submit(() -> true).get());
+    }
+
+    @Test
+    public void testDispatch() {
+        Runnable notification = mock(Runnable.class);
+        Logger logger = mock(Logger.class);
+        String message = "Error!";
+        dispatcher.dispatch(notification, logger, message);
+        verify(notification, timeout(1000).times(1)).run();
+        verifyNoMoreInteractions(logger);
+
+        RuntimeException ex = new RuntimeException();
+        doThrow(ex).when(notification).run();
+        dispatcher.dispatch(notification, logger, message);
+        verify(notification, timeout(1000).times(2)).run();
+        verify(logger, timeout(1000).times(1)).error(message, ex);
+    }
+
+    @Test
+    public void testDispatchRejected() {
+        NotificationDispatcher rejecting = spy(new NotificationDispatcher());
+        ExecutorService executor = mock(ExecutorService.class);
+        when(executor.submit(any(Runnable.class))).thenThrow(new RejectedExecutionException());
+        doReturn(executor).when(rejecting).getExecutor();
+        Runnable notification = mock(Runnable.class);
+
+        rejecting.dispatch(notification, mock(Logger.class), "Error!");
+
+        verify(notification, never()).run();
+        Map<String, Number> metrics = new HashMap<>();
+        rejecting.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("notification.abandoned"));
+    }
+
+    @Test
+    public void testDispatchersIndependent() throws Exception {
+        NotificationDispatcher other = new NotificationDispatcher();
+        other.getExecutor();
+        other.shutdown(1000);
+
+        // shutting down one dispatcher does not affect notifications of another one
+        CountDownLatch latch = new CountDownLatch(1);
+        dispatcher.dispatch(latch::countDown, mock(Logger.class), "Error!");
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertFalse(other.isStarted());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
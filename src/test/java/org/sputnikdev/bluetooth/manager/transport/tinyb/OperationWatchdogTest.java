@@ -0,0 +1,93 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OperationWatchdogTest {
+
+    private static final URL CHARACTERISTIC = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:60/0180/aa11");
+    private static final URL DEVICE = CHARACTERISTIC.getDeviceURL();
+
+    private OperationWatchdog watchdog;
+
+    @Before
+    public void setUp() {
+        watchdog = new OperationWatchdog();
+    }
+
+    @After
+    public void tearDown() {
+        watchdog.dispose();
+    }
+
+    @Test
+    public void testCallWithoutDeadline() {
+        assertEquals(0, watchdog.getDeadline(OperationWatchdog.Operation.READ));
+        assertEquals("value", watchdog.call(OperationWatchdog.Operation.READ, CHARACTERISTIC, () -> "value"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCallPropagatesException() {
+        watchdog.setDeadline(OperationWatchdog.Operation.READ, 1000);
+        watchdog.call(OperationWatchdog.Operation.READ, CHARACTERISTIC, () -> {
+            throw new IllegalStateException();
+        });
+    }
+
+    @Test
+    public void testCallAfterDispose() {
+        watchdog.setDeadline(OperationWatchdog.Operation.READ, 1000);
+        assertEquals("value", watchdog.call(OperationWatchdog.Operation.READ, CHARACTERISTIC, () -> "value"));
+        watchdog.dispose();
+        assertEquals("value", watchdog.call(OperationWatchdog.Operation.READ, CHARACTERISTIC, () -> "value"));
+    }
+
+    @Test
+    public void testStuckCall() throws Exception {
+        watchdog.setDeadline(OperationWatchdog.Operation.CONNECT, 50);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            watchdog.call(OperationWatchdog.Operation.CONNECT, DEVICE, () -> release.await(5, TimeUnit.SECONDS));
+            fail();
+        } catch (TinyBTimeoutException ignore) { }
+
+        assertFalse(watchdog.isHealthy(CHARACTERISTIC));
+        assertEquals(1, watchdog.getStuckCount(OperationWatchdog.Operation.CONNECT));
+        assertEquals(1, watchdog.getStuckCalls());
+
+        // any other call to the same device is rejected straight away
+        watchdog.setDeadline(OperationWatchdog.Operation.READ, 1000);
+        try {
+            watchdog.call(OperationWatchdog.Operation.READ, CHARACTERISTIC, () -> "value");
+            fail();
+        } catch (TinyBTimeoutException ignore) { }
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!watchdog.isHealthy(DEVICE) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(watchdog.isHealthy(DEVICE));
+        assertEquals(0, watchdog.getStuckCalls());
+        assertTrue(watchdog.getStuckDuration(OperationWatchdog.Operation.CONNECT) >= 50);
+        assertEquals("value", watchdog.call(OperationWatchdog.Operation.READ, CHARACTERISTIC, () -> "value"));
+
+        Map<String, Number> metrics = new HashMap<>();
+        watchdog.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("watchdog.connect.stuck"));
+        assertEquals(0, metrics.get("watchdog.unhealthyDevices"));
+    }
+
+}
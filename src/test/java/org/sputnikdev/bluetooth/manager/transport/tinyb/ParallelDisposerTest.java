@@ -0,0 +1,112 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDisposerTest {
+
+    private ParallelDisposer disposer;
+
+    @Before
+    public void setUp() {
+        disposer = new ParallelDisposer();
+        disposer.setParallelism(4);
+    }
+
+    @Test
+    public void testParallel() {
+        List<Integer> objects = IntStream.range(0, 8).boxed().collect(Collectors.toList());
+        Set<Integer> disposed = ConcurrentHashMap.newKeySet();
+
+        long started = System.currentTimeMillis();
+        assertTrue(disposer.dispose("device", objects, object -> {
+            sleep(200);
+            disposed.add(object);
+        }));
+        long duration = System.currentTimeMillis() - started;
+
+        assertEquals(8, disposed.size());
+        // 8 objects by 4 threads
+        assertTrue(duration >= 400 && duration < 1200);
+
+        Map<String, Number> metrics = new HashMap<>();
+        disposer.reportMetrics(metrics);
+        assertEquals(8L, metrics.get("disposal.disposed"));
+        assertEquals(0, metrics.get("disposal.pending"));
+    }
+
+    @Test
+    public void testFailures() {
+        assertTrue(disposer.dispose("device", Arrays.asList(1, 2, 3), object -> {
+            if (object == 2) {
+                throw new IllegalStateException("native error");
+            }
+        }));
+
+        Map<String, Number> metrics = new HashMap<>();
+        disposer.reportMetrics(metrics);
+        assertEquals(2L, metrics.get("disposal.disposed"));
+        assertEquals(1L, metrics.get("disposal.failed"));
+    }
+
+    @Test
+    public void testDeadline() {
+        disposer.setParallelism(2);
+        disposer.setDeadline(300);
+        List<Integer> objects = IntStream.range(0, 6).boxed().collect(Collectors.toList());
+
+        long started = System.currentTimeMillis();
+        // native calls do not respond to interruption
+        assertFalse(disposer.dispose("device", objects, object -> sleepUninterruptibly(1000)));
+        assertTrue(System.currentTimeMillis() - started < 900);
+
+        Map<String, Number> metrics = new HashMap<>();
+        disposer.reportMetrics(metrics);
+        assertEquals(6L, metrics.get("disposal.abandoned"));
+        // two objects are still being disposed
+        assertEquals(2, metrics.get("disposal.pending"));
+
+        sleep(1000);
+        metrics.clear();
+        disposer.reportMetrics(metrics);
+        assertEquals(0, metrics.get("disposal.pending"));
+        assertEquals(2L, metrics.get("disposal.disposed"));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(disposer.dispose("adapter", Collections.emptyList(), object -> { }));
+    }
+
+    private static void sleepUninterruptibly(long millis) {
+        long until = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < until) {
+            try {
+                Thread.sleep(Math.max(1, until - System.currentTimeMillis()));
+            } catch (InterruptedException ignore) { /* keep sleeping */ }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectEngineTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final URL DEVICE_1 = ADAPTER.copyWithDevice("10:20:30:40:50:61");
+    private static final URL DEVICE_2 = ADAPTER.copyWithDevice("10:20:30:40:50:62");
+    private static final URL DEVICE_3 = ADAPTER.copyWithDevice("10:20:30:40:50:63");
+
+    private ReconnectEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new ReconnectEngine(new OperationWatchdog());
+        engine.setEnabled(true);
+        engine.setDelays(50, 200);
+    }
+
+    @After
+    public void tearDown() {
+        engine.dispose();
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        BooleanSupplier connector = new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                // the first attempt fails
+                boolean connected = attempts.incrementAndGet() > 1;
+                engine.recordConnect(DEVICE_1, this, connected, 100);
+                return connected;
+            }
+        };
+        engine.recordConnect(DEVICE_1, connector, true, 100);
+
+        engine.dropped(DEVICE_1);
+        // duplicate notifications are ignored
+        engine.dropped(DEVICE_1);
+        Thread.sleep(600);
+        assertEquals(2, attempts.get());
+
+        Map<String, Number> metrics = new HashMap<>();
+        engine.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("reconnect.drops"));
+        assertEquals(2L, metrics.get("reconnect.attempts"));
+        assertEquals(1L, metrics.get("reconnect.reconnected"));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        engine.recordConnect(DEVICE_1, () -> attempts.incrementAndGet() > 0, true, 100);
+
+        engine.cancel(DEVICE_1);
+        engine.dropped(DEVICE_1);
+        Thread.sleep(300);
+        assertEquals(0, attempts.get());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        engine.setEnabled(false);
+        AtomicInteger attempts = new AtomicInteger();
+        engine.recordConnect(DEVICE_1, () -> attempts.incrementAndGet() > 0, true, 100);
+
+        engine.dropped(DEVICE_1);
+        Thread.sleep(300);
+        assertEquals(0, attempts.get());
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+        engine.setMaxAttempts(3);
+        AtomicInteger attempts = new AtomicInteger();
+        engine.recordConnect(DEVICE_1, () -> {
+            attempts.incrementAndGet();
+            return false;
+        }, true, 100);
+
+        engine.dropped(DEVICE_1);
+        Thread.sleep(1500);
+        assertEquals(3, attempts.get());
+
+        Map<String, Number> metrics = new HashMap<>();
+        engine.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("reconnect.abandoned"));
+    }
+
+    @Test
+    public void testScore() {
+        assertEquals(1.0, engine.getScore(DEVICE_1), 0.001);
+        engine.recordConnect(DEVICE_1, () -> true, true, 100);
+        engine.recordConnect(DEVICE_2, () -> true, true, 100);
+        engine.recordConnect(DEVICE_2, () -> true, false, 0);
+        engine.recordConnect(DEVICE_3, () -> true, true, 8000);
+
+        assertTrue(engine.getScore(DEVICE_1) > engine.getScore(DEVICE_2));
+        assertTrue(engine.getScore(DEVICE_1) > engine.getScore(DEVICE_3));
+    }
+
+    @Test
+    public void testHealthierFirst() throws Exception {
+        engine.setMaxConcurrent(1);
+        engine.setDelays(100, 100);
+        List<URL> order = Collections.synchronizedList(new ArrayList<>());
+        Map<URL, BooleanSupplier> connectors = new HashMap<>();
+        for (URL device : new URL[] {DEVICE_3, DEVICE_2, DEVICE_1}) {
+            connectors.put(device, () -> {
+                order.add(device);
+                sleep(50);
+                return true;
+            });
+            engine.recordConnect(device, connectors.get(device), true, 100);
+        }
+        // device 3 is slow to connect, device 2 fails to connect sometimes
+        engine.recordConnect(DEVICE_3, connectors.get(DEVICE_3), true, 9000);
+        engine.recordConnect(DEVICE_2, connectors.get(DEVICE_2), false, 0);
+
+        // occupy the only reconnect slot so that all devices become due at the same time
+        URL blocker = ADAPTER.copyWithDevice("10:20:30:40:50:60");
+        engine.recordConnect(blocker, () -> {
+            sleep(200);
+            return true;
+        }, true, 100);
+        engine.dropped(blocker);
+        Thread.sleep(150);
+
+        engine.dropped(DEVICE_3);
+        engine.dropped(DEVICE_2);
+        engine.dropped(DEVICE_1);
+        Thread.sleep(600);
+
+        assertEquals(3, order.size());
+        assertEquals(DEVICE_1, order.get(0));
+
+        Map<String, Number> metrics = new HashMap<>();
+        engine.reportMetrics(metrics);
+        assertEquals(4L, metrics.get("reconnect.reconnected"));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.DiscoveredDevice;
+import org.sputnikdev.bluetooth.manager.transport.Characteristic;
+import org.sputnikdev.bluetooth.manager.transport.CharacteristicAccessType;
+import org.sputnikdev.bluetooth.manager.transport.Device;
+import org.sputnikdev.bluetooth.manager.transport.Service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayFactoryTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final URL DEVICE = ADAPTER.copyWithDevice("10:20:30:40:50:61");
+    private static final URL SERVICE = DEVICE.copyWithService("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final URL BATTERY_LEVEL = SERVICE.copyWithCharacteristic("00002a19-0000-1000-8000-00805f9b34fb");
+    private static final URL CONTROL = SERVICE.copyWithCharacteristic("00002a1a-0000-1000-8000-00805f9b34fb");
+
+    private Path directory;
+    private ReplayFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("replay");
+        CaptureLog capture = new CaptureLog();
+        capture.setDirectory(directory);
+        capture.discovered(new DiscoveredDevice(DEVICE, "Sensor", "Kitchen", (short) -70, 0, true));
+        capture.connected(DEVICE, true);
+        capture.read(BATTERY_LEVEL, new byte[] {90});
+        capture.write(CONTROL, new byte[] {1}, false);
+        Thread.sleep(200);
+        capture.rssi(DEVICE, (short) -60);
+        capture.value(BATTERY_LEVEL, new byte[] {80});
+        capture.serviceData(DEVICE, Collections.singletonMap("180f", new byte[] {80}));
+        capture.manufacturerData(DEVICE, Collections.singletonMap((short) 0x004c, new byte[] {1, 2}));
+        capture.dispose();
+        factory = new ReplayFactory(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        factory.stop();
+        for (Path segment : CaptureLog.list(directory)) {
+            Files.delete(segment);
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        assertEquals(TinyBFactory.TINYB_PROTOCOL_NAME, factory.getProtocolName());
+        // nothing is discovered until the timeline is replayed
+        assertTrue(factory.getDiscoveredDevices().isEmpty());
+        assertNull(factory.getDevice(ADAPTER.copyWithDevice("10:20:30:40:50:62")));
+
+        Device device = factory.getDevice(DEVICE);
+        Characteristic batteryLevel = factory.getCharacteristic(BATTERY_LEVEL);
+        List<Object> notifications = Collections.synchronizedList(new ArrayList<>());
+        device.enableConnectedNotifications(notifications::add);
+        device.enableRSSINotifications(notifications::add);
+        device.enableServiceDataNotifications(value -> notifications.add(value.get("180f")[0]));
+        device.enableManufacturerDataNotifications(value -> notifications.add(value.get((short) 0x004c)[1]));
+        batteryLevel.enableValueNotifications(value -> notifications.add(value[0]));
+        assertTrue(batteryLevel.isNotifying());
+
+        factory.configure(Collections.singletonMap(ReplayFactory.REPLAY_SPEED, 0));
+        factory.start();
+        assertTrue(factory.awaitCompletion(1000));
+
+        // notifications are delivered in the recorded order
+        assertEquals(Arrays.asList(true, (short) -60, (byte) 80, (byte) 80, (byte) 2), notifications);
+
+        DiscoveredDevice discovered = factory.getDiscoveredDevices().iterator().next();
+        assertEquals(DEVICE, discovered.getURL());
+        assertEquals("Sensor", discovered.getName());
+        assertEquals("Kitchen", discovered.getAlias());
+        assertEquals(ADAPTER, factory.getDiscoveredAdapters().iterator().next().getURL());
+        assertEquals(1, factory.getAdapter(ADAPTER).getDevices().size());
+
+        assertEquals(-60, device.getRSSI());
+        assertTrue(device.isConnected());
+        assertArrayEquals(new byte[] {80}, device.getServiceData().get("180f"));
+        assertArrayEquals(new byte[] {90}, batteryLevel.readValue());
+        assertFalse(factory.getCharacteristic(CONTROL).writeValue(new byte[] {1}));
+        assertEquals(EnumSet.of(CharacteristicAccessType.READ, CharacteristicAccessType.NOTIFY),
+                batteryLevel.getFlags());
+
+        List<Service> services = device.getServices();
+        assertEquals(1, services.size());
+        assertEquals(SERVICE, services.get(0).getURL());
+        assertEquals(2, services.get(0).getCharacteristics().size());
+
+        assertEquals(8L, factory.getMetrics().get("replay.dispatched"));
+    }
+
+    @Test
+    public void testReadBeforeReplay() {
+        // reads issued before the first recorded read get its result
+        assertArrayEquals(new byte[] {90}, factory.getCharacteristic(BATTERY_LEVEL).readValue());
+        assertTrue(factory.getCharacteristic(CONTROL).writeValue(new byte[] {1}));
+    }
+
+    @Test
+    public void testSpeed() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put(ReplayFactory.REPLAY_SPEED, "1");
+        factory.configure(config);
+        long started = System.currentTimeMillis();
+        factory.start();
+        assertTrue(factory.awaitCompletion(2000));
+        assertTrue(System.currentTimeMillis() - started >= 180);
+
+        factory.load(directory);
+        config.put(ReplayFactory.REPLAY_SPEED, 4.0);
+        factory.configure(config);
+        started = System.currentTimeMillis();
+        factory.start();
+        assertTrue(factory.awaitCompletion(2000));
+        long elapsed = System.currentTimeMillis() - started;
+        assertTrue(elapsed >= 40 && elapsed < 180);
+    }
+
+    @Test
+    public void testLoop() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put(ReplayFactory.REPLAY_SPEED, 0);
+        config.put(ReplayFactory.REPLAY_LOOP, true);
+        factory.configure(config);
+        factory.start();
+
+        assertFalse(factory.awaitCompletion(200));
+        assertTrue(factory.getMetrics().get("replay.dispatched").longValue() > 8);
+        factory.stop();
+        assertTrue(factory.awaitCompletion(1000));
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        Characteristic batteryLevel = factory.getCharacteristic(BATTERY_LEVEL);
+        List<byte[]> values = new ArrayList<>();
+        batteryLevel.enableValueNotifications(values::add);
+
+        factory.dispose(DEVICE);
+        assertFalse(batteryLevel.isNotifying());
+        factory.configure(Collections.singletonMap(ReplayFactory.REPLAY_SPEED, 0));
+        factory.start();
+        assertTrue(factory.awaitCompletion(1000));
+        assertTrue(values.isEmpty());
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RetryPolicyTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:60");
+    private static final String IO_ERROR = "GDBus.Error:org.bluez.Error.Failed: Input/output error";
+
+    private RetryPolicy retryPolicy;
+
+    @Before
+    public void setUp() {
+        retryPolicy = new RetryPolicy();
+        retryPolicy.setDelays(1, 4);
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(RetryPolicy.ErrorType.IO_ERROR, RetryPolicy.ErrorType.classify(new RuntimeException(IO_ERROR)));
+        assertEquals(RetryPolicy.ErrorType.IN_PROGRESS, RetryPolicy.ErrorType.classify(
+                new RuntimeException("GDBus.Error:org.bluez.Error.InProgress: Operation already in progress")));
+        assertEquals(RetryPolicy.ErrorType.TIMEOUT, RetryPolicy.ErrorType.classify(new TinyBTimeoutException("")));
+        assertEquals(RetryPolicy.ErrorType.UNKNOWN, RetryPolicy.ErrorType.classify(
+                new RuntimeException("GDBus.Error:org.bluez.Error.Failed: No discovery started")));
+        assertEquals(RetryPolicy.ErrorType.UNKNOWN, RetryPolicy.ErrorType.classify(new RuntimeException()));
+    }
+
+    @Test
+    public void testNoRetriesByDefault() {
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            retryPolicy.execute("connect", DEVICE, () -> {
+                calls.incrementAndGet();
+                throw new RuntimeException(IO_ERROR);
+            });
+            fail();
+        } catch (RuntimeException ex) {
+            assertEquals(IO_ERROR, ex.getMessage());
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, retryPolicy.getRetries(RetryPolicy.ErrorType.IO_ERROR));
+    }
+
+    @Test
+    public void testRecovered() {
+        retryPolicy.setAttempts(3);
+        AtomicInteger calls = new AtomicInteger();
+        assertTrue(retryPolicy.execute("connect", DEVICE, () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new RuntimeException(IO_ERROR);
+            }
+            return true;
+        }));
+        assertEquals(3, calls.get());
+        assertEquals(2, retryPolicy.getRetries(RetryPolicy.ErrorType.IO_ERROR));
+        assertEquals(1, retryPolicy.getRecovered(RetryPolicy.ErrorType.IO_ERROR));
+        assertEquals(0, retryPolicy.getExhausted(RetryPolicy.ErrorType.IO_ERROR));
+    }
+
+    @Test
+    public void testExhausted() {
+        retryPolicy.setAttempts(2);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            retryPolicy.execute("read", DEVICE, () -> {
+                calls.incrementAndGet();
+                throw new RuntimeException(IO_ERROR);
+            });
+            fail();
+        } catch (RuntimeException ignore) { }
+        assertEquals(3, calls.get());
+        assertEquals(2, retryPolicy.getRetries(RetryPolicy.ErrorType.IO_ERROR));
+        assertEquals(1, retryPolicy.getExhausted(RetryPolicy.ErrorType.IO_ERROR));
+    }
+
+    @Test
+    public void testNonTransientErrorsAreNotRetried() {
+        retryPolicy.setAttempts(3);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            retryPolicy.execute("write", DEVICE, () -> {
+                calls.incrementAndGet();
+                throw new TinyBTimeoutException("timeout");
+            });
+            fail();
+        } catch (TinyBTimeoutException ignore) { }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testWritesAreNotRetriedByDefault() {
+        retryPolicy.setAttempts(3);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            retryPolicy.executeWrite(DEVICE, () -> {
+                calls.incrementAndGet();
+                throw new RuntimeException(IO_ERROR);
+            });
+            fail();
+        } catch (RuntimeException ignore) { }
+        assertEquals(1, calls.get());
+        assertEquals(0, retryPolicy.getRetries(RetryPolicy.ErrorType.IO_ERROR));
+
+        retryPolicy.setRetryWrites(true);
+        assertTrue(retryPolicy.executeWrite(DEVICE, () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new RuntimeException(IO_ERROR);
+            }
+            return true;
+        }));
+        assertEquals(3, calls.get());
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StaleDeviceEvictorTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+
+    private DeviceRegistry registry = new DeviceRegistry();
+    private BiConsumer<URL, BluetoothDevice> disposer = mock(BiConsumer.class);
+    private BluetoothDevice device = mock(BluetoothDevice.class);
+    private StaleDeviceEvictor evictor;
+
+    @Before
+    public void setUp() {
+        registry.setEnabled(true);
+        evictor = new StaleDeviceEvictor(registry, disposer);
+    }
+
+    @After
+    public void tearDown() {
+        evictor.dispose();
+    }
+
+    @Test
+    public void testEvict() {
+        evictor.setStaleTimeout(500);
+        registry.register(DEVICE, device);
+
+        verify(disposer, timeout(3000)).accept(DEVICE, device);
+        assertNull(registry.getEntry(DEVICE));
+
+        Map<String, Number> metrics = new HashMap<>();
+        evictor.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("eviction.evicted"));
+        assertEquals(0, metrics.get("eviction.live"));
+    }
+
+    @Test
+    public void testConnectedNotEvicted() {
+        when(device.getConnected()).thenReturn(true);
+        evictor.setStaleTimeout(500);
+        registry.register(DEVICE, device);
+
+        verify(disposer, after(2500).never()).accept(DEVICE, device);
+        assertNotNull(registry.getEntry(DEVICE));
+    }
+
+    @Test
+    public void testDisabled() {
+        registry.register(DEVICE, device);
+        verify(disposer, after(1500).never()).accept(DEVICE, device);
+
+        // existing devices are tracked once eviction gets enabled
+        evictor.setStaleTimeout(100);
+        verify(disposer, timeout(3000)).accept(DEVICE, device);
+    }
+
+}
@@ -0,0 +1,142 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattService;
+import tinyb.BluetoothNotification;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SubscriptionRestorerTest {
+
+    private static final URL DEVICE = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61");
+    private static final String BATTERY_SERVICE = "0000180f-0000-1000-8000-00805f9b34fb";
+    private static final String BATTERY_LEVEL = "00002a19-0000-1000-8000-00805f9b34fb";
+    private static final String TEMPERATURE = "00002a6e-0000-1000-8000-00805f9b34fb";
+    private static final URL BATTERY_LEVEL_URL = DEVICE.copyWithService(BATTERY_SERVICE)
+            .copyWithCharacteristic(BATTERY_LEVEL);
+    private static final URL TEMPERATURE_URL = DEVICE.copyWithService(BATTERY_SERVICE)
+            .copyWithCharacteristic("2A6E");
+
+    private SubscriptionRestorer restorer;
+    private BluetoothDevice device = mock(BluetoothDevice.class);
+    private BluetoothGattService service = mock(BluetoothGattService.class);
+    private BluetoothGattCharacteristic batteryLevel = mock(BluetoothGattCharacteristic.class);
+    private BluetoothGattCharacteristic temperature = mock(BluetoothGattCharacteristic.class);
+
+    @Before
+    public void setUp() {
+        restorer = new SubscriptionRestorer();
+        restorer.setEnabled(true);
+        when(service.getUUID()).thenReturn(BATTERY_SERVICE);
+        when(batteryLevel.getUUID()).thenReturn(BATTERY_LEVEL);
+        when(temperature.getUUID()).thenReturn(TEMPERATURE);
+        when(service.getCharacteristics()).thenReturn(Arrays.asList(batteryLevel, temperature));
+        when(device.getServices()).thenReturn(Collections.singletonList(service));
+    }
+
+    @After
+    public void tearDown() {
+        restorer.dispose();
+    }
+
+    @Test
+    public void testDisabled() {
+        restorer.setEnabled(false);
+        assertFalse(restorer.subscribe(BATTERY_LEVEL_URL, batteryLevel, value -> { }));
+        verify(batteryLevel, never()).enableValueNotifications(any());
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        BluetoothNotification<byte[]> batteryCallback = mock(BluetoothNotification.class);
+        assertTrue(restorer.subscribe(BATTERY_LEVEL_URL, batteryLevel, batteryCallback));
+        assertTrue(restorer.subscribe(TEMPERATURE_URL, temperature, value -> { }));
+        ArgumentCaptor<BluetoothNotification> captor = ArgumentCaptor.forClass(BluetoothNotification.class);
+        verify(batteryLevel, times(1)).enableValueNotifications(captor.capture());
+
+        restorer.disconnected(DEVICE);
+        when(device.getServicesResolved()).thenReturn(false);
+        restorer.connected(DEVICE, device);
+        verify(batteryLevel, after(400).times(1)).enableValueNotifications(any());
+
+        when(device.getServicesResolved()).thenReturn(true);
+        verify(batteryLevel, timeout(1000).times(2)).enableValueNotifications(captor.getValue());
+        verify(temperature, timeout(1000).times(2)).enableValueNotifications(any());
+        // restores are counted once the last subscription task completes, which may lag behind the native call
+        Map<String, Number> metrics = awaitMetric("subscriptions.restores", 1L);
+
+        // the upper layer re-enables notifications, no native call is made, the new callback gets values
+        BluetoothNotification<byte[]> newCallback = mock(BluetoothNotification.class);
+        assertTrue(restorer.subscribe(BATTERY_LEVEL_URL, batteryLevel, newCallback));
+        verify(batteryLevel, times(2)).enableValueNotifications(any());
+        captor.getValue().run(new byte[] {50});
+        verify(newCallback, times(1)).run(any());
+        verify(batteryCallback, never()).run(any());
+
+        restorer.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("subscriptions.restores"));
+        assertEquals(2L, metrics.get("subscriptions.restored"));
+        assertEquals(1L, metrics.get("subscriptions.skipped"));
+        assertEquals(2, metrics.get("subscriptions.characteristics"));
+        assertTrue(metrics.get("subscriptions.restoreLatency").doubleValue() >= 250);
+    }
+
+    @Test
+    public void testUnsubscribe() {
+        restorer.subscribe(BATTERY_LEVEL_URL, batteryLevel, value -> { });
+        restorer.unsubscribe(BATTERY_LEVEL_URL);
+
+        when(device.getServicesResolved()).thenReturn(true);
+        restorer.connected(DEVICE, device);
+        verify(batteryLevel, after(300).times(1)).enableValueNotifications(any());
+    }
+
+    @Test
+    public void testResolutionTimeout() {
+        restorer.setResolutionTimeout(300);
+        restorer.subscribe(BATTERY_LEVEL_URL, batteryLevel, value -> { });
+
+        restorer.connected(DEVICE, device);
+        verify(batteryLevel, after(700).times(1)).enableValueNotifications(any());
+
+        Map<String, Number> metrics = new HashMap<>();
+        restorer.reportMetrics(metrics);
+        assertEquals(1L, metrics.get("subscriptions.failures"));
+        assertEquals(0L, metrics.get("subscriptions.restores"));
+    }
+
+    private Map<String, Number> awaitMetric(String name, Number expected) throws InterruptedException {
+        Map<String, Number> metrics = new HashMap<>();
+        long until = System.currentTimeMillis() + 1000;
+        do {
+            restorer.reportMetrics(metrics);
+            if (expected.equals(metrics.get(name))) {
+                break;
+            }
+            Thread.sleep(10);
+        } while (System.currentTimeMillis() < until);
+        return metrics;
+    }
+
+}
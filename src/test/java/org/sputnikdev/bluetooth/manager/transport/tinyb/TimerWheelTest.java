@@ -0,0 +1,83 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    private TimerWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimerWheel("test-wheel", 10, 8);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void testSchedule() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long started = System.nanoTime();
+        wheel.schedule(latch::countDown, 50);
+        assertEquals(1, wheel.size());
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 50);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testScheduleBeyondOneRound() throws Exception {
+        // 8 buckets * 10ms = one round takes 80ms
+        CountDownLatch latch = new CountDownLatch(1);
+        long started = System.nanoTime();
+        wheel.schedule(latch::countDown, 200);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 200);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        AtomicInteger executed = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(executed::incrementAndGet, 30);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, wheel.size());
+
+        CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(latch::countDown, 60);
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(0, executed.get());
+    }
+
+    @Test
+    public void testManyTasks() throws Exception {
+        int count = 10000;
+        CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(latch::countDown, i % 300);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopped() {
+        wheel.stop();
+        wheel.schedule(() -> { }, 10);
+    }
+
+}
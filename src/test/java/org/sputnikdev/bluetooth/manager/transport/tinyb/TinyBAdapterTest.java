@@ -22,18 +22,22 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -60,15 +64,24 @@ public class TinyBAdapterTest {
 
     @Mock
     private ExecutorService fakeExecutorService;
+    private NotificationDispatcher dispatcher = spy(new NotificationDispatcher());
 
     @InjectMocks
-    private TinyBAdapter tinyBAdapter = new TinyBAdapter(URL, bluetoothAdapter);
+    private TinyBAdapter tinyBAdapter = new TinyBAdapter(URL, bluetoothAdapter, dispatcher);
 
     @Before
     public void setUp() throws Exception {
         PowerMockito.mockStatic(TinyBFactory.class);
-        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "notifySafely", any(), any(), anyString());
-        PowerMockito.doReturn(fakeExecutorService).when(TinyBFactory.class, "getNotificationService");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getRetryPolicy");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getDiscoveryScheduler");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getDiscoveryFilter");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getDeviceRegistry");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getLeakDetector");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getDisposer");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getSubscriptionRestorer");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getReconnectEngine");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "runSilently", any(Runnable.class));
+        doReturn(fakeExecutorService).when(dispatcher).getExecutor();
         when(fakeExecutorService.submit(any(Runnable.class))).thenAnswer((Answer<Future<?>>) invocation -> {
             invocation.getArgumentAt(0, Runnable.class).run();
             return null;
@@ -217,6 +230,46 @@ public class TinyBAdapterTest {
         assertEquals(URL.copyWithDevice(DEVICE_2_MAC), devices.get(1).getURL());
     }
 
+    @Test
+    public void testDisposeStopsDutyCycle() throws Exception {
+        DiscoveryScheduler scheduler = TinyBFactory.getDiscoveryScheduler();
+        scheduler.setDutyCycle(100, 200);
+        try {
+            tinyBAdapter.startDiscovery();
+            TinyBAdapter.dispose(bluetoothAdapter);
+
+            // no phase must fire against the disposed adapter
+            Thread.sleep(500);
+            verify(bluetoothAdapter, times(1)).startDiscovery();
+            assertFalse(scheduler.isScanning(URL));
+        } finally {
+            scheduler.setDutyCycle(0, 0);
+            scheduler.dispose();
+        }
+    }
+
+    @Test
+    public void testDisposeDevices() {
+        List<BluetoothDevice> devices = bluetoothAdapter.getDevices();
+        Map<String, Number> before = new HashMap<>();
+        TinyBFactory.getDisposer().reportMetrics(before);
+
+        TinyBAdapter.dispose(bluetoothAdapter);
+
+        for (BluetoothDevice device : devices) {
+            verify(device).disconnect();
+            verify(device).disableRSSINotifications();
+            verify(device).remove();
+        }
+        verify(bluetoothAdapter).stopDiscovery();
+        verify(bluetoothAdapter).disablePoweredNotifications();
+        Map<String, Number> after = new HashMap<>();
+        TinyBFactory.getDisposer().reportMetrics(after);
+        assertEquals(before.get("disposal.disposed").longValue() + devices.size(),
+                after.get("disposal.disposed").longValue());
+        assertEquals(before.get("disposal.failed"), after.get("disposal.failed"));
+    }
+
     @Test
     public void testDispose() {
         //tinyBAdapter.dispose();
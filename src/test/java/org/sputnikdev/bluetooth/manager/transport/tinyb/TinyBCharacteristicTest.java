@@ -53,17 +53,27 @@ public class TinyBCharacteristicTest {
     private BluetoothGattCharacteristic bluetoothGattCharacteristic = mock(BluetoothGattCharacteristic.class);
     @Mock
     private ExecutorService fakeExecutorService;
+    private NotificationDispatcher dispatcher = spy(new NotificationDispatcher());
     @Mock
     private BluetoothGattDescriptor notificationDescriptor;
 
     @InjectMocks
-    private TinyBCharacteristic tinyBCharacteristic = new TinyBCharacteristic(URL, bluetoothGattCharacteristic);
+    private TinyBCharacteristic tinyBCharacteristic =
+            new TinyBCharacteristic(URL, bluetoothGattCharacteristic, dispatcher);
 
     @Before
     public void setUp() throws Exception {
         PowerMockito.mockStatic(TinyBFactory.class);
-        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "notifySafely", any(), any(), anyString());
-        PowerMockito.doReturn(fakeExecutorService).when(TinyBFactory.class, "getNotificationService");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getWatchdog");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getRetryPolicy");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getConnectionManager");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getAdapterBalancer");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getSubscriptionRestorer");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getGattSchemaCache");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getCaptureLog");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getLeakDetector");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getWriteCoalescer");
+        doReturn(fakeExecutorService).when(dispatcher).getExecutor();
         when(fakeExecutorService.submit(any(Runnable.class))).thenAnswer((Answer<Future<?>>) invocation -> {
             invocation.getArgumentAt(0, Runnable.class).run();
             return null;
@@ -33,11 +33,12 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyShort;
-import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -70,15 +71,28 @@ public class TinyBDeviceTest {
     private BluetoothDevice bluetoothDevice = mock(BluetoothDevice.class);
     @Mock
     private ExecutorService fakeExecutorService;
+    private NotificationDispatcher dispatcher = spy(new NotificationDispatcher());
 
     @InjectMocks
-    private TinyBDevice tinyBDevice = new TinyBDevice(URL, bluetoothDevice);
+    private TinyBDevice tinyBDevice = new TinyBDevice(URL, bluetoothDevice, dispatcher);
 
     @Before
     public void setUp() throws Exception {
         PowerMockito.mockStatic(TinyBFactory.class);
-        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "notifySafely", any(), any(), anyString());
-        PowerMockito.doReturn(fakeExecutorService).when(TinyBFactory.class, "getNotificationService");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getWatchdog");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getRetryPolicy");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getConnectionManager");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getAdapterBalancer");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getSubscriptionRestorer");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getGattSchemaCache");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getCaptureLog");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getLeakDetector");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getReconnectEngine");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getDiscoveryScheduler");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getAdvertisementFilter");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getAdvertisementDecoder");
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "getDeviceRegistry");
+        doReturn(fakeExecutorService).when(dispatcher).getExecutor();
         when(fakeExecutorService.submit(any(Runnable.class))).thenAnswer((Answer<Future<?>>) invocation -> {
             invocation.getArgumentAt(0, Runnable.class).run();
             return null;
@@ -218,6 +232,37 @@ public class TinyBDeviceTest {
         verify(notification, times(2)).notify(RSSI);
     }
 
+    @Test
+    public void testEnablePrimitiveRSSINotifications() throws Exception {
+        RSSINotification notification = mock(RSSINotification.class);
+        ArgumentCaptor<BluetoothNotification> captor = ArgumentCaptor.forClass(BluetoothNotification.class);
+        doNothing().when(bluetoothDevice).enableRSSINotifications(captor.capture());
+
+        tinyBDevice.enableRSSINotifications(notification);
+
+        captor.getValue().run(RSSI);
+        verify(notification, times(1)).notifyRSSI(RSSI);
+        verify(notification, never()).notify(any());
+    }
+
+    @Test
+    public void testEnableRSSINotificationsUnknownAddress() throws Exception {
+        TinyBDevice device = new TinyBDevice(new URL(TinyBFactory.TINYB_PROTOCOL_NAME, ADAPTER_MAC, "device"),
+                bluetoothDevice, dispatcher);
+        Notification<Short> notification = mock(Notification.class);
+        ArgumentCaptor<BluetoothNotification> captor = ArgumentCaptor.forClass(BluetoothNotification.class);
+        doNothing().when(bluetoothDevice).enableRSSINotifications(captor.capture());
+        TinyBFactory.getAdvertisementFilter().setAllowedAddresses(Collections.singletonList(DEVICE_MAC));
+        try {
+            // the address cannot be packed, hence it is not filtered
+            device.enableRSSINotifications(notification);
+            captor.getValue().run(RSSI);
+            verify(notification, times(1)).notify(RSSI);
+        } finally {
+            TinyBFactory.getAdvertisementFilter().setAllowedAddresses(Collections.emptyList());
+        }
+    }
+
     @Test
     public void testDisableRSSINotifications() throws Exception {
         tinyBDevice.disableRSSINotifications();
@@ -312,6 +357,22 @@ public class TinyBDeviceTest {
         verifyNoMoreInteractions(bluetoothAdapter, bluetoothDevice);
     }
 
+    @Test
+    public void testDisposeFailingDevice() throws Exception {
+        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "runSilently", any(Runnable.class));
+        TinyBFactory.getReconnectEngine().recordConnect(URL, () -> true, true, 10);
+        doThrow(RuntimeException.class).when(bluetoothDevice).getAdapter();
+        doThrow(RuntimeException.class).when(bluetoothDevice).disableRSSINotifications();
+
+        TinyBDevice.dispose(URL, bluetoothDevice);
+
+        // transport state is released and the native device is removed even if the device is failing
+        assertEquals(1.0, TinyBFactory.getReconnectEngine().getScore(URL), 0.0);
+        verify(bluetoothDevice, times(1)).disconnect();
+        verify(bluetoothDevice, times(1)).disableTrustedNotifications();
+        verify(bluetoothDevice, times(1)).remove();
+    }
+
     @Test
     public void testIsBleEnabled() {
         when(bluetoothDevice.getBluetoothClass()).thenReturn(0);
@@ -1,34 +1,46 @@
 package org.sputnikdev.bluetooth.manager.transport.tinyb;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
 import org.powermock.modules.junit4.PowerMockRunner;
-import org.slf4j.Logger;
 import org.sputnikdev.bluetooth.URL;
+import org.sputnikdev.bluetooth.manager.transport.Notification;
 import tinyb.BluetoothGattCharacteristic;
 import tinyb.BluetoothGattService;
 import tinyb.BluetoothManager;
+import tinyb.BluetoothNotification;
 import tinyb.BluetoothType;
+import tinyb.TransportType;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -53,15 +65,14 @@ public class TinyBFactoryTest {
     @Mock
     private ExecutorService fakeExecutorService;
 
-    @InjectMocks
-    private TinyBFactory tinyBFactory;
+    private NotificationDispatcher dispatcher = spy(new NotificationDispatcher());
+    private TinyBFactory tinyBFactory = new TinyBFactory(dispatcher);
 
     @Before
     public void setUp() throws Exception {
         PowerMockito.mockStatic(BluetoothManager.class);
         PowerMockito.spy(TinyBFactory.class);
-        PowerMockito.doCallRealMethod().when(TinyBFactory.class, "notifySafely", any(), any(), anyString());
-        PowerMockito.doReturn(fakeExecutorService).when(TinyBFactory.class, "getNotificationService");
+        doReturn(fakeExecutorService).when(dispatcher).getExecutor();
         when(fakeExecutorService.submit(any(Runnable.class))).thenAnswer((Answer<Future<?>>) invocation -> {
             invocation.getArgumentAt(0, Runnable.class).run();
             return null;
@@ -91,6 +102,11 @@ public class TinyBFactoryTest {
         when(bluetoothManager.getServices()).thenReturn(Arrays.asList(service));
     }
 
+    @After
+    public void tearDown() {
+        tinyBFactory.dispose();
+    }
+
     @Test
     public void testGetAdapter() throws Exception {
         assertEquals(ADAPTER, tinyBFactory.getAdapter(ADAPTER).getURL());
@@ -100,6 +116,24 @@ public class TinyBFactoryTest {
         assertNull(tinyBFactory.getAdapter(ADAPTER));
     }
 
+    @Test
+    public void testNotificationsDispatchedByOwningFactory() throws Exception {
+        Notification<Boolean> notification = mock(Notification.class);
+        ArgumentCaptor<BluetoothNotification> captor = ArgumentCaptor.forClass(BluetoothNotification.class);
+        doNothing().when(adapter).enablePoweredNotifications(captor.capture());
+        tinyBFactory.getAdapter(ADAPTER).enablePoweredNotifications(notification);
+
+        // a factory created later does not take over notifications of existing factories
+        NotificationDispatcher other = spy(new NotificationDispatcher());
+        TinyBFactory otherFactory = new TinyBFactory(other);
+        captor.getValue().run(true);
+
+        verify(notification, times(1)).notify(true);
+        verify(dispatcher, times(1)).dispatch(any(), any(), any());
+        verify(other, never()).dispatch(any(), any(), any());
+        otherFactory.dispose();
+    }
+
     @Test
     public void testGetDevice() throws Exception {
         assertEquals(DEVICE, tinyBFactory.getDevice(DEVICE).getURL());
@@ -149,6 +183,48 @@ public class TinyBFactoryTest {
         assertNull(tinyBFactory.getCharacteristic(CHARACTERISTIC));
     }
 
+    @Test
+    public void testReadValues() throws Exception {
+        byte[] value = {1, 2, 3};
+        URL unknown = CHARACTERISTIC.copyWithCharacteristic("aa12");
+        URL disconnected = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:61/0180/aa11");
+        when(device.getConnected()).thenReturn(true);
+        when(characteristic.readValue()).thenReturn(value);
+
+        BatchReadResult result = tinyBFactory.readValues(Arrays.asList(CHARACTERISTIC, unknown, disconnected));
+
+        assertEquals(1, result.getValues().size());
+        assertArrayEquals(value, result.getValues().get(CHARACTERISTIC));
+        assertEquals(2, result.getErrors().size());
+        assertTrue(result.getErrors().containsKey(unknown));
+        assertTrue(result.getErrors().containsKey(disconnected));
+        verify(bluetoothManager, times(1)).getObject(BluetoothType.GATT_SERVICE, null,
+                CHARACTERISTIC.getServiceUUID(), device);
+        verify(characteristic, times(1)).readValue();
+    }
+
+    @Test
+    public void testReadValuesSharedReader() throws Exception {
+        when(device.getConnected()).thenReturn(true);
+        when(characteristic.readValue()).thenReturn(new byte[] {1});
+        NativeLeakDetector detector = TinyBFactory.getLeakDetector();
+        detector.setEnabled(true);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(1, tinyBFactory.readValues(Arrays.asList(CHARACTERISTIC)).getValues().size());
+            }
+            // native characteristics are read without creating transport objects
+            assertEquals(0, detector.getLive(NativeLeakDetector.Kind.CHARACTERISTIC));
+            assertTrue(countThreads("tinyb-batch-reader") <= 4);
+
+            tinyBFactory.dispose();
+            Thread.sleep(100);
+            assertEquals(0, countThreads("tinyb-batch-reader"));
+        } finally {
+            detector.setEnabled(false);
+        }
+    }
+
     @Test
     public void testGetDiscoveredAdapters() throws Exception {
         assertEquals(1, tinyBFactory.getDiscoveredAdapters().size());
@@ -175,6 +251,7 @@ public class TinyBFactoryTest {
         TinyBFactory.loadNativeLibraries();
 
         PowerMockito.verifyStatic(times(1));
+        NativesLoader.isSupportedEnvironment();
     }
 
     @Test
@@ -185,6 +262,7 @@ public class TinyBFactoryTest {
         assertFalse(TinyBFactory.loadNativeLibraries());
 
         PowerMockito.verifyStatic(times(1));
+        NativesLoader.isSupportedEnvironment();
     }
 
     @Test
@@ -199,6 +277,72 @@ public class TinyBFactoryTest {
         verify(adapter).close();
         verify(device).close();
         verify(service).close();
+        Map<String, Number> metrics = tinyBFactory.getMetrics();
+        assertEquals(0, metrics.get("disposal.pending"));
+        assertEquals(0, metrics.get("notification.pending"));
+        assertEquals(0L, metrics.get("notification.abandoned"));
+    }
+
+    @Test
+    public void testDisposeSharedByLastFactory() {
+        NotificationDispatcher other = spy(new NotificationDispatcher());
+        TinyBFactory otherFactory = new TinyBFactory(other);
+        TinyBFactory.getDeviceRegistry().setEnabled(true);
+        try {
+            TinyBFactory.getDeviceRegistry().register(DEVICE, device);
+
+            // another factory is still live, only its own components are disposed
+            otherFactory.dispose();
+            otherFactory.dispose();
+            verify(other, times(2)).shutdown(anyLong());
+            verify(bluetoothManager, never()).stopDiscovery();
+            verify(adapter, never()).close();
+            assertEquals(1, TinyBFactory.getDeviceRegistry().size());
+
+            tinyBFactory.dispose();
+            verify(bluetoothManager, times(1)).stopDiscovery();
+            verify(adapter, times(1)).close();
+            assertEquals(0, TinyBFactory.getDeviceRegistry().size());
+        } finally {
+            TinyBFactory.getDeviceRegistry().setEnabled(false);
+        }
+    }
+
+    @Test
+    public void testDisposeReleasesTrackedObjects() {
+        NativeLeakDetector detector = TinyBFactory.getLeakDetector();
+        detector.setEnabled(true);
+        try {
+            assertEquals(DEVICE, tinyBFactory.getDevice(DEVICE).getURL());
+            assertEquals(1, detector.getLive(NativeLeakDetector.Kind.DEVICE));
+            long closed = detector.getClosed(NativeLeakDetector.Kind.DEVICE);
+
+            tinyBFactory.dispose();
+
+            assertEquals(closed + 1, detector.getClosed(NativeLeakDetector.Kind.DEVICE));
+        } finally {
+            detector.setEnabled(false);
+        }
+    }
+
+    @Test
+    public void testDisposeStopsEviction() throws Exception {
+        TinyBFactory.getDeviceRegistry().setEnabled(true);
+        TinyBFactory.getStaleDeviceEvictor().setStaleTimeout(TimeUnit.HOURS.toMillis(1));
+        try {
+            TinyBFactory.getDeviceRegistry().register(DEVICE, device);
+            assertEquals(1L, tinyBFactory.getMetrics().get("eviction.tracked").longValue());
+
+            tinyBFactory.dispose();
+
+            assertEquals(0L, tinyBFactory.getMetrics().get("eviction.tracked").longValue());
+            Thread.sleep(100);
+            assertFalse(Thread.getAllStackTraces().keySet().stream()
+                    .anyMatch(thread -> thread.getName().equals("tinyb-eviction")));
+        } finally {
+            TinyBFactory.getStaleDeviceEvictor().setStaleTimeout(0);
+            TinyBFactory.getDeviceRegistry().setEnabled(false);
+        }
     }
 
     @Test
@@ -212,23 +356,150 @@ public class TinyBFactoryTest {
     }
 
     @Test
-    public void testNotifySafely() {
-        Runnable notification = mock(Runnable.class);
-        Logger logger = mock(Logger.class);
-        String message = "Error!";
-        TinyBFactory.notifySafely(notification, logger, message);
-        verify(notification, times(1)).run();
-        verifyNoMoreInteractions(logger);
+    public void testConfigureDeadlines() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(TinyBFactory.CONNECT_DEADLINE, 5000);
+        config.put(TinyBFactory.READ_DEADLINE, "1000");
+        try {
+            tinyBFactory.configure(config);
+
+            Map<String, Number> metrics = tinyBFactory.getMetrics();
+            assertEquals(5000L, metrics.get("watchdog.connect.deadline"));
+            assertEquals(1000L, metrics.get("watchdog.read.deadline"));
+            assertEquals(0L, metrics.get("watchdog.write.deadline"));
+        } finally {
+            config.put(TinyBFactory.CONNECT_DEADLINE, 0);
+            config.put(TinyBFactory.READ_DEADLINE, 0);
+            tinyBFactory.configure(config);
+        }
+    }
+
+    @Test
+    public void testConfigureDiscoveryFilter() {
+        URL adapter = new URL("tinyb:/11:22:33:44:55:67");
+        Map<String, Object> config = new HashMap<>();
+        config.put(TinyBFactory.DISCOVERY_FILTER_UUIDS, "180f, 180a");
+        config.put(TinyBFactory.DISCOVERY_FILTER_RSSI, -80);
+        config.put(TinyBFactory.DISCOVERY_FILTER_TRANSPORT + ".11:22:33:44:55:67", "le");
+        try {
+            tinyBFactory.configure(config);
+
+            DiscoveryFilter.Filter filter = TinyBFactory.getDiscoveryFilter().getFilter(adapter);
+            assertEquals(Arrays.asList(UUIDs.parse("180f"), UUIDs.parse("180a")), filter.getUUIDs());
+            assertEquals(-80, filter.getRSSI());
+            assertEquals(TransportType.LE, filter.getTransport());
+            assertEquals(TransportType.AUTO, TinyBFactory.getDiscoveryFilter().getFilter(ADAPTER).getTransport());
+        } finally {
+            TinyBFactory.getDiscoveryFilter().setDefaultFilter(DiscoveryFilter.Filter.NONE);
+            TinyBFactory.getDiscoveryFilter().setFilter(adapter, DiscoveryFilter.Filter.NONE);
+        }
+    }
+
+    @Test
+    public void testConfigureDisposal() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(TinyBFactory.DISPOSAL_PARALLELISM, 16);
+        config.put(TinyBFactory.DISPOSAL_DEADLINE, "5000");
+        try {
+            tinyBFactory.configure(config);
+
+            assertEquals(16, TinyBFactory.getDisposer().getParallelism());
+            assertEquals(5000, TinyBFactory.getDisposer().getDeadline());
+        } finally {
+            TinyBFactory.getDisposer().setParallelism(8);
+            TinyBFactory.getDisposer().setDeadline(30000);
+        }
+    }
 
-        RuntimeException ex = new RuntimeException();
-        doThrow(ex).when(notification).run();
-        TinyBFactory.notifySafely(notification, logger, message);
-        verify(notification, times(2)).run();
-        verify(logger, times(1)).error(message, ex);
+    @Test
+    public void testConfigureGattCache() throws Exception {
+        Path directory = Files.createTempDirectory("gatt-cache");
+        Map<String, Object> config = new HashMap<>();
+        config.put(TinyBFactory.GATT_CACHE_DIRECTORY, directory.toString());
+        try {
+            tinyBFactory.configure(config);
+            assertTrue(TinyBFactory.getGattSchemaCache().isEnabled());
+            assertEquals(directory, TinyBFactory.getGattSchemaCache().getDirectory());
+            assertTrue(tinyBFactory.getCachedCharacteristics(DEVICE).isEmpty());
+
+            config.put(TinyBFactory.GATT_CACHE_DIRECTORY, "");
+            tinyBFactory.configure(config);
+            assertFalse(TinyBFactory.getGattSchemaCache().isEnabled());
+        } finally {
+            TinyBFactory.getGattSchemaCache().setDirectory(null);
+            Files.delete(directory);
+        }
     }
 
     @Test
-    public void testGetNotificationService() {
-        //assertNotNull(TinyBFactory.getNotificationService());
+    public void testConfigureDeviceSnapshot() throws Exception {
+        Path file = Files.createTempDirectory("snapshot").resolve("devices.snapshot");
+        Map<String, Object> config = new HashMap<>();
+        config.put(TinyBFactory.DEVICE_SNAPSHOT_FILE, file.toString());
+        config.put(TinyBFactory.DEVICE_SNAPSHOT_INTERVAL, 5000);
+        config.put(TinyBFactory.DEVICE_SNAPSHOT_MAX_AGE, "60000");
+        try {
+            tinyBFactory.configure(config);
+            assertEquals(file, TinyBFactory.getDeviceSnapshot().getFile());
+            assertEquals(5000, TinyBFactory.getDeviceSnapshot().getInterval());
+            assertEquals(60000, TinyBFactory.getDeviceSnapshot().getMaxAge());
+
+            config.put(TinyBFactory.DEVICE_SNAPSHOT_FILE, "");
+            tinyBFactory.configure(config);
+            assertFalse(TinyBFactory.getDeviceSnapshot().isEnabled());
+        } finally {
+            TinyBFactory.getDeviceSnapshot().setFile(null);
+            TinyBFactory.getDeviceSnapshot().setInterval(60000);
+            TinyBFactory.getDeviceSnapshot().setMaxAge(TimeUnit.DAYS.toMillis(1));
+            Files.delete(file.getParent());
+        }
     }
+
+    @Test
+    public void testConfigureCapture() throws Exception {
+        Path directory = Files.createTempDirectory("capture");
+        Map<String, Object> config = new HashMap<>();
+        config.put(TinyBFactory.CAPTURE_DIRECTORY, directory.toString());
+        config.put(TinyBFactory.CAPTURE_SEGMENT_SIZE, 1024 * 1024);
+        config.put(TinyBFactory.CAPTURE_MAX_SEGMENTS, "4");
+        try {
+            tinyBFactory.configure(config);
+            assertTrue(TinyBFactory.getCaptureLog().isEnabled());
+            assertEquals(1024 * 1024, TinyBFactory.getCaptureLog().getSegmentSize());
+            assertEquals(4, TinyBFactory.getCaptureLog().getMaxSegments());
+
+            config.put(TinyBFactory.CAPTURE_DIRECTORY, "");
+            tinyBFactory.configure(config);
+            assertFalse(TinyBFactory.getCaptureLog().isEnabled());
+        } finally {
+            TinyBFactory.getCaptureLog().setDirectory(null);
+            TinyBFactory.getCaptureLog().setSegmentSize(16 * 1024 * 1024);
+            TinyBFactory.getCaptureLog().setMaxSegments(8);
+            for (Path segment : CaptureLog.list(directory)) {
+                Files.delete(segment);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testConfigureLeakDetection() {
+        Map<String, Object> config = new HashMap<>();
+        config.put(TinyBFactory.LEAK_DETECTION, "true");
+        config.put(TinyBFactory.LEAK_DETECTION_MAX_AGE, 60000);
+        try {
+            tinyBFactory.configure(config);
+            assertTrue(TinyBFactory.getLeakDetector().isEnabled());
+            assertEquals(60000, TinyBFactory.getLeakDetector().getMaxAge());
+            assertTrue(tinyBFactory.getLeakReport().isEmpty());
+        } finally {
+            TinyBFactory.getLeakDetector().setEnabled(false);
+            TinyBFactory.getLeakDetector().setMaxAge(TimeUnit.HOURS.toMillis(1));
+        }
+    }
+
+    private static long countThreads(String name) {
+        return Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().equals(name)).count();
+    }
+
 }
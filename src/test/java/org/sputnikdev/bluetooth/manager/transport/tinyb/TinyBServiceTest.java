@@ -47,7 +47,7 @@ public class TinyBServiceTest {
     private BluetoothAdapter bluetoothAdapter;
 
     @InjectMocks
-    private TinyBService tinyBService = new TinyBService(URL, bluetoothGattService);
+    private TinyBService tinyBService = new TinyBService(URL, bluetoothGattService, new NotificationDispatcher());
 
     @Before
     public void setUp() {
@@ -0,0 +1,263 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothNotification;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * A load test of the transport notification paths. Native callbacks of simulated devices are fired from generator
+ * threads (as if they were TinyB/JNI threads) with configurable number of advertising and notifying devices,
+ * advertisement/notification rates and payload sizes. Throughput, callback-to-consumer latency percentiles, thread
+ * counts and heap growth are measured and checked against thresholds. Rates can be ramped up to find where the
+ * transport saturates.
+ *
+ * <p>Not a unit test, run it manually (exit code is 1 if thresholds of the first step are not met):
+ * <pre>java -cp target/classes:target/test-classes:... TransportLoadBenchmark [key=value ...]</pre>
+ * Supported options (defaults in brackets): devices [1000] and rate [10] - advertising devices and advertisements
+ * per second per device, notifying [100] and notificationRate [20] - notifying devices and notifications per second
+ * per device, payload [24] - payload size (bytes), duration [10] - duration of each step (s), generators [4] -
+ * generator threads, steps [1] - number of steps, the rates are doubled with every step; thresholds: minDelivered
+ * [0.99] - delivered/offered ratio, maxP99 [100] - 99th latency percentile (ms), maxThreads [200] - peak number of
+ * threads, maxHeapGrowth [64] - heap growth (MB). Other options are passed to
+ * {@link TinyBFactory#configure(Map)}.
+ */
+public final class TransportLoadBenchmark {
+
+    private static final URL ADAPTER = new URL("tinyb:/00:00:00:00:00:01");
+    private static final short MANUFACTURER = (short) 0xffff;
+    private static final int MAX_SAMPLES = 1 << 22;
+
+    private final Map<String, String> options;
+    private final int payload;
+    private final int generators;
+    private final long duration;
+    private final List<BluetoothNotification<Map<Short, byte[]>>> advertisers = new ArrayList<>();
+    private final List<BluetoothNotification<byte[]>> notifiers = new ArrayList<>();
+    private final NotificationDispatcher dispatcher = new NotificationDispatcher();
+
+    private final LongAdder delivered = new LongAdder();
+    private final AtomicInteger sampled = new AtomicInteger();
+    private final long[] samples = new long[MAX_SAMPLES];
+
+    private TransportLoadBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.payload = Math.max(getInt("payload", 24), 8);
+        this.generators = getInt("generators", 4);
+        this.duration = getInt("duration", 10) * 1000L;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "true");
+        }
+        boolean passed = new TransportLoadBenchmark(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        TinyBFactory factory = new TinyBFactory(dispatcher);
+        Map<String, Object> config = new HashMap<>(options);
+        Arrays.asList("devices", "rate", "notifying", "notificationRate", "payload", "duration", "generators",
+                "steps", "minDelivered", "maxP99", "maxThreads", "maxHeapGrowth").forEach(config::remove);
+        factory.configure(config);
+        subscribe(getInt("devices", 1000), getInt("notifying", 100));
+
+        int steps = getInt("steps", 1);
+        double rate = getDouble("rate", 10);
+        double notificationRate = getDouble("notificationRate", 20);
+        boolean firstPassed = false;
+        for (int step = 0; step < steps; step++) {
+            boolean passed = step(step + 1, rate, notificationRate);
+            if (step == 0) {
+                firstPassed = passed;
+            }
+            if (!passed) {
+                if (step > 0) {
+                    System.out.printf("saturated at step %d, last passing rates: %.1f ads/s, %.1f notifications/s%n",
+                            step + 1, advertisers.size() * rate / 2, notifiers.size() * notificationRate / 2);
+                }
+                break;
+            }
+            rate *= 2;
+            notificationRate *= 2;
+        }
+        System.out.println("transport metrics: " + factory.getMetrics());
+        return firstPassed;
+    }
+
+    private void subscribe(int devices, int notifying) {
+        for (int i = 0; i < devices + notifying; i++) {
+            URL url = ADAPTER.copyWithDevice(DeviceKey.formatAddress(0x100000000000L + i));
+            BluetoothDevice device = mock(BluetoothDevice.class);
+            if (i < devices) {
+                doAnswer(invocation -> advertisers.add((BluetoothNotification<Map<Short, byte[]>>)
+                        invocation.getArguments()[0])).when(device).enableManufacturerDataNotifications(any());
+                new TinyBDevice(url, device, dispatcher).enableManufacturerDataNotifications(
+                        (ManufacturerDataNotification) (companyId, data, offset, length) -> received(data, offset));
+            } else {
+                BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+                doAnswer(invocation -> notifiers.add((BluetoothNotification<byte[]>) invocation.getArguments()[0]))
+                        .when(characteristic).enableValueNotifications(any());
+                new TinyBCharacteristic(url.copyWithService("180f").copyWithCharacteristic("2a19"), characteristic,
+                        dispatcher).enableValueNotifications(value -> received(value, 0));
+            }
+        }
+    }
+
+    private boolean step(int step, double rate, double notificationRate) throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        delivered.reset();
+        sampled.set(0);
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        threads.resetPeakThreadCount();
+
+        LongAdder fired = new LongAdder();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long started = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (int g = 0; g < generators; g++) {
+            List<BluetoothNotification<Map<Short, byte[]>>> ads = slice(advertisers, g);
+            List<BluetoothNotification<byte[]>> values = slice(notifiers, g);
+            Thread worker = new Thread(() -> {
+                try {
+                    generate(started, ads, ads.size() * rate, values, values.size() * notificationRate, fired);
+                } catch (Throwable ex) {
+                    failure.set(ex);
+                }
+            }, "load-generator-" + g);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        // let queued notifications drain
+        long drainDeadline = System.currentTimeMillis() + 5000;
+        while (delivered.sum() < fired.sum() && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        int peakThreads = threads.getPeakThreadCount();
+        System.gc();
+        long heapGrowth = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+
+        long offered = fired.sum();
+        long received = delivered.sum();
+        int count = Math.min(sampled.get(), MAX_SAMPLES);
+        long[] latencies = Arrays.copyOf(samples, count);
+        Arrays.sort(latencies);
+        double seconds = elapsed / 1e9;
+        System.out.printf("step %d: offered %.0f/s, delivered %.0f/s (%.4f), latency p50 %.3f ms, p95 %.3f ms, "
+                + "p99 %.3f ms, max %.3f ms, peak threads %d, heap growth %.1f MB%n", step, offered / seconds,
+                received / seconds, ratio(received, offered), percentile(latencies, 0.5),
+                percentile(latencies, 0.95), percentile(latencies, 0.99), percentile(latencies, 1),
+                peakThreads, heapGrowth / 1048576.0);
+
+        List<String> violations = new ArrayList<>();
+        if (failure.get() != null) {
+            violations.add("generator failed: " + failure.get());
+        }
+        check(violations, "delivered ratio", ratio(received, offered), getDouble("minDelivered", 0.99), false);
+        check(violations, "p99 latency (ms)", percentile(latencies, 0.99), getDouble("maxP99", 100), true);
+        check(violations, "peak threads", peakThreads, getDouble("maxThreads", 200), true);
+        check(violations, "heap growth (MB)", heapGrowth / 1048576.0, getDouble("maxHeapGrowth", 64), true);
+        violations.forEach(violation -> System.out.println("  FAILED: " + violation));
+        return violations.isEmpty();
+    }
+
+    private void generate(long started, List<BluetoothNotification<Map<Short, byte[]>>> ads, double adRate,
+            List<BluetoothNotification<byte[]>> values, double valueRate, LongAdder fired) throws InterruptedException {
+        long adsFired = 0;
+        long valuesFired = 0;
+        int nextAd = 0;
+        int nextValue = 0;
+        long now;
+        while ((now = System.nanoTime()) - started < duration * 1000000) {
+            double elapsed = (now - started) / 1e9;
+            // catch up with the schedule, native callbacks are fired back to back like a burst of JNI upcalls
+            for (long due = (long) (elapsed * adRate); adsFired < due; adsFired++) {
+                ads.get(nextAd++ % ads.size()).run(Collections.singletonMap(MANUFACTURER, payload()));
+                fired.increment();
+            }
+            for (long due = (long) (elapsed * valueRate); valuesFired < due; valuesFired++) {
+                values.get(nextValue++ % values.size()).run(payload());
+                fired.increment();
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private byte[] payload() {
+        byte[] data = new byte[payload];
+        ByteBuffer.wrap(data).putLong(System.nanoTime());
+        return data;
+    }
+
+    private void received(byte[] data, int offset) {
+        long latency = System.nanoTime() - ByteBuffer.wrap(data, offset, 8).getLong();
+        int index = sampled.getAndIncrement();
+        if (index >= 0 && index < MAX_SAMPLES) {
+            samples[index] = latency;
+        }
+        delivered.increment();
+    }
+
+    private <T> List<T> slice(List<T> items, int generator) {
+        List<T> result = new ArrayList<>();
+        for (int i = generator; i < items.size(); i += generators) {
+            result.add(items.get(i));
+        }
+        return result;
+    }
+
+    private static void check(List<String> violations, String name, double value, double threshold,
+            boolean max) {
+        if (max ? value > threshold : value < threshold) {
+            violations.add(String.format("%s %.3f, threshold %.3f", name, value, threshold));
+        }
+    }
+
+    private static double ratio(long received, long offered) {
+        return offered > 0 ? (double) received / offered : 1;
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        return options.containsKey(key) ? Double.parseDouble(options.get(key)) : defaultValue;
+    }
+
+}
@@ -0,0 +1,167 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sputnikdev.bluetooth.URL;
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothNotification;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Simulates device churn against a fake (mocked) TinyB backend in a compressed run. Every simulated day
+ * a new generation of devices shows up, gets wrapped, subscribed, connected, notified and finally disposed.
+ * Tracked state and live native object counts must not grow with the number of simulated days, this is checked
+ * by a short run on every build. The soak run, which also checks heap and thread growth over weeks of churn,
+ * is enabled by the "soak.days" system property, e.g. -Dsoak.days=14; "soak.devicesPerDay" sets its daily
+ * number of devices.
+ */
+public class TransportSoakTest {
+
+    private static final URL ADAPTER = new URL("tinyb:/11:22:33:44:55:66");
+    private static final int CHURN_DAYS = 3;
+    private static final int CHURN_DEVICES_PER_DAY = 20;
+    private static final String SOAK_DAYS = "soak.days";
+    private static final int DAYS = Integer.getInteger(SOAK_DAYS, 14);
+    private static final int DEVICES_PER_DAY = Integer.getInteger("soak.devicesPerDay", 200);
+    private static final long MAX_HEAP_GROWTH = 32 * 1024 * 1024;
+    private static final int MAX_THREAD_GROWTH = 16;
+
+    // shared by all devices, invocations are not recorded so that they do not pile up
+    private final BluetoothAdapter adapter = mock(BluetoothAdapter.class, withSettings().stubOnly());
+    private final AtomicLong notified = new AtomicLong();
+    private final NotificationDispatcher dispatcher = new NotificationDispatcher();
+
+    @Before
+    public void setUp() {
+        when(adapter.getAddress()).thenReturn(ADAPTER.getAdapterAddress());
+        TinyBFactory.getDeviceRegistry().setEnabled(true);
+        TinyBFactory.getSubscriptionRestorer().setEnabled(true);
+        TinyBFactory.getLeakDetector().setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        TinyBFactory.getDeviceRegistry().setEnabled(false);
+        TinyBFactory.getSubscriptionRestorer().setEnabled(false);
+        TinyBFactory.getReconnectEngine().dispose();
+        TinyBFactory.getLeakDetector().setEnabled(false);
+        dispatcher.shutdown(1000);
+    }
+
+    @Test
+    public void testChurn() throws Exception {
+        for (int day = 0; day < CHURN_DAYS; day++) {
+            simulateDay(day, CHURN_DEVICES_PER_DAY);
+        }
+
+        assertStateReleased();
+        assertLiveObjects(CHURN_DEVICES_PER_DAY);
+    }
+
+    @Test
+    public void testSoak() throws Exception {
+        // the soak run is disabled unless the number of days is set
+        assumeTrue(System.getProperty(SOAK_DAYS) != null);
+
+        // the first day warms up static components, executors and class loading
+        simulateDay(0, DEVICES_PER_DAY);
+        long baseHeap = usedHeap();
+        int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long peakHeap = baseHeap;
+        int peakThreads = baseThreads;
+        for (int day = 1; day < DAYS; day++) {
+            simulateDay(day, DEVICES_PER_DAY);
+            peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+            peakHeap = Math.max(peakHeap, usedHeap());
+        }
+
+        assertStateReleased();
+        assertLiveObjects(DEVICES_PER_DAY);
+        assertTrue("Thread growth: " + (peakThreads - baseThreads), peakThreads - baseThreads <= MAX_THREAD_GROWTH);
+        assertTrue("Heap growth: " + (peakHeap - baseHeap), peakHeap - baseHeap <= MAX_HEAP_GROWTH);
+    }
+
+    private void assertStateReleased() {
+        Map<String, Number> metrics = new HashMap<>();
+        TinyBFactory.getDeviceRegistry().reportMetrics(metrics);
+        TinyBFactory.getSubscriptionRestorer().reportMetrics(metrics);
+        TinyBFactory.getReconnectEngine().reportMetrics(metrics);
+        assertEquals(0, metrics.get("registry.devices"));
+        assertEquals(0, metrics.get("subscriptions.devices"));
+        assertEquals(0, metrics.get("reconnect.devices"));
+        assertTrue(notified.get() > 0);
+    }
+
+    private static void assertLiveObjects(int devicesPerDay) throws InterruptedException {
+        // wrappers of disposed devices must be garbage collectable along with their native objects
+        NativeLeakDetector detector = TinyBFactory.getLeakDetector();
+        for (int i = 0; i < 50 && detector.getLive(NativeLeakDetector.Kind.DEVICE) > devicesPerDay; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue("Live devices: " + detector.getLive(NativeLeakDetector.Kind.DEVICE),
+                detector.getLive(NativeLeakDetector.Kind.DEVICE) <= devicesPerDay);
+        assertTrue("Live characteristics: " + detector.getLive(NativeLeakDetector.Kind.CHARACTERISTIC),
+                detector.getLive(NativeLeakDetector.Kind.CHARACTERISTIC) <= devicesPerDay);
+    }
+
+    private void simulateDay(int day, int devices) {
+        for (int i = 0; i < devices; i++) {
+            // a half of devices come back every day, the other half is new
+            int id = i % 2 == 0 ? i : day * devices + i;
+            simulateDevice(String.format("10:20:30:%02X:%02X:%02X", id >> 16 & 0xff, id >> 8 & 0xff, id & 0xff));
+        }
+    }
+
+    private void simulateDevice(String address) {
+        URL url = ADAPTER.copyWithDevice(address);
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        when(device.getAdapter()).thenReturn(adapter);
+        BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+
+        TinyBDevice tinyBDevice = new TinyBDevice(url, device, dispatcher);
+        tinyBDevice.enableRSSINotifications(value -> notified.incrementAndGet());
+        tinyBDevice.enableConnectedNotifications(value -> notified.incrementAndGet());
+        TinyBCharacteristic tinyBCharacteristic = new TinyBCharacteristic(
+                url.copyWithService("180f").copyWithCharacteristic("2a19"), characteristic, dispatcher);
+        tinyBCharacteristic.enableValueNotifications(value -> notified.incrementAndGet());
+        TinyBFactory.getReconnectEngine().recordConnect(url, () -> true, true, 10);
+
+        ArgumentCaptor<BluetoothNotification> rssi = ArgumentCaptor.forClass(BluetoothNotification.class);
+        verify(device).enableRSSINotifications(rssi.capture());
+        rssi.getValue().run((short) -70);
+        ArgumentCaptor<BluetoothNotification> value = ArgumentCaptor.forClass(BluetoothNotification.class);
+        verify(characteristic).enableValueNotifications(value.capture());
+        value.getValue().run(new byte[] {100});
+
+        TinyBDevice.dispose(url, device);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
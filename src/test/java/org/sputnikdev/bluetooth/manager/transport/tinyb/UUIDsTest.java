@@ -0,0 +1,40 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class UUIDsTest {
+
+    private static final UUID BATTERY_SERVICE = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final String EDDYSTONE = "0000feaa-0000-1000-8000-00805f9b34fb";
+
+    @Test
+    public void testParse() {
+        assertEquals(BATTERY_SERVICE, UUIDs.parse("180f"));
+        assertEquals(BATTERY_SERVICE, UUIDs.parse("0000180F"));
+        assertEquals(BATTERY_SERVICE, UUIDs.parse(" 0000180f-0000-1000-8000-00805f9b34fb "));
+        assertEquals(UUID.fromString("f000aa00-0451-4000-b000-000000000000"),
+                UUIDs.parse("F000AA00-0451-4000-B000-000000000000"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        UUIDs.parse("0000180f-0000-1000-8000-00805f9b34fx");
+    }
+
+    @Test
+    public void testToShort() {
+        assertEquals(0x180f, UUIDs.toShort(BATTERY_SERVICE));
+        assertEquals(-1, UUIDs.toShort(UUID.fromString("f000aa00-0451-4000-b000-000000000000")));
+        assertEquals(BATTERY_SERVICE, UUIDs.fromShort(UUIDs.toShort(BATTERY_SERVICE)));
+
+        assertEquals(0xfeaa, UUIDs.toShort(EDDYSTONE));
+        assertEquals(-1, UUIDs.toShort("1000feaa-0000-1000-8000-00805f9b34fb"));
+        assertEquals(-1, UUIDs.toShort("0000feaa-0000-1000-8000-00805f9b34fc"));
+        assertEquals(-1, UUIDs.toShort("feaa"));
+    }
+
+}
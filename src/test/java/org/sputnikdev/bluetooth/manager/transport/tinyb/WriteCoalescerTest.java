@@ -0,0 +1,148 @@
+package org.sputnikdev.bluetooth.manager.transport.tinyb;
+
+import org.junit.Test;
+import org.sputnikdev.bluetooth.URL;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteCoalescerTest {
+
+    private static final URL CHARACTERISTIC = new URL("tinyb:/11:22:33:44:55:66/10:20:30:40:50:60/0180/aa11");
+
+    private final WriteCoalescer coalescer = new WriteCoalescer();
+
+    @Test
+    public void testWrite() {
+        List<byte[]> written = new CopyOnWriteArrayList<>();
+        assertTrue(coalescer.write(CHARACTERISTIC, new byte[] {1}, value -> written.add(value)));
+        assertTrue(coalescer.write(CHARACTERISTIC, new byte[] {2}, value -> written.add(value)));
+        assertEquals(2, written.size());
+        assertEquals(2, coalescer.getWrites());
+        assertEquals(0, coalescer.getSuperseded());
+    }
+
+    @Test
+    public void testLastWriteWins() throws Exception {
+        List<byte[]> written = new CopyOnWriteArrayList<>();
+        CountDownLatch inFlight = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Boolean> first = executor.submit(() -> coalescer.write(CHARACTERISTIC, new byte[] {1}, value -> {
+                written.add(value);
+                inFlight.countDown();
+                await(release);
+                return true;
+            }));
+            assertTrue(inFlight.await(1, TimeUnit.SECONDS));
+
+            Future<Boolean> second = executor.submit(
+                    () -> coalescer.write(CHARACTERISTIC, new byte[] {2}, value -> written.add(value)));
+            waitForSuperseded(0);
+            Thread.sleep(50);
+            Future<Boolean> third = executor.submit(
+                    () -> coalescer.write(CHARACTERISTIC, new byte[] {3}, value -> written.add(value)));
+            waitForSuperseded(1);
+            Future<Boolean> fourth = executor.submit(
+                    () -> coalescer.write(CHARACTERISTIC, new byte[] {4}, value -> written.add(value)));
+            waitForSuperseded(2);
+
+            release.countDown();
+
+            assertTrue(first.get(1, TimeUnit.SECONDS));
+            assertTrue(second.get(1, TimeUnit.SECONDS));
+            assertTrue(third.get(1, TimeUnit.SECONDS));
+            assertTrue(fourth.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(2, written.size());
+        assertArrayEquals(new byte[] {1}, written.get(0));
+        assertArrayEquals(new byte[] {4}, written.get(1));
+        assertEquals(2, coalescer.getWrites());
+        assertEquals(2, coalescer.getSuperseded());
+    }
+
+    @Test
+    public void testSlotsPruned() {
+        coalescer.write(CHARACTERISTIC, new byte[] {1}, value -> true);
+        coalescer.write(CHARACTERISTIC.copyWithCharacteristic("aa12"), new byte[] {1}, value -> true);
+
+        Map<String, Number> metrics = new HashMap<>();
+        coalescer.reportMetrics(metrics);
+        assertEquals(0, metrics.get("coalescing.slots"));
+    }
+
+    @Test
+    public void testErrorCompletesWaiters() throws Exception {
+        CountDownLatch inFlight = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Boolean> first = executor.submit(() -> coalescer.write(CHARACTERISTIC, new byte[] {1}, value -> {
+                inFlight.countDown();
+                await(release);
+                return true;
+            }));
+            assertTrue(inFlight.await(1, TimeUnit.SECONDS));
+
+            Future<Boolean> second = executor.submit(() -> coalescer.write(CHARACTERISTIC, new byte[] {2}, value -> {
+                throw new LinkageError("native failure");
+            }));
+            waitForSuperseded(0);
+            Thread.sleep(50);
+            Future<Boolean> third = executor.submit(
+                    () -> coalescer.write(CHARACTERISTIC, new byte[] {3}, value -> true));
+            waitForSuperseded(1);
+
+            release.countDown();
+
+            assertTrue(first.get(1, TimeUnit.SECONDS));
+            assertFailedWith(second, LinkageError.class);
+            assertFailedWith(third, LinkageError.class);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void assertFailedWith(Future<Boolean> future, Class<? extends Throwable> error) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(error.isInstance(ex.getCause()));
+        }
+    }
+
+    private void waitForSuperseded(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (coalescer.getSuperseded() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, coalescer.getSuperseded());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}